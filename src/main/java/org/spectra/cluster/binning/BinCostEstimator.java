@@ -0,0 +1,64 @@
+package org.spectra.cluster.binning;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.stream.IntStream;
+
+/**
+ * Estimates the relative cost of clustering a bin.
+ *
+ * Within a bin, every cluster is primarily compared to the clusters with a similar
+ * precursor m/z. The number of comparisons therefore grows with the square of the number
+ * of clusters per precursor window. The cost of a bin is estimated as the sum of the
+ * squared occupancy of all precursor windows. A dense bin is thereby estimated to be far
+ * more expensive than a wide bin holding the same number of clusters.
+ *
+ * @author jg
+ */
+public final class BinCostEstimator {
+    private BinCostEstimator() {
+    }
+
+    /**
+     * Estimates the cost of clustering a bin.
+     *
+     * @param precursorMz The precursor m/z values of the bin's clusters. The array is not changed.
+     * @param windowSize The size of the precursor windows in (integer changed) m/z, usually the precursor tolerance.
+     * @return The estimated cost (sum of the squared window occupancy).
+     */
+    public static long estimateCost(int[] precursorMz, int windowSize) {
+        if (windowSize < 1) {
+            throw new IllegalArgumentException("Window size must be positive");
+        }
+
+        int[] sortedMz = precursorMz.clone();
+        Arrays.sort(sortedMz);
+
+        long cost = 0;
+        int windowStart = 0;
+
+        for (int i = 1; i <= sortedMz.length; i++) {
+            if (i == sortedMz.length || sortedMz[i] / windowSize != sortedMz[windowStart] / windowSize) {
+                long occupancy = i - windowStart;
+                cost += occupancy * occupancy;
+                windowStart = i;
+            }
+        }
+
+        return cost;
+    }
+
+    /**
+     * Orders the bins by decreasing cost.
+     *
+     * @param costs The estimated cost of every bin.
+     * @return The bin indices, the most expensive bin first.
+     */
+    public static int[] orderByCost(long[] costs) {
+        return IntStream.range(0, costs.length)
+                .boxed()
+                .sorted(Comparator.comparingLong((Integer bin) -> costs[bin]).reversed())
+                .mapToInt(Integer::intValue)
+                .toArray();
+    }
+}
@@ -0,0 +1,318 @@
+package org.spectra.cluster.binning;
+
+import lombok.AccessLevel;
+import lombok.Data;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import org.spectra.cluster.exceptions.SpectraClusterException;
+import org.spectra.cluster.model.cluster.IClusterProperties;
+
+import java.util.*;
+
+/**
+ * A cluster binner that partitions the clusters at precursor gaps that are larger than the
+ * precursor tolerance (per charge state, optional). Clusters in different partitions can never
+ * be merged. Therefore, clustering the partitions independently yields the same result as
+ * clustering all clusters at once.
+ *
+ * Small adjacent partitions are combined into one bin until the bin contains the minimum
+ * number of clusters. Partitions that exceed the maximum number of clusters are cut at their
+ * largest internal gap. Only these cuts may separate clusters that would have been merged.
+ *
+ * The shifted binning therefore only returns the clusters around the cuts of the previous
+ * un-shifted binning (see {@link #isShiftedBinningComplete()}). All other clusters are final
+ * after the first round. Since the first round's clusters of both sides of a cut are only
+ * compared in this second round, the result is an approximation of clustering the whole
+ * partition at once: Clusters merged in the second round change their precursor m/z and
+ * may then be similar to clusters that were not re-binned.
+ *
+ * @author jg
+ */
+@Data
+@Slf4j
+public class GapPartitionBinner implements IClusterBinner {
+    /**
+     * The precursor tolerance in (integer changed) m/z.
+     */
+    private final int precursorTolerance;
+    /**
+     * Minimum number of cluster per bin. Smaller partitions are combined.
+     */
+    private final int minimumBinSizeCluster;
+    /**
+     * Maximum number of clusters per partition. Larger partitions are cut. 0 disables cutting.
+     */
+    private final int maximumBinSizeCluster;
+    /**
+     * If set, clusters with different charge states are put in separate bins
+     */
+    private final boolean useCharge;
+
+    /**
+     * Cuts of the un-shifted binning per charge as pairs of the precursor m/z below and above the cut
+     */
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private Map<Integer, List<int[]>> cuts = new HashMap<>();
+
+    @Override
+    public String[][] binClusters(IClusterProperties[] clusters, boolean shift) throws SpectraClusterException {
+        Map<Integer, List<IClusterProperties>> chargeGroups = groupByCharge(clusters);
+
+        List<List<IClusterProperties>> bins = (shift) ? binAroundCuts(chargeGroups) : partition(chargeGroups);
+
+        return bins.stream()
+                .filter(bin -> bin.size() > 0)
+                .map(bin -> bin.stream().map(IClusterProperties::getId).toArray(String[]::new))
+                .toArray(String[][]::new);
+    }
+
+    @Override
+    public boolean isShiftedBinningComplete() {
+        return false;
+    }
+
+    /**
+     * Splits the clusters into partitions at gaps larger than the precursor tolerance and
+     * combines small partitions. Oversized partitions are cut and the cuts recorded.
+     *
+     * @param chargeGroups The clusters per charge, sorted by precursor m/z.
+     * @return The bins.
+     */
+    private List<List<IClusterProperties>> partition(Map<Integer, List<IClusterProperties>> chargeGroups) {
+        List<List<IClusterProperties>> bins = new ArrayList<>();
+        cuts.clear();
+        int nPartitions = 0;
+        int nCuts = 0;
+
+        for (Map.Entry<Integer, List<IClusterProperties>> chargeGroup : chargeGroups.entrySet()) {
+            List<IClusterProperties> sortedClusters = chargeGroup.getValue();
+            List<IClusterProperties> currentBin = new ArrayList<>();
+            int partitionStart = 0;
+
+            for (int i = 1; i <= sortedClusters.size(); i++) {
+                // continue until the end of the partition
+                if (i < sortedClusters.size() &&
+                        sortedClusters.get(i).getPrecursorMz() - sortedClusters.get(i - 1).getPrecursorMz() <= precursorTolerance)
+                    continue;
+
+                nPartitions++;
+                List<IClusterProperties> partition = sortedClusters.subList(partitionStart, i);
+                partitionStart = i;
+
+                if (maximumBinSizeCluster > 0 && partition.size() > maximumBinSizeCluster) {
+                    // complete the current bin and cut the partition
+                    if (!currentBin.isEmpty()) {
+                        bins.add(currentBin);
+                        currentBin = new ArrayList<>();
+                    }
+
+                    nCuts += cutPartition(partition, chargeGroup.getKey(), bins);
+                    continue;
+                }
+
+                // combine small partitions
+                if (maximumBinSizeCluster > 0 && currentBin.size() + partition.size() > maximumBinSizeCluster) {
+                    bins.add(currentBin);
+                    currentBin = new ArrayList<>();
+                }
+
+                currentBin.addAll(partition);
+
+                if (currentBin.size() >= minimumBinSizeCluster) {
+                    bins.add(currentBin);
+                    currentBin = new ArrayList<>();
+                }
+            }
+
+            if (!currentBin.isEmpty())
+                bins.add(currentBin);
+        }
+
+        log.info(String.format("Found %d precursor partitions in %d bins, %d cuts within dense regions",
+                nPartitions, bins.size(), nCuts));
+
+        return bins;
+    }
+
+    /**
+     * Cuts the partition at its largest gaps until all parts are small enough.
+     *
+     * @param partition The partition's clusters sorted by precursor m/z.
+     * @param charge The partition's charge.
+     * @param bins The bins to add the parts to.
+     * @return The number of cuts.
+     */
+    private int cutPartition(List<IClusterProperties> partition, int charge, List<List<IClusterProperties>> bins) {
+        Deque<List<IClusterProperties>> parts = new ArrayDeque<>();
+        parts.push(partition);
+        int nCuts = 0;
+
+        while (!parts.isEmpty()) {
+            List<IClusterProperties> part = parts.pop();
+
+            if (part.size() <= maximumBinSizeCluster) {
+                bins.add(part);
+                continue;
+            }
+
+            // use the largest gap in the central half of the part
+            int cutIndex = -1;
+            int largestGap = -1;
+
+            for (int i = Math.max(1, part.size() / 4); i <= part.size() * 3 / 4; i++) {
+                int gap = part.get(i).getPrecursorMz() - part.get(i - 1).getPrecursorMz();
+
+                if (gap > largestGap) {
+                    largestGap = gap;
+                    cutIndex = i;
+                }
+            }
+
+            cuts.computeIfAbsent(charge, c -> new ArrayList<>()).add(new int[] {
+                    part.get(cutIndex - 1).getPrecursorMz(), part.get(cutIndex).getPrecursorMz()});
+            nCuts++;
+
+            // process the lower part first to keep the bins sorted
+            parts.push(part.subList(cutIndex, part.size()));
+            parts.push(part.subList(0, cutIndex));
+        }
+
+        return nCuts;
+    }
+
+    /**
+     * Creates one bin per cut of the un-shifted binning containing all clusters that may be merged
+     * with a cluster on the other side of the cut. The passed clusters are the first round's result.
+     * A merged cluster's precursor m/z is the average of its members. Therefore, clusters below the
+     * cut have a precursor m/z of at most the cut's lower m/z, clusters above the cut at least the
+     * cut's upper m/z. Only clusters between the lowest cluster above the cut minus the tolerance
+     * and the highest cluster below the cut plus the tolerance can be within the tolerance of a
+     * cluster on the other side. Cuts without such a pair are skipped. Bins of overlapping cuts
+     * are combined.
+     *
+     * @param chargeGroups The clusters per charge, sorted by precursor m/z.
+     * @return The bins.
+     */
+    private List<List<IClusterProperties>> binAroundCuts(Map<Integer, List<IClusterProperties>> chargeGroups) {
+        List<List<IClusterProperties>> bins = new ArrayList<>();
+        int nClusters = 0;
+        int nBinnedClusters = 0;
+
+        for (Map.Entry<Integer, List<IClusterProperties>> chargeGroup : chargeGroups.entrySet()) {
+            List<IClusterProperties> sortedClusters = chargeGroup.getValue();
+            nClusters += sortedClusters.size();
+
+            List<int[]> chargeCuts = cuts.get(chargeGroup.getKey());
+
+            if (chargeCuts == null)
+                continue;
+
+            // derive the regions from the clusters closest to the cut on either side
+            List<int[]> regions = new ArrayList<>(chargeCuts.size());
+
+            for (int[] cut : chargeCuts) {
+                int lowerIndex = findFirstIndex(sortedClusters, cut[0] + 1) - 1;
+                int upperIndex = findFirstIndex(sortedClusters, cut[1]);
+
+                if (lowerIndex < 0 || upperIndex >= sortedClusters.size())
+                    continue;
+
+                int lowerMax = sortedClusters.get(lowerIndex).getPrecursorMz();
+                int upperMin = sortedClusters.get(upperIndex).getPrecursorMz();
+
+                // no clusters of the two sides are within the tolerance
+                if (upperMin - lowerMax > precursorTolerance)
+                    continue;
+
+                regions.add(new int[] {upperMin - precursorTolerance, lowerMax + precursorTolerance});
+            }
+
+            regions.sort(Comparator.comparingInt(region -> region[0]));
+
+            int clusterIndex = 0;
+            int regionIndex = 0;
+
+            while (regionIndex < regions.size()) {
+                // combine overlapping regions
+                int regionStart = regions.get(regionIndex)[0];
+                int regionEnd = regions.get(regionIndex)[1];
+
+                while (++regionIndex < regions.size() && regions.get(regionIndex)[0] <= regionEnd) {
+                    regionEnd = Math.max(regionEnd, regions.get(regionIndex)[1]);
+                }
+
+                while (clusterIndex < sortedClusters.size() && sortedClusters.get(clusterIndex).getPrecursorMz() < regionStart) {
+                    clusterIndex++;
+                }
+
+                List<IClusterProperties> bin = new ArrayList<>();
+
+                while (clusterIndex < sortedClusters.size() && sortedClusters.get(clusterIndex).getPrecursorMz() <= regionEnd) {
+                    bin.add(sortedClusters.get(clusterIndex++));
+                }
+
+                nBinnedClusters += bin.size();
+                bins.add(bin);
+            }
+        }
+
+        log.info(String.format("Re-clustering %d of %d clusters around the partitions' cuts", nBinnedClusters, nClusters));
+
+        return bins;
+    }
+
+    /**
+     * Returns the index of the first cluster with a precursor m/z of at least the passed value.
+     *
+     * @param sortedClusters The clusters sorted by precursor m/z.
+     * @param precursorMz The minimum precursor m/z.
+     * @return The index or the number of clusters if no cluster has such a precursor m/z.
+     */
+    private static int findFirstIndex(List<IClusterProperties> sortedClusters, int precursorMz) {
+        int low = 0;
+        int high = sortedClusters.size();
+
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+
+            if (sortedClusters.get(mid).getPrecursorMz() < precursorMz)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+
+        return low;
+    }
+
+    /**
+     * Groups the clusters by charge (if set) and sorts them by precursor m/z.
+     *
+     * @param clusters The clusters to group.
+     * @return The sorted clusters per charge.
+     */
+    private Map<Integer, List<IClusterProperties>> groupByCharge(IClusterProperties[] clusters) throws SpectraClusterException {
+        Map<Integer, List<IClusterProperties>> chargeGroups = new TreeMap<>();
+
+        for (IClusterProperties cluster : clusters) {
+            int charge = 0;
+
+            if (useCharge && cluster.getPrecursorCharge() != null) {
+                // ensure that the charge is plausible
+                if (cluster.getPrecursorCharge() < 0 || cluster.getPrecursorCharge() > 9)
+                    throw new SpectraClusterException(
+                            String.format("Cluster %s contains unrealistic charge of %d",
+                                    cluster.getId(), cluster.getPrecursorCharge()));
+
+                charge = cluster.getPrecursorCharge();
+            }
+
+            chargeGroups.computeIfAbsent(charge, c -> new ArrayList<>()).add(cluster);
+        }
+
+        chargeGroups.values().forEach(group -> group.sort(Comparator.comparingInt(IClusterProperties::getPrecursorMz)));
+
+        return chargeGroups;
+    }
+}
@@ -19,4 +19,14 @@ public interface IClusterBinner {
      * @return The binning result as a 2-dimensional array of cluster ids.
      */
     String[][] binClusters(IClusterProperties[] clusters, boolean shift) throws SpectraClusterException;
+
+    /**
+     * Whether the shifted binning contains all clusters. If not, only the clusters returned by the
+     * shifted binning have to be clustered again. All other clusters are final after the first round.
+     *
+     * @return True if the shifted binning contains all clusters.
+     */
+    default boolean isShiftedBinningComplete() {
+        return true;
+    }
 }
@@ -2,19 +2,33 @@ package org.spectra.cluster.binning;
 
 import lombok.AccessLevel;
 import lombok.Data;
+import lombok.Getter;
 import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
 import org.spectra.cluster.exceptions.SpectraClusterException;
 import org.spectra.cluster.model.cluster.IClusterProperties;
 
 import java.util.*;
+import java.util.stream.Collectors;
 
 /**
  * A cluster binner that bins clusters primarily according to m/z and charge (optional).
  * Binning is governed by two parameters: the minimum m/z window size and the minimum
  * number of spectra per bin. Smaller bins are merged into adjacent larger ones.
+ *
+ * Optionally, bins exceeding a maximum number of clusters are split at their largest
+ * precursor gaps. The split points of the un-shifted binning are kept. The shifted binning
+ * then does not separate clusters around these split points (or around the un-shifted
+ * bins' boundaries) that are closer than half the bin size. Thereby, the shifted binning
+ * always covers the boundaries of the un-shifted one. The un-shifted binning must
+ * therefore be performed first.
  */
 @Data
+@Slf4j
 public class SimilarSizedClusterBinner implements IClusterBinner {
+    // the charge is encoded in the bin index using this factor
+    private static final int CHARGE_FACTOR = 100_000_000;
+
     /**
      * The minimum bin size in (integer changed) m/z.
      */
@@ -28,11 +42,27 @@ public class SimilarSizedClusterBinner implements IClusterBinner {
      */
     private final boolean useCharge;
 
+    /**
+     * Maximum number of clusters per bin. Larger bins are split. 0 disables splitting.
+     */
+    private int maximumBinSizeCluster = 0;
+
     @Setter(AccessLevel.NONE)
     private int precursorOffset;
 
+    /**
+     * Split points of the un-shifted binning per charge (precursor m/z of the last cluster before the split)
+     */
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private Map<Integer, List<Integer>> splitPoints = new HashMap<>();
+
     @Override
     public String[][] binClusters(IClusterProperties[] clusters, boolean shift) throws SpectraClusterException {
+        // a new un-shifted binning replaces the previous split points
+        if (!shift)
+            splitPoints.clear();
+
         // ensure that there are clusters to bin
         if (clusters.length < minimumBinSizeCluster) {
             String[] allIds = Arrays.stream(clusters)
@@ -53,14 +83,22 @@ public class SimilarSizedClusterBinner implements IClusterBinner {
         // get the base binning result
         Map<Integer, List<IClusterProperties>> bins = doBinning(clusters);
 
+        // never separate clusters around the split points of the un-shifted binning
+        if (shift)
+            mergeAtSplitPoints(bins);
+
         mergeBins(bins);
 
+        // sort the clusters based on precursor m/z
+        bins.values().forEach(bin -> bin.sort(Comparator.comparingInt(IClusterProperties::getPrecursorMz)));
+
+        List<List<IClusterProperties>> finalBins = (maximumBinSizeCluster > 0) ?
+                splitBins(bins, shift) : new ArrayList<>(bins.values());
+
         // get the sorted bins
-        String[][] sortedIds = bins.values().stream()
+        String[][] sortedIds = finalBins.stream()
                 // remove empty bins
                 .filter(bin -> bin.size() > 0)
-                // sort the clusters based on precursor m/z
-                .peek(bin -> bin.sort(Comparator.comparingInt(IClusterProperties::getPrecursorMz)))
                 // change each bin to an array of ids
                 .map(bin -> bin.stream().map(IClusterProperties::getId).toArray(String[]::new))
                 // return as an array
@@ -69,6 +107,218 @@ public class SimilarSizedClusterBinner implements IClusterBinner {
         return sortedIds;
     }
 
+    /**
+     * Splits all bins that contain more than the maximum number of clusters at their largest
+     * precursor gaps. In the un-shifted binning, the split points are recorded.
+     *
+     * @param bins The merged bins. The clusters must be sorted by precursor m/z.
+     * @param shift Whether this is the shifted binning.
+     * @return The final bins.
+     */
+    private List<List<IClusterProperties>> splitBins(Map<Integer, List<IClusterProperties>> bins, boolean shift) {
+        List<List<IClusterProperties>> finalBins = new ArrayList<>(bins.size());
+        List<Integer> sizesBefore = new ArrayList<>(bins.size());
+        int nSplitBins = 0;
+        int nUnsplittableBins = 0;
+
+        for (Map.Entry<Integer, List<IClusterProperties>> binEntry : bins.entrySet()) {
+            List<IClusterProperties> bin = binEntry.getValue();
+
+            if (bin.isEmpty())
+                continue;
+
+            sizesBefore.add(bin.size());
+
+            if (bin.size() <= maximumBinSizeCluster) {
+                finalBins.add(bin);
+                continue;
+            }
+
+            nSplitBins++;
+            int charge = binEntry.getKey() / CHARGE_FACTOR;
+
+            // split the bin until all parts are small enough
+            Deque<List<IClusterProperties>> parts = new ArrayDeque<>();
+            parts.push(bin);
+
+            while (!parts.isEmpty()) {
+                List<IClusterProperties> part = parts.pop();
+
+                if (part.size() <= maximumBinSizeCluster) {
+                    finalBins.add(part);
+                    continue;
+                }
+
+                int splitIndex = findSplitIndex(part, charge, shift);
+
+                if (splitIndex < 0) {
+                    // the bin cannot be split without separating clusters at a previous boundary
+                    nUnsplittableBins++;
+                    finalBins.add(part);
+                    continue;
+                }
+
+                if (!shift)
+                    splitPoints.computeIfAbsent(charge, c -> new ArrayList<>())
+                            .add(part.get(splitIndex - 1).getPrecursorMz());
+
+                // process the lower part first to keep the bins sorted
+                parts.push(part.subList(splitIndex, part.size()));
+                parts.push(part.subList(0, splitIndex));
+            }
+        }
+
+        splitPoints.values().forEach(Collections::sort);
+
+        if (nSplitBins > 0) {
+            log.info(String.format("Bin sizes before splitting: %s", describeBinSizes(sizesBefore)));
+            log.info(String.format("Split %d bins larger than %d clusters. Bin sizes after splitting: %s",
+                    nSplitBins, maximumBinSizeCluster,
+                    describeBinSizes(finalBins.stream().map(List::size).collect(Collectors.toList()))));
+        }
+
+        if (nUnsplittableBins > 0)
+            log.warn(String.format("%d bins could not be split below %d clusters without separating clusters " +
+                    "at the un-shifted bins' boundaries", nUnsplittableBins, maximumBinSizeCluster));
+
+        return finalBins;
+    }
+
+    /**
+     * Finds the position to split the bin at. This is the largest precursor gap in the
+     * central half of the bin, or of the whole bin if no gap in the central half may
+     * be used.
+     *
+     * @param bin The bin's clusters sorted by precursor m/z.
+     * @param charge The bin's charge.
+     * @param shift Whether this is the shifted binning.
+     * @return The index of the first cluster in the upper part or -1 if the bin cannot be split.
+     */
+    private int findSplitIndex(List<IClusterProperties> bin, int charge, boolean shift) {
+        int splitIndex = findLargestGap(bin, Math.max(1, bin.size() / 4), Math.min(bin.size() - 1, bin.size() * 3 / 4), charge, shift);
+
+        if (splitIndex < 0)
+            splitIndex = findLargestGap(bin, 1, bin.size() - 1, charge, shift);
+
+        return splitIndex;
+    }
+
+    private int findLargestGap(List<IClusterProperties> bin, int fromIndex, int toIndex, int charge, boolean shift) {
+        int splitIndex = -1;
+        int largestGap = -1;
+
+        for (int i = fromIndex; i <= toIndex; i++) {
+            int lowerMz = bin.get(i - 1).getPrecursorMz();
+            int upperMz = bin.get(i).getPrecursorMz();
+
+            if (upperMz - lowerMz > largestGap && !(shift && isProtectedGap(lowerMz, upperMz, charge))) {
+                largestGap = upperMz - lowerMz;
+                splitIndex = i;
+            }
+        }
+
+        return splitIndex;
+    }
+
+    /**
+     * Tests whether splitting at the defined gap may separate two clusters that were
+     * separated by the un-shifted binning. These are clusters that are closer than half
+     * the bin size and on different sides of an un-shifted bin boundary or split point.
+     *
+     * @param lowerMz The highest precursor m/z below the gap.
+     * @param upperMz The lowest precursor m/z above the gap.
+     * @param charge The bin's charge.
+     * @return True if the gap must not be used to split the bin.
+     */
+    private boolean isProtectedGap(int lowerMz, int upperMz, int charge) {
+        int tolerance = binSizeMz / 2;
+
+        // no two clusters within the tolerance can be separated
+        if (upperMz - lowerMz > tolerance)
+            return false;
+
+        // the un-shifted bins' boundaries (highest m/z of every bin)
+        for (int bin = (lowerMz - tolerance) / binSizeMz; bin <= (upperMz + tolerance) / binSizeMz + 1; bin++) {
+            if (separatesBoundary(lowerMz, upperMz, bin * binSizeMz - 1, tolerance))
+                return true;
+        }
+
+        // the un-shifted split points
+        List<Integer> chargeSplitPoints = splitPoints.get(charge);
+
+        if (chargeSplitPoints != null) {
+            int index = Collections.binarySearch(chargeSplitPoints, lowerMz - tolerance);
+
+            for (int i = (index < 0) ? -(index + 1) : index; i < chargeSplitPoints.size(); i++) {
+                if (chargeSplitPoints.get(i) > upperMz + tolerance)
+                    break;
+                if (separatesBoundary(lowerMz, upperMz, chargeSplitPoints.get(i), tolerance))
+                    return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Tests whether a split at the gap may separate two clusters on different sides of the
+     * boundary that are within the tolerance.
+     *
+     * @param lowerMz The highest precursor m/z below the gap.
+     * @param upperMz The lowest precursor m/z above the gap.
+     * @param boundary The highest m/z below the boundary.
+     * @param tolerance The tolerance.
+     */
+    private static boolean separatesBoundary(int lowerMz, int upperMz, int boundary, int tolerance) {
+        return Math.max(upperMz, boundary + 1) - Math.min(lowerMz, boundary) <= tolerance;
+    }
+
+    /**
+     * Merges the shifted bins around every split point of the un-shifted binning. Otherwise,
+     * the shifted bins' boundary closest to the split point could separate the same clusters
+     * again.
+     *
+     * @param bins The shifted bins.
+     */
+    private void mergeAtSplitPoints(Map<Integer, List<IClusterProperties>> bins) {
+        int tolerance = binSizeMz / 2;
+
+        for (Map.Entry<Integer, List<Integer>> chargeSplitPoints : splitPoints.entrySet()) {
+            int chargeOffset = (useCharge) ? CHARGE_FACTOR * chargeSplitPoints.getKey() : 0;
+
+            for (int splitPoint : chargeSplitPoints.getValue()) {
+                // the only boundary within the tolerance of the split point is the one between bin - 1 and bin
+                int bin = (splitPoint + tolerance + precursorOffset) / binSizeMz + chargeOffset;
+                List<IClusterProperties> lowerBin = bins.remove(bin - 1);
+
+                if (lowerBin == null)
+                    continue;
+
+                List<IClusterProperties> upperBin = bins.get(bin);
+
+                if (upperBin == null)
+                    bins.put(bin, lowerBin);
+                else
+                    upperBin.addAll(lowerBin);
+            }
+        }
+    }
+
+    /**
+     * Describes the size distribution of the bins.
+     * @param binSizes The bins' sizes.
+     * @return A description of the size distribution.
+     */
+    private static String describeBinSizes(List<Integer> binSizes) {
+        if (binSizes.isEmpty())
+            return "no bins";
+
+        int[] sizes = binSizes.stream().mapToInt(Integer::intValue).sorted().toArray();
+
+        return String.format("%d bins, min = %d, median = %d, 90th percentile = %d, max = %d",
+                sizes.length, sizes[0], sizes[sizes.length / 2], sizes[(int) (sizes.length * 0.9)], sizes[sizes.length - 1]);
+    }
+
     /**
      * Merge adjacent bins that are smaller than the defined minimum bin size.
      * @param bins Bins to merge
@@ -115,7 +365,7 @@ public class SimilarSizedClusterBinner implements IClusterBinner {
                                         cluster.getId(), cluster.getPrecursorCharge()));
 
                     // encode the charge
-                    bin += 100_000_000 * cluster.getPrecursorCharge();
+                    bin += CHARGE_FACTOR * cluster.getPrecursorCharge();
                 }
             }
 
@@ -116,4 +116,47 @@ public class CumulativeDistributionFunction {
 
         return proportionCorrectMatches > minimumCorrectMatches;
     }
+
+    /**
+     * Returns the largest similarity that can never be a save match for the defined
+     * number of comparisons and maximum mixture probability. Any similarity that is
+     * lower or equal to the returned value is rejected by {@link #isSaveMatch(double, int, double)}.
+     *
+     * Note: The cumulative distribution is not necessarily monotone. Similarities above the
+     * returned value may therefore still be rejected.
+     *
+     * @param nComparisons Number of comparisons already performed for the spectrum.
+     * @param maximumMixtureProbability Allowed maximum mixture probability.
+     * @return The similarity threshold or Double.POSITIVE_INFINITY if no similarity is a save match.
+     */
+    public double getMinimumSaveSimilarity(int nComparisons, double maximumMixtureProbability) {
+        double minimumCorrectMatches = 1.0 - maximumMixtureProbability;
+
+        for (int bin = 0; bin < proportionPeptidesBelowScore.length; bin++) {
+            if (Math.pow(proportionPeptidesBelowScore[bin], nComparisons) > minimumCorrectMatches) {
+                return getUpperScoreForBin(bin - 1);
+            }
+        }
+
+        return Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Returns the largest score for which ceil(score / scoreIncrements) is at most the passed bin.
+     * @param bin The bin
+     * @return The largest score still mapped to the bin (or a lower one).
+     */
+    protected double getUpperScoreForBin(int bin) {
+        double score = bin * scoreIncrements;
+
+        // correct any rounding errors of the multiplication
+        while (score / scoreIncrements > bin) {
+            score = Math.nextDown(score);
+        }
+        while (Math.nextUp(score) / scoreIncrements <= bin) {
+            score = Math.nextUp(score);
+        }
+
+        return score;
+    }
 }
@@ -0,0 +1,174 @@
+package org.spectra.cluster.cdf;
+
+import java.util.Arrays;
+
+/**
+ * Caches the decisions of {@link CumulativeDistributionFunction#isSaveMatch(double, int, double)}
+ * for a fixed maximum mixture probability (ie. one clustering round).
+ *
+ * For every number of comparisons the table stores the similarity above which every
+ * match is save and the similarity up to which no match is save. Most matches can
+ * therefore be decided with a single comparison. Since the empirical cumulative
+ * distribution function is not necessarily monotone, similarities in between these
+ * two limits are still evaluated using the cumulative distribution function.
+ *
+ * Objects of this class are not thread-safe.
+ *
+ * @author jg
+ */
+public class SaveMatchScoreTable {
+    private static final int EMPTY_KEY = Integer.MIN_VALUE;
+
+    private final CumulativeDistributionFunction cdf;
+    private final double maximumMixtureProbability;
+
+    // open addressing table: number of comparisons -> score limits
+    private int[] keys;
+    private double[] minimumSaveSimilarities;
+    private double[] alwaysSaveSimilarities;
+    private int size = 0;
+
+    // the last requested entry
+    private int lastComparisons = EMPTY_KEY;
+    private int lastSlot = -1;
+
+    /**
+     * Creates a new (empty) table.
+     * @param cdf The cumulative distribution function to use.
+     * @param maximumMixtureProbability The allowed maximum mixture probability.
+     */
+    public SaveMatchScoreTable(CumulativeDistributionFunction cdf, double maximumMixtureProbability) {
+        this.cdf = cdf;
+        this.maximumMixtureProbability = maximumMixtureProbability;
+
+        keys = new int[64];
+        Arrays.fill(keys, EMPTY_KEY);
+        minimumSaveSimilarities = new double[keys.length];
+        alwaysSaveSimilarities = new double[keys.length];
+    }
+
+    /**
+     * Determines whether the match at the given similarity would be sufficiently good
+     * to satisfy the table's maximal mixture probability. This returns the same result as
+     * {@link CumulativeDistributionFunction#isSaveMatch(double, int, double)}.
+     * @param similarity Similarity of the match
+     * @param nComparisons Number of comparisons already performed for the spectrum.
+     * @return Boolean indicating whether this is a save match.
+     */
+    public boolean isSaveMatch(double similarity, int nComparisons) {
+        int slot = getSlot(nComparisons);
+
+        if (similarity > alwaysSaveSimilarities[slot]) {
+            return true;
+        }
+        if (similarity <= minimumSaveSimilarities[slot]) {
+            return false;
+        }
+
+        return cdf.isSaveMatch(similarity, nComparisons, maximumMixtureProbability);
+    }
+
+    /**
+     * Returns the largest similarity that can never be a save match.
+     * @param nComparisons Number of comparisons already performed for the spectrum.
+     * @return The similarity, see {@link CumulativeDistributionFunction#getMinimumSaveSimilarity(int, double)}
+     */
+    public double getMinimumSaveSimilarity(int nComparisons) {
+        return minimumSaveSimilarities[getSlot(nComparisons)];
+    }
+
+    /**
+     * Returns the number of cached entries.
+     * @return The number of cached entries.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the table slot for the number of comparisons. The
+     * slot is created if it does not exist.
+     * @param nComparisons The number of comparisons
+     * @return The slot's index.
+     */
+    private int getSlot(int nComparisons) {
+        if (nComparisons == lastComparisons) {
+            return lastSlot;
+        }
+
+        int slot = findSlot(keys, nComparisons);
+
+        if (keys[slot] == EMPTY_KEY) {
+            if ((size + 1) * 2 > keys.length) {
+                grow();
+                slot = findSlot(keys, nComparisons);
+            }
+
+            keys[slot] = nComparisons;
+            addLimits(slot, nComparisons);
+            size++;
+        }
+
+        lastComparisons = nComparisons;
+        lastSlot = slot;
+
+        return slot;
+    }
+
+    /**
+     * Calculates the score limits for the passed number of comparisons.
+     * @param slot The slot to store the limits in
+     * @param nComparisons The number of comparisons.
+     */
+    private void addLimits(int slot, int nComparisons) {
+        double[] proportions = cdf.proportionPeptidesBelowScore;
+        double minimumCorrectMatches = 1.0 - maximumMixtureProbability;
+
+        // every bin from alwaysSaveBin on is a save match
+        int alwaysSaveBin = proportions.length;
+        while (alwaysSaveBin > 0 && Math.pow(proportions[alwaysSaveBin - 1], nComparisons) > minimumCorrectMatches) {
+            alwaysSaveBin--;
+        }
+
+        minimumSaveSimilarities[slot] = cdf.getMinimumSaveSimilarity(nComparisons, maximumMixtureProbability);
+        alwaysSaveSimilarities[slot] = (alwaysSaveBin < proportions.length ?
+                cdf.getUpperScoreForBin(alwaysSaveBin - 1) : Double.POSITIVE_INFINITY);
+    }
+
+    private void grow() {
+        int[] oldKeys = keys;
+        double[] oldMinimum = minimumSaveSimilarities;
+        double[] oldAlways = alwaysSaveSimilarities;
+
+        keys = new int[oldKeys.length * 2];
+        Arrays.fill(keys, EMPTY_KEY);
+        minimumSaveSimilarities = new double[keys.length];
+        alwaysSaveSimilarities = new double[keys.length];
+
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == EMPTY_KEY) {
+                continue;
+            }
+
+            int slot = findSlot(keys, oldKeys[i]);
+            keys[slot] = oldKeys[i];
+            minimumSaveSimilarities[slot] = oldMinimum[i];
+            alwaysSaveSimilarities[slot] = oldAlways[i];
+        }
+
+        // slots changed
+        lastComparisons = EMPTY_KEY;
+    }
+
+    private static int findSlot(int[] keys, int key) {
+        int mask = keys.length - 1;
+        int hash = key * 0x9E3779B9;
+        int slot = (hash ^ (hash >>> 16)) & mask;
+
+        while (keys[slot] != EMPTY_KEY && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+
+        return slot;
+    }
+}
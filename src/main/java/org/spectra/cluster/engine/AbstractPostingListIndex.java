@@ -0,0 +1,364 @@
+package org.spectra.cluster.engine;
+
+import org.spectra.cluster.model.cluster.ICluster;
+
+import java.util.Arrays;
+
+/**
+ * Base class of inverted indexes that map keys (ie. peaks or hash buckets) to the
+ * clusters containing them. Candidates are all clusters that share at least the
+ * defined number of keys with the queried cluster.
+ *
+ * Postings are never removed directly. Instead, every slot has a version which is
+ * increased when the cluster changes. Outdated postings as well as postings of
+ * slots below the precursor offset are removed while the posting lists are read.
+ * Since lists that are rarely queried would otherwise keep their stale postings,
+ * all lists are compacted once the stale postings exceed {@link #MAX_STALE_FRACTION}
+ * of the live ones. This is checked on every query. After a query, the index therefore
+ * never holds more than (1 + MAX_STALE_FRACTION) * live postings + {@link #MIN_STALE_POSTINGS}.
+ *
+ * Objects of this class are not thread-safe.
+ *
+ * @author jg
+ */
+public abstract class AbstractPostingListIndex implements IClusterCandidateIndex {
+    private static final long EMPTY_KEY = Long.MIN_VALUE;
+    private static final int INITIAL_SIZE = 1024;
+
+    /**
+     * Maximum number of stale postings relative to the live ones before all posting
+     * lists are compacted.
+     */
+    public static final double MAX_STALE_FRACTION = 0.5;
+    /**
+     * Below this number of stale postings the lists are never compacted.
+     */
+    public static final int MIN_STALE_POSTINGS = 4096;
+
+    private final int minSharedKeys;
+
+    // open addressing table: key -> posting list
+    private long[] keys;
+    private int[] keyLists;
+    private int nLists = 0;
+
+    // postings: slot in the upper, version in the lower 32 bits
+    private long[][] postings;
+    private int[] postingSizes;
+
+    // per slot information
+    private int[] slotVersions;
+    private int[] slotPostingCounts;
+    private int[] sharedKeyCounts;
+    private boolean[] changedSlots;
+
+    // slots that were counted during the last query
+    private int[] countedSlots;
+    private int nCountedSlots = 0;
+
+    // clusters that changed since the last query
+    private int[] changedSlotList;
+    private ICluster[] changedClusters;
+    private int nChangedSlots = 0;
+
+    // postings of the current slot versions at or above the precursor offset
+    private long livePostings = 0;
+    // postings that are still stored but no longer used
+    private long stalePostings = 0;
+    // highest precursor offset seen so far
+    private int deadSlots = 0;
+
+    /**
+     * Creates a new, empty index.
+     * @param minSharedKeys The minimum number of shared keys for a cluster to be a candidate.
+     */
+    protected AbstractPostingListIndex(int minSharedKeys) {
+        if (minSharedKeys < 1) {
+            throw new IllegalArgumentException("minSharedKeys must at least be 1");
+        }
+
+        this.minSharedKeys = minSharedKeys;
+
+        keys = new long[INITIAL_SIZE];
+        Arrays.fill(keys, EMPTY_KEY);
+        keyLists = new int[INITIAL_SIZE];
+        postings = new long[INITIAL_SIZE][];
+        postingSizes = new int[INITIAL_SIZE];
+
+        slotVersions = new int[INITIAL_SIZE];
+        slotPostingCounts = new int[INITIAL_SIZE];
+        sharedKeyCounts = new int[INITIAL_SIZE];
+        changedSlots = new boolean[INITIAL_SIZE];
+        countedSlots = new int[INITIAL_SIZE];
+        changedSlotList = new int[16];
+        changedClusters = new ICluster[16];
+    }
+
+    /**
+     * Returns the cluster's keys. Every occurrence of a key is counted as
+     * a shared key.
+     * @param cluster The cluster
+     * @return The cluster's keys
+     */
+    protected abstract long[] getKeys(ICluster cluster);
+
+    @Override
+    public void add(int slot, ICluster cluster) {
+        ensureSlotCapacity(slot);
+        addPostings(slot, cluster);
+    }
+
+    @Override
+    public void update(int slot, ICluster cluster) {
+        ensureSlotCapacity(slot);
+
+        // the cluster is only re-indexed once it's needed
+        if (changedSlots[slot]) {
+            return;
+        }
+
+        if (nChangedSlots == changedSlotList.length) {
+            changedSlotList = Arrays.copyOf(changedSlotList, nChangedSlots * 2);
+            changedClusters = Arrays.copyOf(changedClusters, nChangedSlots * 2);
+        }
+
+        changedSlots[slot] = true;
+        changedSlotList[nChangedSlots] = slot;
+        changedClusters[nChangedSlots++] = cluster;
+    }
+
+    @Override
+    public void findCandidates(ICluster cluster, int minSlot) {
+        // reset the last result
+        for (int i = 0; i < nCountedSlots; i++) {
+            sharedKeyCounts[countedSlots[i]] = 0;
+        }
+        nCountedSlots = 0;
+
+        // re-index the changed clusters
+        for (int i = 0; i < nChangedSlots; i++) {
+            int slot = changedSlotList[i];
+            changedSlots[slot] = false;
+
+            if (slot >= minSlot) {
+                addPostings(slot, changedClusters[i]);
+            }
+
+            changedClusters[i] = null;
+        }
+        nChangedSlots = 0;
+
+        // postings of slots below the offset are no longer used
+        int maxDeadSlot = Math.min(minSlot, slotPostingCounts.length);
+        for (int slot = deadSlots; slot < maxDeadSlot; slot++) {
+            livePostings -= slotPostingCounts[slot];
+            stalePostings += slotPostingCounts[slot];
+        }
+        deadSlots = Math.max(deadSlots, minSlot);
+
+        if (stalePostings >= MIN_STALE_POSTINGS && stalePostings > livePostings * MAX_STALE_FRACTION) {
+            compact();
+        }
+
+        long[] clusterKeys = getKeys(cluster);
+
+        if (clusterKeys.length < minSharedKeys) {
+            return;
+        }
+
+        for (long key : clusterKeys) {
+            int keySlot = findKeySlot(keys, normalizeKey(key));
+
+            if (keys[keySlot] == EMPTY_KEY) {
+                continue;
+            }
+
+            countPostings(keyLists[keySlot], minSlot);
+        }
+    }
+
+    @Override
+    public boolean isCandidate(int slot) {
+        return slot < sharedKeyCounts.length && sharedKeyCounts[slot] >= minSharedKeys;
+    }
+
+    /**
+     * Counts the (valid) postings of a list and removes all outdated ones.
+     * @param list The posting list's index
+     * @param minSlot The lowest slot still of interest
+     */
+    private void countPostings(int list, int minSlot) {
+        long[] listPostings = postings[list];
+        int size = postingSizes[list];
+        int kept = 0;
+
+        for (int i = 0; i < size; i++) {
+            long posting = listPostings[i];
+            int slot = (int) (posting >>> 32);
+
+            if (slot < minSlot || (int) posting != slotVersions[slot]) {
+                continue;
+            }
+
+            listPostings[kept++] = posting;
+
+            if (sharedKeyCounts[slot]++ == 0) {
+                countedSlots[nCountedSlots++] = slot;
+            }
+        }
+
+        stalePostings -= size - kept;
+        postingSizes[list] = kept;
+    }
+
+    /**
+     * Removes the outdated postings and the postings of slots below the
+     * offset from all posting lists.
+     */
+    private void compact() {
+        for (int list = 0; list < nLists; list++) {
+            long[] listPostings = postings[list];
+            int size = postingSizes[list];
+            int kept = 0;
+
+            for (int i = 0; i < size; i++) {
+                long posting = listPostings[i];
+                int slot = (int) (posting >>> 32);
+
+                if (slot >= deadSlots && (int) posting == slotVersions[slot]) {
+                    listPostings[kept++] = posting;
+                }
+            }
+
+            postingSizes[list] = kept;
+
+            // release the memory of lists that mainly held stale postings
+            if (kept * 4 < listPostings.length && listPostings.length > 4) {
+                postings[list] = Arrays.copyOf(listPostings, Math.max(4, kept * 2));
+            }
+        }
+
+        stalePostings = 0;
+    }
+
+    /**
+     * Returns the number of stored postings including the stale ones.
+     * @return The number of stored postings.
+     */
+    long getNumberOfStoredPostings() {
+        long storedPostings = 0;
+
+        for (int list = 0; list < nLists; list++) {
+            storedPostings += postingSizes[list];
+        }
+
+        return storedPostings;
+    }
+
+    /**
+     * Adds the cluster's keys using a new version of the slot.
+     * @param slot The cluster's slot
+     * @param cluster The cluster
+     */
+    private void addPostings(int slot, ICluster cluster) {
+        int version = ++slotVersions[slot];
+        long posting = ((long) slot << 32) | (version & 0xFFFFFFFFL);
+        long[] clusterKeys = getKeys(cluster);
+
+        // the postings of the previous version become stale
+        if (slot >= deadSlots) {
+            livePostings += clusterKeys.length - slotPostingCounts[slot];
+            stalePostings += slotPostingCounts[slot];
+        } else {
+            stalePostings += clusterKeys.length;
+        }
+        slotPostingCounts[slot] = clusterKeys.length;
+
+        for (long key : clusterKeys) {
+            int list = getOrCreateList(normalizeKey(key));
+
+            if (postingSizes[list] == postings[list].length) {
+                postings[list] = Arrays.copyOf(postings[list], postingSizes[list] * 2);
+            }
+
+            postings[list][postingSizes[list]++] = posting;
+        }
+    }
+
+    private int getOrCreateList(long key) {
+        int keySlot = findKeySlot(keys, key);
+
+        if (keys[keySlot] != EMPTY_KEY) {
+            return keyLists[keySlot];
+        }
+
+        if ((nLists + 1) * 2 > keys.length) {
+            growKeyTable();
+            keySlot = findKeySlot(keys, key);
+        }
+
+        if (nLists == postings.length) {
+            postings = Arrays.copyOf(postings, nLists * 2);
+            postingSizes = Arrays.copyOf(postingSizes, nLists * 2);
+        }
+
+        postings[nLists] = new long[4];
+        keys[keySlot] = key;
+        keyLists[keySlot] = nLists;
+
+        return nLists++;
+    }
+
+    private void growKeyTable() {
+        long[] oldKeys = keys;
+        int[] oldLists = keyLists;
+
+        keys = new long[oldKeys.length * 2];
+        Arrays.fill(keys, EMPTY_KEY);
+        keyLists = new int[keys.length];
+
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY_KEY) {
+                int keySlot = findKeySlot(keys, oldKeys[i]);
+                keys[keySlot] = oldKeys[i];
+                keyLists[keySlot] = oldLists[i];
+            }
+        }
+    }
+
+    /**
+     * The value used to mark empty table slots cannot be used as a key.
+     */
+    private static long normalizeKey(long key) {
+        return (key == EMPTY_KEY) ? EMPTY_KEY + 1 : key;
+    }
+
+    /**
+     * Returns the table slot of the key or the empty slot where it
+     * should be placed.
+     */
+    private static int findKeySlot(long[] keys, long key) {
+        int mask = keys.length - 1;
+        long hash = key * 0x9E3779B97F4A7C15L;
+        int slot = (int) (hash ^ (hash >>> 32)) & mask;
+
+        while (keys[slot] != EMPTY_KEY && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+
+        return slot;
+    }
+
+    private void ensureSlotCapacity(int slot) {
+        if (slot < slotVersions.length) {
+            return;
+        }
+
+        int newSize = Math.max(slot + 1, slotVersions.length * 2);
+        slotVersions = Arrays.copyOf(slotVersions, newSize);
+        slotPostingCounts = Arrays.copyOf(slotPostingCounts, newSize);
+        sharedKeyCounts = Arrays.copyOf(sharedKeyCounts, newSize);
+        changedSlots = Arrays.copyOf(changedSlots, newSize);
+        countedSlots = Arrays.copyOf(countedSlots, newSize);
+    }
+}
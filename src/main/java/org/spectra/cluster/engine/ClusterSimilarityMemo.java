@@ -0,0 +1,284 @@
+package org.spectra.cluster.engine;
+
+import org.spectra.cluster.model.cluster.ICluster;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Stores the similarity scores calculated during a single clusterSpectra run
+ * so that pairs of clusters that are compared again in later rounds do not
+ * have to be scored again.
+ *
+ * Whenever a cluster's consensus spectrum changes, {@link #clusterChanged(ICluster)} must
+ * be called. This drops all stored scores of the cluster. Clusters that are merged into
+ * another cluster should be dropped using {@link #removeCluster(ICluster)}. Since the
+ * similarity is not necessarily symmetric, (A, B) and (B, A) are different pairs.
+ *
+ * Scores may have been calculated using a minimum score (see
+ * {@link org.spectra.cluster.similarity.IBinarySpectrumSimilarity#correlationAtLeast}). These
+ * are only returned if they are still valid for the requested minimum score.
+ *
+ * Objects of this class are not thread-safe.
+ *
+ * @author jg
+ */
+public class ClusterSimilarityMemo {
+    private static final long EMPTY_KEY = -1;
+    private static final int INITIAL_SIZE = 1024;
+    private static final int INITIAL_CLUSTER_KEYS = 4;
+
+    // clusters never change their identity during the clustering process
+    private final Map<ICluster, Integer> clusterIds = new IdentityHashMap<>();
+    private int nextClusterId = 0;
+    // the keys of all pairs stored per cluster. May contain keys that were already removed.
+    private long[][] clusterKeys = new long[INITIAL_SIZE][];
+    private int[] clusterKeyCounts = new int[INITIAL_SIZE];
+
+    // open addressing table: (id A, id B) -> score
+    private long[] keys;
+    private double[] similarities;
+    private double[] minScores;
+    private int size = 0;
+
+    public ClusterSimilarityMemo() {
+        keys = new long[INITIAL_SIZE];
+        Arrays.fill(keys, EMPTY_KEY);
+        similarities = new double[INITIAL_SIZE];
+        minScores = new double[INITIAL_SIZE];
+    }
+
+    /**
+     * Returns the stored similarity of the two clusters.
+     * @param cluster1 The first cluster (passed as first spectrum to the similarity measure).
+     * @param cluster2 The second cluster.
+     * @param minScore The minimum score of interest.
+     * @return The similarity or NaN if no (valid) score is stored.
+     */
+    public double getSimilarity(ICluster cluster1, ICluster cluster2, double minScore) {
+        Integer id1 = clusterIds.get(cluster1);
+        Integer id2 = clusterIds.get(cluster2);
+
+        if (id1 == null || id2 == null) {
+            return Double.NaN;
+        }
+
+        int slot = findSlot(keys, getKey(id1, id2));
+
+        if (keys[slot] == EMPTY_KEY) {
+            return Double.NaN;
+        }
+
+        double similarity = similarities[slot];
+
+        // the score is exact if it reached the minimum score, otherwise it may only
+        // be an upper bound which is only valid if it is also below the new minimum
+        if (similarity >= minScores[slot] || similarity < minScore) {
+            return similarity;
+        }
+
+        return Double.NaN;
+    }
+
+    /**
+     * Stores the similarity of the two clusters.
+     * @param cluster1 The first cluster (passed as first spectrum to the similarity measure).
+     * @param cluster2 The second cluster.
+     * @param minScore The minimum score used to calculate the similarity.
+     * @param similarity The similarity.
+     */
+    public void putSimilarity(ICluster cluster1, ICluster cluster2, double minScore, double similarity) {
+        int id1 = getId(cluster1);
+        int id2 = getId(cluster2);
+        long key = getKey(id1, id2);
+        int slot = findSlot(keys, key);
+
+        if (keys[slot] == EMPTY_KEY) {
+            if ((size + 1) * 2 > keys.length) {
+                grow();
+                slot = findSlot(keys, key);
+            }
+
+            keys[slot] = key;
+            size++;
+
+            addClusterKey(id1, key);
+            if (id1 != id2) {
+                addClusterKey(id2, key);
+            }
+        }
+
+        similarities[slot] = similarity;
+        minScores[slot] = minScore;
+    }
+
+    /**
+     * Signals that the cluster's consensus spectrum changed. All stored scores
+     * of this cluster are dropped.
+     * @param cluster The changed cluster.
+     */
+    public void clusterChanged(ICluster cluster) {
+        Integer id = clusterIds.get(cluster);
+
+        if (id != null) {
+            removeClusterKeys(id);
+        }
+    }
+
+    /**
+     * Drops all stored scores of the cluster and forgets the cluster. This should
+     * be called for clusters that were merged into another cluster.
+     * @param cluster The cluster to remove.
+     */
+    public void removeCluster(ICluster cluster) {
+        Integer id = clusterIds.remove(cluster);
+
+        if (id != null) {
+            removeClusterKeys(id);
+            clusterKeys[id] = null;
+        }
+    }
+
+    /**
+     * Returns the number of stored pairs.
+     * @return The number of stored pairs.
+     */
+    public int size() {
+        return size;
+    }
+
+    private int getId(ICluster cluster) {
+        Integer id = clusterIds.get(cluster);
+
+        if (id == null) {
+            id = nextClusterId++;
+            clusterIds.put(cluster, id);
+
+            if (id == clusterKeys.length) {
+                clusterKeys = Arrays.copyOf(clusterKeys, id * 2);
+                clusterKeyCounts = Arrays.copyOf(clusterKeyCounts, id * 2);
+            }
+        }
+
+        return id;
+    }
+
+    private static long getKey(int id1, int id2) {
+        // ids are never negative and can therefore not create the empty key
+        return ((long) id1 << 32) | id2;
+    }
+
+    private void addClusterKey(int id, long key) {
+        long[] currentKeys = clusterKeys[id];
+
+        if (currentKeys == null) {
+            currentKeys = new long[INITIAL_CLUSTER_KEYS];
+            clusterKeys[id] = currentKeys;
+        } else if (clusterKeyCounts[id] == currentKeys.length) {
+            // keys removed through the other cluster of a pair are only dropped here
+            compactClusterKeys(id);
+
+            if (clusterKeyCounts[id] > currentKeys.length / 2) {
+                currentKeys = Arrays.copyOf(currentKeys, currentKeys.length * 2);
+                clusterKeys[id] = currentKeys;
+            }
+        }
+
+        currentKeys[clusterKeyCounts[id]++] = key;
+    }
+
+    private void compactClusterKeys(int id) {
+        long[] currentKeys = clusterKeys[id];
+        int nKeys = 0;
+
+        for (int i = 0; i < clusterKeyCounts[id]; i++) {
+            if (keys[findSlot(keys, currentKeys[i])] != EMPTY_KEY) {
+                currentKeys[nKeys++] = currentKeys[i];
+            }
+        }
+
+        clusterKeyCounts[id] = nKeys;
+    }
+
+    private void removeClusterKeys(int id) {
+        long[] currentKeys = clusterKeys[id];
+
+        for (int i = 0; i < clusterKeyCounts[id]; i++) {
+            int slot = findSlot(keys, currentKeys[i]);
+
+            if (keys[slot] != EMPTY_KEY) {
+                removeSlot(slot);
+            }
+        }
+
+        clusterKeyCounts[id] = 0;
+    }
+
+    /**
+     * Removes the entry at the slot. Following entries of the same probe sequence
+     * are moved back so that no tombstones are needed.
+     */
+    private void removeSlot(int slot) {
+        int mask = keys.length - 1;
+        int hole = slot;
+        int next = (hole + 1) & mask;
+
+        while (keys[next] != EMPTY_KEY) {
+            int home = getHomeSlot(keys[next], mask);
+
+            // the entry may only be moved if the hole lies between its home slot and its position
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                keys[hole] = keys[next];
+                similarities[hole] = similarities[next];
+                minScores[hole] = minScores[next];
+                hole = next;
+            }
+
+            next = (next + 1) & mask;
+        }
+
+        keys[hole] = EMPTY_KEY;
+        size--;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        double[] oldSimilarities = similarities;
+        double[] oldMinScores = minScores;
+
+        keys = new long[oldKeys.length * 2];
+        Arrays.fill(keys, EMPTY_KEY);
+        similarities = new double[keys.length];
+        minScores = new double[keys.length];
+
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY_KEY) {
+                int slot = findSlot(keys, oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                similarities[slot] = oldSimilarities[i];
+                minScores[slot] = oldMinScores[i];
+            }
+        }
+    }
+
+    private static int getHomeSlot(long key, int mask) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+
+    /**
+     * Returns the table slot of the key or the empty slot where it
+     * should be placed.
+     */
+    private static int findSlot(long[] keys, long key) {
+        int mask = keys.length - 1;
+        int slot = getHomeSlot(key, mask);
+
+        while (keys[slot] != EMPTY_KEY && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+
+        return slot;
+    }
+}
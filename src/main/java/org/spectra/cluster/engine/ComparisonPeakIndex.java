@@ -0,0 +1,38 @@
+package org.spectra.cluster.engine;
+
+import org.spectra.cluster.model.cluster.ICluster;
+import org.spectra.cluster.model.spectra.ComparisonProfile;
+
+/**
+ * Inverted index from the comparison peaks' m/z values to the clusters containing
+ * them. Candidates are all clusters that share at least the defined number of
+ * comparison peaks with the queried cluster. This returns the same clusters as the
+ * {@link org.spectra.cluster.predicates.ShareNComparisonPeaksPredicate} but without
+ * testing every cluster in the precursor window.
+ *
+ * Objects of this class are not thread-safe.
+ *
+ * @author jg
+ */
+public class ComparisonPeakIndex extends AbstractPostingListIndex {
+    /**
+     * Creates a new, empty index.
+     * @param minSharedPeaks The minimum number of shared comparison peaks for a cluster to be a candidate.
+     */
+    public ComparisonPeakIndex(int minSharedPeaks) {
+        super(minSharedPeaks);
+    }
+
+    @Override
+    protected long[] getKeys(ICluster cluster) {
+        ComparisonProfile profile = cluster.getConsensusSpectrum().getComparisonProfile();
+        long[] keys = new long[profile.size()];
+
+        // m/z values are unique within a profile
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = profile.getMz(i);
+        }
+
+        return keys;
+    }
+}
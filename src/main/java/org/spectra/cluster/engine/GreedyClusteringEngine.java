@@ -1,10 +1,13 @@
 package org.spectra.cluster.engine;
 
 import io.github.bigbio.pgatk.io.common.spectra.Spectrum;
+import lombok.Getter;
+import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 import org.spectra.cluster.cdf.CumulativeDistributionFunction;
 import org.spectra.cluster.cdf.CumulativeDistributionFunctionFactory;
 import org.spectra.cluster.cdf.INumberOfComparisonAssessor;
+import org.spectra.cluster.cdf.SaveMatchScoreTable;
 import org.spectra.cluster.filter.binaryspectrum.FractionTicFilterFunction;
 import org.spectra.cluster.filter.binaryspectrum.IBinarySpectrumFunction;
 import org.spectra.cluster.model.cluster.GreedySpectralCluster;
@@ -19,6 +22,7 @@ import org.spectra.cluster.similarity.IBinarySpectrumSimilarity;
 import java.security.InvalidParameterException;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 /**
@@ -41,6 +45,20 @@ public class GreedyClusteringEngine implements IClusteringEngine {
     private final INumberOfComparisonAssessor numberOfComparisonAssessor;
     private final IComparisonPredicate<ICluster> firstRoundPredicate;
     private final int consensusSpectrumNoiseFilterIncrement;
+    /**
+     * Optional index used in the first round to only compare clusters that may
+     * fulfill the first round predicate. The index must never exclude a pair of
+     * clusters for which the first round predicate is true.
+     */
+    @Getter @Setter
+    private Supplier<IClusterCandidateIndex> firstRoundCandidateIndexSupplier = null;
+    /**
+     * Maximum number of peaks per noise filter window kept by the consensus spectra
+     * of new clusters. 0 keeps all peaks.
+     * @see GreedyClusteringConsensusSpectrum#setMaxPeaksPerWindow(int)
+     */
+    @Getter @Setter
+    private int maxConsensusPeaksPerWindow = 0;
     // TODO: Add a factory for consensus spectrum builder so we can put them as a parameter
     // private final IConsensusSpectrumBuilder consensusSpectrumBuilder;
 
@@ -86,20 +104,29 @@ public class GreedyClusteringEngine implements IClusteringEngine {
         // convert all spectra to clusters
         float scoreIncrement = (thresholdEnd - thresholdStart) / (float) (clusteringRounds - 1);
         IComparisonPredicate<ICluster> currentComparisonPredicate;
+        // later rounds only compare known pairs which often did not change since the last round
+        ClusterSimilarityMemo similarityMemo = (clusteringRounds > 1) ? new ClusterSimilarityMemo() : null;
 
         // cluster the spectra
         for (float currentThreshold = thresholdStart; currentThreshold <= thresholdEnd; currentThreshold += scoreIncrement) {
             log.debug(String.format("Merging clusters with threshold %.3f", currentThreshold));
 
+            IClusterCandidateIndex candidateIndex = null;
+
             // set the current predicate to use
             if (currentThreshold == thresholdStart) {
                 currentComparisonPredicate = firstRoundPredicate;
+
+                if (firstRoundCandidateIndexSupplier != null) {
+                    candidateIndex = firstRoundCandidateIndexSupplier.get();
+                }
             } else {
                 currentComparisonPredicate = new ClusterIsKnownComparisonPredicate();
             }
 
             // do the clustering - ie. the merging
-            clusters = mergeSimilarClusters(clusters, currentThreshold, currentComparisonPredicate);
+            clusters = mergeSimilarClusters(clusters, currentThreshold, currentComparisonPredicate, candidateIndex,
+                    similarityMemo);
 
             // TODO: find a better solution than sorting between clustering rounds
             Arrays.parallelSort(clusters, Comparator.comparingInt(ICluster::getPrecursorMz));
@@ -120,9 +147,12 @@ public class GreedyClusteringEngine implements IClusteringEngine {
      * @param clustersToMerge The clusters to merge.
      * @param similarityThreshold The similarity threshold to use.
      * @param predicate The predicate to use to decide which clusters to compare
+     * @param candidateIndex If set, only the index's candidates are tested using the predicate. May be null.
+     * @param similarityMemo If set, stored similarities are re-used and new ones that may be compared again are stored. May be null.
      * @return An array of clusters representing the merged result. Warning: The original objects are changed!
      */
-    private ICluster[] mergeSimilarClusters(ICluster[] clustersToMerge, double similarityThreshold, IComparisonPredicate<ICluster> predicate) {
+    private ICluster[] mergeSimilarClusters(ICluster[] clustersToMerge, double similarityThreshold, IComparisonPredicate<ICluster> predicate,
+                                            IClusterCandidateIndex candidateIndex, ClusterSimilarityMemo similarityMemo) {
         // clusters can never be split
         ICluster[] mergedClusters = new GreedySpectralCluster[clustersToMerge.length];
         int mergedClusterSize = 0;
@@ -130,11 +160,18 @@ public class GreedyClusteringEngine implements IClusteringEngine {
         int mergedClusterPrecursorOffset = 0;
         int lastMz = 0;
         int maxSortTolerance = Math.round((float) precursorTolerance / 5);
+        // caches the save match decisions for this round's threshold
+        SaveMatchScoreTable saveMatchTable = new SaveMatchScoreTable(cdf, similarityThreshold);
 
         // merge similar clusters
         for (ICluster clusterToMerge : clustersToMerge) {
             if (mergedClusterSize < 1) {
                 lastMz = clusterToMerge.getPrecursorMz();
+
+                if (candidateIndex != null) {
+                    candidateIndex.add(mergedClusterSize, clusterToMerge);
+                }
+
                 mergedClusters[mergedClusterSize++] = clusterToMerge;
                 continue;
             }
@@ -148,6 +185,10 @@ public class GreedyClusteringEngine implements IClusteringEngine {
 
             boolean isClusterMerged = false;
 
+            if (candidateIndex != null) {
+                candidateIndex.findCandidates(clusterToMerge, mergedClusterPrecursorOffset);
+            }
+
             // compare against all existing cluster
             for (int i = mergedClusterPrecursorOffset; i < mergedClusterSize; i++) {
                 ICluster existingCluster = mergedClusters[i];
@@ -159,22 +200,55 @@ public class GreedyClusteringEngine implements IClusteringEngine {
                 }
 
                 // apply the predicate
+                if (candidateIndex != null && !candidateIndex.isCandidate(i)) {
+                    continue;
+                }
                 if (!predicate.test(existingCluster, clusterToMerge)) {
                     continue;
                 }
 
+                int nComparisons = numberOfComparisonAssessor.getNumberOfComparisons(clusterToMerge.getPrecursorMz(), mergedClusterSize - mergedClusterPrecursorOffset + 1);
+
+                // the exact score is only needed if it may be a save match or is stored as a comparison
+                // result by one of the clusters. Below that, an upper bound of the score has the same effect.
+                // The comparison results are stored as float, therefore the bound must be below the lowest
+                // stored similarity in float precision.
+                float lowestSavedSimilarity = Math.min(
+                        existingCluster.getMinimumSavedComparisonSimilarity(), clusterToMerge.getMinimumSavedComparisonSimilarity());
+                double minScore = Math.min(saveMatchTable.getMinimumSaveSimilarity(nComparisons), Math.nextDown(lowestSavedSimilarity));
+
                 // calculate the score
                 // TODO: in the previous version we stored all filtered consensus spectra of existing clusters
-                double similarity = similarityMeasure.correlation(clusterToMerge.getConsensusSpectrum(), existingCluster.getConsensusSpectrum());
+                double similarity = (similarityMemo != null) ?
+                        similarityMemo.getSimilarity(clusterToMerge, existingCluster, minScore) : Double.NaN;
+
+                boolean isNewSimilarity = Double.isNaN(similarity);
+
+                if (isNewSimilarity) {
+                    similarity = similarityMeasure.correlationAtLeast(clusterToMerge.getConsensusSpectrum(), existingCluster.getConsensusSpectrum(), minScore);
+                }
 
                 // if it is a save match, merge the cluster
-                if (cdf.isSaveMatch(similarity, numberOfComparisonAssessor.getNumberOfComparisons(clusterToMerge.getPrecursorMz(), mergedClusterSize - mergedClusterPrecursorOffset + 1), similarityThreshold)) {
+                if (saveMatchTable.isSaveMatch(similarity, nComparisons)) {
                     // merge the cluster
                     mergedClusters[i].mergeCluster(clusterToMerge);
                     isClusterMerged = true;
+
+                    if (candidateIndex != null) {
+                        candidateIndex.update(i, mergedClusters[i]);
+                    }
+                    if (similarityMemo != null) {
+                        similarityMemo.clusterChanged(mergedClusters[i]);
+                        similarityMemo.removeCluster(clusterToMerge);
+                    }
                     break;
                 }
 
+                // later rounds only compare pairs that are kept as comparison match by one of the clusters
+                if (similarityMemo != null && isNewSimilarity && (float) similarity >= lowestSavedSimilarity) {
+                    similarityMemo.putSimilarity(clusterToMerge, existingCluster, minScore, similarity);
+                }
+
                 // save the comparison
                 existingCluster.saveComparisonResult(clusterToMerge.getId(), (float) similarity);
                 clusterToMerge.saveComparisonResult(existingCluster.getId(), (float) similarity);
@@ -182,6 +256,10 @@ public class GreedyClusteringEngine implements IClusteringEngine {
 
             // if the cluster hasn't been merged, store it
             if (!isClusterMerged) {
+                if (candidateIndex != null) {
+                    candidateIndex.add(mergedClusterSize, clusterToMerge);
+                }
+
                 mergedClusters[mergedClusterSize++] = clusterToMerge;
             }
         }
@@ -198,11 +276,7 @@ public class GreedyClusteringEngine implements IClusteringEngine {
      */
     private GreedySpectralCluster[] convertSpectraToCluster(IBinarySpectrum[] spectra) {
         return Arrays.stream(spectra).map(s -> {
-            ICluster cluster = new GreedySpectralCluster(new GreedyClusteringConsensusSpectrum(s.getUUI(),
-                    GreedyClusteringConsensusSpectrum.MIN_PEAKS_TO_KEEP ,
-                    GreedyClusteringConsensusSpectrum.MIN_PEAKS_TO_KEEP,
-                    consensusSpectrumNoiseFilterIncrement,
-                    COMPARISON_FILTER));
+            ICluster cluster = new GreedySpectralCluster(createConsensusSpectrum(s.getUUI()));
             cluster.addSpectra(s);
             return cluster;
         }).toArray(GreedySpectralCluster[]::new);
@@ -215,13 +289,28 @@ public class GreedyClusteringEngine implements IClusteringEngine {
      * @return An array of ICluster
      */
     private GreedySpectralCluster convertSingleSpectrum(IBinarySpectrum spectrum) {
-        GreedySpectralCluster greedyCluster = new GreedySpectralCluster(new GreedyClusteringConsensusSpectrum(spectrum.getUUI(),
+        GreedySpectralCluster greedyCluster = new GreedySpectralCluster(createConsensusSpectrum(spectrum.getUUI()));
+        greedyCluster.addSpectra(spectrum);
+        return greedyCluster;
+    }
+
+    /**
+     * Creates a new, empty consensus spectrum builder using the engine's settings.
+     * @param id The consensus spectrum's id
+     * @return The new GreedyClusteringConsensusSpectrum
+     */
+    private GreedyClusteringConsensusSpectrum createConsensusSpectrum(String id) {
+        GreedyClusteringConsensusSpectrum consensusSpectrum = new GreedyClusteringConsensusSpectrum(id,
                 GreedyClusteringConsensusSpectrum.MIN_PEAKS_TO_KEEP,
                 GreedyClusteringConsensusSpectrum.MIN_PEAKS_TO_KEEP,
                 consensusSpectrumNoiseFilterIncrement,
-                COMPARISON_FILTER));
-        greedyCluster.addSpectra(spectrum);
-        return greedyCluster;
+                COMPARISON_FILTER);
+
+        if (maxConsensusPeaksPerWindow > 0) {
+            consensusSpectrum.setMaxPeaksPerWindow(maxConsensusPeaksPerWindow);
+        }
+
+        return consensusSpectrum;
     }
 
     @Override
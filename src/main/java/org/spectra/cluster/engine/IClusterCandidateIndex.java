@@ -0,0 +1,46 @@
+package org.spectra.cluster.engine;
+
+import org.spectra.cluster.model.cluster.ICluster;
+
+/**
+ * Index over the clusters of a single clustering round used to find the
+ * existing clusters that are worth comparing against an incoming cluster.
+ *
+ * Clusters are referenced by their position (slot) in the engine's array of
+ * merged clusters. Slots below the current precursor offset are never queried
+ * again and may be dropped by the index.
+ *
+ * @author jg
+ */
+public interface IClusterCandidateIndex {
+    /**
+     * Adds a new cluster to the index.
+     * @param slot The cluster's position in the array of merged clusters.
+     * @param cluster The cluster to add.
+     */
+    void add(int slot, ICluster cluster);
+
+    /**
+     * Signals that the cluster at the defined position has changed (ie. a cluster
+     * was merged into it).
+     * @param slot The cluster's position in the array of merged clusters.
+     * @param cluster The changed cluster.
+     */
+    void update(int slot, ICluster cluster);
+
+    /**
+     * Determines the candidates for the passed cluster. The result is available
+     * through {@link #isCandidate(int)} until the next call of this function.
+     * @param cluster The cluster to find candidates for.
+     * @param minSlot The current precursor offset. Lower slots are no longer of interest.
+     */
+    void findCandidates(ICluster cluster, int minSlot);
+
+    /**
+     * Returns whether the cluster at the defined position is a candidate of
+     * the last {@link #findCandidates(ICluster, int)} call.
+     * @param slot The cluster's position in the array of merged clusters.
+     * @return Boolean indicating whether the cluster should be compared.
+     */
+    boolean isCandidate(int slot);
+}
@@ -0,0 +1,96 @@
+package org.spectra.cluster.engine;
+
+import org.spectra.cluster.model.cluster.ICluster;
+import org.spectra.cluster.model.spectra.ComparisonProfile;
+import org.spectra.cluster.normalizer.LSHBinner;
+
+/**
+ * Locality sensitive hashing based candidate index. The MinHash signature of every
+ * cluster's comparison peaks is split into bands and every band is hashed into a
+ * bucket. Clusters that share at least one bucket are returned as candidates.
+ *
+ * For two clusters whose comparison peaks have the Jaccard similarity J, the probability
+ * to become candidates is 1 - (1 - J^r)^b where b is the number of bands and r the
+ * number of signature values per band. In contrast to the {@link ComparisonPeakIndex}
+ * this index is therefore not exact and may miss similar clusters.
+ *
+ * Objects of this class are not thread-safe.
+ *
+ * @author jg
+ */
+public class MinHashCandidateIndex extends AbstractPostingListIndex {
+    public static final int DEFAULT_SIGNATURE_SIZE = 32;
+    public static final int DEFAULT_BANDS = 16;
+    /** A fixed seed to get reproducible results **/
+    public static final long DEFAULT_SEED = 1_234_567L;
+
+    private final LSHBinner binner;
+    private final int nBands;
+    private final int rowsPerBand;
+
+    // the signature is needed twice for clusters that are not merged
+    private ComparisonProfile lastProfile;
+    private long[] lastKeys;
+
+    /**
+     * Creates a new, empty index.
+     * @param binner The LSHBinner used to create the MinHash signatures.
+     * @param nBands The number of bands to split the signature into. The binner's number
+     *               of kernels must be a multiple of this number.
+     */
+    public MinHashCandidateIndex(LSHBinner binner, int nBands) {
+        super(1);
+
+        if (nBands < 1 || binner.numberKernels % nBands != 0) {
+            throw new IllegalArgumentException("The signature size must be a multiple of the number of bands");
+        }
+
+        this.binner = binner;
+        this.nBands = nBands;
+        this.rowsPerBand = binner.numberKernels / nBands;
+    }
+
+    /**
+     * Creates a new, empty index using a new LSHBinner with the default seed.
+     * @param signatureSize The size of the MinHash signature.
+     * @param nBands The number of bands to split the signature into.
+     */
+    public MinHashCandidateIndex(int signatureSize, int nBands) {
+        this(LSHBinner.createInstance(signatureSize, Integer.MAX_VALUE, DEFAULT_SEED), nBands);
+    }
+
+    @Override
+    protected long[] getKeys(ICluster cluster) {
+        // profiles are immutable and re-created whenever the consensus spectrum changes
+        ComparisonProfile profile = cluster.getConsensusSpectrum().getComparisonProfile();
+
+        if (profile == lastProfile) {
+            return lastKeys;
+        }
+
+        int[] mzValues = new int[profile.size()];
+
+        for (int i = 0; i < mzValues.length; i++) {
+            mzValues[i] = profile.getMz(i);
+        }
+
+        int[] signature = binner.getKernels(mzValues);
+        long[] keys = new long[nBands];
+
+        for (int band = 0; band < nBands; band++) {
+            // the band is part of the key so that equal values in different bands do not match
+            long key = band;
+
+            for (int row = band * rowsPerBand; row < (band + 1) * rowsPerBand; row++) {
+                key = key * 0x100000001B3L + signature[row];
+            }
+
+            keys[band] = key;
+        }
+
+        lastProfile = profile;
+        lastKeys = keys;
+
+        return keys;
+    }
+}
@@ -1,11 +1,7 @@
 package org.spectra.cluster.filter.binaryspectrum;
 
-import org.spectra.cluster.model.spectra.BinaryPeak;
-import org.spectra.cluster.model.spectra.BinarySpectrum;
 import org.spectra.cluster.model.spectra.IBinarySpectrum;
-
-import java.util.Arrays;
-import java.util.Comparator;
+import org.spectra.cluster.model.spectra.PackedBinarySpectrum;
 
 /**
  * This filter function retains the amount of peaks required to
@@ -37,32 +33,41 @@ public class FractionTicFilterFunction implements IBinarySpectrumFunction {
         this(DEFAULT_FRACTION_TIC, DEFAULT_MIN_PEAKS);
     }
 
+    public float getFractionTic() {
+        return fractionTic;
+    }
+
+    public int getMinPeaksToKeep() {
+        return minPeaksToKeep;
+    }
+
     @Override
     public IBinarySpectrum apply(IBinarySpectrum binarySpectrum) {
+        int nPeaks = binarySpectrum.getNumberOfPeaks();
+
         // make sure there are enough peaks to filter
-        if (binarySpectrum.getPeaks().length <= minPeaksToKeep) {
+        if (nPeaks <= minPeaksToKeep) {
             return binarySpectrum;
         }
 
-        // sort according to intensity
-        BinaryPeak[] peaklist = binarySpectrum.getCopyPeaks();
-        Arrays.sort(peaklist, Comparator.comparingInt(BinaryPeak::getIntensity).reversed());
-
         // get the total intensity
+        int[] intensities = new int[nPeaks];
         double totalIntensity = 0;
-        for (BinaryPeak binaryPeak : peaklist) totalIntensity += binaryPeak.getIntensity();
 
-        BinaryPeak[] filteredPeaks = new BinaryPeak[peaklist.length];
+        for (int i = 0; i < nPeaks; i++) {
+            intensities[i] = binarySpectrum.getPeakIntensity(i);
+            totalIntensity += intensities[i];
+        }
+
+        // process the peaks according to intensity
+        boolean[] keepPeak = new boolean[nPeaks];
         int filteredPeaksSize = 0;
         int explainedTic = 0;
 
-        for (BinaryPeak peak : peaklist) {
-            explainedTic += peak.getIntensity();
-            // copy the peak since it now has a new rank
-            BinaryPeak filteredPeak = peak.copy();
-            filteredPeaks[filteredPeaksSize++] = filteredPeak;
-            // update the rank afterwards since it's 1-based
-            filteredPeak.setRank(filteredPeaksSize);
+        for (int peakIndex : PackedBinarySpectrum.sortByIntensity(intensities)) {
+            explainedTic += intensities[peakIndex];
+            keepPeak[peakIndex] = true;
+            filteredPeaksSize++;
 
             double relExplainedTic = explainedTic / totalIntensity;
 
@@ -72,12 +77,18 @@ public class FractionTicFilterFunction implements IBinarySpectrumFunction {
             }
         }
 
-        // truncate the array
-        filteredPeaks = Arrays.copyOf(filteredPeaks, filteredPeaksSize);
+        // copy the retained peaks in m/z order - the ranks are updated by the new spectrum
+        int[] filteredMz = new int[filteredPeaksSize];
+        int[] filteredIntensities = new int[filteredPeaksSize];
+        int storedPeaks = 0;
 
-        // re-sort according to m/z
-        Arrays.sort(filteredPeaks, Comparator.comparingInt(BinaryPeak::getMz));
+        for (int i = 0; i < nPeaks; i++) {
+            if (keepPeak[i]) {
+                filteredMz[storedPeaks] = binarySpectrum.getPeakMz(i);
+                filteredIntensities[storedPeaks++] = intensities[i];
+            }
+        }
 
-        return new BinarySpectrum(binarySpectrum, filteredPeaks, false);
+        return new PackedBinarySpectrum(binarySpectrum, filteredMz, filteredIntensities);
     }
 }
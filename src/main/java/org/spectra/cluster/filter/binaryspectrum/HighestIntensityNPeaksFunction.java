@@ -1,8 +1,9 @@
 package org.spectra.cluster.filter.binaryspectrum;
 
-import org.spectra.cluster.model.spectra.BinaryPeak;
-import org.spectra.cluster.model.spectra.BinarySpectrum;
 import org.spectra.cluster.model.spectra.IBinarySpectrum;
+import org.spectra.cluster.model.spectra.PackedBinarySpectrum;
+
+import java.util.Arrays;
 
 /**
  * This code is licensed under the Apache License, Version 2.0 (the
@@ -32,21 +33,34 @@ public class HighestIntensityNPeaksFunction implements IBinarySpectrumFunction {
 
     @Override
     public IBinarySpectrum apply(IBinarySpectrum binarySpectrum) {
+        int nPeaks = binarySpectrum.getNumberOfPeaks();
 
-        if(binarySpectrum.getPeaks().length < numberOfPeaks)
+        if(nPeaks < numberOfPeaks)
             return binarySpectrum;
 
-        BinaryPeak[] retainedPeaks = new BinaryPeak[numberOfPeaks];
+        int[] retainedMz = new int[numberOfPeaks];
+        int[] retainedIntensities = new int[numberOfPeaks];
+        short[] retainedRanks = new short[numberOfPeaks];
         int storedPeaks = 0;
 
         // this does not change the m/z order
-        for (BinaryPeak p : binarySpectrum.getPeaks()) {
-            if (p.getRank() <= numberOfPeaks) {
-                retainedPeaks[storedPeaks++] = p;
+        for (int i = 0; i < nPeaks && storedPeaks < numberOfPeaks; i++) {
+            int rank = binarySpectrum.getPeakRank(i);
+
+            if (rank <= numberOfPeaks) {
+                retainedMz[storedPeaks] = binarySpectrum.getPeakMz(i);
+                retainedIntensities[storedPeaks] = binarySpectrum.getPeakIntensity(i);
+                retainedRanks[storedPeaks++] = (short) rank;
             }
         }
 
+        if (storedPeaks < numberOfPeaks) {
+            retainedMz = Arrays.copyOf(retainedMz, storedPeaks);
+            retainedIntensities = Arrays.copyOf(retainedIntensities, storedPeaks);
+            retainedRanks = Arrays.copyOf(retainedRanks, storedPeaks);
+        }
+
         // create the filtered spectrum - peak ranks do not change
-        return new BinarySpectrum(binarySpectrum, retainedPeaks, false);
+        return new PackedBinarySpectrum(binarySpectrum, retainedMz, retainedIntensities, retainedRanks);
     }
 }
@@ -1,11 +1,9 @@
 package org.spectra.cluster.filter.binaryspectrum;
 
-import org.spectra.cluster.model.spectra.BinaryPeak;
-import org.spectra.cluster.model.spectra.BinarySpectrum;
 import org.spectra.cluster.model.spectra.IBinarySpectrum;
+import org.spectra.cluster.model.spectra.PackedBinarySpectrum;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
 
 /**
  * Spectra can only have one peak per m/z bin. After loading, this
@@ -19,37 +17,41 @@ public class HighestPeakPerBinFunction implements IBinarySpectrumFunction {
 
     @Override
     public IBinarySpectrum apply(IBinarySpectrum binarySpectrum) {
-        BinaryPeak[] orgPeaks = binarySpectrum.getPeaks();
+        int nPeaks = binarySpectrum.getNumberOfPeaks();
 
-        if (orgPeaks.length < 1) {
+        if (nPeaks < 1) {
             return binarySpectrum;
         }
 
-        List<BinaryPeak> filteredPeaks = new ArrayList<>(orgPeaks.length);
+        int[] filteredMz = new int[nPeaks];
+        int[] filteredIntensities = new int[nPeaks];
+        int filteredPeaks = 0;
 
-        BinaryPeak highestPeakInCurrentWindow = null;
-        int currentWindow = orgPeaks[0].getMz();
+        int currentWindow = binarySpectrum.getPeakMz(0);
+        int highestIntensityInCurrentWindow = binarySpectrum.getPeakIntensity(0);
 
-        for (BinaryPeak peak : orgPeaks) {
-            if (peak.getMz() != currentWindow) {
-                filteredPeaks.add(highestPeakInCurrentWindow);
-                highestPeakInCurrentWindow = peak;
-                currentWindow = peak.getMz();
-            }
+        for (int i = 1; i < nPeaks; i++) {
+            int mz = binarySpectrum.getPeakMz(i);
+            int intensity = binarySpectrum.getPeakIntensity(i);
 
-            if (highestPeakInCurrentWindow == null) {
-                highestPeakInCurrentWindow = peak;
+            if (mz != currentWindow) {
+                filteredMz[filteredPeaks] = currentWindow;
+                filteredIntensities[filteredPeaks++] = highestIntensityInCurrentWindow;
+                currentWindow = mz;
+                highestIntensityInCurrentWindow = intensity;
                 continue;
             }
 
-            if (peak.getIntensity() > highestPeakInCurrentWindow.getIntensity()) {
-                highestPeakInCurrentWindow = peak;
+            if (intensity > highestIntensityInCurrentWindow) {
+                highestIntensityInCurrentWindow = intensity;
             }
         }
 
-        filteredPeaks.add(highestPeakInCurrentWindow);
+        filteredMz[filteredPeaks] = currentWindow;
+        filteredIntensities[filteredPeaks++] = highestIntensityInCurrentWindow;
 
-        // create a copy
-        return new BinarySpectrum(binarySpectrum, filteredPeaks.toArray(new BinaryPeak[0]), true);
+        // create a copy - the ranks are updated by the new spectrum
+        return new PackedBinarySpectrum(binarySpectrum,
+                Arrays.copyOf(filteredMz, filteredPeaks), Arrays.copyOf(filteredIntensities, filteredPeaks));
     }
 }
@@ -5,18 +5,27 @@ import io.github.bigbio.pgatk.io.mapcache.IMapStorage;
 import lombok.extern.slf4j.Slf4j;
 import net.openhft.chronicle.map.ChronicleMap;
 import net.openhft.chronicle.map.ChronicleMapBuilder;
+import org.spectra.cluster.exceptions.SpectraClusterException;
+import org.spectra.cluster.model.cluster.ClusterView;
+import org.spectra.cluster.model.cluster.GreedySpectralCluster;
 import org.spectra.cluster.model.cluster.ICluster;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.AbstractMap;
 import java.util.Iterator;
 import java.util.Map;
 
 @Slf4j
-public class ChronicleMapClusterStorage implements IMapStorage<ICluster> {
+public class ChronicleMapClusterStorage implements IMapStorage<ICluster>, IClusterViewStorage {
 
     private static final double CLUSTER_SIZE = 6000 + (200 * 10);
     private static final double CLUSTER_KEY_SIZE = 36 + (100 * 2);
+    /**
+     * Allows the map to grow up to twice its configured size if the stored clusters are
+     * larger than the expected average.
+     */
+    public static final double MAX_BLOAT_FACTOR = 2;
     private final boolean deleteOnClose;
     public  File dbFile = null;
 
@@ -24,7 +33,10 @@ public class ChronicleMapClusterStorage implements IMapStorage<ICluster> {
     public static final long MAX_NUMBER_FEATURES = 100_000_000;
     private File dbDirectory;
     private long numberProperties;
-    private ChronicleMap<String, ICluster> clusterStorage;
+    private final double averageKeySize;
+    private final double averageValueSize;
+    // clusters are stored using their binary representation (see GreedySpectralCluster#toBytes)
+    private ChronicleMap<String, byte[]> clusterStorage;
 
     /**
      * Create a {@link net.openhft.chronicle.map.ChronicleMap} for storing properties.
@@ -37,7 +49,27 @@ public class ChronicleMapClusterStorage implements IMapStorage<ICluster> {
      * @throws IOException
      */
     public ChronicleMapClusterStorage(File dbDirectory, long numberProperties, boolean deleteOnClose) throws IOException {
+        this(dbDirectory, numberProperties, CLUSTER_KEY_SIZE, CLUSTER_SIZE, deleteOnClose);
+    }
+
+    /**
+     * Create a {@link net.openhft.chronicle.map.ChronicleMap} for storing properties using
+     * the (measured) average size of the keys and the serialized clusters.
+     *
+     * This function fails if the directory already contains a storage.
+     *
+     * @param dbDirectory Path to the directory that contains the properties
+     * @param numberProperties estimated number of properties
+     * @param averageKeySize The average size of the cluster ids in bytes.
+     * @param averageValueSize The average size of the serialized clusters in bytes (see {@link ICluster#toBytes()}).
+     * @param deleteOnClose If set, the database file is deleted when the storage is closed.
+     * @throws IOException
+     */
+    public ChronicleMapClusterStorage(File dbDirectory, long numberProperties, double averageKeySize,
+                                      double averageValueSize, boolean deleteOnClose) throws IOException {
         this.deleteOnClose = deleteOnClose;
+        this.averageKeySize = averageKeySize;
+        this.averageValueSize = averageValueSize;
 
         if(numberProperties == -1)
             this.numberProperties = MAX_NUMBER_FEATURES;
@@ -55,20 +87,35 @@ public class ChronicleMapClusterStorage implements IMapStorage<ICluster> {
         if (deleteOnClose)
             dbFile.deleteOnExit();
 
-        this.clusterStorage = ChronicleMapBuilder.of(String.class, ICluster.class)
+        this.clusterStorage = createStorage();
+    }
+
+    /**
+     * Creates a new map in the storage file. Used when the storage is created as well as when it is
+     * cleaned, so that both use the same (resolved) number of entries and average entry sizes.
+     */
+    private ChronicleMap<String, byte[]> createStorage() throws IOException {
+        return ChronicleMapBuilder.of(String.class, byte[].class)
                 .entries(numberProperties) //the maximum number of entries for the map
-                .averageKeySize(CLUSTER_KEY_SIZE)
-                .averageValueSize(CLUSTER_SIZE)
+                .averageKeySize(averageKeySize)
+                .averageValueSize(averageValueSize)
+                .maxBloatFactor(MAX_BLOAT_FACTOR)
                 .createPersistedTo(dbFile);
     }
 
     /**
      * Create a {@link net.openhft.chronicle.map.ChronicleMap} for storing properties
+     *
+     * Only storages holding clusters in their binary representation (see {@link ICluster#toBytes()})
+     * can be opened. Storages that contain Java serialized clusters are not supported.
+     *
      * @param dbDirectory Path to the directory that contains the properties
      * @throws IOException
      */
     public ChronicleMapClusterStorage(File dbDirectory, boolean useFileConfig) throws IOException {
         this.deleteOnClose = false;
+        this.averageKeySize = CLUSTER_KEY_SIZE;
+        this.averageValueSize = CLUSTER_SIZE;
 
         log.info("----- CHRONICLE MAP ------------------------");
         this.dbDirectory = dbDirectory;
@@ -78,7 +125,7 @@ public class ChronicleMapClusterStorage implements IMapStorage<ICluster> {
         if (!this.dbFile.exists())
             throw new IOException("Directory does not contain a cluster storage.");
 
-        this.clusterStorage = ChronicleMapBuilder.of(String.class, ICluster.class)
+        this.clusterStorage = ChronicleMapBuilder.of(String.class, byte[].class)
                 .averageKeySize(CLUSTER_KEY_SIZE)
                 .averageValueSize(CLUSTER_SIZE)
                 .recoverPersistedTo(dbFile, useFileConfig);
@@ -116,12 +163,41 @@ public class ChronicleMapClusterStorage implements IMapStorage<ICluster> {
 
     @Override
     public void put(String key, ICluster cluster) {
-        this.clusterStorage.put(key, cluster);
+        try {
+            this.clusterStorage.put(key, cluster.toBytes());
+        } catch (SpectraClusterException e) {
+            throw new IllegalStateException("Failed to store cluster " + key, e);
+        }
     }
 
     @Override
     public ICluster get(String key) {
-        return this.clusterStorage.get(key);
+        byte[] clusterBytes = this.clusterStorage.get(key);
+
+        return (clusterBytes != null) ? decode(key, clusterBytes) : null;
+    }
+
+    @Override
+    public ClusterView getClusterView(String key) throws PgatkIOException {
+        byte[] clusterBytes = this.clusterStorage.get(key);
+
+        if (clusterBytes == null) {
+            return null;
+        }
+
+        try {
+            return new ClusterView(clusterBytes);
+        } catch (SpectraClusterException e) {
+            throw new PgatkIOException("Failed to load cluster " + key + " -- " + e.getMessage());
+        }
+    }
+
+    private static ICluster decode(String key, byte[] clusterBytes) {
+        try {
+            return GreedySpectralCluster.fromBytes(clusterBytes);
+        } catch (SpectraClusterException e) {
+            throw new IllegalStateException("Failed to load cluster " + key, e);
+        }
     }
 
     @Override
@@ -130,7 +206,22 @@ public class ChronicleMapClusterStorage implements IMapStorage<ICluster> {
     }
 
     public Iterator<Map.Entry<String, ICluster>> getIterator(){
-        return this.clusterStorage.entrySet().iterator();
+        Iterator<Map.Entry<String, byte[]>> entryIterator = this.clusterStorage.entrySet().iterator();
+
+        // clusters are only decoded when they are retrieved
+        return new Iterator<Map.Entry<String, ICluster>>() {
+            @Override
+            public boolean hasNext() {
+                return entryIterator.hasNext();
+            }
+
+            @Override
+            public Map.Entry<String, ICluster> next() {
+                Map.Entry<String, byte[]> entry = entryIterator.next();
+
+                return new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), decode(entry.getKey(), entry.getValue()));
+            }
+        };
     }
 
     @Override
@@ -138,12 +229,7 @@ public class ChronicleMapClusterStorage implements IMapStorage<ICluster> {
         try {
             log.info("----- CHRONICLE MAP ------------------------");
             dbFile.deleteOnExit();
-            this.clusterStorage = ChronicleMapBuilder.of(String.class, ICluster.class)
-                    //the maximum number of entries for the map
-                    .entries(numberProperties)
-                    .averageKeySize(64)
-                    .averageValueSize(54)
-                    .createPersistedTo(dbFile);
+            this.clusterStorage = createStorage();
         } catch (IOException e) {
             throw new PgatkIOException("Error cleaning the ChronicleMap Store -- " + e.getMessage());
         }
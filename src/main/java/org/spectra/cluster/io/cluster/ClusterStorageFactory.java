@@ -1,12 +1,16 @@
 package org.spectra.cluster.io.cluster;
 
 import io.github.bigbio.pgatk.io.mapcache.IMapStorage;
+import lombok.extern.slf4j.Slf4j;
 import org.spectra.cluster.exceptions.SpectraClusterException;
 import org.spectra.cluster.io.cluster.old_writer.BinaryClusterStorage;
 import org.spectra.cluster.model.cluster.ICluster;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * This code is licensed under the Apache License, Version 2.0 (the
@@ -22,6 +26,7 @@ import java.io.IOException;
  *
  * @author ypriverol on 17/10/2018.
  */
+@Slf4j
 public class ClusterStorageFactory {
     /**
      * Create a Static Storage for the clusters. The Static Storage is really fast but it demands
@@ -123,5 +128,125 @@ public class ClusterStorageFactory {
         }
     }
 
+    /**
+     * Create an In-Memory Storage for the clusters. The clusters are kept on the heap
+     * without being serialized (see {@link InMemoryClusterStorage}).
+     *
+     * @return InMemoryClusterStorage
+     */
+    public static InMemoryClusterStorage buildInMemoryStorage() {
+        return new InMemoryClusterStorage();
+    }
+
+    /**
+     * Create a temporary storage for the clusters that is deleted on close. If the (maximum) number of
+     * clusters to store is known, a Static Storage is created using this number of entries. Its average
+     * key and value sizes are measured on the passed sample clusters, larger clusters are covered by the
+     * map's bloat factor (see {@link ChronicleMapClusterStorage#MAX_BLOAT_FACTOR}). Otherwise, a Dynamic
+     * Storage is created. The chosen storage is reported in the log.
+     *
+     * This function fails if the set directory already contains a storage.
+     *
+     * @param dbDirectory Directory to create the storage in.
+     * @param numberEntries The (maximum) number of clusters that will be stored, -1 if unknown.
+     * @param sampleClusters Clusters representative of the ones that will be stored. Used to estimate the average entry size.
+     * @param clusterClass The cluster Class Implementation that will be storage (e.g. {@link org.spectra.cluster.model.cluster.GreedySpectralCluster})
+     * @return The created storage
+     */
+    public static IMapStorage<ICluster> buildTemporaryStorage(File dbDirectory, long numberEntries, ICluster[] sampleClusters,
+                                                              Class clusterClass) throws SpectraClusterException {
+        if (numberEntries < 1 || sampleClusters.length < 1) {
+            log.info(String.format("Number of clusters unknown, using dynamic cluster storage in %s", dbDirectory.getAbsolutePath()));
+            return buildTemporaryDynamicStorage(dbDirectory, clusterClass);
+        }
+
+        // measure the average size of the entries
+        long keySize = 0;
+        long valueSize = 0;
+
+        for (ICluster cluster : sampleClusters) {
+            keySize += cluster.getId().getBytes(StandardCharsets.UTF_8).length;
+            valueSize += cluster.toBytes().length;
+        }
 
+        double averageKeySize = (double) keySize / sampleClusters.length;
+        double averageValueSize = (double) valueSize / sampleClusters.length;
+
+        log.info(String.format("Using static cluster storage for at most %d clusters (average key size = %.1f bytes, " +
+                "average value size = %.1f bytes, max bloat factor = %.1f) in %s", numberEntries, averageKeySize,
+                averageValueSize, ChronicleMapClusterStorage.MAX_BLOAT_FACTOR, dbDirectory.getAbsolutePath()));
+
+        try {
+            return new ChronicleMapClusterStorage(dbDirectory, numberEntries, averageKeySize, averageValueSize, true);
+        } catch (IOException e) {
+            throw new SpectraClusterException("Error creating the ChronicleMap Cluster storage -- " + e.getMessage());
+        }
+    }
+
+    /**
+     * Create a Segment Storage for the clusters of a clustering round that is deleted on close.
+     * Every flush writes the added clusters as one precursor sorted segment (see {@link SegmentClusterStorage}).
+     *
+     * This function fails if the set directory already contains a storage.
+     *
+     * @param dbDirectory Directory to create the storage in.
+     * @return SegmentClusterStorage
+     */
+    public static SegmentClusterStorage buildTemporarySegmentStorage(File dbDirectory) throws SpectraClusterException {
+        try {
+            return new SegmentClusterStorage(dbDirectory, true);
+        } catch (IOException e) {
+            throw new SpectraClusterException("Error creating the Segment Cluster storage -- " + e.getMessage());
+        }
+    }
+
+    /**
+     * Create a Sharded Storage for the clusters of a clustering round that is deleted on close. Every
+     * shard is a {@link SegmentClusterStorage} (see {@link ShardedClusterStorage}).
+     *
+     * This function fails if the set directory already contains a storage.
+     *
+     * @param dbDirectory Directory to create the shards in.
+     * @param nShards The number of shards, ideally the number of writing threads.
+     * @return ShardedClusterStorage
+     */
+    public static ShardedClusterStorage buildTemporaryShardedSegmentStorage(File dbDirectory, int nShards) throws SpectraClusterException {
+        List<IMapStorage<ICluster>> shards = new ArrayList<>(nShards);
+
+        for (int i = 0; i < nShards; i++) {
+            shards.add(buildTemporarySegmentStorage(createShardDirectory(dbDirectory, i)));
+        }
+
+        return new ShardedClusterStorage(shards);
+    }
+
+    /**
+     * Create a Sharded Storage for the clusters that is deleted on close. Every shard
+     * is a Dynamic Storage (see {@link ShardedClusterStorage}).
+     *
+     * This function fails if the set directory already contains a storage.
+     *
+     * @param dbDirectory Directory to create the shards in.
+     * @param nShards The number of shards, ideally the number of writing threads.
+     * @param clusterClass The cluster Class Implementation that will be storage (e.g. {@link org.spectra.cluster.model.cluster.GreedySpectralCluster})
+     * @return ShardedClusterStorage
+     */
+    public static ShardedClusterStorage buildTemporaryShardedDynamicStorage(File dbDirectory, int nShards, Class clusterClass) throws SpectraClusterException {
+        List<IMapStorage<ICluster>> shards = new ArrayList<>(nShards);
+
+        for (int i = 0; i < nShards; i++) {
+            shards.add(buildTemporaryDynamicStorage(createShardDirectory(dbDirectory, i), clusterClass));
+        }
+
+        return new ShardedClusterStorage(shards);
+    }
+
+    private static File createShardDirectory(File dbDirectory, int shard) throws SpectraClusterException {
+        File shardDirectory = new File(dbDirectory, "shard-" + shard);
+
+        if (!shardDirectory.isDirectory() && !shardDirectory.mkdir())
+            throw new SpectraClusterException("Failed to create storage directory " + shardDirectory.getAbsolutePath());
+
+        return shardDirectory;
+    }
 }
@@ -0,0 +1,63 @@
+package org.spectra.cluster.io.cluster;
+
+import io.github.bigbio.pgatk.io.objectdb.LongObject;
+import org.spectra.cluster.exceptions.SpectraClusterException;
+import org.spectra.cluster.model.cluster.GreedySpectralCluster;
+import org.spectra.cluster.model.cluster.ICluster;
+
+/**
+ * Database entry of a {@link GreedySpectralCluster} in the {@link ObjectDBGreedyClusterStorage}.
+ *
+ * The cluster is stored in its binary representation (see {@link GreedySpectralCluster#toBytes()}).
+ * The object database only persists the non-transient fields of an object. Therefore, the
+ * clusters cannot be stored as objects: the clustered spectra's ids and the consensus
+ * spectrum's peaks are kept in transient fields.
+ *
+ * @author jg
+ */
+public class EncodedCluster extends LongObject {
+    private String clusterId;
+    private byte[] clusterBytes;
+
+    /** Default constructor used by the object database */
+    public EncodedCluster() { }
+
+    /**
+     * Creates a new entry from an already serialized cluster.
+     *
+     * @param clusterId The cluster's id.
+     * @param clusterBytes The cluster serialized using {@link GreedySpectralCluster#toBytes()}.
+     */
+    public EncodedCluster(String clusterId, byte[] clusterBytes) {
+        this.clusterId = clusterId;
+        this.clusterBytes = clusterBytes;
+    }
+
+    /**
+     * Creates a new entry for the passed cluster.
+     *
+     * @param cluster The cluster to store.
+     * @throws SpectraClusterException If the cluster cannot be serialized.
+     */
+    public EncodedCluster(GreedySpectralCluster cluster) throws SpectraClusterException {
+        this(cluster.getId(), cluster.toBytes());
+    }
+
+    public String getClusterId() {
+        return clusterId;
+    }
+
+    public byte[] getClusterBytes() {
+        return clusterBytes;
+    }
+
+    /**
+     * Loads the stored cluster.
+     *
+     * @return The cluster.
+     * @throws SpectraClusterException If the stored data is invalid.
+     */
+    public ICluster toCluster() throws SpectraClusterException {
+        return GreedySpectralCluster.fromBytes(clusterBytes);
+    }
+}
@@ -0,0 +1,22 @@
+package org.spectra.cluster.io.cluster;
+
+import io.github.bigbio.pgatk.io.common.PgatkIOException;
+import org.spectra.cluster.model.cluster.ClusterView;
+
+/**
+ * Cluster storages that keep the clusters in their binary representation
+ * (see {@link org.spectra.cluster.model.cluster.GreedySpectralCluster#toBytes()})
+ * can return a {@link ClusterView} of a stored cluster without loading
+ * the complete cluster.
+ *
+ * @author jg
+ */
+public interface IClusterViewStorage {
+    /**
+     * Returns a read-only view of the stored cluster.
+     * @param key The cluster's key.
+     * @return The view or null if no cluster is stored under this key.
+     * @throws PgatkIOException If the cluster cannot be read.
+     */
+    ClusterView getClusterView(String key) throws PgatkIOException;
+}
@@ -0,0 +1,77 @@
+package org.spectra.cluster.io.cluster;
+
+import io.github.bigbio.pgatk.io.common.PgatkIOException;
+import io.github.bigbio.pgatk.io.mapcache.IMapStorage;
+import org.spectra.cluster.model.cluster.ICluster;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cluster storage that keeps the cluster objects on the heap. Clusters are
+ * neither serialized nor copied, a retrieved cluster is the stored (mutable) object.
+ *
+ * In contrast to the disk based storages, changes to a retrieved cluster therefore
+ * also change the stored cluster. The {@link org.spectra.cluster.tools.LocalParallelBinnedClusteringTool}
+ * relies on two invariants to use this storage safely:
+ * <ul>
+ *     <li>The bins of a clustering round are disjoint. A cluster is therefore only retrieved
+ *     and modified by a single thread.</li>
+ *     <li>A cluster that was passed to the clustering engine (which merges clusters in place) is
+ *     never retrieved from its storage again. The result of a round is written to a new storage.</li>
+ * </ul>
+ *
+ * This storage is only meant for datasets that fit into the available heap.
+ * Parallel reads and writes are supported.
+ *
+ * @author jg
+ */
+public class InMemoryClusterStorage implements IMapStorage<ICluster> {
+    private final Map<String, ICluster> clusters = new ConcurrentHashMap<>();
+
+    @Override
+    public void put(String key, ICluster cluster) {
+        clusters.put(key, cluster);
+    }
+
+    /**
+     * Returns the stored cluster object itself, not a copy.
+     * @param key The cluster's id.
+     * @return The stored cluster or null if it does not exist.
+     */
+    @Override
+    public ICluster get(String key) {
+        return clusters.get(key);
+    }
+
+    /**
+     * Returns all stored clusters.
+     * @return The stored clusters in no particular order.
+     */
+    public Iterable<ICluster> getClusters() {
+        return clusters.values();
+    }
+
+    @Override
+    public long storageSize() {
+        return clusters.size();
+    }
+
+    @Override
+    public void flush() throws PgatkIOException {
+        // this function has no effect
+    }
+
+    @Override
+    public void cleanStorage() throws PgatkIOException {
+        clusters.clear();
+    }
+
+    /**
+     * Removes all clusters so that they can be garbage collected.
+     */
+    @Override
+    public void close() throws PgatkIOException {
+        clusters.clear();
+    }
+}
@@ -6,6 +6,8 @@ import io.github.bigbio.pgatk.io.objectdb.LongObject;
 import io.github.bigbio.pgatk.io.objectdb.ObjectsDB;
 import io.github.bigbio.pgatk.io.objectdb.WaitingHandler;
 import io.github.bigbio.pgatk.io.common.SpectrumProperty;
+import org.spectra.cluster.exceptions.SpectraClusterException;
+import org.spectra.cluster.model.cluster.ClusterView;
 import org.spectra.cluster.model.cluster.GreedySpectralCluster;
 import org.spectra.cluster.model.cluster.ICluster;
 
@@ -24,6 +26,10 @@ import java.util.stream.Collectors;
  * @author Marc Vaudel
  * @author Dominik Kopczynski
  * @author ypriverol
+ *
+ * {@link GreedySpectralCluster}s are stored in their binary representation as {@link EncodedCluster}s
+ * and are decoded when they are retrieved. Result files that contain GreedySpectralCluster objects
+ * (written before the binary representation was introduced) are not supported.
  */
 public class ObjectDBGreedyClusterStorage extends LongObject implements MzIterableReader {
 
@@ -53,7 +59,7 @@ public class ObjectDBGreedyClusterStorage extends LongObject implements MzIterab
      * @return the number of spectrum identifications
      */
     public int getNumberOfClusters() {
-        return objectsDB.getNumber(GreedySpectralCluster.class);
+        return objectsDB.getNumber(EncodedCluster.class);
     }
 
     /**
@@ -136,8 +142,9 @@ public class ObjectDBGreedyClusterStorage extends LongObject implements MzIterab
      * @return the spectrum match with the given key
      */
     public GreedySpectralCluster getGreedySpectraCluster(long key) {
-        return (GreedySpectralCluster) retrieveObject(key);
+        EncodedCluster encodedCluster = (EncodedCluster) retrieveObject(key);
 
+        return (encodedCluster != null) ? decode(encodedCluster) : null;
     }
 
     /**
@@ -256,7 +263,18 @@ public class ObjectDBGreedyClusterStorage extends LongObject implements MzIterab
      * @param greedySpectralCluster the peptide match
      */
     public void addGreedySpectralCluster(long key, GreedySpectralCluster greedySpectralCluster) {
-        objectsDB.insertObject(key, greedySpectralCluster);
+        objectsDB.insertObject(key, encode(greedySpectralCluster));
+    }
+
+    /**
+     * Adds a stored {@link GreedySpectralCluster} without loading it. The cluster's
+     * bytes are copied as they are, the cluster's id is used as key.
+     *
+     * @param clusterView View of the stored cluster.
+     */
+    public void addClusterView(ClusterView clusterView) {
+        objectsDB.insertObject(asLongHash(clusterView.getId()),
+                new EncodedCluster(clusterView.getId(), clusterView.toBytes()));
     }
 
     /**
@@ -270,13 +288,13 @@ public class ObjectDBGreedyClusterStorage extends LongObject implements MzIterab
     @Override
     public boolean hasNext() {
         if(iterator == null)
-            iterator = getIterator(GreedySpectralCluster.class, "firstLevel == true");
+            iterator = getIterator(EncodedCluster.class, "firstLevel == true");
         return iterator.hasNext();
     }
 
     @Override
     public Spectrum next() throws NoSuchElementException {
-        return (Spectrum) iterator.next();
+        return decode((EncodedCluster) iterator.next());
     }
 
     /**
@@ -295,10 +313,27 @@ public class ObjectDBGreedyClusterStorage extends LongObject implements MzIterab
     public void addGreedySpectralClusters(ICluster[] clusters) {
         objectsDB.insertObjects(Arrays.stream(clusters)
                 .collect(Collectors
-                        .toMap(cluster -> asLongHash(cluster.getId()), cluster -> cluster)),
+                        .toMap(cluster -> asLongHash(cluster.getId()),
+                                cluster -> (Object) encode((GreedySpectralCluster) cluster))),
                 null);
     }
 
+    private static EncodedCluster encode(GreedySpectralCluster cluster) {
+        try {
+            return new EncodedCluster(cluster);
+        } catch (SpectraClusterException e) {
+            throw new IllegalArgumentException("Failed to store cluster " + cluster.getId() + " -- " + e.getMessage(), e);
+        }
+    }
+
+    private static GreedySpectralCluster decode(EncodedCluster encodedCluster) {
+        try {
+            return (GreedySpectralCluster) encodedCluster.toCluster();
+        } catch (SpectraClusterException e) {
+            throw new IllegalStateException("Failed to load cluster " + encodedCluster.getClusterId() + " -- " + e.getMessage(), e);
+        }
+    }
+
     /**
      * Flush the data into the database.
      */
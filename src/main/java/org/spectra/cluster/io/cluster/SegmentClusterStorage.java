@@ -0,0 +1,455 @@
+package org.spectra.cluster.io.cluster;
+
+import io.github.bigbio.pgatk.io.common.PgatkIOException;
+import io.github.bigbio.pgatk.io.mapcache.IMapStorage;
+import lombok.extern.slf4j.Slf4j;
+import org.spectra.cluster.exceptions.SpectraClusterException;
+import org.spectra.cluster.model.cluster.ClusterView;
+import org.spectra.cluster.model.cluster.GreedySpectralCluster;
+import org.spectra.cluster.model.cluster.ICluster;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * Storage for the clusters created by a clustering round.
+ *
+ * All clusters that were added using {@link #put(String, ICluster)} since the last
+ * call to {@link #flush()} are written as one contiguous segment, sorted by precursor
+ * m/z. When used by the {@link org.spectra.cluster.tools.LocalParallelBinnedClusteringTool}
+ * every segment therefore contains the result of one bin. Since the clusters' offsets within
+ * a segment are stored as int, segments are limited to 2 GB. Larger flushes are split into several consecutive
+ * segments. The segments are appended to a single file, only a small index (segment
+ * position and the clusters' offsets) is kept in memory.
+ *
+ * Every cluster is read from its range of the file using positional reads. No memory mappings
+ * are created, the number of segments is therefore not limited by the number of mappings
+ * a process may hold (vm.max_map_count). The segments themselves are never copied to the
+ * heap. {@link #getAll(String[])} loads the
+ * clusters in the order they are stored in the file so that the clusters of a bin are
+ * read sequentially. A bin of the following (shifted) round is generally made of two
+ * adjacent segments.
+ *
+ * Clusters are stored using {@link ICluster#toBytes()} and can only be loaded as
+ * {@link GreedySpectralCluster}. Writing is synchronized, reading is thread-safe
+ * as long as no clusters are written at the same time.
+ *
+ * @author jg
+ */
+@Slf4j
+public class SegmentClusterStorage implements IMapStorage<ICluster>, IClusterViewStorage {
+    /**
+     * Maximum size of a segment. This is limited by the int offsets of the clusters.
+     */
+    public static final int MAX_SEGMENT_LENGTH = Integer.MAX_VALUE;
+    private static final int WRITE_BUFFER_SIZE = 4 * 1024 * 1024;
+
+    private final File dbFile;
+    private final boolean deleteOnClose;
+    private final int maxSegmentLength;
+    private RandomAccessFile file;
+    private FileChannel channel;
+
+    private final List<Segment> segments = new ArrayList<>();
+    // cluster id -> segment (upper 32 bits) and index within the segment (lower 32 bits)
+    private final Map<String, Long> clusterIndex = new HashMap<>();
+
+    // clusters added since the last flush
+    private final List<Map.Entry<String, ICluster>> pendingClusters = new ArrayList<>();
+
+    /**
+     * A contiguous range of the file holding the clusters of one flush,
+     * sorted by precursor m/z.
+     */
+    private static class Segment {
+        private final long position;
+        private final int length;
+        // start of every cluster relative to the segment's position
+        private final int[] clusterOffsets;
+        private final int minPrecursorMz;
+        private final int maxPrecursorMz;
+
+        private Segment(long position, int length, int[] clusterOffsets, int minPrecursorMz, int maxPrecursorMz) {
+            this.position = position;
+            this.length = length;
+            this.clusterOffsets = clusterOffsets;
+            this.minPrecursorMz = minPrecursorMz;
+            this.maxPrecursorMz = maxPrecursorMz;
+        }
+
+        private int getClusterLength(int index) {
+            int end = (index + 1 < clusterOffsets.length) ? clusterOffsets[index + 1] : length;
+            return end - clusterOffsets[index];
+        }
+    }
+
+    /**
+     * Creates a new storage.
+     *
+     * @param dbDirectory Directory to create the storage file in.
+     * @param deleteOnClose If set, the storage file is deleted when the storage is closed.
+     * @throws IOException If the directory already contains a storage or the file cannot be created.
+     */
+    public SegmentClusterStorage(File dbDirectory, boolean deleteOnClose) throws IOException {
+        this(dbDirectory, deleteOnClose, MAX_SEGMENT_LENGTH);
+    }
+
+    /**
+     * Creates a new storage with a custom maximum segment size.
+     *
+     * @param dbDirectory Directory to create the storage file in.
+     * @param deleteOnClose If set, the storage file is deleted when the storage is closed.
+     * @param maxSegmentLength The maximum size of a segment in bytes. Flushes exceeding this
+     *                         size are split into several segments.
+     * @throws IOException If the directory already contains a storage or the file cannot be created.
+     */
+    public SegmentClusterStorage(File dbDirectory, boolean deleteOnClose, int maxSegmentLength) throws IOException {
+        if (maxSegmentLength < 1)
+            throw new IllegalArgumentException("The maximum segment length must be positive");
+
+        this.maxSegmentLength = maxSegmentLength;
+        this.dbFile = new File(dbDirectory, "spectra-cluster_segment-storage.dat");
+
+        if (dbFile.exists())
+            throw new IOException("Directory already contains a storage database.");
+
+        this.deleteOnClose = deleteOnClose;
+
+        if (deleteOnClose)
+            dbFile.deleteOnExit();
+
+        this.file = new RandomAccessFile(dbFile, "rw");
+        this.channel = file.getChannel();
+    }
+
+    /**
+     * Adds the cluster to the current segment. The cluster is only written (and
+     * can only be retrieved) once {@link #flush()} is called.
+     *
+     * @param key The key to store the cluster under.
+     * @param cluster The cluster to store.
+     */
+    @Override
+    public synchronized void put(String key, ICluster cluster) {
+        pendingClusters.add(new AbstractMap.SimpleImmutableEntry<>(key, cluster));
+    }
+
+    @Override
+    public ICluster get(String key) {
+        Long location = getLocation(key);
+
+        if (location == null) {
+            return null;
+        }
+
+        try {
+            return decode(location);
+        } catch (IOException | SpectraClusterException e) {
+            throw new IllegalStateException("Failed to load cluster " + key, e);
+        }
+    }
+
+    /**
+     * Loads the clusters with the defined ids. The clusters are read in the order they
+     * are stored in the file.
+     *
+     * @param keys The clusters' ids.
+     * @return The clusters in the same order as the ids. Unknown ids are returned as null.
+     * @throws PgatkIOException If the clusters cannot be loaded.
+     */
+    public ICluster[] getAll(String[] keys) throws PgatkIOException {
+        ICluster[] clusters = new ICluster[keys.length];
+
+        // sort the requests by location
+        long[] locations = new long[keys.length];
+        Integer[] order = new Integer[keys.length];
+
+        for (int i = 0; i < keys.length; i++) {
+            Long location = getLocation(keys[i]);
+            locations[i] = (location != null) ? location : -1;
+            order[i] = i;
+        }
+
+        Arrays.sort(order, Comparator.comparingLong(i -> locations[i]));
+
+        try {
+            for (int i : order) {
+                if (locations[i] >= 0) {
+                    clusters[i] = decode(locations[i]);
+                }
+            }
+        } catch (IOException | SpectraClusterException e) {
+            throw new PgatkIOException("Failed to load clusters -- " + e.getMessage());
+        }
+
+        return clusters;
+    }
+
+    @Override
+    public ClusterView getClusterView(String key) throws PgatkIOException {
+        Long location = getLocation(key);
+
+        if (location == null) {
+            return null;
+        }
+
+        try {
+            Segment segment = getSegment((int) (location >>> 32));
+            int index = (int) (long) location;
+
+            return new ClusterView(readRange(segment, segment.clusterOffsets[index], segment.getClusterLength(index)));
+        } catch (IOException | SpectraClusterException e) {
+            throw new PgatkIOException("Failed to load cluster " + key + " -- " + e.getMessage());
+        }
+    }
+
+    /**
+     * Returns the number of written segments.
+     * @return The number of segments.
+     */
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Loads all clusters of a segment.
+     * @param segmentIndex The segment's (0-based) index in the order the segments were written.
+     * @return The segment's clusters sorted by precursor m/z.
+     * @throws PgatkIOException If the segment cannot be read.
+     */
+    public ICluster[] readSegment(int segmentIndex) throws PgatkIOException {
+        Segment segment = getSegment(segmentIndex);
+
+        try {
+            ICluster[] clusters = new ICluster[segment.clusterOffsets.length];
+
+            for (int i = 0; i < clusters.length; i++) {
+                clusters[i] = decode(((long) segmentIndex << 32) | i);
+            }
+
+            return clusters;
+        } catch (IOException | SpectraClusterException e) {
+            throw new PgatkIOException("Failed to load segment " + segmentIndex + " -- " + e.getMessage());
+        }
+    }
+
+    /**
+     * Returns the lowest precursor m/z of the segment's clusters.
+     * @param segmentIndex The segment's index.
+     * @return The lowest precursor m/z.
+     */
+    public int getMinPrecursorMz(int segmentIndex) {
+        return getSegment(segmentIndex).minPrecursorMz;
+    }
+
+    /**
+     * Returns the highest precursor m/z of the segment's clusters.
+     * @param segmentIndex The segment's index.
+     * @return The highest precursor m/z.
+     */
+    public int getMaxPrecursorMz(int segmentIndex) {
+        return getSegment(segmentIndex).maxPrecursorMz;
+    }
+
+    private synchronized Segment getSegment(int segmentIndex) {
+        return segments.get(segmentIndex);
+    }
+
+    private synchronized Long getLocation(String key) {
+        return clusterIndex.get(key);
+    }
+
+    private ICluster decode(long location) throws IOException, SpectraClusterException {
+        Segment segment = getSegment((int) (location >>> 32));
+        int index = (int) location;
+
+        return GreedySpectralCluster.fromBytes(readRange(segment, segment.clusterOffsets[index], segment.getClusterLength(index)));
+    }
+
+    /**
+     * Reads part of the segment. Positional reads do not change the channel's position
+     * and can therefore be used by multiple threads at the same time.
+     */
+    private byte[] readRange(Segment segment, int offset, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        long readPosition = segment.position + offset;
+
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, readPosition + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of segment storage " + dbFile.getAbsolutePath());
+            }
+        }
+
+        return bytes;
+    }
+
+    /**
+     * Writes all clusters added since the last call as a new, precursor m/z sorted segment.
+     * Segments that would exceed the maximum segment size are split.
+     *
+     * @throws PgatkIOException If the segment cannot be written.
+     */
+    @Override
+    public synchronized void flush() throws PgatkIOException {
+        if (pendingClusters.isEmpty()) {
+            return;
+        }
+
+        writeSegment(pendingClusters);
+        pendingClusters.clear();
+    }
+
+    /**
+     * Writes the clusters as a new, precursor m/z sorted segment using their ids as keys. In contrast
+     * to {@link #put(String, ICluster)}, the clusters are written immediately and do not become part of
+     * the segment created by the next {@link #flush()}. Segments that would exceed the maximum
+     * segment size are split.
+     *
+     * @param clusters The clusters to write.
+     * @throws PgatkIOException If the segment cannot be written.
+     */
+    public synchronized void putSegment(ICluster[] clusters) throws PgatkIOException {
+        if (clusters.length < 1) {
+            return;
+        }
+
+        List<Map.Entry<String, ICluster>> entries = new ArrayList<>(clusters.length);
+
+        for (ICluster cluster : clusters) {
+            entries.add(new AbstractMap.SimpleImmutableEntry<>(cluster.getId(), cluster));
+        }
+
+        writeSegment(entries);
+    }
+
+    /**
+     * Writes the clusters as consecutive segments. The clusters are encoded and written
+     * one by one, a new segment is started whenever the current one would exceed the
+     * maximum segment size.
+     */
+    private void writeSegment(List<Map.Entry<String, ICluster>> entries) throws PgatkIOException {
+        entries.sort(Comparator.comparingInt(entry -> entry.getValue().getPrecursorMz()));
+
+        try {
+            ByteBuffer writeBuffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+            long writePosition = channel.size();
+            long segmentPosition = writePosition;
+            int[] clusterOffsets = new int[entries.size()];
+            int firstCluster = 0;
+            long length = 0;
+
+            for (int i = 0; i < entries.size(); i++) {
+                byte[] clusterBytes = entries.get(i).getValue().toBytes();
+
+                if (i > firstCluster && length + clusterBytes.length > maxSegmentLength) {
+                    writePosition = write(writeBuffer, writePosition, null);
+                    addSegment(entries, segmentPosition, (int) length, clusterOffsets, firstCluster, i);
+
+                    segmentPosition = writePosition;
+                    firstCluster = i;
+                    length = 0;
+                }
+
+                clusterOffsets[i] = (int) length;
+                length += clusterBytes.length;
+                writePosition = write(writeBuffer, writePosition, clusterBytes);
+            }
+
+            write(writeBuffer, writePosition, null);
+            addSegment(entries, segmentPosition, (int) length, clusterOffsets, firstCluster, entries.size());
+        } catch (IOException | SpectraClusterException e) {
+            throw new PgatkIOException("Error writing the cluster segment -- " + e.getMessage());
+        }
+    }
+
+    /**
+     * Adds the bytes to the write buffer. The buffer is written to the file if it is full or
+     * no bytes are passed. Bytes that do not fit into the buffer are written directly.
+     *
+     * @return The file position the buffer's content will be written to.
+     */
+    private long write(ByteBuffer writeBuffer, long writePosition, byte[] bytes) throws IOException {
+        if (bytes != null && bytes.length <= writeBuffer.remaining()) {
+            writeBuffer.put(bytes);
+            return writePosition;
+        }
+
+        writeBuffer.flip();
+        writePosition = writeFully(writeBuffer, writePosition);
+        writeBuffer.clear();
+
+        if (bytes != null) {
+            if (bytes.length <= writeBuffer.remaining()) {
+                writeBuffer.put(bytes);
+            } else {
+                writePosition = writeFully(ByteBuffer.wrap(bytes), writePosition);
+            }
+        }
+
+        return writePosition;
+    }
+
+    private long writeFully(ByteBuffer buffer, long writePosition) throws IOException {
+        while (buffer.hasRemaining()) {
+            writePosition += channel.write(buffer, writePosition);
+        }
+
+        return writePosition;
+    }
+
+    private void addSegment(List<Map.Entry<String, ICluster>> entries, long position, int length,
+                            int[] clusterOffsets, int firstCluster, int lastCluster) {
+        int segmentIndex = segments.size();
+
+        segments.add(new Segment(position, length, Arrays.copyOfRange(clusterOffsets, firstCluster, lastCluster),
+                entries.get(firstCluster).getValue().getPrecursorMz(),
+                entries.get(lastCluster - 1).getValue().getPrecursorMz()));
+
+        for (int i = firstCluster; i < lastCluster; i++) {
+            clusterIndex.put(entries.get(i).getKey(), ((long) segmentIndex << 32) | (i - firstCluster));
+        }
+    }
+
+    @Override
+    public synchronized long storageSize() {
+        return clusterIndex.size();
+    }
+
+    @Override
+    public synchronized void cleanStorage() throws PgatkIOException {
+        try {
+            channel.truncate(0);
+        } catch (IOException e) {
+            throw new PgatkIOException("Error cleaning the segment storage -- " + e.getMessage());
+        }
+
+        segments.clear();
+        clusterIndex.clear();
+        pendingClusters.clear();
+    }
+
+    @Override
+    public synchronized void close() throws PgatkIOException {
+        try {
+            if (!deleteOnClose) {
+                flush();
+            }
+
+            segments.clear();
+            clusterIndex.clear();
+            channel.close();
+            file.close();
+        } catch (IOException e) {
+            throw new PgatkIOException("Error closing the segment storage -- " + e.getMessage());
+        }
+
+        if (deleteOnClose && dbFile.exists() && !dbFile.delete()) {
+            log.debug("Failed to delete segment storage " + dbFile.getAbsolutePath());
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package org.spectra.cluster.io.cluster;
+
+import io.github.bigbio.pgatk.io.common.PgatkIOException;
+import io.github.bigbio.pgatk.io.mapcache.IMapStorage;
+import org.spectra.cluster.model.cluster.ClusterView;
+import org.spectra.cluster.model.cluster.ICluster;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Cluster storage that distributes the written clusters across multiple independent
+ * storages (shards). Every writing thread is assigned its own shard so that parallel
+ * writers do not have to wait for each other. The shard of every stored cluster is
+ * kept in a concurrent map that routes the read requests.
+ *
+ * The shards are only flushed when {@link #flush()} is called, which should happen
+ * once all clusters were written (ie. at the end of a clustering round). Clusters can
+ * only be retrieved after they were flushed.
+ *
+ * If there are more writing threads than shards, multiple threads share a shard.
+ *
+ * @author jg
+ */
+public class ShardedClusterStorage implements IMapStorage<ICluster>, IClusterViewStorage {
+    private final List<IMapStorage<ICluster>> shards;
+    // cluster key -> shard index
+    private final ConcurrentHashMap<String, Integer> shardIndex = new ConcurrentHashMap<>();
+
+    private final AtomicInteger nextShard = new AtomicInteger(0);
+    private final ThreadLocal<Integer> threadShard = ThreadLocal.withInitial(() -> nextShard.getAndIncrement() % getShardCount());
+
+    /**
+     * Creates a new sharded storage.
+     * @param shards The storages to use as shards. The shards are closed when this storage is closed.
+     */
+    public ShardedClusterStorage(List<? extends IMapStorage<ICluster>> shards) {
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("At least one shard is required");
+        }
+
+        this.shards = new ArrayList<>(shards);
+    }
+
+    public int getShardCount() {
+        return shards.size();
+    }
+
+    /**
+     * Adds the cluster to the current thread's shard.
+     * @param key The key to store the cluster under.
+     * @param cluster The cluster to store.
+     */
+    @Override
+    public void put(String key, ICluster cluster) {
+        int shard = threadShard.get();
+
+        try {
+            shards.get(shard).put(key, cluster);
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException("Failed to store cluster " + key, e);
+        }
+
+        shardIndex.put(key, shard);
+    }
+
+    /**
+     * Adds the clusters to the current thread's shard using their ids as keys. Segment
+     * storages store the clusters as a single segment (see {@link SegmentClusterStorage#putSegment(ICluster[])}).
+     *
+     * @param clusters The clusters to store.
+     * @throws PgatkIOException If the clusters cannot be written.
+     */
+    public void putAll(ICluster[] clusters) throws PgatkIOException {
+        int shard = threadShard.get();
+        IMapStorage<ICluster> storage = shards.get(shard);
+
+        if (storage instanceof SegmentClusterStorage) {
+            ((SegmentClusterStorage) storage).putSegment(clusters);
+        } else {
+            for (ICluster cluster : clusters) {
+                storage.put(cluster.getId(), cluster);
+            }
+        }
+
+        for (ICluster cluster : clusters) {
+            shardIndex.put(cluster.getId(), shard);
+        }
+    }
+
+    @Override
+    public ICluster get(String key) {
+        Integer shard = shardIndex.get(key);
+
+        if (shard == null) {
+            return null;
+        }
+
+        try {
+            return shards.get(shard).get(key);
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException("Failed to load cluster " + key, e);
+        }
+    }
+
+    /**
+     * Loads the clusters with the defined keys. The keys are grouped by shard so that
+     * segment storages can load their clusters at once (see {@link SegmentClusterStorage#getAll(String[])}).
+     *
+     * @param keys The clusters' keys.
+     * @return The clusters in the same order as the keys. Unknown keys are returned as null.
+     * @throws PgatkIOException If the clusters cannot be loaded.
+     */
+    public ICluster[] getAll(String[] keys) throws PgatkIOException {
+        ICluster[] clusters = new ICluster[keys.length];
+        List<List<Integer>> shardRequests = new ArrayList<>(shards.size());
+
+        for (int i = 0; i < shards.size(); i++) {
+            shardRequests.add(new ArrayList<>());
+        }
+
+        for (int i = 0; i < keys.length; i++) {
+            Integer shard = shardIndex.get(keys[i]);
+
+            if (shard != null) {
+                shardRequests.get(shard).add(i);
+            }
+        }
+
+        for (int shard = 0; shard < shards.size(); shard++) {
+            List<Integer> requests = shardRequests.get(shard);
+
+            if (requests.isEmpty()) {
+                continue;
+            }
+
+            IMapStorage<ICluster> storage = shards.get(shard);
+
+            if (storage instanceof SegmentClusterStorage) {
+                String[] shardKeys = new String[requests.size()];
+
+                for (int i = 0; i < shardKeys.length; i++) {
+                    shardKeys[i] = keys[requests.get(i)];
+                }
+
+                ICluster[] shardClusters = ((SegmentClusterStorage) storage).getAll(shardKeys);
+
+                for (int i = 0; i < shardClusters.length; i++) {
+                    clusters[requests.get(i)] = shardClusters[i];
+                }
+            } else {
+                for (int request : requests) {
+                    clusters[request] = storage.get(keys[request]);
+                }
+            }
+        }
+
+        return clusters;
+    }
+
+    @Override
+    public ClusterView getClusterView(String key) throws PgatkIOException {
+        Integer shard = shardIndex.get(key);
+
+        if (shard == null) {
+            return null;
+        }
+
+        IMapStorage<ICluster> storage = shards.get(shard);
+
+        if (!(storage instanceof IClusterViewStorage)) {
+            throw new PgatkIOException("Cluster views are not supported by " + storage.getClass().getName());
+        }
+
+        return ((IClusterViewStorage) storage).getClusterView(key);
+    }
+
+    @Override
+    public long storageSize() {
+        return shardIndex.size();
+    }
+
+    /**
+     * Flushes all shards.
+     * @throws PgatkIOException If a shard cannot be flushed.
+     */
+    @Override
+    public void flush() throws PgatkIOException {
+        for (IMapStorage<ICluster> shard : shards) {
+            shard.flush();
+        }
+    }
+
+    @Override
+    public void cleanStorage() throws PgatkIOException {
+        for (IMapStorage<ICluster> shard : shards) {
+            shard.cleanStorage();
+        }
+
+        shardIndex.clear();
+    }
+
+    @Override
+    public void close() throws PgatkIOException {
+        PgatkIOException error = null;
+
+        // close all shards, even if one fails
+        for (IMapStorage<ICluster> shard : shards) {
+            try {
+                shard.close();
+            } catch (PgatkIOException e) {
+                error = e;
+            }
+        }
+
+        if (error != null) {
+            throw error;
+        }
+    }
+}
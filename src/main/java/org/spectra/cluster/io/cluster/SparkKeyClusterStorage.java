@@ -8,6 +8,7 @@ import io.github.bigbio.pgatk.io.common.PgatkIOException;
 import io.github.bigbio.pgatk.io.mapcache.IMapStorage;
 import lombok.extern.slf4j.Slf4j;
 import org.spectra.cluster.exceptions.SpectraClusterException;
+import org.spectra.cluster.model.cluster.ClusterView;
 import org.spectra.cluster.model.cluster.GreedySpectralCluster;
 import org.spectra.cluster.model.cluster.ICluster;
 
@@ -20,7 +21,7 @@ import java.util.HashSet;
 import java.util.concurrent.atomic.AtomicLong;
 
 @Slf4j
-public class SparkKeyClusterStorage implements IMapStorage<ICluster> {
+public class SparkKeyClusterStorage implements IMapStorage<ICluster>, IClusterViewStorage {
 
     private final boolean deleteOnClose;
     private final File dbFile;
@@ -123,6 +124,21 @@ public class SparkKeyClusterStorage implements IMapStorage<ICluster> {
         }
     }
 
+    @Override
+    public ClusterView getClusterView(String key) throws PgatkIOException {
+        if (clusterClass != GreedySpectralCluster.class) {
+            throw new PgatkIOException("Cluster views are not supported for " + clusterClass.toString());
+        }
+
+        try {
+            byte[] byteObject = readers.get().getAsByteArray(serialize(key));
+
+            return (byteObject != null) ? new ClusterView(byteObject) : null;
+        } catch (IOException | SpectraClusterException ex) {
+            throw new PgatkIOException("Error retrieving the value for key -- " + key + " -- " + ex.getMessage());
+        }
+    }
+
     @Override
     public void cleanStorage() throws PgatkIOException {
         // TODO: This function does not delete any elements.
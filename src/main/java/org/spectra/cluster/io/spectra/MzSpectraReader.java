@@ -345,10 +345,10 @@ public class MzSpectraReader {
             spectrum = loadingFilter.apply(spectrum);
         }
 
-        IBinarySpectrum s = new BinarySpectrum(
+        IBinarySpectrum s = factoryNormalizer.normalizeSpectrum(
                 ((BasicIntegerNormalizer) precursorNormalizer).binValue(spectrum.getPrecursorMZ()),
                 (spectrum.getPrecursorCharge() != null) ? spectrum.getPrecursorCharge() : 0,
-                factoryNormalizer.normalizePeaks(spectrum.getPeakList()),
+                spectrum.getPeakList(),
                 comparisonFilter);
 
         // save spectrum properties
@@ -0,0 +1,489 @@
+package org.spectra.cluster.model.cluster;
+
+import org.spectra.cluster.util.CompactDataInput;
+import org.spectra.cluster.util.CompactDataOutput;
+import org.spectra.cluster.util.IdAllocator;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.*;
+
+/**
+ * Compact set of the ids of the spectra within a cluster.
+ *
+ * Numeric ids (ids allocated in this JVM, see {@link IdAllocator}) are stored as a sorted array of longs. Adding
+ * a set whose ids are all higher (or lower) than the existing ones, which is the common
+ * case when merging clusters, only requires a single array copy. Otherwise, the two
+ * sorted arrays are merged in linear time. No hashing is involved. Ids that are not
+ * numeric ids (ie. loaded from external files or allocated by other runs) are kept in a
+ * regular HashSet.
+ *
+ * The String representation of the numeric ids is only created while iterating over
+ * the set. Elements cannot be removed.
+ *
+ * When serialized, the numeric ids are delta encoded and stored together with the run prefix
+ * of this JVM. Numeric ids loaded from a different run are converted to regular ids.
+ *
+ * Objects of this class are not thread-safe.
+ *
+ * @author jg
+ */
+public class ClusterMemberSet extends AbstractSet<String> implements Serializable {
+    private static final long[] EMPTY = new long[0];
+
+    private transient long[] numericIds = EMPTY;
+    private transient int nNumericIds = 0;
+    // ids that are not numeric ids, null if there are none
+    private Set<String> otherIds;
+
+    /**
+     * Creates a new, empty set.
+     */
+    public ClusterMemberSet() {
+    }
+
+    /**
+     * Creates a new set containing the passed ids.
+     * @param ids The ids to add.
+     */
+    public ClusterMemberSet(Collection<String> ids) {
+        addAll(ids);
+    }
+
+    @Override
+    public int size() {
+        return nNumericIds + ((otherIds != null) ? otherIds.size() : 0);
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        if (!(o instanceof String)) {
+            return false;
+        }
+
+        long numericId = IdAllocator.toNumericId((String) o);
+
+        if (numericId >= 0) {
+            return Arrays.binarySearch(numericIds, 0, nNumericIds, numericId) >= 0;
+        }
+
+        return otherIds != null && otherIds.contains(o);
+    }
+
+    @Override
+    public boolean add(String id) {
+        long numericId = IdAllocator.toNumericId(id);
+
+        if (numericId < 0) {
+            if (otherIds == null) {
+                otherIds = new HashSet<>();
+            }
+
+            return otherIds.add(id);
+        }
+
+        // append if possible
+        if (nNumericIds == 0 || numericId > numericIds[nNumericIds - 1]) {
+            ensureCapacity(nNumericIds + 1);
+            numericIds[nNumericIds++] = numericId;
+
+            return true;
+        }
+
+        int index = Arrays.binarySearch(numericIds, 0, nNumericIds, numericId);
+
+        if (index >= 0) {
+            return false;
+        }
+
+        index = -(index + 1);
+        ensureCapacity(nNumericIds + 1);
+        System.arraycopy(numericIds, index, numericIds, index + 1, nNumericIds - index);
+        numericIds[index] = numericId;
+        nNumericIds++;
+
+        return true;
+    }
+
+    @Override
+    public boolean addAll(Collection<? extends String> ids) {
+        if (ids instanceof ClusterMemberSet) {
+            ClusterMemberSet other = (ClusterMemberSet) ids;
+            boolean changed = addNumericIds(other.numericIds, other.nNumericIds);
+
+            if (other.otherIds != null) {
+                if (otherIds == null) {
+                    otherIds = new HashSet<>();
+                }
+
+                changed |= otherIds.addAll(other.otherIds);
+            }
+
+            return changed;
+        }
+
+        // sort the numeric ids first
+        long[] newIds = new long[ids.size()];
+        int nNewIds = 0;
+        boolean changed = false;
+
+        for (String id : ids) {
+            long numericId = IdAllocator.toNumericId(id);
+
+            if (numericId >= 0) {
+                newIds[nNewIds++] = numericId;
+            } else {
+                changed |= add(id);
+            }
+        }
+
+        Arrays.sort(newIds, 0, nNewIds);
+
+        // remove duplicates
+        int nUniqueIds = 0;
+
+        for (int i = 0; i < nNewIds; i++) {
+            if (nUniqueIds == 0 || newIds[i] != newIds[nUniqueIds - 1]) {
+                newIds[nUniqueIds++] = newIds[i];
+            }
+        }
+
+        return addNumericIds(newIds, nUniqueIds) || changed;
+    }
+
+    /**
+     * Tests whether the two sets share at least one id.
+     * @param other The set to compare to.
+     * @return True if at least one id is part of both sets.
+     */
+    public boolean intersects(ClusterMemberSet other) {
+        if (otherIds != null && other.otherIds != null) {
+            Set<String> smaller = (otherIds.size() < other.otherIds.size()) ? otherIds : other.otherIds;
+            Set<String> larger = (smaller == otherIds) ? other.otherIds : otherIds;
+
+            for (String id : smaller) {
+                if (larger.contains(id)) {
+                    return true;
+                }
+            }
+        }
+
+        if (nNumericIds == 0 || other.nNumericIds == 0 ||
+                numericIds[nNumericIds - 1] < other.numericIds[0] || other.numericIds[other.nNumericIds - 1] < numericIds[0]) {
+            return false;
+        }
+
+        int i = 0, j = 0;
+
+        while (i < nNumericIds && j < other.nNumericIds) {
+            if (numericIds[i] == other.numericIds[j]) {
+                return true;
+            }
+
+            if (numericIds[i] < other.numericIds[j]) {
+                i++;
+            } else {
+                j++;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Adds the sorted, unique ids.
+     */
+    private boolean addNumericIds(long[] ids, int nIds) {
+        if (nIds == 0) {
+            return false;
+        }
+
+        // all new ids are higher
+        if (nNumericIds == 0 || ids[0] > numericIds[nNumericIds - 1]) {
+            ensureCapacity(nNumericIds + nIds);
+            System.arraycopy(ids, 0, numericIds, nNumericIds, nIds);
+            nNumericIds += nIds;
+
+            return true;
+        }
+
+        // all new ids are lower
+        if (ids[nIds - 1] < numericIds[0]) {
+            long[] newIds = new long[Math.max(nNumericIds + nIds, numericIds.length)];
+            System.arraycopy(ids, 0, newIds, 0, nIds);
+            System.arraycopy(numericIds, 0, newIds, nIds, nNumericIds);
+            numericIds = newIds;
+            nNumericIds += nIds;
+
+            return true;
+        }
+
+        // merge the two sorted arrays
+        long[] newIds = new long[nNumericIds + nIds];
+        int i = 0, j = 0, n = 0;
+
+        while (i < nNumericIds && j < nIds) {
+            if (numericIds[i] < ids[j]) {
+                newIds[n++] = numericIds[i++];
+            } else if (numericIds[i] > ids[j]) {
+                newIds[n++] = ids[j++];
+            } else {
+                newIds[n++] = numericIds[i++];
+                j++;
+            }
+        }
+
+        while (i < nNumericIds) {
+            newIds[n++] = numericIds[i++];
+        }
+        while (j < nIds) {
+            newIds[n++] = ids[j++];
+        }
+
+        boolean changed = n > nNumericIds;
+        numericIds = newIds;
+        nNumericIds = n;
+
+        return changed;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > numericIds.length) {
+            numericIds = Arrays.copyOf(numericIds, Math.max(capacity, Math.max(4, numericIds.length * 2)));
+        }
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+        return new Iterator<String>() {
+            private int index = 0;
+            private final Iterator<String> otherIterator = (otherIds != null) ? otherIds.iterator() : null;
+
+            @Override
+            public boolean hasNext() {
+                return index < nNumericIds || (otherIterator != null && otherIterator.hasNext());
+            }
+
+            @Override
+            public String next() {
+                if (index < nNumericIds) {
+                    return IdAllocator.toId(numericIds[index++]);
+                }
+                if (otherIterator != null) {
+                    return otherIterator.next();
+                }
+
+                throw new NoSuchElementException();
+            }
+        };
+    }
+
+    /**
+     * Writes the set using the binary cluster codec. The numeric ids are
+     * delta encoded after the run prefix, the other ids are written as Strings.
+     * @param out The output to write to.
+     */
+    void writeTo(CompactDataOutput out) {
+        out.writeUnsignedVarInt(nNumericIds);
+
+        if (nNumericIds > 0) {
+            out.writeString(IdAllocator.getRunPrefix());
+        }
+
+        long lastId = 0;
+
+        for (int i = 0; i < nNumericIds; i++) {
+            out.writeUnsignedVarLong(numericIds[i] - lastId);
+            lastId = numericIds[i];
+        }
+
+        out.writeUnsignedVarInt((otherIds != null) ? otherIds.size() : 0);
+
+        if (otherIds != null) {
+            for (String id : otherIds) {
+                out.writeString(id);
+            }
+        }
+    }
+
+    /**
+     * Reads a set written by {@link #writeTo(CompactDataOutput)}.
+     * @param in The input to read from.
+     * @return The loaded set.
+     */
+    static ClusterMemberSet readFrom(CompactDataInput in) {
+        ClusterMemberSet members = new ClusterMemberSet();
+        int nIds = in.readUnsignedVarInt();
+
+        // every id needs at least one byte
+        if (nIds < 0 || nIds > in.available()) {
+            throw new IllegalArgumentException("Invalid number of cluster members");
+        }
+
+        String runPrefix = (nIds > 0) ? in.readString() : null;
+        long[] ids = new long[nIds];
+        long lastId = 0;
+
+        for (int i = 0; i < nIds; i++) {
+            lastId += in.readUnsignedVarLong();
+            ids[i] = lastId;
+        }
+
+        members.setNumericIds(runPrefix, ids);
+
+        int nOtherIds = in.readUnsignedVarInt();
+
+        if (nOtherIds > 0) {
+            if (members.otherIds == null) {
+                members.otherIds = new HashSet<>();
+            }
+
+            for (int i = 0; i < nOtherIds; i++) {
+                members.otherIds.add(in.readString());
+            }
+        }
+
+        return members;
+    }
+
+    /**
+     * Sets the loaded numeric ids. Ids of a different run are stored as other ids.
+     * @param runPrefix The run prefix of the JVM that allocated the ids.
+     * @param ids The sorted numeric ids.
+     */
+    private void setNumericIds(String runPrefix, long[] ids) {
+        if (ids.length > 0 && !IdAllocator.getRunPrefix().equals(runPrefix)) {
+            if (otherIds == null) {
+                otherIds = new HashSet<>(ids.length * 2);
+            }
+
+            for (long id : ids) {
+                otherIds.add(IdAllocator.toId(runPrefix, id));
+            }
+
+            numericIds = EMPTY;
+            nNumericIds = 0;
+            return;
+        }
+
+        numericIds = ids;
+        nNumericIds = ids.length;
+    }
+
+    /**
+     * Skips a set written by {@link #writeTo(CompactDataOutput)}.
+     * @param in The input to read from.
+     */
+    static void skip(CompactDataInput in) {
+        int nIds = in.readUnsignedVarInt();
+
+        if (nIds > 0) {
+            in.readString();
+        }
+
+        for (int i = 0; i < nIds; i++) {
+            in.readUnsignedVarLong();
+        }
+
+        int nOtherIds = in.readUnsignedVarInt();
+
+        for (int i = 0; i < nOtherIds; i++) {
+            in.readString();
+        }
+    }
+
+    /**
+     * Iterates over the ids of a set written by {@link #writeTo(CompactDataOutput)} without
+     * loading the set. The ids are decoded on demand.
+     * @param in The input to read from. It must not be used by anyone else while iterating.
+     * @return An iterator over the ids.
+     */
+    static Iterator<String> idIterator(CompactDataInput in) {
+        return new Iterator<String>() {
+            private final int nIds = in.readUnsignedVarInt();
+            private final String runPrefix = (nIds > 0) ? in.readString() : null;
+            private int nOtherIds = -1;
+            private int index = 0;
+            private long lastId = 0;
+
+            @Override
+            public boolean hasNext() {
+                if (index < nIds) {
+                    return true;
+                }
+
+                if (nOtherIds < 0) {
+                    nOtherIds = in.readUnsignedVarInt();
+                }
+
+                return index < nIds + nOtherIds;
+            }
+
+            @Override
+            public String next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+
+                if (index++ < nIds) {
+                    lastId += in.readUnsignedVarLong();
+                    return IdAllocator.toId(runPrefix, lastId);
+                }
+
+                return in.readString();
+            }
+        };
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeInt(nNumericIds);
+
+        if (nNumericIds > 0) {
+            out.writeUTF(IdAllocator.getRunPrefix());
+        }
+
+        // write the deltas as variable length integers
+        long lastId = 0;
+
+        for (int i = 0; i < nNumericIds; i++) {
+            long delta = numericIds[i] - lastId;
+            lastId = numericIds[i];
+
+            while ((delta & ~0x7FL) != 0) {
+                out.writeByte((int) ((delta & 0x7F) | 0x80));
+                delta >>>= 7;
+            }
+
+            out.writeByte((int) delta);
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        int nIds = in.readInt();
+        String runPrefix = (nIds > 0) ? in.readUTF() : null;
+        long[] ids = new long[nIds];
+
+        long lastId = 0;
+
+        for (int i = 0; i < nIds; i++) {
+            long delta = 0;
+            int shift = 0;
+            int b;
+
+            do {
+                b = in.readUnsignedByte();
+                delta |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+
+            lastId += delta;
+            ids[i] = lastId;
+        }
+
+        setNumericIds(runPrefix, ids);
+    }
+}
@@ -0,0 +1,220 @@
+package org.spectra.cluster.model.cluster;
+
+import org.spectra.cluster.exceptions.SpectraClusterException;
+import org.spectra.cluster.model.consensus.ConsensusSpectrumCodec;
+import org.spectra.cluster.util.CompactDataInput;
+
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * Read-only flyweight over a cluster stored using {@link GreedySpectralCluster#toBytes()}.
+ *
+ * Only the header (id, precursor m/z, charge and number of clustered spectra) is decoded
+ * when the view is created. The clustered spectra's ids and the consensus peaks are decoded
+ * directly from the stored bytes when they are requested. Thereby, consumers that only
+ * need a few of the cluster's properties (ie. the binners or the result writers) do not
+ * have to load the complete cluster including all peaks.
+ *
+ * A view can be re-used for multiple clusters using {@link #wrap(byte[], int, int)}. If the
+ * stored data is corrupt, the accessors of the lazily decoded values throw an
+ * IllegalArgumentException. Objects of this class are not thread-safe.
+ *
+ * @author jg
+ */
+public class ClusterView implements IClusterProperties {
+    private byte[] data;
+    private int start;
+    private int end;
+
+    private String id;
+    private int precursorMz;
+    private int precursorCharge;
+    private int clusteredSpectraCount;
+
+    // start of the clustered spectra's ids
+    private int membersOffset;
+    // start of the consensus spectrum, -1 if not known yet
+    private int consensusOffset;
+
+    /**
+     * Creates an empty view. {@link #wrap(byte[], int, int)} must be called
+     * before the view can be used.
+     */
+    public ClusterView() {
+    }
+
+    /**
+     * Creates a new view of the stored cluster.
+     * @param clusterBytes The stored cluster.
+     * @throws SpectraClusterException If the data is invalid.
+     */
+    public ClusterView(byte[] clusterBytes) throws SpectraClusterException {
+        wrap(clusterBytes, 0, clusterBytes.length);
+    }
+
+    /**
+     * Points the view to another stored cluster. The data is not copied and must
+     * therefore not be changed while the view is used.
+     *
+     * @param clusterBytes The data containing the stored cluster.
+     * @param offset The first byte of the cluster.
+     * @param length The cluster's length in bytes.
+     * @return The view itself.
+     * @throws SpectraClusterException If the data is invalid.
+     */
+    public ClusterView wrap(byte[] clusterBytes, int offset, int length) throws SpectraClusterException {
+        if (length < 3 || clusterBytes[offset] != GreedySpectralCluster.CODEC_MAGIC[0] ||
+                clusterBytes[offset + 1] != GreedySpectralCluster.CODEC_MAGIC[1]) {
+            throw new SpectraClusterException("Unknown cluster format");
+        }
+        if (clusterBytes[offset + 2] != GreedySpectralCluster.CODEC_VERSION) {
+            throw new SpectraClusterException("Unsupported cluster format version " + clusterBytes[offset + 2]);
+        }
+
+        try {
+            CompactDataInput in = new CompactDataInput(clusterBytes, offset + 3, length - 3);
+
+            id = in.readString();
+            precursorMz = in.readVarInt();
+            precursorCharge = in.readVarInt();
+            clusteredSpectraCount = in.readUnsignedVarInt();
+            membersOffset = in.getPosition();
+        } catch (IllegalArgumentException e) {
+            throw new SpectraClusterException("Invalid cluster data -- " + e.getMessage());
+        }
+
+        this.data = clusterBytes;
+        this.start = offset;
+        this.end = offset + length;
+        this.consensusOffset = -1;
+
+        return this;
+    }
+
+    @Override
+    public String getId() {
+        return id;
+    }
+
+    @Override
+    public int getPrecursorMz() {
+        return precursorMz;
+    }
+
+    @Override
+    public Integer getPrecursorCharge() {
+        return precursorCharge;
+    }
+
+    public int getClusteredSpectraCount() {
+        return clusteredSpectraCount;
+    }
+
+    /**
+     * Returns an iterator over the clustered spectra's ids. The ids are decoded
+     * while iterating.
+     * @return An iterator over the clustered spectra's ids.
+     */
+    public Iterator<String> getClusteredSpectraIdIterator() {
+        return ClusterMemberSet.idIterator(createInput(membersOffset));
+    }
+
+    /**
+     * Returns the number of consensus peaks.
+     * @return The number of consensus peaks.
+     */
+    public int getConsensusPeakCount() {
+        return createConsensusPeakInput().readUnsignedVarInt();
+    }
+
+    /**
+     * Returns the m/z values of the consensus peaks.
+     * @return The m/z values
+     */
+    public int[] getConsensusMz() {
+        return createConsensusPeakInput().readDeltaInts();
+    }
+
+    /**
+     * Returns the intensities of the consensus peaks in the same order as the m/z values.
+     * @return The intensities
+     */
+    public int[] getConsensusIntensities() {
+        CompactDataInput in = createConsensusPeakInput();
+        in.skipInts();
+
+        return in.readInts();
+    }
+
+    /**
+     * Returns the number of spectra every consensus peak was observed in.
+     * @return The counts in the same order as the m/z values.
+     */
+    public int[] getConsensusCounts() {
+        CompactDataInput in = createConsensusPeakInput();
+        in.skipInts();
+        in.skipInts();
+
+        return in.readInts();
+    }
+
+    /**
+     * Indicates whether the stored cluster is frozen (see {@link GreedySpectralCluster#freeze()}).
+     * @return True if the stored consensus spectrum is a frozen one.
+     */
+    public boolean isFrozen() {
+        return ConsensusSpectrumCodec.isFrozen(createConsensusInput());
+    }
+
+    /**
+     * Returns the stored cluster's bytes. If the view covers a complete array, the
+     * array itself is returned and must not be changed.
+     * @return The cluster as written by {@link GreedySpectralCluster#toBytes()}.
+     */
+    public byte[] toBytes() {
+        if (data == null) {
+            throw new IllegalStateException("The view does not point to any cluster");
+        }
+
+        return (start == 0 && end == data.length) ? data : Arrays.copyOfRange(data, start, end);
+    }
+
+    /**
+     * Loads the complete cluster.
+     * @return The loaded cluster.
+     * @throws SpectraClusterException If the data is invalid.
+     */
+    public ICluster toCluster() throws SpectraClusterException {
+        if (data == null) {
+            throw new IllegalStateException("The view does not point to any cluster");
+        }
+
+        return GreedySpectralCluster.fromBytes(data, start, end - start);
+    }
+
+    private CompactDataInput createConsensusPeakInput() {
+        CompactDataInput in = createConsensusInput();
+        ConsensusSpectrumCodec.skipToPeaks(in);
+
+        return in;
+    }
+
+    private CompactDataInput createConsensusInput() {
+        if (consensusOffset < 0) {
+            CompactDataInput in = createInput(membersOffset);
+            ClusterMemberSet.skip(in);
+            consensusOffset = in.getPosition();
+        }
+
+        return createInput(consensusOffset);
+    }
+
+    private CompactDataInput createInput(int position) {
+        if (data == null) {
+            throw new IllegalStateException("The view does not point to any cluster");
+        }
+
+        return new CompactDataInput(data, position, end - position);
+    }
+}
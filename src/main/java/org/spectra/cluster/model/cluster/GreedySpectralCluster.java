@@ -4,13 +4,16 @@ import io.github.bigbio.pgatk.io.common.Param;
 import io.github.bigbio.pgatk.io.objectdb.LongObject;
 import lombok.extern.slf4j.Slf4j;
 import org.spectra.cluster.exceptions.SpectraClusterException;
+import org.spectra.cluster.model.consensus.ConsensusSpectrumCodec;
+import org.spectra.cluster.model.consensus.FrozenConsensusSpectrum;
 import org.spectra.cluster.model.consensus.GreedyClusteringConsensusSpectrum;
 import org.spectra.cluster.model.consensus.IClusteringConsensusSpectrumBuilder;
 import org.spectra.cluster.model.spectra.IBinarySpectrum;
+import org.spectra.cluster.util.CompactDataInput;
+import org.spectra.cluster.util.CompactDataOutput;
 
 import java.io.*;
 import java.util.*;
-import java.util.stream.Collectors;
 
 
 /**
@@ -28,16 +31,19 @@ public class GreedySpectralCluster extends LongObject implements ICluster {
      * saved
      */
     public static final int SAVED_COMPARISON_MATCHES = 30;
-    private List<ComparisonMatch> bestComparisonMatches = new ArrayList<>(SAVED_COMPARISON_MATCHES);
-    private float lowestBestComparisonSimilarity = 0;
-    private Set<String> bestComparisonMatchIds = null;
+
+    /** Marks clusters serialized using the binary codec (see {@link #toBytes()}) **/
+    static final byte[] CODEC_MAGIC = {'S', 'C'};
+    static final byte CODEC_VERSION = 2;
+
+    private TopComparisonMatches bestComparisonMatches = new TopComparisonMatches(SAVED_COMPARISON_MATCHES);
 
     private String id;
 
     /**
      * Clustered spectra are only stored as their ids
      */
-    private Set<String> clusteredSpectraIds = new HashSet<>();
+    private ClusterMemberSet clusteredSpectraIds = new ClusterMemberSet();
 
     private IClusteringConsensusSpectrumBuilder consensusSpectrumBuilder;
 
@@ -55,16 +61,53 @@ public class GreedySpectralCluster extends LongObject implements ICluster {
      * @param clusteredSpectraIds
      * @param consensusSpectrumBuilder
      * @param bestComparisonMatches
-     * @param lowestBestComparisonSimilarity
+     * @param lowestBestComparisonSimilarity Ignored, the lowest similarity is derived from the comparison matches.
      */
     public GreedySpectralCluster(String id, Set<String> clusteredSpectraIds, IClusteringConsensusSpectrumBuilder consensusSpectrumBuilder,
                                  List<ComparisonMatch> bestComparisonMatches, float lowestBestComparisonSimilarity) {
         this.id = id;
-        this.clusteredSpectraIds = clusteredSpectraIds;
+        this.clusteredSpectraIds = (clusteredSpectraIds instanceof ClusterMemberSet) ?
+                (ClusterMemberSet) clusteredSpectraIds : new ClusterMemberSet(clusteredSpectraIds);
         this.consensusSpectrumBuilder = consensusSpectrumBuilder;
-        this.bestComparisonMatches = bestComparisonMatches;
-        this.lowestBestComparisonSimilarity = lowestBestComparisonSimilarity;
 
+        for (ComparisonMatch match : bestComparisonMatches) {
+            this.bestComparisonMatches.offer(match.getSpectrumId(), match.getSimilarity());
+        }
+
+    }
+
+    /**
+     * Creates an immutable copy of the cluster that only keeps the consensus peaks, the
+     * precursor and charge statistics and the clustered spectra's ids. The comparison
+     * matches and the peaks of all clustered spectra are dropped.
+     *
+     * Frozen clusters can still be merged into other clusters, but no spectra or
+     * clusters can be added to them. They should therefore only be used once
+     * a cluster will no longer change (ie. after the final clustering round).
+     *
+     * @return The frozen cluster. If the cluster is already frozen, the cluster itself is returned.
+     */
+    public GreedySpectralCluster freeze() {
+        if (isFrozen()) {
+            return this;
+        }
+
+        return new GreedySpectralCluster(id, new ClusterMemberSet(clusteredSpectraIds),
+                new FrozenConsensusSpectrum(consensusSpectrumBuilder), new ArrayList<>(0), 0);
+    }
+
+    /**
+     * Indicates whether the cluster was frozen using {@link #freeze()}.
+     * @return True if the cluster can no longer be changed.
+     */
+    public boolean isFrozen() {
+        return consensusSpectrumBuilder instanceof FrozenConsensusSpectrum;
+    }
+
+    private void checkNotFrozen() {
+        if (isFrozen()) {
+            throw new UnsupportedOperationException("Frozen clusters cannot be changed");
+        }
     }
 
     /**
@@ -159,24 +202,29 @@ public class GreedySpectralCluster extends LongObject implements ICluster {
             return;
         }
 
+        checkNotFrozen();
+
         // make sure no duplicate spectra exist
-        Set<String> duplicateIds;
+        int nDuplicates = 0;
 
-        duplicateIds = Arrays.stream(spectraToAdd).filter(x -> clusteredSpectraIds.contains(x.getUUI())).map(IBinarySpectrum::getUUI)
-                .collect(Collectors.toSet());
+        for (IBinarySpectrum spectrum : spectraToAdd) {
+            if (clusteredSpectraIds.contains(spectrum.getUUI())) {
+                nDuplicates++;
+            }
+        }
 
         // this should generally not happen
-        if (!duplicateIds.isEmpty()) {
+        if (nDuplicates > 0) {
             // stop of all spectra are duplicates
-            if (duplicateIds.size() == spectraToAdd.length) {
+            if (nDuplicates == spectraToAdd.length) {
                 return;
             }
 
-            IBinarySpectrum[] filteredSpectra = new IBinarySpectrum[spectraToAdd.length - duplicateIds.size()];
+            IBinarySpectrum[] filteredSpectra = new IBinarySpectrum[spectraToAdd.length - nDuplicates];
             int addedSpectra = 0;
 
             for (IBinarySpectrum spectrum : spectraToAdd) {
-                if (!duplicateIds.contains(spectrum.getUUI())) {
+                if (!clusteredSpectraIds.contains(spectrum.getUUI())) {
                     filteredSpectra[addedSpectra++] = spectrum;
                 }
             }
@@ -186,10 +234,19 @@ public class GreedySpectralCluster extends LongObject implements ICluster {
 
         // only put the spectra to the consensus spectrum
         consensusSpectrumBuilder.addSpectra(spectraToAdd);
+
         // put all spectrum ids
-        clusteredSpectraIds.addAll(Arrays.stream(spectraToAdd)
-                .map(IBinarySpectrum::getUUI)
-                .collect(Collectors.toSet()));
+        if (spectraToAdd.length == 1) {
+            clusteredSpectraIds.add(spectraToAdd[0].getUUI());
+        } else {
+            String[] spectrumIds = new String[spectraToAdd.length];
+
+            for (int i = 0; i < spectraToAdd.length; i++) {
+                spectrumIds[i] = spectraToAdd[i].getUUI();
+            }
+
+            clusteredSpectraIds.addAll(Arrays.asList(spectrumIds));
+        }
     }
 
     /**
@@ -199,13 +256,15 @@ public class GreedySpectralCluster extends LongObject implements ICluster {
      */
     @Override
     public void mergeCluster(ICluster cluster) {
+        checkNotFrozen();
+
+        ClusterMemberSet otherSpectraIds = (cluster instanceof GreedySpectralCluster) ?
+                ((GreedySpectralCluster) cluster).clusteredSpectraIds : new ClusterMemberSet(cluster.getClusteredSpectraIds());
+
         // test if the cluster contains duplicate spectra
-        for (String id : cluster.getClusteredSpectraIds()) {
-            if (clusteredSpectraIds.contains(id)) {
-                log.warn(String.format("Adding duplicate spectra to from cluster %s to cluster %s.",
-                        cluster.getId(), this.id));
-                break;
-            }
+        if (clusteredSpectraIds.intersects(otherSpectraIds)) {
+            log.warn(String.format("Adding duplicate spectra to from cluster %s to cluster %s.",
+                    cluster.getId(), this.id));
         }
 
         // merge the consensus spectrum
@@ -217,17 +276,17 @@ public class GreedySpectralCluster extends LongObject implements ICluster {
         }
 
         // put the clustered spectra
-        clusteredSpectraIds.addAll(cluster.getClusteredSpectraIds());
+        clusteredSpectraIds.addAll(otherSpectraIds);
 
-        // put the comparison matches
-        if (cluster.getComparisonMatches().size() > 0) {
+        // put the comparison matches - make sure not to put any self-references
+        if (cluster instanceof GreedySpectralCluster) {
+            bestComparisonMatches.offerAll(((GreedySpectralCluster) cluster).bestComparisonMatches, id);
+        } else {
             for (ComparisonMatch match : cluster.getComparisonMatches()) {
-                // make sure not to put any self-references
                 if (!match.getSpectrumId().equals(id)) {
-                    bestComparisonMatches.add(match);
+                    bestComparisonMatches.offer(match.getSpectrumId(), match.getSimilarity());
                 }
             }
-            updateComparisonMatches();
         }
     }
 
@@ -239,74 +298,86 @@ public class GreedySpectralCluster extends LongObject implements ICluster {
      */
     @Override
     public void saveComparisonResult(String id, float similarity) {
-        if (bestComparisonMatches.size() >= SAVED_COMPARISON_MATCHES && similarity < lowestBestComparisonSimilarity)
-            return;
+        checkNotFrozen();
 
-        ComparisonMatch comparisonMatch = new ComparisonMatch(id, similarity);
-        bestComparisonMatches.add(comparisonMatch);
-        updateComparisonMatches();
+        // only kept if it is among the best matches
+        bestComparisonMatches.offer(id, similarity);
     }
 
-    /**
-     * Updates the comparison matches after a match was stored. Removes the lowest scoring
-     * items in case there are too many.
-     */
-    private void updateComparisonMatches() {
-        Collections.sort(bestComparisonMatches);
-
-        // remove lowest items in case there are too many
-        if (bestComparisonMatches.size() > SAVED_COMPARISON_MATCHES) {
-            bestComparisonMatches = new ArrayList<>(bestComparisonMatches.subList(bestComparisonMatches.size() - SAVED_COMPARISON_MATCHES, bestComparisonMatches.size()));
+    @Override
+    public float getMinimumSavedComparisonSimilarity() {
+        if (!bestComparisonMatches.isFull()) {
+            return Float.NEGATIVE_INFINITY;
         }
 
-        lowestBestComparisonSimilarity = bestComparisonMatches.get(0).getSimilarity();
-
-        // mark the ids as dirty
-        bestComparisonMatchIds = null;
+        return bestComparisonMatches.getLowestSimilarity();
     }
 
+    /**
+     * Returns the saved comparison matches. The ComparisonMatch objects are created
+     * on every call.
+     *
+     * @return The matches sorted by ascending similarity.
+     */
     @Override
     public List<ComparisonMatch> getComparisonMatches() {
-        return Collections.unmodifiableList(bestComparisonMatches);
+        return Collections.unmodifiableList(bestComparisonMatches.toList());
     }
 
     // This function is only kept in case we need it later on. Currently, I believe that it should be removed.
     @Deprecated
     public void setComparisonMatches(List<ComparisonMatch> comparisonMatches) {
         this.bestComparisonMatches.clear();
-        if (comparisonMatches != null && comparisonMatches.size() > 0) {
-            this.bestComparisonMatches.addAll(comparisonMatches);
-
-            Collections.sort(bestComparisonMatches);
-            lowestBestComparisonSimilarity = bestComparisonMatches.get(0).getSimilarity();
-        } else {
-            lowestBestComparisonSimilarity = 0;
+        if (comparisonMatches != null) {
+            for (ComparisonMatch match : comparisonMatches) {
+                this.bestComparisonMatches.offer(match.getSpectrumId(), match.getSimilarity());
+            }
         }
-
-        bestComparisonMatchIds = null; // delete to mark as dirty
     }
 
     @Override
     public boolean isKnownComparisonMatch(String clusterId) {
-        if (bestComparisonMatchIds == null) {
-            bestComparisonMatchIds = bestComparisonMatches.stream().map(ComparisonMatch::getSpectrumId).collect(Collectors.toSet());
-        }
-
-        return bestComparisonMatchIds.contains(clusterId);
+        return bestComparisonMatches.contains(clusterId);
     }
 
+    /**
+     * Serializes the cluster using a compact binary format. The format starts with a
+     * fixed header (magic bytes, version, id, precursor m/z, charge and the number of
+     * clustered spectra) followed by the clustered spectra's ids, the consensus spectrum
+     * (see {@link ConsensusSpectrumCodec}) and the comparison matches. Numbers are
+     * stored as variable length integers, sorted values as deltas. No class
+     * metadata is written.
+     *
+     * @return The serialized cluster.
+     * @throws SpectraClusterException If the cluster cannot be serialized.
+     */
     @Override
     public byte[] toBytes() throws SpectraClusterException {
-        ByteArrayOutputStream streamOut = new ByteArrayOutputStream();
-        ObjectOutputStream outputStream = null;
+        if (consensusSpectrumBuilder == null) {
+            throw new SpectraClusterException("Cannot serialize cluster " + id + " without consensus spectrum");
+        }
+
+        CompactDataOutput out = new CompactDataOutput(64 + clusteredSpectraIds.size() * 3 +
+                consensusSpectrumBuilder.getNumberOfPeaks() * 8);
+
         try {
-            outputStream = new ObjectOutputStream(streamOut);
-            outputStream.writeObject(this);
-            return streamOut.toByteArray();
-        } catch (IOException e) {
-            throw new SpectraClusterException("Error converting in object serialization -- " + e.getMessage());
+            out.writeByte(CODEC_MAGIC[0]);
+            out.writeByte(CODEC_MAGIC[1]);
+            out.writeByte(CODEC_VERSION);
+
+            out.writeString(id);
+            out.writeVarInt(getPrecursorMz());
+            out.writeVarInt(getPrecursorCharge());
+            out.writeUnsignedVarInt(clusteredSpectraIds.size());
+
+            clusteredSpectraIds.writeTo(out);
+            ConsensusSpectrumCodec.write(consensusSpectrumBuilder, out);
+            bestComparisonMatches.writeTo(out);
+        } catch (IllegalArgumentException e) {
+            throw new SpectraClusterException("Failed to serialize cluster " + id + " -- " + e.getMessage());
         }
 
+        return out.toByteArray();
     }
 
     @Override
@@ -314,14 +385,53 @@ public class GreedySpectralCluster extends LongObject implements ICluster {
         return new BasicClusterProperties(getPrecursorMz(), getPrecursorCharge(), id);
     }
 
+    /**
+     * Loads a cluster serialized using {@link #toBytes()}. Clusters stored using Java serialization
+     * (ie. temporary cluster storages or result files created by earlier versions) cannot be read.
+     *
+     * @param clusterBytes The serialized cluster.
+     * @return The loaded cluster.
+     * @throws SpectraClusterException If the data is invalid.
+     */
     public static ICluster fromBytes(byte[] clusterBytes) throws SpectraClusterException {
-        ByteArrayInputStream in = new ByteArrayInputStream(clusterBytes);
-        ObjectInputStream inputStream = null;
+        return fromBytes(clusterBytes, 0, clusterBytes.length);
+    }
+
+    /**
+     * Loads a cluster serialized using {@link #toBytes()} that is stored as part of a larger array.
+     *
+     * @param data The array containing the serialized cluster.
+     * @param offset The first byte of the cluster.
+     * @param length The number of bytes of the serialized cluster.
+     * @return The loaded cluster.
+     * @throws SpectraClusterException If the data is invalid.
+     */
+    public static ICluster fromBytes(byte[] data, int offset, int length) throws SpectraClusterException {
+        if (length < 3 || data[offset] != CODEC_MAGIC[0] || data[offset + 1] != CODEC_MAGIC[1]) {
+            throw new SpectraClusterException("Unknown cluster format");
+        }
+        if (data[offset + 2] != CODEC_VERSION) {
+            throw new SpectraClusterException("Unsupported cluster format version " + data[offset + 2]);
+        }
+
         try {
-            inputStream = new ObjectInputStream(in);
-            return ((GreedySpectralCluster) inputStream.readObject());
-        } catch (IOException | ClassNotFoundException e) {
-            throw new SpectraClusterException("Error converting in object serialization -- " + e.getMessage());
+            CompactDataInput in = new CompactDataInput(data, offset + 3, length - 3);
+
+            String id = in.readString();
+            // the precursor, charge and number of spectra are only used by the ClusterView
+            in.readVarInt();
+            in.readVarInt();
+            in.readUnsignedVarInt();
+
+            GreedySpectralCluster cluster = new GreedySpectralCluster();
+            cluster.id = id;
+            cluster.clusteredSpectraIds = ClusterMemberSet.readFrom(in);
+            cluster.consensusSpectrumBuilder = ConsensusSpectrumCodec.read(in);
+            cluster.bestComparisonMatches = TopComparisonMatches.readFrom(in);
+
+            return cluster;
+        } catch (IllegalArgumentException e) {
+            throw new SpectraClusterException("Invalid cluster data -- " + e.getMessage());
         }
     }
 }
@@ -73,6 +73,13 @@ public interface ICluster extends Serializable, Spectrum, IClusterProperties {
 
     void saveComparisonResult(String id, float similarity);
 
+    /**
+     * Returns the lowest similarity a comparison result must have to be stored
+     * by {@link #saveComparisonResult(String, float)}.
+     * @return The minimum similarity or Float.NEGATIVE_INFINITY if every result is stored.
+     */
+    float getMinimumSavedComparisonSimilarity();
+
     /**
      * The results of the last N comparisons.
      * @return A list of ComparisonMatchS
@@ -0,0 +1,338 @@
+package org.spectra.cluster.model.cluster;
+
+import org.spectra.cluster.util.CompactDataInput;
+import org.spectra.cluster.util.CompactDataOutput;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Keeps the N comparison matches with the highest similarity. The matches are
+ * stored in a fixed-capacity min-heap of (id, similarity) slots so that the
+ * lowest match can be replaced without sorting. Additionally, the ids are kept
+ * in a small open addressing table to test whether a cluster is a known match
+ * without creating any objects.
+ *
+ * The same id may be stored multiple times.
+ *
+ * Objects of this class are not thread-safe.
+ *
+ * @author jg
+ */
+public class TopComparisonMatches implements Serializable {
+    // protects against huge allocations when loading corrupt data
+    private static final int MAX_LOADED_CAPACITY = 1 << 16;
+
+    private final String[] ids;
+    private final float[] similarities;
+    private int size = 0;
+
+    // open addressing table of the stored ids: id -> number of slots with that id
+    // this is rebuilt on demand after deserialization
+    private transient String[] tableIds;
+    private transient int[] tableCounts;
+
+    /**
+     * Creates a new, empty object.
+     * @param capacity The maximum number of matches to keep.
+     */
+    public TopComparisonMatches(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must at least be 1");
+        }
+
+        ids = new String[capacity];
+        similarities = new float[capacity];
+    }
+
+    /**
+     * Adds the match if it is among the N best matches. If the object is full,
+     * the current lowest match is removed.
+     *
+     * @param id The matching cluster's id.
+     * @param similarity The similarity of the match.
+     * @return Indicates whether the match was stored.
+     */
+    public boolean offer(String id, float similarity) {
+        if (size < ids.length) {
+            ids[size] = id;
+            similarities[size] = similarity;
+            siftUp(size++);
+            addToTable(id);
+
+            return true;
+        }
+
+        if (similarity < similarities[0]) {
+            return false;
+        }
+
+        // replace the lowest match
+        removeFromTable(ids[0]);
+        ids[0] = id;
+        similarities[0] = similarity;
+        siftDown(0);
+        addToTable(id);
+
+        return true;
+    }
+
+    /**
+     * Adds all matches of the passed object (see {@link #offer(String, float)}) except
+     * for the ones with the defined id.
+     *
+     * @param matches The matches to add.
+     * @param excludedId Matches with this id are ignored. May be null.
+     */
+    public void offerAll(TopComparisonMatches matches, String excludedId) {
+        for (int i = 0; i < matches.size; i++) {
+            if (!matches.ids[i].equals(excludedId)) {
+                offer(matches.ids[i], matches.similarities[i]);
+            }
+        }
+    }
+
+    /**
+     * Tests whether a match with the defined id is stored.
+     * @param id The id to test.
+     * @return True if a match with this id is stored.
+     */
+    public boolean contains(String id) {
+        if (size < 1) {
+            return false;
+        }
+
+        if (tableIds == null) {
+            rebuildTable();
+        }
+
+        return tableIds[findTableSlot(tableIds, id)] != null;
+    }
+
+    /**
+     * Returns the lowest stored similarity.
+     * @return The lowest similarity or 0 if no match is stored.
+     */
+    public float getLowestSimilarity() {
+        return (size > 0) ? similarities[0] : 0;
+    }
+
+    /**
+     * Returns the number of stored matches.
+     * @return The number of stored matches.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the maximum number of matches that are stored.
+     * @return The capacity.
+     */
+    public int getCapacity() {
+        return ids.length;
+    }
+
+    /**
+     * Indicates whether the maximum number of matches is stored.
+     * @return True if the object is full.
+     */
+    public boolean isFull() {
+        return size == ids.length;
+    }
+
+    /**
+     * Removes all matches.
+     */
+    public void clear() {
+        for (int i = 0; i < size; i++) {
+            ids[i] = null;
+        }
+
+        size = 0;
+        tableIds = null;
+        tableCounts = null;
+    }
+
+    /**
+     * Creates ComparisonMatch objects of all stored matches.
+     * @return The matches sorted by ascending similarity.
+     */
+    public List<ComparisonMatch> toList() {
+        List<ComparisonMatch> matches = new ArrayList<>(size);
+
+        for (int i = 0; i < size; i++) {
+            matches.add(new ComparisonMatch(ids[i], similarities[i]));
+        }
+
+        Collections.sort(matches);
+
+        return matches;
+    }
+
+    /**
+     * Writes the matches using the binary cluster codec. The matches are
+     * written in heap order so that they can be loaded without sorting.
+     * @param out The output to write to.
+     */
+    void writeTo(CompactDataOutput out) {
+        out.writeUnsignedVarInt(ids.length);
+        out.writeUnsignedVarInt(size);
+
+        for (int i = 0; i < size; i++) {
+            out.writeString(ids[i]);
+            out.writeFloat(similarities[i]);
+        }
+    }
+
+    /**
+     * Reads matches written by {@link #writeTo(CompactDataOutput)}.
+     * @param in The input to read from.
+     * @return The loaded matches.
+     */
+    static TopComparisonMatches readFrom(CompactDataInput in) {
+        int capacity = in.readUnsignedVarInt();
+        int size = in.readUnsignedVarInt();
+
+        if (capacity < 1 || capacity > MAX_LOADED_CAPACITY || size > capacity) {
+            throw new IllegalArgumentException("Invalid comparison matches");
+        }
+
+        TopComparisonMatches matches = new TopComparisonMatches(capacity);
+
+        for (int i = 0; i < size; i++) {
+            matches.ids[i] = in.readString();
+            matches.similarities[i] = in.readFloat();
+        }
+        matches.size = size;
+
+        return matches;
+    }
+
+    private void siftUp(int index) {
+        String id = ids[index];
+        float similarity = similarities[index];
+
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+
+            if (similarities[parent] <= similarity) {
+                break;
+            }
+
+            ids[index] = ids[parent];
+            similarities[index] = similarities[parent];
+            index = parent;
+        }
+
+        ids[index] = id;
+        similarities[index] = similarity;
+    }
+
+    private void siftDown(int index) {
+        String id = ids[index];
+        float similarity = similarities[index];
+        int half = size >>> 1;
+
+        while (index < half) {
+            int child = 2 * index + 1;
+
+            if (child + 1 < size && similarities[child + 1] < similarities[child]) {
+                child++;
+            }
+
+            if (similarity <= similarities[child]) {
+                break;
+            }
+
+            ids[index] = ids[child];
+            similarities[index] = similarities[child];
+            index = child;
+        }
+
+        ids[index] = id;
+        similarities[index] = similarity;
+    }
+
+    private void rebuildTable() {
+        // at most half of the table is used
+        int tableSize = Integer.highestOneBit(ids.length * 2 - 1) << 1;
+        tableIds = new String[tableSize];
+        tableCounts = new int[tableSize];
+
+        for (int i = 0; i < size; i++) {
+            addToTable(ids[i]);
+        }
+    }
+
+    private void addToTable(String id) {
+        if (tableIds == null) {
+            // the table is created including all stored ids
+            rebuildTable();
+            return;
+        }
+
+        int slot = findTableSlot(tableIds, id);
+
+        if (tableIds[slot] == null) {
+            tableIds[slot] = id;
+        }
+
+        tableCounts[slot]++;
+    }
+
+    private void removeFromTable(String id) {
+        if (tableIds == null) {
+            return;
+        }
+
+        int slot = findTableSlot(tableIds, id);
+
+        if (tableIds[slot] == null || --tableCounts[slot] > 0) {
+            return;
+        }
+
+        // backward shift deletion to keep the probe sequences intact
+        int mask = tableIds.length - 1;
+        int free = slot;
+        int current = (slot + 1) & mask;
+
+        while (tableIds[current] != null) {
+            int home = getHomeSlot(tableIds[current], mask);
+
+            // move the entry if its home slot is not between the free and the current slot
+            if (((current - home) & mask) >= ((current - free) & mask)) {
+                tableIds[free] = tableIds[current];
+                tableCounts[free] = tableCounts[current];
+                free = current;
+            }
+
+            current = (current + 1) & mask;
+        }
+
+        tableIds[free] = null;
+        tableCounts[free] = 0;
+    }
+
+    private static int getHomeSlot(String id, int mask) {
+        int hash = id.hashCode() * 0x9E3779B9;
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+
+    /**
+     * Returns the table slot of the id or the empty slot where it
+     * should be placed.
+     */
+    private static int findTableSlot(String[] table, String id) {
+        int mask = table.length - 1;
+        int slot = getHomeSlot(id, mask);
+
+        while (table[slot] != null && !table[slot].equals(id)) {
+            slot = (slot + 1) & mask;
+        }
+
+        return slot;
+    }
+}
@@ -0,0 +1,202 @@
+package org.spectra.cluster.model.consensus;
+
+import org.spectra.cluster.filter.binaryspectrum.FractionTicFilterFunction;
+import org.spectra.cluster.filter.binaryspectrum.IBinarySpectrumFunction;
+import org.spectra.cluster.util.CompactDataInput;
+import org.spectra.cluster.util.CompactDataOutput;
+
+import java.io.*;
+
+/**
+ * Binary codec for the consensus spectrum builders used by the clustering process
+ * ({@link GreedyClusteringConsensusSpectrum} and {@link FrozenConsensusSpectrum}).
+ *
+ * Both types share the same header: type, id, number of spectra, precursor m/z,
+ * charge, summed charge, comparison filter and the consensus peaks (m/z as deltas,
+ * intensities and counts). The {@link GreedyClusteringConsensusSpectrum} additionally
+ * stores its settings and the peaks of all clustered spectra.
+ *
+ * The commonly used {@link FractionTicFilterFunction} is stored using its parameters,
+ * all other comparison filters are stored using Java serialization.
+ *
+ * @author jg
+ */
+public final class ConsensusSpectrumCodec {
+    static final int TYPE_GREEDY = 1;
+    static final int TYPE_FROZEN = 2;
+
+    private static final int FILTER_NONE = 0;
+    private static final int FILTER_FRACTION_TIC = 1;
+    private static final int FILTER_SERIALIZED = 2;
+
+    private ConsensusSpectrumCodec() {
+    }
+
+    /**
+     * Writes the consensus spectrum builder.
+     * @param consensusSpectrum The consensus spectrum builder to write.
+     * @param out The output to write to.
+     * @throws IllegalArgumentException If the builder type is not supported.
+     */
+    public static void write(IClusteringConsensusSpectrumBuilder consensusSpectrum, CompactDataOutput out) {
+        int type;
+
+        if (consensusSpectrum instanceof GreedyClusteringConsensusSpectrum) {
+            type = TYPE_GREEDY;
+        } else if (consensusSpectrum instanceof FrozenConsensusSpectrum) {
+            type = TYPE_FROZEN;
+        } else {
+            throw new IllegalArgumentException("Unsupported consensus spectrum type " + consensusSpectrum.getClass().getName());
+        }
+
+        // make sure the consensus peaks are up to date
+        consensusSpectrum.getConsensusSpectrum();
+
+        out.writeByte(type);
+        out.writeString(consensusSpectrum.getUUI());
+        out.writeUnsignedVarInt(consensusSpectrum.getSpectraCount());
+        out.writeVarInt(consensusSpectrum.getPrecursorMz());
+        out.writeVarInt(consensusSpectrum.getPrecursorCharge());
+        out.writeVarInt(consensusSpectrum.getSummedCharge());
+        writeFilter(consensusSpectrum.getComparisonFilter(), out);
+
+        int nPeaks = consensusSpectrum.getNumberOfPeaks();
+        out.writeDeltaInts(consensusSpectrum.getCopyMzVector(), nPeaks);
+        out.writeInts(consensusSpectrum.getCopyIntensityVector(), nPeaks);
+        out.writeInts(FrozenConsensusSpectrum.getPeakCounts(consensusSpectrum), nPeaks);
+
+        if (type == TYPE_GREEDY) {
+            ((GreedyClusteringConsensusSpectrum) consensusSpectrum).writePeakState(out);
+        }
+    }
+
+    /**
+     * Reads a consensus spectrum builder written by {@link #write(IClusteringConsensusSpectrumBuilder, CompactDataOutput)}.
+     * @param in The input to read from.
+     * @return The consensus spectrum builder.
+     * @throws IllegalArgumentException If the data is invalid.
+     */
+    public static IClusteringConsensusSpectrumBuilder read(CompactDataInput in) {
+        int type = in.readByte();
+        String id = in.readString();
+        int nSpectra = in.readUnsignedVarInt();
+        int precursorMz = in.readVarInt();
+        int precursorCharge = in.readVarInt();
+        int sumCharge = in.readVarInt();
+        IBinarySpectrumFunction comparisonFilter = readFilter(in);
+
+        int[] mz = in.readDeltaInts();
+        int[] intensity = in.readInts();
+        int[] count = in.readInts();
+
+        if (mz.length != intensity.length || mz.length != count.length) {
+            throw new IllegalArgumentException("Invalid consensus peaks");
+        }
+
+        switch (type) {
+            case TYPE_FROZEN:
+                return new FrozenConsensusSpectrum(id, mz, intensity, count, nSpectra, precursorMz, precursorCharge,
+                        sumCharge, comparisonFilter);
+            case TYPE_GREEDY:
+                return GreedyClusteringConsensusSpectrum.readPeakState(in, id, comparisonFilter, nSpectra, precursorMz,
+                        precursorCharge, sumCharge, mz, intensity, count);
+            default:
+                throw new IllegalArgumentException("Unknown consensus spectrum type " + type);
+        }
+    }
+
+    /**
+     * Skips the values written by {@link #write(IClusteringConsensusSpectrumBuilder, CompactDataOutput)}
+     * up to the consensus peaks. Afterwards, the m/z values can be read using
+     * {@link CompactDataInput#readDeltaInts()}, followed by the intensities and the counts
+     * (both {@link CompactDataInput#readInts()}).
+     *
+     * @param in The input to read from.
+     * @throws IllegalArgumentException If the data is invalid.
+     */
+    public static void skipToPeaks(CompactDataInput in) {
+        int type = in.readByte();
+
+        if (type != TYPE_GREEDY && type != TYPE_FROZEN) {
+            throw new IllegalArgumentException("Unknown consensus spectrum type " + type);
+        }
+
+        // id, number of spectra, precursor m/z, charge, summed charge
+        in.readString();
+        in.readUnsignedVarInt();
+        in.readVarInt();
+        in.readVarInt();
+        in.readVarInt();
+
+        int filterType = in.readByte();
+
+        switch (filterType) {
+            case FILTER_NONE:
+                break;
+            case FILTER_FRACTION_TIC:
+                in.readFloat();
+                in.readUnsignedVarInt();
+                break;
+            case FILTER_SERIALIZED:
+                in.readBytes();
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown comparison filter type " + filterType);
+        }
+    }
+
+    /**
+     * Indicates whether the consensus spectrum written by {@link #write(IClusteringConsensusSpectrumBuilder, CompactDataOutput)}
+     * is a {@link FrozenConsensusSpectrum}. The consensus spectrum itself is not read.
+     *
+     * @param in The input positioned at the start of the consensus spectrum.
+     * @return True if the stored consensus spectrum is frozen.
+     * @throws IllegalArgumentException If the data is invalid.
+     */
+    public static boolean isFrozen(CompactDataInput in) {
+        return in.readByte() == TYPE_FROZEN;
+    }
+
+    private static void writeFilter(IBinarySpectrumFunction filter, CompactDataOutput out) {
+        if (filter == null) {
+            out.writeByte(FILTER_NONE);
+        } else if (filter.getClass() == FractionTicFilterFunction.class) {
+            FractionTicFilterFunction fractionTicFilter = (FractionTicFilterFunction) filter;
+
+            out.writeByte(FILTER_FRACTION_TIC);
+            out.writeFloat(fractionTicFilter.getFractionTic());
+            out.writeUnsignedVarInt(fractionTicFilter.getMinPeaksToKeep());
+        } else {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+            try (ObjectOutputStream objectOut = new ObjectOutputStream(bytes)) {
+                objectOut.writeObject(filter);
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Failed to serialize comparison filter", e);
+            }
+
+            out.writeByte(FILTER_SERIALIZED);
+            out.writeBytes(bytes.toByteArray());
+        }
+    }
+
+    private static IBinarySpectrumFunction readFilter(CompactDataInput in) {
+        int filterType = in.readByte();
+
+        switch (filterType) {
+            case FILTER_NONE:
+                return null;
+            case FILTER_FRACTION_TIC:
+                float fractionTic = in.readFloat();
+                return new FractionTicFilterFunction(fractionTic, in.readUnsignedVarInt());
+            case FILTER_SERIALIZED:
+                try (ObjectInputStream objectIn = new ObjectInputStream(new ByteArrayInputStream(in.readBytes()))) {
+                    return (IBinarySpectrumFunction) objectIn.readObject();
+                } catch (IOException | ClassNotFoundException e) {
+                    throw new IllegalArgumentException("Failed to deserialize comparison filter", e);
+                }
+            default:
+                throw new IllegalArgumentException("Unknown comparison filter type " + filterType);
+        }
+    }
+}
@@ -0,0 +1,279 @@
+package org.spectra.cluster.model.consensus;
+
+import org.spectra.cluster.filter.binaryspectrum.IBinarySpectrumFunction;
+import org.spectra.cluster.model.spectra.BinaryPeak;
+import org.spectra.cluster.model.spectra.ComparisonProfile;
+import org.spectra.cluster.model.spectra.IBinarySpectrum;
+import org.spectra.cluster.model.spectra.PackedBinarySpectrum;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Immutable snapshot of a consensus spectrum once clustering is complete. Only the
+ * consensus peaks (m/z, intensity and count) and the precursor and charge statistics
+ * are kept as primitive values. In contrast to the {@link GreedyClusteringConsensusSpectrum}
+ * the peaks of all clustered spectra are discarded.
+ *
+ * Frozen consensus spectra can still be merged into other consensus spectra
+ * (see {@link IClusteringConsensusSpectrumBuilder#addConsensusSpectrum(IClusteringConsensusSpectrumBuilder)})
+ * but no spectra can be added to them.
+ *
+ * @author jg
+ */
+public class FrozenConsensusSpectrum implements IClusteringConsensusSpectrumBuilder {
+    private final String id;
+
+    private final int[] mz;
+    private final int[] intensity;
+    private final int[] count;
+
+    private final int nSpectra;
+    private final int precursorMz;
+    private final int precursorCharge;
+    private final int sumCharge;
+
+    private final IBinarySpectrumFunction comparisonFilter;
+
+    // created on demand
+    private transient int[] rank;
+    private transient BinaryPeak[] peaks;
+    private transient Map<BinaryPeak, BinaryPeak> comparisonPeakSet;
+    private transient ComparisonProfile comparisonProfile;
+
+    /**
+     * Creates a frozen copy of the passed consensus spectrum.
+     * @param consensusSpectrum The consensus spectrum to copy.
+     */
+    public FrozenConsensusSpectrum(IClusteringConsensusSpectrumBuilder consensusSpectrum) {
+        IBinarySpectrum consensus = consensusSpectrum.getConsensusSpectrum();
+        int nPeaks = consensus.getNumberOfPeaks();
+
+        this.id = consensusSpectrum.getUUI();
+        this.mz = new int[nPeaks];
+        this.intensity = new int[nPeaks];
+
+        for (int i = 0; i < nPeaks; i++) {
+            mz[i] = consensus.getPeakMz(i);
+            intensity[i] = consensus.getPeakIntensity(i);
+        }
+
+        this.count = getPeakCounts(consensusSpectrum);
+        this.nSpectra = consensusSpectrum.getSpectraCount();
+        this.precursorMz = consensusSpectrum.getPrecursorMz();
+        this.precursorCharge = consensusSpectrum.getPrecursorCharge();
+        this.sumCharge = consensusSpectrum.getSummedCharge();
+        this.comparisonFilter = consensusSpectrum.getComparisonFilter();
+    }
+
+    /**
+     * Creates a frozen consensus spectrum from its stored values (see {@link ConsensusSpectrumCodec}).
+     * The arrays are used as-is.
+     */
+    FrozenConsensusSpectrum(String id, int[] mz, int[] intensity, int[] count, int nSpectra, int precursorMz,
+                            int precursorCharge, int sumCharge, IBinarySpectrumFunction comparisonFilter) {
+        this.id = id;
+        this.mz = mz;
+        this.intensity = intensity;
+        this.count = count;
+        this.nSpectra = nSpectra;
+        this.precursorMz = precursorMz;
+        this.precursorCharge = precursorCharge;
+        this.sumCharge = sumCharge;
+        this.comparisonFilter = comparisonFilter;
+    }
+
+    /**
+     * Returns the number of spectra every consensus peak was observed in. Peaks that
+     * are no BinaryConsensusPeak objects are counted once.
+     * @param consensusSpectrum The (clean) consensus spectrum.
+     * @return The counts in the order of the consensus peaks.
+     */
+    static int[] getPeakCounts(IClusteringConsensusSpectrumBuilder consensusSpectrum) {
+        if (consensusSpectrum instanceof FrozenConsensusSpectrum) {
+            return ((FrozenConsensusSpectrum) consensusSpectrum).count;
+        }
+        if (consensusSpectrum instanceof GreedyClusteringConsensusSpectrum) {
+            return ((GreedyClusteringConsensusSpectrum) consensusSpectrum).getConsensusCounts();
+        }
+
+        BinaryPeak[] peaks = consensusSpectrum.getPeaks();
+        int[] counts = new int[peaks.length];
+
+        for (int i = 0; i < peaks.length; i++) {
+            counts[i] = (peaks[i] instanceof BinaryConsensusPeak) ? ((BinaryConsensusPeak) peaks[i]).getCount() : 1;
+        }
+
+        return counts;
+    }
+
+    /**
+     * Returns the number of spectra the peak at the defined index was observed in.
+     * @param index The peak's index
+     * @return The peak's count
+     */
+    public int getPeakCount(int index) {
+        return count[index];
+    }
+
+    @Override
+    public IBinarySpectrum getConsensusSpectrum() {
+        return this;
+    }
+
+    @Override
+    public void clear() {
+        throw new UnsupportedOperationException("Frozen consensus spectra cannot be changed");
+    }
+
+    @Override
+    public int getSpectraCount() {
+        return nSpectra;
+    }
+
+    @Override
+    public void addConsensusSpectrum(IClusteringConsensusSpectrumBuilder consensusSpectrumToAdd) {
+        throw new UnsupportedOperationException("Frozen consensus spectra cannot be changed");
+    }
+
+    @Override
+    public void addSpectra(IBinarySpectrum... spectra) {
+        throw new UnsupportedOperationException("Frozen consensus spectra cannot be changed");
+    }
+
+    @Override
+    public int getSummedCharge() {
+        return sumCharge;
+    }
+
+    @Override
+    public int getPrecursorMz() {
+        return precursorMz;
+    }
+
+    @Override
+    public int getPrecursorCharge() {
+        return precursorCharge;
+    }
+
+    @Override
+    public int[] getCopyMzVector() {
+        return Arrays.copyOf(mz, mz.length);
+    }
+
+    @Override
+    public int[] getCopyIntensityVector() {
+        return Arrays.copyOf(intensity, intensity.length);
+    }
+
+    @Override
+    public int getNumberOfPeaks() {
+        return mz.length;
+    }
+
+    @Override
+    public int getPeakMz(int index) {
+        return mz[index];
+    }
+
+    @Override
+    public int getPeakIntensity(int index) {
+        return intensity[index];
+    }
+
+    @Override
+    public int getPeakRank(int index) {
+        return getRanks()[index];
+    }
+
+    /**
+     * Returns the (1-based) ranks of the peaks using the same order as the
+     * {@link GreedyClusteringConsensusSpectrum}.
+     */
+    private int[] getRanks() {
+        if (rank == null) {
+            int[] ranks = new int[intensity.length];
+            int[] order = PackedBinarySpectrum.sortByIntensity(intensity);
+
+            for (int i = 0; i < order.length; i++) {
+                ranks[order[i]] = i + 1;
+            }
+
+            rank = ranks;
+        }
+
+        return rank;
+    }
+
+    @Override
+    public String getUUI() {
+        return id;
+    }
+
+    @Override
+    public BinaryPeak[] getPeaks() {
+        if (peaks == null) {
+            int[] ranks = getRanks();
+            BinaryPeak[] newPeaks = new BinaryPeak[mz.length];
+
+            for (int i = 0; i < mz.length; i++) {
+                newPeaks[i] = new BinaryConsensusPeak(mz[i], intensity[i], count[i]);
+                newPeaks[i].setRank(ranks[i]);
+            }
+
+            peaks = newPeaks;
+        }
+
+        return peaks;
+    }
+
+    @Override
+    public BinaryPeak[] getCopyPeaks() {
+        BinaryPeak[] currentPeaks = getPeaks();
+        return Arrays.copyOf(currentPeaks, currentPeaks.length);
+    }
+
+    @Override
+    public Map<BinaryPeak, BinaryPeak> getComparisonFilteredPeaks() {
+        if (comparisonPeakSet == null) {
+            IBinarySpectrum filteredSpectrum = comparisonFilter.apply(this);
+
+            if (filteredSpectrum.getNumberOfPeaks() < 1) {
+                return Collections.emptyMap();
+            }
+
+            comparisonPeakSet = Arrays
+                    .stream(filteredSpectrum.getPeaks())
+                    .collect(Collectors.toMap(Function.identity(), peak -> peak));
+        }
+
+        return Collections.unmodifiableMap(comparisonPeakSet);
+    }
+
+    @Override
+    public ComparisonProfile getComparisonProfile() {
+        if (comparisonProfile == null) {
+            comparisonProfile = ComparisonProfile.fromSpectrum(comparisonFilter.apply(this));
+        }
+
+        return comparisonProfile;
+    }
+
+    @Override
+    public IBinarySpectrumFunction getComparisonFilter() {
+        return comparisonFilter;
+    }
+
+    @Override
+    public int getMinComparisonMz() {
+        return getComparisonProfile().getMinMz();
+    }
+
+    @Override
+    public int getMaxComparisonMz() {
+        return getComparisonProfile().getMaxMz();
+    }
+}
@@ -1,11 +1,16 @@
 package org.spectra.cluster.model.consensus;
 
+import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.math3.util.FastMath;
 import org.spectra.cluster.filter.binaryspectrum.IBinarySpectrumFunction;
 import org.spectra.cluster.model.spectra.BinaryPeak;
-import org.spectra.cluster.model.spectra.BinarySpectrum;
+import org.spectra.cluster.model.spectra.ComparisonProfile;
 import org.spectra.cluster.model.spectra.IBinarySpectrum;
+import org.spectra.cluster.model.spectra.PackedBinarySpectrum;
+import org.spectra.cluster.util.CompactDataInput;
+import org.spectra.cluster.util.CompactDataOutput;
+import org.spectra.cluster.util.IdAllocator;
 
 import java.util.*;
 import java.util.function.Function;
@@ -14,14 +19,19 @@ import java.util.stream.Collectors;
 /**
  * This is a greedy version of the FrankEtAlConsensusSpectrumBuilder. It only supports the addition of spectra but not their removal.
  * Thereby, the original peaks do not have to be kept. This implementation of {@link IClusteringConsensusSpectrumBuilder} contains in the
- * allPeaksInCluster property all the peaks of the spectra that belongs to the cluster.
+ * peakMz, peakIntensity and peakCount columns all the peaks of the spectra that belong to the cluster.
  * <p>
- * allPeaksInCluster: Contains all the peaks of the {@link IBinarySpectrum} that belong to the Cluster. All peaks of the spectra that belongs to
- * the Cluster needs to be keep to accurately compute the ConsensusPeaks each time is needed.
+ * peakMz / peakIntensity / peakCount: m/z sorted columns of all peaks of the {@link IBinarySpectrum} that belong to the Cluster. All peaks
+ * of the spectra that belong to the Cluster need to be kept to accurately compute the ConsensusPeaks each time they are needed. The
+ * columns grow like an ArrayList and new peaks are merged in place.
  * <p>
- * consensusPeaks: This is the Array of @{@link BinaryPeak} of a clean @{@link GreedyClusteringConsensusSpectrum}.
+ * consensusMz / consensusIntensity / consensusCount: The peaks of a clean {@link GreedyClusteringConsensusSpectrum}. {@link BinaryPeak}
+ * objects are only created if {@link #getPeaks()} is called.
  * <p>
- * isDirty: This variable is used to notice the algorithm each time the consensusPeaks are generated from the allPeaksInCluster. This variable is important because
+ * maxPeaksPerWindow: Optionally limits the number of peaks kept per noise filter window (see {@link #setMaxPeaksPerWindow(int)}).
+ * This bounds the memory and merge cost of very large clusters.
+ * <p>
+ * isDirty: This variable is used to notice the algorithm each time the consensusPeaks are generated from the peak columns. This variable is important because
  * the class only will update the consensusPeaks when is needed.
  *
  * @author Johannes Griss
@@ -44,15 +54,28 @@ public class GreedyClusteringConsensusSpectrum implements IClusteringConsensusSp
     private String id;
 
     // The peaks of the GreedyConsensusSpectrum
+    private int[] consensusMz = new int[0];
+    private int[] consensusIntensity = new int[0];
+    private int[] consensusCount = new int[0];
+    // created on demand
+    private int[] consensusRank;
     private BinaryPeak[] consensusPeaks;
     // The peaks after the comparison filter was applied
     private Map<BinaryPeak, BinaryPeak> comparisonFilteredPeaks;
+    // The immutable profile of the peaks after the comparison filter was applied
+    private transient ComparisonProfile comparisonProfile;
     private IBinarySpectrumFunction comparisonFilter;
     private int minComparisonMz;
     private int maxComparisonMz;
 
-    // All peaks in the Cluster
-    private BinaryConsensusPeak[] allPeaksInCluster = new BinaryConsensusPeak[0];
+    // All peaks in the Cluster, the intensity is the average intensity of the merged peaks
+    private int[] peakMz = new int[0];
+    private int[] peakIntensity = new int[0];
+    private int[] peakCount = new int[0];
+    private int nPeaks = 0;
+
+    // buffer for the adapted intensities used while generating the consensus spectrum
+    private transient int[] adaptedIntensityBuffer;
 
     private boolean isDirty = true;
 
@@ -71,6 +94,16 @@ public class GreedyClusteringConsensusSpectrum implements IClusteringConsensusSp
     private int peaksPerWindowToKeep;
     private int windowSizeBins;
 
+    // 0 = all peaks are kept
+    @Getter
+    private int maxPeaksPerWindow = 0;
+    /** The summed count of all peaks that were removed because of the maxPeaksPerWindow limit **/
+    @Getter
+    private long evictedPeakCount = 0;
+    /** The summed intensity (average intensity * count) of all peaks that were removed because of the maxPeaksPerWindow limit **/
+    @Getter
+    private long evictedPeakIntensity = 0;
+
     public GreedyClusteringConsensusSpectrum() {
     }
 
@@ -79,12 +112,10 @@ public class GreedyClusteringConsensusSpectrum implements IClusteringConsensusSp
                                              boolean isDirty, int nSpectra, int averagePrecursorMz, int averageCharge, int sumCharge,
                                              int minPeaksToKeep, int peaksPerWindowToKeep, int windowSizeBins) {
         this.id = id;
-        this.consensusPeaks = consensusPeaks;
         this.comparisonFilteredPeaks = comparisonFilteredPeaks;
         this.comparisonFilter = comparisonFilter;
         this.minComparisonMz = minComparisonMz;
         this.maxComparisonMz = maxComparisonMz;
-        this.allPeaksInCluster = allPeaksInCluster;
         this.isDirty = isDirty;
         this.nSpectra = nSpectra;
         this.averagePrecursorMz = averagePrecursorMz;
@@ -93,6 +124,23 @@ public class GreedyClusteringConsensusSpectrum implements IClusteringConsensusSp
         this.minPeaksToKeep = minPeaksToKeep;
         this.peaksPerWindowToKeep = peaksPerWindowToKeep;
         this.windowSizeBins = windowSizeBins;
+
+        if (allPeaksInCluster != null) {
+            nPeaks = allPeaksInCluster.length;
+            peakMz = new int[nPeaks];
+            peakIntensity = new int[nPeaks];
+            peakCount = new int[nPeaks];
+
+            for (int i = 0; i < nPeaks; i++) {
+                peakMz[i] = allPeaksInCluster[i].getMz();
+                peakIntensity[i] = allPeaksInCluster[i].getIntensity();
+                peakCount[i] = allPeaksInCluster[i].getCount();
+            }
+        }
+
+        if (consensusPeaks != null) {
+            setConsensusPeaks(consensusPeaks);
+        }
     }
 
     /**
@@ -120,15 +168,15 @@ public class GreedyClusteringConsensusSpectrum implements IClusteringConsensusSp
      * Create a new consensus spectrum builder with a random id and the default values.
      */
     public GreedyClusteringConsensusSpectrum(IBinarySpectrumFunction comparisonFilter) {
-        this(UUID.randomUUID().toString(), comparisonFilter);
+        this(IdAllocator.nextId(), comparisonFilter);
     }
 
     /**
-     * This function will put to the allPeaksInCluster, the peaks from the newSpectra.
+     * This function will merge the peaks from the newSpectra into the peak columns.
      * <p>
      * Any clustering process will compute the similarity between spectra and try to put the similar spectra to the {@link GreedyClusteringConsensusSpectrum}.
-     * This method only put the peaks of the spetra to allPeaksInCluster and declare the Consensus Spectrum as Dirty. The algorithm loop the list of {@link IBinarySpectrum} and
-     * put the {@link BinaryPeak} o the allPeaksInCluster property.
+     * This method only merges the peaks of the spectra into the peak columns and declares the Consensus Spectrum as Dirty. The algorithm loops
+     * over the list of {@link IBinarySpectrum} and merges their peaks in place.
      *
      * @param newSpectra List of Spectra to be added to the {@link GreedyClusteringConsensusSpectrum}
      */
@@ -139,7 +187,7 @@ public class GreedyClusteringConsensusSpectrum implements IClusteringConsensusSp
 
         for (IBinarySpectrum spectrum : newSpectra) {
 
-            allPeaksInCluster = addPeaksToConsensus(allPeaksInCluster, spectrum.getPeaks());
+            addPeaks(spectrum, null);
 
             sumCharge += spectrum.getPrecursorCharge();
             nSpectra++;
@@ -147,6 +195,8 @@ public class GreedyClusteringConsensusSpectrum implements IClusteringConsensusSp
             averagePrecursorMz = (int) Math.round(
                     (double) averagePrecursorMz * ((double) (nSpectra - 1) / nSpectra) +
                             (double) spectrum.getPrecursorMz() / nSpectra);
+
+            limitPeaksPerWindow();
         }
 
         // update the average charge
@@ -161,7 +211,9 @@ public class GreedyClusteringConsensusSpectrum implements IClusteringConsensusSp
             return;
 
         // put the peaks like in a "normal" spectrum - the peak count's are preserved
-        allPeaksInCluster = addPeaksToConsensus(allPeaksInCluster, consensusSpectrumToAdd.getPeaks());
+        int[] counts = FrozenConsensusSpectrum.getPeakCounts(consensusSpectrumToAdd);
+
+        addPeaks(consensusSpectrumToAdd, counts);
 
         // update the general properties
         sumCharge += consensusSpectrumToAdd.getSummedCharge();
@@ -174,6 +226,14 @@ public class GreedyClusteringConsensusSpectrum implements IClusteringConsensusSp
 
         nSpectra = totalSpectra;
 
+        // the added peaks may already lack evicted peaks
+        if (consensusSpectrumToAdd instanceof GreedyClusteringConsensusSpectrum) {
+            evictedPeakCount += ((GreedyClusteringConsensusSpectrum) consensusSpectrumToAdd).evictedPeakCount;
+            evictedPeakIntensity += ((GreedyClusteringConsensusSpectrum) consensusSpectrumToAdd).evictedPeakIntensity;
+        }
+
+        limitPeaksPerWindow();
+
         // update the average charge
         averageCharge = sumCharge / nSpectra;
 
@@ -181,163 +241,489 @@ public class GreedyClusteringConsensusSpectrum implements IClusteringConsensusSp
     }
 
     /**
-     * Adds the passed peaks to the spectrum.
+     * Merges the peaks of the passed spectrum into the peak columns. The existing
+     * peaks are first moved to the end of the (grown) columns and the result is then
+     * written from the start. Since every written peak consumes at least one peak,
+     * the merge never overwrites an existing peak that was not yet read.
      *
-     * @param existingPeaks The already existing peaks
-     * @param peaksToAdd    New peaks to put. These may be BinaryPeak or BinaryConsensusPeak objects.
+     * @param spectrum The spectrum whose peaks to add. Peaks are accessed by index.
+     * @param counts   The number of merged peaks for every peak or null if every peak is counted once.
      */
-    protected static BinaryConsensusPeak[] addPeaksToConsensus(BinaryConsensusPeak[] existingPeaks, BinaryPeak[] peaksToAdd) {
-        if (peaksToAdd.length < 1) {
-            return existingPeaks;
+    private void addPeaks(IBinarySpectrum spectrum, int[] counts) {
+        int nPeaksToAdd = spectrum.getNumberOfPeaks();
+
+        if (nPeaksToAdd < 1) {
+            return;
         }
 
-        int indexExistingPeaks = 0;
+        ensurePeakCapacity(nPeaks + nPeaksToAdd);
+
+        System.arraycopy(peakMz, 0, peakMz, nPeaksToAdd, nPeaks);
+        System.arraycopy(peakIntensity, 0, peakIntensity, nPeaksToAdd, nPeaks);
+        System.arraycopy(peakCount, 0, peakCount, nPeaksToAdd, nPeaks);
+
+        int indexExistingPeaks = nPeaksToAdd;
+        int lastExistingPeak = nPeaksToAdd + nPeaks;
         int indexPeaksToAdd = 0;
         int finalPeakIndex = 0;
 
-        BinaryConsensusPeak[] newPeaks = new BinaryConsensusPeak[existingPeaks.length + peaksToAdd.length];
+        while (indexExistingPeaks < lastExistingPeak && indexPeaksToAdd < nPeaksToAdd) {
+            int mzToAdd = spectrum.getPeakMz(indexPeaksToAdd);
+            int existingMz = peakMz[indexExistingPeaks];
 
-        while (indexExistingPeaks < existingPeaks.length && indexPeaksToAdd < peaksToAdd.length) {
-
-            if (existingPeaks[indexExistingPeaks].getMz() < peaksToAdd[indexPeaksToAdd].getMz()) {
-                newPeaks[finalPeakIndex] = existingPeaks[indexExistingPeaks];
-                indexExistingPeaks++;
-                finalPeakIndex++;
-            } else if (existingPeaks[indexExistingPeaks].getMz() == peaksToAdd[indexPeaksToAdd].getMz()) {
+            if (existingMz < mzToAdd) {
+                peakMz[finalPeakIndex] = existingMz;
+                peakIntensity[finalPeakIndex] = peakIntensity[indexExistingPeaks];
+                peakCount[finalPeakIndex++] = peakCount[indexExistingPeaks++];
+            } else if (existingMz == mzToAdd) {
                 // it's the same peak so adapt it
-                int newCount = existingPeaks[indexExistingPeaks].getCount();
-                long newIntensity = existingPeaks[indexExistingPeaks].getIntensity() * existingPeaks[indexExistingPeaks].getCount();
-
-                if (peaksToAdd[indexPeaksToAdd] instanceof BinaryConsensusPeak) {
-                    newCount += ((BinaryConsensusPeak) peaksToAdd[indexPeaksToAdd]).getCount();
-                    newIntensity += (long) peaksToAdd[indexPeaksToAdd].getIntensity() * ((BinaryConsensusPeak) peaksToAdd[indexPeaksToAdd]).getCount();
-                } else {
-                    newCount++;
-                    newIntensity += peaksToAdd[indexPeaksToAdd].getIntensity();
-                }
-
-                // store the average intensity to prevent an overflow
-                newIntensity = Math.round(newIntensity / (double) newCount);
+                int existingCount = peakCount[indexExistingPeaks];
+                int countToAdd = (counts != null) ? counts[indexPeaksToAdd] : 1;
+                int newCount = existingCount + countToAdd;
+                long newIntensity = (long) peakIntensity[indexExistingPeaks] * existingCount +
+                        (long) spectrum.getPeakIntensity(indexPeaksToAdd) * countToAdd;
 
                 // always store the average intensity to prevent an overflow
-                newPeaks[finalPeakIndex] = new BinaryConsensusPeak(
-                        existingPeaks[indexExistingPeaks].getMz(),
-                        (int) newIntensity,
-                        newCount
-                );
+                peakMz[finalPeakIndex] = existingMz;
+                peakIntensity[finalPeakIndex] = (int) Math.round(newIntensity / (double) newCount);
+                peakCount[finalPeakIndex++] = newCount;
                 indexExistingPeaks++;
-                finalPeakIndex++;
                 indexPeaksToAdd++;
             } else {
-                if (peaksToAdd[indexPeaksToAdd] instanceof BinaryConsensusPeak)
-                    newPeaks[finalPeakIndex] = new BinaryConsensusPeak((BinaryConsensusPeak) peaksToAdd[indexPeaksToAdd]);
-                else
-                    newPeaks[finalPeakIndex] = new BinaryConsensusPeak(peaksToAdd[indexPeaksToAdd]);
+                peakMz[finalPeakIndex] = mzToAdd;
+                peakIntensity[finalPeakIndex] = spectrum.getPeakIntensity(indexPeaksToAdd);
+                peakCount[finalPeakIndex++] = (counts != null) ? counts[indexPeaksToAdd] : 1;
                 indexPeaksToAdd++;
-                finalPeakIndex++;
             }
         }
 
-        // Add the remaining spectra from existing Peaks
-        while (indexExistingPeaks < existingPeaks.length) {
-            newPeaks[finalPeakIndex] = existingPeaks[indexExistingPeaks];
-            indexExistingPeaks++;
-            finalPeakIndex++;
+        // Add the remaining existing peaks
+        int nRemainingPeaks = lastExistingPeak - indexExistingPeaks;
+        System.arraycopy(peakMz, indexExistingPeaks, peakMz, finalPeakIndex, nRemainingPeaks);
+        System.arraycopy(peakIntensity, indexExistingPeaks, peakIntensity, finalPeakIndex, nRemainingPeaks);
+        System.arraycopy(peakCount, indexExistingPeaks, peakCount, finalPeakIndex, nRemainingPeaks);
+        finalPeakIndex += nRemainingPeaks;
+
+        // Add the remaining new peaks
+        while (indexPeaksToAdd < nPeaksToAdd) {
+            peakMz[finalPeakIndex] = spectrum.getPeakMz(indexPeaksToAdd);
+            peakIntensity[finalPeakIndex] = spectrum.getPeakIntensity(indexPeaksToAdd);
+            peakCount[finalPeakIndex++] = (counts != null) ? counts[indexPeaksToAdd] : 1;
+            indexPeaksToAdd++;
         }
 
-        // Add the remaining spectra from new Peaks
-        while (indexPeaksToAdd < peaksToAdd.length) {
-            if (peaksToAdd[indexPeaksToAdd] instanceof BinaryConsensusPeak)
-                newPeaks[finalPeakIndex] = new BinaryConsensusPeak((BinaryConsensusPeak) peaksToAdd[indexPeaksToAdd]);
-            else
-                newPeaks[finalPeakIndex] = new BinaryConsensusPeak(peaksToAdd[indexPeaksToAdd]);
-            indexPeaksToAdd++;
-            finalPeakIndex++;
+        nPeaks = finalPeakIndex;
+    }
+
+    private void ensurePeakCapacity(int capacity) {
+        if (capacity <= peakMz.length) {
+            return;
         }
 
-        return Arrays.copyOf(newPeaks, finalPeakIndex, BinaryConsensusPeak[].class);
+        int newCapacity = Math.max(capacity, peakMz.length + (peakMz.length >> 1));
+        peakMz = Arrays.copyOf(peakMz, newCapacity);
+        peakIntensity = Arrays.copyOf(peakIntensity, newCapacity);
+        peakCount = Arrays.copyOf(peakCount, newCapacity);
     }
 
     /**
-     * Generate the consensus Spectrum using the Intensities in the allPeaksInCluster.
+     * Generate the consensus Spectrum using the Intensities of all peaks in the cluster.
      * A normalization step is performed in the peaks and only the most intensity peaks
      * in an mz windows are keept . The current implementation combine the functions
      * adaptPeak and the function filterNoise.
      */
     private void generateConsensusSpectrum() {
-        if (allPeaksInCluster.length < 1) {
-            consensusPeaks = new BinaryPeak[0];
-        }
-        consensusPeaks = adaptPeakWithNoiseFilterIntensities(allPeaksInCluster, nSpectra);
+        adaptPeakWithNoiseFilterIntensities();
+        sortSameMzPeaksByIntensity();
 
-        // invalidate the comparison peaks
+        // invalidate the derived peak representations
+        consensusRank = null;
+        consensusPeaks = null;
         comparisonFilteredPeaks = null;
+        comparisonProfile = null;
 
         setIsDirty(false);
     }
 
     /**
-     * Adapt the peak intensities in allPeaksInCluster using the following formula:
+     * Adapt the peak intensities of all peaks in the cluster using the following formula:
      * I = I * (0.95 + 0.05 * (1 + pi)^5) . This probability comes from the FrankEtAll manuscript.
-     *
-     * @param peaks    This are all the peaks in the following consensus cluster.
-     * @param nSpectra Number of spectra.
-     * @return A clean array with {@link BinaryConsensusPeak}
+     * Afterwards, only the top N peaks per window are kept as consensus peaks. These are
+     * selected directly instead of sorting the window's peaks. If several peaks have the
+     * same intensity, the ones with the higher m/z are kept.
      */
-    protected BinaryConsensusPeak[] adaptPeakWithNoiseFilterIntensities(BinaryConsensusPeak[] peaks, int nSpectra) {
-        BinaryConsensusPeak[] adaptedPeaks = new BinaryConsensusPeak[peaks.length];
+    private void adaptPeakWithNoiseFilterIntensities() {
+        if (adaptedIntensityBuffer == null || adaptedIntensityBuffer.length < nPeaks) {
+            adaptedIntensityBuffer = new int[peakMz.length];
+        }
 
+        int[] adaptedIntensities = adaptedIntensityBuffer;
         double doubleSpectra = (double) nSpectra;
 
-        int maxMz = 0;
+        for (int i = 0; i < nPeaks; i++) {
+            adaptedIntensities[i] = adaptIntensity(peakIntensity[i], peakCount[i], doubleSpectra);
+        }
 
-        for (int i = 0; i < peaks.length; i++) {
-            double peakProbability = (double) peaks[i].getCount() / doubleSpectra;
-            int newIntensity = (int) Math.round((double) peaks[i].getIntensity() * (0.95 + 0.05 * Math.pow(1 + peakProbability, 5)));
+        if (nPeaks < minPeaksToKeep || nPeaks < 1) {
+            consensusMz = Arrays.copyOf(peakMz, nPeaks);
+            consensusIntensity = Arrays.copyOf(adaptedIntensities, nPeaks);
+            consensusCount = Arrays.copyOf(peakCount, nPeaks);
+            return;
+        }
+
+        int[] keptPeaks = new int[nPeaks];
+        int nKeptPeaks = 0;
+        int[] windowTopPeaks = new int[peaksPerWindowToKeep];
+        int peakIndex = 0;
+        int windowStart = 0;
+
+        // Keep top N peaks per W m/z
+        while (peakIndex < nPeaks) {
+            // skip empty windows
+            if (peakMz[peakIndex] >= windowStart + windowSizeBins) {
+                windowStart += ((peakMz[peakIndex] - windowStart) / windowSizeBins) * windowSizeBins;
+            }
+
+            int windowFirstPeak = peakIndex;
+
+            while (peakIndex < nPeaks && peakMz[peakIndex] < windowStart + windowSizeBins) {
+                peakIndex++;
+            }
+
+            if (peakIndex - windowFirstPeak <= peaksPerWindowToKeep) {
+                for (int i = windowFirstPeak; i < peakIndex; i++) {
+                    keptPeaks[nKeptPeaks++] = i;
+                }
+            } else {
+                // only keep the top N peaks
+                int nTopPeaks = selectTopPeaks(adaptedIntensities, windowFirstPeak, peakIndex, windowTopPeaks);
+
+                // add them in m/z order
+                Arrays.sort(windowTopPeaks, 0, nTopPeaks);
+                System.arraycopy(windowTopPeaks, 0, keptPeaks, nKeptPeaks, nTopPeaks);
+                nKeptPeaks += nTopPeaks;
+            }
 
-            adaptedPeaks[i] = new BinaryConsensusPeak(peaks[i].getMz(), newIntensity, peaks[i].getCount());
-            if (peaks[i].getMz() > maxMz)
-                maxMz = peaks[i].getMz();
+            windowStart += windowSizeBins;
         }
 
-        if (adaptedPeaks.length < minPeaksToKeep || adaptedPeaks.length < 1) {
-            BinarySpectrum.addRanks(adaptedPeaks, true);
-            return adaptedPeaks;
+        consensusMz = new int[nKeptPeaks];
+        consensusIntensity = new int[nKeptPeaks];
+        consensusCount = new int[nKeptPeaks];
+
+        for (int i = 0; i < nKeptPeaks; i++) {
+            consensusMz[i] = peakMz[keptPeaks[i]];
+            consensusIntensity[i] = adaptedIntensities[keptPeaks[i]];
+            consensusCount[i] = peakCount[keptPeaks[i]];
+        }
+    }
+
+    /**
+     * Adapts the peak's intensity based on the probability to observe it:
+     * I = I * (0.95 + 0.05 * (1 + pi)^5)
+     *
+     * @param intensity The peak's average intensity.
+     * @param count     The number of spectra containing the peak.
+     * @param nSpectra  The number of spectra in the cluster.
+     * @return The adapted intensity.
+     */
+    private static int adaptIntensity(int intensity, int count, double nSpectra) {
+        double peakProbability = (double) count / nSpectra;
+
+        return (int) Math.round((double) intensity * (0.95 + 0.05 * Math.pow(1 + peakProbability, 5)));
+    }
+
+    /**
+     * Limits the number of peaks per noise filter window to the highest maxPeaksPerWindow
+     * peaks based on their adapted intensity (ie. the intensity used when creating the
+     * consensus spectrum). Does nothing if maxPeaksPerWindow is 0.
+     */
+    private void limitPeaksPerWindow() {
+        if (maxPeaksPerWindow < 1 || nPeaks <= maxPeaksPerWindow) {
+            return;
+        }
+
+        if (adaptedIntensityBuffer == null || adaptedIntensityBuffer.length < nPeaks) {
+            adaptedIntensityBuffer = new int[peakMz.length];
         }
 
+        int[] adaptedIntensities = adaptedIntensityBuffer;
+        int[] windowTopPeaks = new int[maxPeaksPerWindow];
+        double doubleSpectra = (double) nSpectra;
         int peakIndex = 0;
+        int keptPeaks = 0;
+        int windowStart = 0;
 
-        /**
-         * The maxiumn number of peaks to keep will be, the number of intervals * number of peaks per interval.
-         */
-        List<BinaryConsensusPeak> peaksToKeep = new ArrayList<>((maxMz / windowSizeBins) * peaksPerWindowToKeep);
+        while (peakIndex < nPeaks) {
+            // skip empty windows
+            if (peakMz[peakIndex] >= windowStart + windowSizeBins) {
+                windowStart += ((peakMz[peakIndex] - windowStart) / windowSizeBins) * windowSizeBins;
+            }
 
-        // Keep top N peaks per W m/z
-        for (int windowStart = 0; windowStart <= maxMz && peakIndex < adaptedPeaks.length; windowStart += windowSizeBins) {
-            List<BinaryConsensusPeak> windowPeaks = new ArrayList<>((maxMz / windowSizeBins) * peaksPerWindowToKeep);
+            int windowFirstPeak = peakIndex;
 
-            for (; peakIndex < adaptedPeaks.length && adaptedPeaks[peakIndex].getMz() < windowStart + windowSizeBins; peakIndex++) {
-                windowPeaks.add(adaptedPeaks[peakIndex]);
+            while (peakIndex < nPeaks && peakMz[peakIndex] < windowStart + windowSizeBins) {
+                peakIndex++;
             }
 
-            if (windowPeaks.size() < 1) {
-                continue;
+            int nTopPeaks;
+
+            if (peakIndex - windowFirstPeak <= maxPeaksPerWindow) {
+                nTopPeaks = peakIndex - windowFirstPeak;
+
+                for (int i = 0; i < nTopPeaks; i++) {
+                    windowTopPeaks[i] = windowFirstPeak + i;
+                }
+            } else {
+                for (int i = windowFirstPeak; i < peakIndex; i++) {
+                    adaptedIntensities[i] = adaptIntensity(peakIntensity[i], peakCount[i], doubleSpectra);
+                    evictedPeakCount += peakCount[i];
+                    evictedPeakIntensity += (long) peakIntensity[i] * peakCount[i];
+                }
+
+                nTopPeaks = selectTopPeaks(adaptedIntensities, windowFirstPeak, peakIndex, windowTopPeaks);
+                Arrays.sort(windowTopPeaks, 0, nTopPeaks);
+
+                // only the removed peaks are counted as evicted
+                for (int i = 0; i < nTopPeaks; i++) {
+                    evictedPeakCount -= peakCount[windowTopPeaks[i]];
+                    evictedPeakIntensity -= (long) peakIntensity[windowTopPeaks[i]] * peakCount[windowTopPeaks[i]];
+                }
             }
 
-            if (windowPeaks.size() <= peaksPerWindowToKeep) {
-                peaksToKeep.addAll(windowPeaks);
+            // the kept peaks are never moved behind their current position
+            for (int i = 0; i < nTopPeaks; i++) {
+                int source = windowTopPeaks[i];
+                peakMz[keptPeaks] = peakMz[source];
+                peakIntensity[keptPeaks] = peakIntensity[source];
+                peakCount[keptPeaks++] = peakCount[source];
+            }
+
+            windowStart += windowSizeBins;
+        }
+
+        nPeaks = keptPeaks;
+    }
+
+    /**
+     * Peaks sharing the same m/z value (only possible if a spectrum contained such peaks)
+     * are ordered by descending intensity.
+     */
+    private void sortSameMzPeaksByIntensity() {
+        for (int i = 1; i < consensusMz.length; i++) {
+            int mz = consensusMz[i];
+            int intensity = consensusIntensity[i];
+            int count = consensusCount[i];
+            int position = i;
+
+            while (position > 0 && consensusMz[position - 1] == mz && consensusIntensity[position - 1] < intensity) {
+                consensusIntensity[position] = consensusIntensity[position - 1];
+                consensusCount[position] = consensusCount[position - 1];
+                position--;
+            }
+
+            consensusIntensity[position] = intensity;
+            consensusCount[position] = count;
+        }
+    }
+
+    /**
+     * Selects the indexes of the highest peaks within the defined range. Among peaks
+     * with the same intensity, the later ones are preferred.
+     *
+     * @param intensities The peaks' intensities.
+     * @param from        The first peak's index (inclusive).
+     * @param to          The last peak's index (exclusive).
+     * @param topPeaks    Array to store the selected indexes in. Its length defines the number of peaks to select.
+     * @return The number of selected peaks.
+     */
+    private static int selectTopPeaks(int[] intensities, int from, int to, int[] topPeaks) {
+        int nTopPeaks = 0;
+
+        // topPeaks is kept sorted with the lowest peak first
+        for (int i = from; i < to; i++) {
+            int position;
+
+            if (nTopPeaks < topPeaks.length) {
+                position = nTopPeaks++;
+            } else if (intensities[i] >= intensities[topPeaks[0]]) {
+                // replace the lowest peak
+                System.arraycopy(topPeaks, 1, topPeaks, 0, nTopPeaks - 1);
+                position = nTopPeaks - 1;
             } else {
-                // only keep the top N peaks
-                windowPeaks.sort(Comparator.comparingInt(BinaryPeak::getIntensity));
-                peaksToKeep.addAll(windowPeaks.subList(windowPeaks.size() - peaksPerWindowToKeep, windowPeaks.size()));
+                continue;
+            }
+
+            // peaks with the same intensity are placed above the earlier ones
+            while (position > 0 && intensities[topPeaks[position - 1]] > intensities[i]) {
+                topPeaks[position] = topPeaks[position - 1];
+                position--;
             }
+
+            topPeaks[position] = i;
+        }
+
+        return nTopPeaks;
+    }
+
+    /**
+     * Sets the consensus peaks based on the passed peak objects.
+     *
+     * @param peaks The m/z sorted consensus peaks.
+     */
+    private void setConsensusPeaks(BinaryPeak[] peaks) {
+        consensusMz = new int[peaks.length];
+        consensusIntensity = new int[peaks.length];
+        consensusCount = new int[peaks.length];
+
+        for (int i = 0; i < peaks.length; i++) {
+            consensusMz[i] = peaks[i].getMz();
+            consensusIntensity[i] = peaks[i].getIntensity();
+            consensusCount[i] = (peaks[i] instanceof BinaryConsensusPeak) ? ((BinaryConsensusPeak) peaks[i]).getCount() : 1;
+        }
+
+        consensusRank = null;
+        consensusPeaks = peaks;
+    }
+
+    /**
+     * Returns the (1-based) ranks of the consensus peaks where 1 is the highest peak.
+     * Among peaks with the same intensity, the one with the lower m/z has the better
+     * rank.
+     */
+    private int[] getConsensusRanks() {
+        if (consensusRank == null) {
+            int[] ranks = new int[consensusIntensity.length];
+            int[] order = PackedBinarySpectrum.sortByIntensity(consensusIntensity);
+
+            for (int i = 0; i < order.length; i++) {
+                ranks[order[i]] = i + 1;
+            }
+
+            consensusRank = ranks;
+        }
+
+        return consensusRank;
+    }
+
+    /**
+     * Returns all peaks of the cluster (the merged peak columns). The objects are
+     * created on every call.
+     *
+     * @return The peaks sorted by m/z.
+     */
+    BinaryConsensusPeak[] getAllPeaks() {
+        BinaryConsensusPeak[] allPeaks = new BinaryConsensusPeak[nPeaks];
+
+        for (int i = 0; i < nPeaks; i++) {
+            allPeaks[i] = new BinaryConsensusPeak(peakMz[i], peakIntensity[i], peakCount[i]);
+        }
+
+        return allPeaks;
+    }
+
+    /**
+     * Returns the counts of the (up to date) consensus peaks. The returned array
+     * must not be changed.
+     */
+    int[] getConsensusCounts() {
+        if (isDirty())
+            generateConsensusSpectrum();
+        return consensusCount;
+    }
+
+    /**
+     * Writes the settings and the peak columns of all clustered spectra. The shared
+     * values and the consensus peaks are written by the {@link ConsensusSpectrumCodec}.
+     *
+     * @param out The output to write to.
+     */
+    void writePeakState(CompactDataOutput out) {
+        out.writeUnsignedVarInt(minPeaksToKeep);
+        out.writeUnsignedVarInt(peaksPerWindowToKeep);
+        out.writeUnsignedVarInt(windowSizeBins);
+        out.writeUnsignedVarInt(maxPeaksPerWindow);
+        out.writeUnsignedVarLong(evictedPeakCount);
+        out.writeUnsignedVarLong(evictedPeakIntensity);
+
+        out.writeDeltaInts(peakMz, nPeaks);
+        out.writeInts(peakIntensity, nPeaks);
+        out.writeInts(peakCount, nPeaks);
+    }
+
+    /**
+     * Creates a consensus spectrum from the values written by the {@link ConsensusSpectrumCodec}
+     * and {@link #writePeakState(CompactDataOutput)}. The consensus peaks are used as-is.
+     */
+    static GreedyClusteringConsensusSpectrum readPeakState(CompactDataInput in, String id, IBinarySpectrumFunction comparisonFilter,
+                                                           int nSpectra, int precursorMz, int precursorCharge, int sumCharge,
+                                                           int[] consensusMz, int[] consensusIntensity, int[] consensusCount) {
+        int minPeaksToKeep = in.readUnsignedVarInt();
+        int peaksPerWindowToKeep = in.readUnsignedVarInt();
+        int windowSizeBins = in.readUnsignedVarInt();
+
+        GreedyClusteringConsensusSpectrum consensusSpectrum = new GreedyClusteringConsensusSpectrum(
+                id, minPeaksToKeep, peaksPerWindowToKeep, windowSizeBins, comparisonFilter);
+
+        consensusSpectrum.maxPeaksPerWindow = in.readUnsignedVarInt();
+        consensusSpectrum.evictedPeakCount = in.readUnsignedVarLong();
+        consensusSpectrum.evictedPeakIntensity = in.readUnsignedVarLong();
+
+        consensusSpectrum.peakMz = in.readDeltaInts();
+        consensusSpectrum.peakIntensity = in.readInts();
+        consensusSpectrum.peakCount = in.readInts();
+        consensusSpectrum.nPeaks = consensusSpectrum.peakMz.length;
+
+        if (consensusSpectrum.peakIntensity.length != consensusSpectrum.nPeaks ||
+                consensusSpectrum.peakCount.length != consensusSpectrum.nPeaks) {
+            throw new IllegalArgumentException("Invalid peak columns");
         }
 
-        // put the ranks since the sort order was lost anyways
-        BinaryConsensusPeak[] peakArray = peaksToKeep.toArray(new BinaryConsensusPeak[0]);
-        BinarySpectrum.addRanks(peakArray, true);
+        consensusSpectrum.nSpectra = nSpectra;
+        consensusSpectrum.averagePrecursorMz = precursorMz;
+        consensusSpectrum.averageCharge = precursorCharge;
+        consensusSpectrum.sumCharge = sumCharge;
+
+        consensusSpectrum.consensusMz = consensusMz;
+        consensusSpectrum.consensusIntensity = consensusIntensity;
+        consensusSpectrum.consensusCount = consensusCount;
+        consensusSpectrum.setIsDirty(false);
 
-        return peakArray;
+        return consensusSpectrum;
+    }
+
+    /**
+     * Limits the number of peaks kept per noise filter window. Only the peaks with the highest
+     * adapted intensity (see {@link #adaptPeakWithNoiseFilterIntensities()}) are kept whenever
+     * new peaks are added. This bounds the memory usage and the cost of every merge to
+     * (number of windows * maxPeaksPerWindow) peaks, independent of the cluster's size.
+     * <p>
+     * Error bounds relative to keeping all added peaks: Counts and intensities of peaks that
+     * were never removed are exact. A removed peak that is observed again starts with a new count.
+     * Therefore, the stored count of a peak is never higher than its true count and is at most
+     * {@link #getEvictedPeakCount()} lower. The same holds for a peak's summed intensity
+     * (average intensity * count) with {@link #getEvictedPeakIntensity()}. The summed intensity of
+     * every peak that is not stored is at most {@link #getEvictedPeakIntensity()}. As long as
+     * nothing was evicted the consensus spectrum is identical to the one of the unbounded version.
+     * Since the consensus spectrum only keeps the top peaks per window, the limit should be
+     * considerably larger than the number of peaks kept per window.
+     *
+     * @param maxPeaksPerWindow The maximum number of peaks per window or 0 to keep all peaks.
+     */
+    public void setMaxPeaksPerWindow(int maxPeaksPerWindow) {
+        if (maxPeaksPerWindow != 0 && maxPeaksPerWindow < peaksPerWindowToKeep) {
+            throw new IllegalArgumentException("maxPeaksPerWindow must be 0 or at least the number of peaks kept per window");
+        }
+        if (maxPeaksPerWindow != 0 && windowSizeBins < 1) {
+            throw new IllegalStateException("Peaks can only be limited if a noise filter window size is set");
+        }
+
+        this.maxPeaksPerWindow = maxPeaksPerWindow;
+
+        if (nSpectra > 0) {
+            limitPeaksPerWindow();
+            setIsDirty(true);
+        }
     }
 
     /**
@@ -358,8 +744,17 @@ public class GreedyClusteringConsensusSpectrum implements IClusteringConsensusSp
         averagePrecursorMz = 0;
         nSpectra = 0;
 
-        allPeaksInCluster = new BinaryConsensusPeak[0];
-        consensusPeaks = new BinaryPeak[0];
+        peakMz = new int[0];
+        peakIntensity = new int[0];
+        peakCount = new int[0];
+        nPeaks = 0;
+        adaptedIntensityBuffer = null;
+        evictedPeakCount = 0;
+        evictedPeakIntensity = 0;
+
+        setConsensusPeaks(new BinaryPeak[0]);
+        comparisonFilteredPeaks = null;
+        comparisonProfile = null;
         setIsDirty(false);
     }
 
@@ -395,21 +790,42 @@ public class GreedyClusteringConsensusSpectrum implements IClusteringConsensusSp
     public int[] getCopyMzVector() {
         if (isDirty())
             generateConsensusSpectrum();
-        return Arrays.stream(consensusPeaks).mapToInt(BinaryPeak::getMz).toArray();
+        return Arrays.copyOf(consensusMz, consensusMz.length);
     }
 
     @Override
     public int[] getCopyIntensityVector() {
         if (isDirty())
             generateConsensusSpectrum();
-        return Arrays.stream(consensusPeaks).mapToInt(BinaryPeak::getIntensity).toArray();
+        return Arrays.copyOf(consensusIntensity, consensusIntensity.length);
     }
 
     @Override
     public int getNumberOfPeaks() {
         if (isDirty())
             generateConsensusSpectrum();
-        return consensusPeaks.length;
+        return consensusMz.length;
+    }
+
+    @Override
+    public int getPeakMz(int index) {
+        if (isDirty())
+            generateConsensusSpectrum();
+        return consensusMz[index];
+    }
+
+    @Override
+    public int getPeakIntensity(int index) {
+        if (isDirty())
+            generateConsensusSpectrum();
+        return consensusIntensity[index];
+    }
+
+    @Override
+    public int getPeakRank(int index) {
+        if (isDirty())
+            generateConsensusSpectrum();
+        return getConsensusRanks()[index];
     }
 
     @Override
@@ -422,7 +838,7 @@ public class GreedyClusteringConsensusSpectrum implements IClusteringConsensusSp
         if (isDirty())
             generateConsensusSpectrum();
 
-        return consensusPeaks;
+        return getConsensusPeaks();
     }
 
     @Override
@@ -430,7 +846,28 @@ public class GreedyClusteringConsensusSpectrum implements IClusteringConsensusSp
         if (isDirty())
             generateConsensusSpectrum();
 
-        return Arrays.copyOf(consensusPeaks, consensusPeaks.length);
+        BinaryPeak[] peaks = getConsensusPeaks();
+
+        return Arrays.copyOf(peaks, peaks.length);
+    }
+
+    /**
+     * Creates the consensus peaks as BinaryConsensusPeak objects if necessary.
+     */
+    private BinaryPeak[] getConsensusPeaks() {
+        if (consensusPeaks == null) {
+            int[] ranks = getConsensusRanks();
+            BinaryPeak[] peaks = new BinaryPeak[consensusMz.length];
+
+            for (int i = 0; i < peaks.length; i++) {
+                peaks[i] = new BinaryConsensusPeak(consensusMz[i], consensusIntensity[i], consensusCount[i]);
+                peaks[i].setRank(ranks[i]);
+            }
+
+            consensusPeaks = peaks;
+        }
+
+        return consensusPeaks;
     }
 
     @Override
@@ -447,8 +884,6 @@ public class GreedyClusteringConsensusSpectrum implements IClusteringConsensusSp
         // create the Set if necessary
         if (comparisonFilteredPeaks == null) {
             IBinarySpectrum filteredSpectrum = comparisonFilter.apply(this);
-            minComparisonMz = filteredSpectrum.getPeaks()[0].getMz();
-            maxComparisonMz = filteredSpectrum.getPeaks()[filteredSpectrum.getPeaks().length - 1].getMz();
             comparisonFilteredPeaks = Arrays.stream(filteredSpectrum.getPeaks())
                     .collect(Collectors.toMap(Function.identity(), peak -> peak));
         }
@@ -457,20 +892,28 @@ public class GreedyClusteringConsensusSpectrum implements IClusteringConsensusSp
     }
 
     @Override
-    public int getMinComparisonMz() {
-        if (isDirty() || comparisonFilteredPeaks == null) {
-            getComparisonFilteredPeaks();
+    public ComparisonProfile getComparisonProfile() {
+        if (isDirty()) {
+            generateConsensusSpectrum();
         }
 
-        return minComparisonMz;
+        // create the profile if necessary
+        if (comparisonProfile == null) {
+            comparisonProfile = ComparisonProfile.fromSpectrum(comparisonFilter.apply(this));
+            minComparisonMz = comparisonProfile.getMinMz();
+            maxComparisonMz = comparisonProfile.getMaxMz();
+        }
+
+        return comparisonProfile;
     }
 
     @Override
-    public int getMaxComparisonMz() {
-        if (isDirty() || comparisonFilteredPeaks == null) {
-            getComparisonFilteredPeaks();
-        }
+    public int getMinComparisonMz() {
+        return getComparisonProfile().getMinMz();
+    }
 
-        return maxComparisonMz;
+    @Override
+    public int getMaxComparisonMz() {
+        return getComparisonProfile().getMaxMz();
     }
 }
@@ -2,6 +2,7 @@ package org.spectra.cluster.model.spectra;
 
 import lombok.Data;
 import org.spectra.cluster.filter.binaryspectrum.IBinarySpectrumFunction;
+import org.spectra.cluster.util.IdAllocator;
 
 import java.util.*;
 import java.util.function.Function;
@@ -15,8 +16,7 @@ public class BinarySpectrum implements IBinarySpectrum {
     private final int precursorCharge;
     private final IBinarySpectrumFunction comparisonFilter;
     private Map<BinaryPeak, BinaryPeak> comparisonPeakSet;
-    private int minComparisonMz;
-    private int maxComparisonMz;
+    private transient ComparisonProfile comparisonProfile;
 
     private BinaryPeak[] peaks;
 
@@ -44,7 +44,7 @@ public class BinarySpectrum implements IBinarySpectrum {
      * @param comparisonFilter The comparison filter to apply to the spectrum
      */
     public BinarySpectrum(int precursorMZ, int precursorCharge, BinaryPeak[] peaks, IBinarySpectrumFunction comparisonFilter) {
-        this(UUID.randomUUID().toString(), precursorMZ, precursorCharge, peaks, comparisonFilter);
+        this(IdAllocator.nextId(), precursorMZ, precursorCharge, peaks, comparisonFilter);
     }
 
     /**
@@ -161,10 +161,6 @@ public class BinarySpectrum implements IBinarySpectrum {
                 return Collections.emptyMap();
             }
 
-            // update max and min m/z
-            minComparisonMz = filteredSpectrum.getPeaks()[0].mz;
-            maxComparisonMz = filteredSpectrum.getPeaks()[filteredSpectrum.getPeaks().length - 1].mz;
-
             // store the set
             comparisonPeakSet = Arrays
                     .stream(filteredSpectrum.getPeaks())
@@ -175,20 +171,22 @@ public class BinarySpectrum implements IBinarySpectrum {
     }
 
     @Override
-    public int getMinComparisonMz() {
-        if (comparisonPeakSet == null) {
-            getComparisonPeakSet();
+    public ComparisonProfile getComparisonProfile() {
+        if (comparisonProfile == null) {
+            addRanks(peaks, false);
+            comparisonProfile = ComparisonProfile.fromSpectrum(comparisonFilter.apply(this));
         }
 
-        return minComparisonMz;
+        return comparisonProfile;
     }
 
     @Override
-    public int getMaxComparisonMz() {
-        if (comparisonPeakSet == null) {
-            getComparisonPeakSet();
-        }
+    public int getMinComparisonMz() {
+        return getComparisonProfile().getMinMz();
+    }
 
-        return maxComparisonMz;
+    @Override
+    public int getMaxComparisonMz() {
+        return getComparisonProfile().getMaxMz();
     }
 }
@@ -0,0 +1,258 @@
+package org.spectra.cluster.model.spectra;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Immutable representation of a spectrum's peaks after the comparison
+ * filter was applied. The peaks are stored as m/z sorted primitive arrays
+ * so that shared peaks between two spectra can be found using a single
+ * linear merge without any hashing or boxing.
+ *
+ * If the peaks only span a small m/z range (ie. when using the low resolution
+ * TideBinner) the m/z values are additionally stored as a bitset. Shared peaks
+ * between two such profiles are then found using AND and Long.bitCount on a
+ * few dozen words.
+ *
+ * @author jg
+ */
+public final class ComparisonProfile implements Serializable {
+    /** Profile of a spectrum without any comparison peaks **/
+    public static final ComparisonProfile EMPTY = new ComparisonProfile(new int[0], new int[0]);
+    /** Maximum number of m/z bins covered by a profile's bitset **/
+    public static final int MAX_BITSET_BINS = 4096;
+
+    private final int[] mz;
+    private final int[] intensity;
+
+    // m/z bitset starting at the word bitsetOffset, null if the m/z range is too large
+    private final long[] mzBits;
+    private final int bitsetOffset;
+
+    private ComparisonProfile(int[] mz, int[] intensity) {
+        this.mz = mz;
+        this.intensity = intensity;
+
+        if (mz.length > 0 && mz[0] >= 0 && mz[mz.length - 1] - (mz[0] & ~63) < MAX_BITSET_BINS) {
+            this.bitsetOffset = mz[0] >>> 6;
+            this.mzBits = new long[(mz[mz.length - 1] >>> 6) - bitsetOffset + 1];
+
+            for (int peakMz : mz) {
+                mzBits[(peakMz >>> 6) - bitsetOffset] |= 1L << peakMz;
+            }
+        } else {
+            this.bitsetOffset = 0;
+            this.mzBits = null;
+        }
+    }
+
+    /**
+     * Creates the comparison profile based on an already filtered spectrum.
+     * If multiple peaks share the same m/z value, only the first one is kept.
+     * @param filteredSpectrum The spectrum after the comparison filter was applied.
+     * @return The matching ComparisonProfile
+     */
+    public static ComparisonProfile fromSpectrum(IBinarySpectrum filteredSpectrum) {
+        int nPeaks = filteredSpectrum.getNumberOfPeaks();
+
+        if (nPeaks < 1) {
+            return EMPTY;
+        }
+
+        int[] mz = new int[nPeaks];
+        int[] intensity = new int[nPeaks];
+        int storedPeaks = 0;
+
+        for (int i = 0; i < nPeaks; i++) {
+            int peakMz = filteredSpectrum.getPeakMz(i);
+
+            if (storedPeaks > 0 && mz[storedPeaks - 1] == peakMz) {
+                continue;
+            }
+
+            mz[storedPeaks] = peakMz;
+            intensity[storedPeaks++] = filteredSpectrum.getPeakIntensity(i);
+        }
+
+        if (storedPeaks < nPeaks) {
+            mz = Arrays.copyOf(mz, storedPeaks);
+            intensity = Arrays.copyOf(intensity, storedPeaks);
+        }
+
+        return new ComparisonProfile(mz, intensity);
+    }
+
+    /**
+     * Get the number of comparison peaks.
+     * @return The number of peaks
+     */
+    public int size() {
+        return mz.length;
+    }
+
+    /**
+     * Get the m/z value of the peak at the defined index.
+     * @param index The peak's index
+     * @return The m/z value
+     */
+    public int getMz(int index) {
+        return mz[index];
+    }
+
+    /**
+     * Get the intensity of the peak at the defined index.
+     * @param index The peak's index
+     * @return The intensity
+     */
+    public int getIntensity(int index) {
+        return intensity[index];
+    }
+
+    /**
+     * Get the minimum m/z of the comparison peaks.
+     * @return The minimum m/z or 0 if the profile is empty.
+     */
+    public int getMinMz() {
+        return mz.length > 0 ? mz[0] : 0;
+    }
+
+    /**
+     * Get the maximum m/z of the comparison peaks.
+     * @return The maximum m/z or 0 if the profile is empty.
+     */
+    public int getMaxMz() {
+        return mz.length > 0 ? mz[mz.length - 1] : 0;
+    }
+
+    /**
+     * Counts the number of peaks (m/z values) shared with the
+     * other profile.
+     * @param other The profile to compare to.
+     * @return Number of shared peaks.
+     */
+    public int countSharedPeaks(ComparisonProfile other) {
+        if (mzBits != null && other.mzBits != null) {
+            return countSharedBits(other);
+        }
+
+        int[] otherMz = other.mz;
+        int i = 0, j = 0, nShared = 0;
+
+        while (i < mz.length && j < otherMz.length) {
+            if (mz[i] < otherMz[j]) {
+                i++;
+            } else if (mz[i] > otherMz[j]) {
+                j++;
+            } else {
+                nShared++;
+                i++;
+                j++;
+            }
+        }
+
+        return nShared;
+    }
+
+    /**
+     * Retrieves the intensities of all peaks shared with the other profile. The
+     * intensities are written in m/z order into the passed arrays which must be
+     * able to hold at least min(size(), other.size()) values.
+     * @param other The profile to compare to.
+     * @param intensities Array to store this profile's intensities in.
+     * @param otherIntensities Array to store the other profile's intensities in.
+     * @return Number of shared peaks.
+     */
+    public int getSharedIntensities(ComparisonProfile other, int[] intensities, int[] otherIntensities) {
+        if (mzBits != null && other.mzBits != null) {
+            return getSharedBitIntensities(other, intensities, otherIntensities);
+        }
+
+        int[] otherMz = other.mz;
+        int i = 0, j = 0, nShared = 0;
+
+        while (i < mz.length && j < otherMz.length) {
+            if (mz[i] < otherMz[j]) {
+                i++;
+            } else if (mz[i] > otherMz[j]) {
+                j++;
+            } else {
+                intensities[nShared] = intensity[i];
+                otherIntensities[nShared++] = other.intensity[j];
+                i++;
+                j++;
+            }
+        }
+
+        return nShared;
+    }
+
+    /**
+     * Returns whether the m/z values are also stored as a bitset.
+     * @return Boolean indicating whether the bitset is available.
+     */
+    public boolean hasBitset() {
+        return mzBits != null;
+    }
+
+    /**
+     * Counts the shared peaks using both profiles' bitsets.
+     */
+    private int countSharedBits(ComparisonProfile other) {
+        int firstWord = Math.max(bitsetOffset, other.bitsetOffset);
+        int lastWord = Math.min(bitsetOffset + mzBits.length, other.bitsetOffset + other.mzBits.length);
+        int nShared = 0;
+
+        for (int word = firstWord; word < lastWord; word++) {
+            nShared += Long.bitCount(mzBits[word - bitsetOffset] & other.mzBits[word - other.bitsetOffset]);
+        }
+
+        return nShared;
+    }
+
+    /**
+     * Retrieves the shared intensities using both profiles' bitsets. A peak's index
+     * is the number of set bits below its m/z value.
+     */
+    private int getSharedBitIntensities(ComparisonProfile other, int[] intensities, int[] otherIntensities) {
+        int firstWord = Math.max(bitsetOffset, other.bitsetOffset);
+        int lastWord = Math.min(bitsetOffset + mzBits.length, other.bitsetOffset + other.mzBits.length);
+
+        if (firstWord >= lastWord) {
+            return 0;
+        }
+
+        int index = countBits(mzBits, firstWord - bitsetOffset);
+        int otherIndex = countBits(other.mzBits, firstWord - other.bitsetOffset);
+        int nShared = 0;
+
+        for (int word = firstWord; word < lastWord; word++) {
+            long bits = mzBits[word - bitsetOffset];
+            long otherBits = other.mzBits[word - other.bitsetOffset];
+            long sharedBits = bits & otherBits;
+
+            while (sharedBits != 0) {
+                long lowestBit = sharedBits & -sharedBits;
+                long belowMask = lowestBit - 1;
+
+                intensities[nShared] = intensity[index + Long.bitCount(bits & belowMask)];
+                otherIntensities[nShared++] = other.intensity[otherIndex + Long.bitCount(otherBits & belowMask)];
+                sharedBits ^= lowestBit;
+            }
+
+            index += Long.bitCount(bits);
+            otherIndex += Long.bitCount(otherBits);
+        }
+
+        return nShared;
+    }
+
+    private static int countBits(long[] bits, int nWords) {
+        int count = 0;
+
+        for (int i = 0; i < nWords; i++) {
+            count += Long.bitCount(bits[i]);
+        }
+
+        return count;
+    }
+}
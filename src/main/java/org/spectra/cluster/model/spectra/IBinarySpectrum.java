@@ -56,6 +56,35 @@ public interface IBinarySpectrum extends Serializable, Cloneable {
      */
     int getNumberOfPeaks();
 
+    /**
+     * Get the m/z value of the peak at the defined index. Peaks
+     * are sorted according to m/z.
+     * @param index The peak's index
+     * @return The peak's m/z value
+     */
+    default int getPeakMz(int index) {
+        return getPeaks()[index].getMz();
+    }
+
+    /**
+     * Get the intensity of the peak at the defined index.
+     * @param index The peak's index
+     * @return The peak's intensity
+     */
+    default int getPeakIntensity(int index) {
+        return getPeaks()[index].getIntensity();
+    }
+
+    /**
+     * Get the rank of the peak at the defined index where
+     * 1 is the highest peak.
+     * @param index The peak's index
+     * @return The peak's rank
+     */
+    default int getPeakRank(int index) {
+        return getPeaks()[index].getRank();
+    }
+
     /**
      * Get the Unique identifier
      * @return identifier
@@ -82,6 +111,14 @@ public interface IBinarySpectrum extends Serializable, Cloneable {
      */
     Map<BinaryPeak, BinaryPeak> getComparisonFilteredPeaks();
 
+    /**
+     * Returns the immutable, m/z sorted profile of the peaks
+     * after the comparison filter was applied. This is the
+     * representation used during the similarity scoring.
+     * @return The ComparisonProfile of this spectrum
+     */
+    ComparisonProfile getComparisonProfile();
+
     /**
      * Returns the comparison filter used by the spectrum
      * @return The IBinarySpectrumFunction used as a comparison filter
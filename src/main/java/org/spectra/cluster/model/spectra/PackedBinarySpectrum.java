@@ -0,0 +1,262 @@
+package org.spectra.cluster.model.spectra;
+
+import org.spectra.cluster.filter.binaryspectrum.IBinarySpectrumFunction;
+import org.spectra.cluster.util.IdAllocator;
+
+import java.util.*;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * IBinarySpectrum implementation that stores its peaks in parallel
+ * primitive arrays (m/z, intensity and rank) instead of BinaryPeak
+ * objects.
+ *
+ * The peaks must be sorted according to m/z. Ranks are always computed
+ * when the spectrum is created. BinaryPeak objects are only created if
+ * a caller explicitly requests them through {@link #getPeaks()}.
+ *
+ * Note: The passed arrays are not copied. They must not be changed after
+ * the spectrum was created.
+ *
+ * @author jg
+ */
+public class PackedBinarySpectrum implements IBinarySpectrum {
+    private final String uui;
+    private final int precursorMz;
+    private final int precursorCharge;
+    private final IBinarySpectrumFunction comparisonFilter;
+
+    private final int[] mz;
+    private final int[] intensity;
+    /** 1-based ranks, saturated at Short.MAX_VALUE **/
+    private final short[] rank;
+
+    private transient BinaryPeak[] peaks;
+    private transient Map<BinaryPeak, BinaryPeak> comparisonPeakSet;
+    private transient ComparisonProfile comparisonProfile;
+
+    /**
+     * Create a new packed spectrum. The ranks are computed based on the
+     * peaks' intensities.
+     * @param uui The (unique) id to use
+     * @param precursorMz The precursor m/z as integer
+     * @param precursorCharge The precursor charge
+     * @param mz The peaks' m/z values sorted in ascending order
+     * @param intensity The peaks' intensities in the same order as the m/z values
+     * @param comparisonFilter The comparison filter to apply to the spectrum
+     */
+    public PackedBinarySpectrum(String uui, int precursorMz, int precursorCharge, int[] mz, int[] intensity,
+                                IBinarySpectrumFunction comparisonFilter) {
+        this(uui, precursorMz, precursorCharge, mz, intensity, computeRanks(intensity), comparisonFilter);
+    }
+
+    /**
+     * Create a new packed spectrum with a random id.
+     * @param precursorMz The precursor m/z as integer
+     * @param precursorCharge The precursor charge
+     * @param mz The peaks' m/z values sorted in ascending order
+     * @param intensity The peaks' intensities in the same order as the m/z values
+     * @param comparisonFilter The comparison filter to apply to the spectrum
+     */
+    public PackedBinarySpectrum(int precursorMz, int precursorCharge, int[] mz, int[] intensity,
+                                IBinarySpectrumFunction comparisonFilter) {
+        this(IdAllocator.nextId(), precursorMz, precursorCharge, mz, intensity, comparisonFilter);
+    }
+
+    /**
+     * Creates a new packed spectrum based on an existing one with a different
+     * peak list. The ranks are re-calculated.
+     * @param spectrum The IBinarySpectrum to copy the properties from.
+     * @param mz The new m/z values sorted in ascending order
+     * @param intensity The new intensities
+     */
+    public PackedBinarySpectrum(IBinarySpectrum spectrum, int[] mz, int[] intensity) {
+        this(spectrum.getUUI(), spectrum.getPrecursorMz(), spectrum.getPrecursorCharge(), mz, intensity,
+                computeRanks(intensity), spectrum.getComparisonFilter());
+    }
+
+    /**
+     * Creates a new packed spectrum based on an existing one with a different
+     * peak list, keeping the passed ranks.
+     * @param spectrum The IBinarySpectrum to copy the properties from.
+     * @param mz The new m/z values sorted in ascending order
+     * @param intensity The new intensities
+     * @param rank The peaks' (1-based) ranks
+     */
+    public PackedBinarySpectrum(IBinarySpectrum spectrum, int[] mz, int[] intensity, short[] rank) {
+        this(spectrum.getUUI(), spectrum.getPrecursorMz(), spectrum.getPrecursorCharge(), mz, intensity,
+                rank, spectrum.getComparisonFilter());
+    }
+
+    private PackedBinarySpectrum(String uui, int precursorMz, int precursorCharge, int[] mz, int[] intensity,
+                                 short[] rank, IBinarySpectrumFunction comparisonFilter) {
+        if (mz.length != intensity.length || mz.length != rank.length) {
+            throw new IllegalArgumentException("m/z, intensity and rank arrays must have the same length");
+        }
+
+        this.uui = uui;
+        this.precursorMz = precursorMz;
+        this.precursorCharge = precursorCharge;
+        this.mz = mz;
+        this.intensity = intensity;
+        this.rank = rank;
+        this.comparisonFilter = comparisonFilter;
+    }
+
+    /**
+     * Returns the peaks' indexes ordered by descending intensity. Peaks with the
+     * same intensity are kept in their original (m/z) order, which results in the
+     * same order as the stable sort used by {@link BinarySpectrum#addRanks(BinaryPeak[], boolean)}.
+     * @param intensity The intensities to sort.
+     * @return The indexes of the peaks ordered by intensity.
+     */
+    public static int[] sortByIntensity(int[] intensity) {
+        long[] keys = new long[intensity.length];
+
+        for (int i = 0; i < intensity.length; i++) {
+            // high bits: negated intensity (= descending), low bits: index (= stable)
+            keys[i] = (-(long) intensity[i] << 32) | i;
+        }
+
+        Arrays.sort(keys);
+
+        int[] order = new int[keys.length];
+
+        for (int i = 0; i < keys.length; i++) {
+            order[i] = (int) keys[i];
+        }
+
+        return order;
+    }
+
+    /**
+     * Computes the 1-based rank of every peak where 1 is the highest peak.
+     * @param intensity The peaks' intensities.
+     * @return The ranks in the same order as the intensities.
+     */
+    private static short[] computeRanks(int[] intensity) {
+        int[] order = sortByIntensity(intensity);
+        short[] ranks = new short[intensity.length];
+
+        for (int i = 0; i < order.length; i++) {
+            ranks[order[i]] = (short) Math.min(i + 1, Short.MAX_VALUE);
+        }
+
+        return ranks;
+    }
+
+    @Override
+    public int getPrecursorMz() {
+        return precursorMz;
+    }
+
+    @Override
+    public int getPrecursorCharge() {
+        return precursorCharge;
+    }
+
+    @Override
+    public int[] getCopyMzVector() {
+        return Arrays.copyOf(mz, mz.length);
+    }
+
+    @Override
+    public int[] getCopyIntensityVector() {
+        return Arrays.copyOf(intensity, intensity.length);
+    }
+
+    @Override
+    public int getNumberOfPeaks() {
+        return mz.length;
+    }
+
+    @Override
+    public int getPeakMz(int index) {
+        return mz[index];
+    }
+
+    @Override
+    public int getPeakIntensity(int index) {
+        return intensity[index];
+    }
+
+    @Override
+    public int getPeakRank(int index) {
+        return rank[index];
+    }
+
+    @Override
+    public String getUUI() {
+        return uui;
+    }
+
+    /**
+     * Returns the peaks as BinaryPeak objects. The objects are only created
+     * on the first call. Changes to the returned peaks are not reflected
+     * in the spectrum's packed representation.
+     * @return BinaryPeak Array
+     */
+    @Override
+    public BinaryPeak[] getPeaks() {
+        if (peaks == null) {
+            BinaryPeak[] newPeaks = new BinaryPeak[mz.length];
+
+            for (int i = 0; i < mz.length; i++) {
+                newPeaks[i] = new BinaryPeak(mz[i], intensity[i]);
+                newPeaks[i].setRank(rank[i]);
+            }
+
+            peaks = newPeaks;
+        }
+
+        return peaks;
+    }
+
+    @Override
+    public BinaryPeak[] getCopyPeaks() {
+        BinaryPeak[] currentPeaks = getPeaks();
+        return Arrays.copyOf(currentPeaks, currentPeaks.length);
+    }
+
+    @Override
+    public Map<BinaryPeak, BinaryPeak> getComparisonFilteredPeaks() {
+        if (comparisonPeakSet == null) {
+            IBinarySpectrum filteredSpectrum = comparisonFilter.apply(this);
+
+            if (filteredSpectrum.getNumberOfPeaks() < 1) {
+                return Collections.emptyMap();
+            }
+
+            comparisonPeakSet = Arrays
+                    .stream(filteredSpectrum.getPeaks())
+                    .collect(Collectors.toMap(Function.identity(), peak -> peak));
+        }
+
+        return Collections.unmodifiableMap(comparisonPeakSet);
+    }
+
+    @Override
+    public IBinarySpectrumFunction getComparisonFilter() {
+        return comparisonFilter;
+    }
+
+    @Override
+    public ComparisonProfile getComparisonProfile() {
+        if (comparisonProfile == null) {
+            comparisonProfile = ComparisonProfile.fromSpectrum(comparisonFilter.apply(this));
+        }
+
+        return comparisonProfile;
+    }
+
+    @Override
+    public int getMinComparisonMz() {
+        return getComparisonProfile().getMinMz();
+    }
+
+    @Override
+    public int getMaxComparisonMz() {
+        return getComparisonProfile().getMaxMz();
+    }
+}
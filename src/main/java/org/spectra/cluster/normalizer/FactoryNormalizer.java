@@ -1,7 +1,9 @@
 package org.spectra.cluster.normalizer;
 
 import lombok.extern.slf4j.Slf4j;
+import org.spectra.cluster.filter.binaryspectrum.IBinarySpectrumFunction;
 import org.spectra.cluster.model.spectra.BinaryPeak;
+import org.spectra.cluster.model.spectra.PackedBinarySpectrum;
 
 import java.util.Arrays;
 import java.util.Comparator;
@@ -40,6 +42,60 @@ public class FactoryNormalizer {
      * @throws Exception Exception if normalization breaks the integrity of the spectra.
      */
     public BinaryPeak[] normalizePeaks(Map<Double, Double> peakList) throws Exception {
+        int[][] binnedPeaks = binPeaks(peakList);
+        int[] mzValues = binnedPeaks[0];
+        int[] intensityValues = binnedPeaks[1];
+
+        BinaryPeak[] peaks = new BinaryPeak[intensityValues.length];
+        for(int i = 0; i < mzValues.length; i++)
+            peaks[i] = new BinaryPeak(mzValues[i], intensityValues[i]);
+
+        // sort the peaks
+        Arrays.sort(peaks, Comparator.comparingInt(BinaryPeak::getMz));
+
+        return peaks;
+    }
+
+    /**
+     * This function normalizes the spectrum peaks and directly creates a {@link PackedBinarySpectrum}
+     * without creating any {@link BinaryPeak} objects.
+     * @param precursorMz The already normalized precursor m/z
+     * @param precursorCharge The precursor charge
+     * @param peakList Map<{@link Double} map of double, double of peaks
+     * @param comparisonFilter The comparison filter to use for the spectrum
+     * @return The PackedBinarySpectrum with its peaks sorted according to m/z
+     * @throws Exception Exception if normalization breaks the integrity of the spectra.
+     */
+    public PackedBinarySpectrum normalizeSpectrum(int precursorMz, int precursorCharge, Map<Double, Double> peakList,
+                                                  IBinarySpectrumFunction comparisonFilter) throws Exception {
+        int[][] binnedPeaks = binPeaks(peakList);
+        int[] mzValues = binnedPeaks[0];
+        int[] intensityValues = binnedPeaks[1];
+
+        // sort the peaks by m/z - the index is kept in the lower bits to keep the sort stable
+        long[] sortKeys = new long[mzValues.length];
+        for (int i = 0; i < mzValues.length; i++)
+            sortKeys[i] = ((long) mzValues[i] << 32) | i;
+
+        Arrays.sort(sortKeys);
+
+        int[] sortedMz = new int[mzValues.length];
+        int[] sortedIntensities = new int[mzValues.length];
+        for (int i = 0; i < sortKeys.length; i++) {
+            sortedMz[i] = (int) (sortKeys[i] >> 32);
+            sortedIntensities[i] = intensityValues[(int) sortKeys[i]];
+        }
+
+        return new PackedBinarySpectrum(precursorMz, precursorCharge, sortedMz, sortedIntensities, comparisonFilter);
+    }
+
+    /**
+     * Bins the m/z and intensity values of the peaks.
+     * @param peakList Map<{@link Double} map of double, double of peaks
+     * @return The binned m/z values at index 0 and the binned intensities at index 1
+     * @throws Exception Exception if normalization breaks the integrity of the spectra.
+     */
+    private int[][] binPeaks(Map<Double, Double> peakList) throws Exception {
         int[] mzValues = mzBinner.binDoubles(peakList
                 .entrySet().stream()
                 .map(Map.Entry::getKey)
@@ -50,18 +106,12 @@ public class FactoryNormalizer {
                 .map(Map.Entry::getValue)
                 .collect(Collectors.toList()));
         if(mzValues.length != intensityValues.length){
-            log.error("The normalization step has destroy the spectrum structure");
-            throw new Exception("The normalization step has destroy the spectrum");
+            log.error("The normalization step has destroyed the spectrum structure: {} m/z values but {} intensities",
+                    mzValues.length, intensityValues.length);
+            throw new Exception("The normalization step has destroyed the spectrum");
         }
 
-        BinaryPeak[] peaks = new BinaryPeak[intensityValues.length];
-        for(int i = 0; i < mzValues.length; i++)
-            peaks[i] = new BinaryPeak(mzValues[i], intensityValues[i]);
-
-        // sort the peaks
-        Arrays.sort(peaks, Comparator.comparingInt(BinaryPeak::getMz));
-
-        return peaks;
+        return new int[][]{mzValues, intensityValues};
     }
 
 }
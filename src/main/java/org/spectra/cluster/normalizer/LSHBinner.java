@@ -56,6 +56,26 @@ public class LSHBinner  {
         return instance;
     }
 
+    /**
+     * Creates a new, independent LSHBinner. In contrast to {@link #getInstance(int, int, int)}
+     * every call returns a new object which allows different configurations to be used
+     * at the same time.
+     * @param numberKernels Number of Kernels (ie. the size of the MinHash signature)
+     * @param dictionarySize Number of different values every kernel can take
+     * @param seed Seed used to create the hash functions. Binners using the same
+     *             parameters and seed create identical signatures.
+     * @return LSHBinner
+     */
+    public static LSHBinner createInstance(int numberKernels, int dictionarySize, long seed) {
+        return new LSHBinner(numberKernels, dictionarySize, seed);
+    }
+
+    private LSHBinner(int numberKernels, int dictionarySize, long seed) {
+        this.numberKernels = numberKernels;
+        this.numberPeaksInKernel = dictionarySize;
+        minHashInstance = new MinHash(numberKernels, dictionarySize, seed);
+    }
+
     private LSHBinner(int numberKernels, int numberPeaksInKernel, int vector_size){
         this.numberKernels = numberKernels;
         this.numberPeaksInKernel = numberPeaksInKernel;
@@ -1,9 +1,7 @@
 package org.spectra.cluster.predicates;
 
 import org.spectra.cluster.model.cluster.ICluster;
-import org.spectra.cluster.model.spectra.BinaryPeak;
-
-import java.util.Map;
+import org.spectra.cluster.model.spectra.ComparisonProfile;
 
 /**
  * Assesses whether two cluster share at least N spectra of
@@ -18,18 +16,14 @@ public class ShareNComparisonPeaksPredicate implements IComparisonPredicate<IClu
 
     @Override
     public boolean test(ICluster o1, ICluster o2) {
-        int nShared = 0;
-        Map<BinaryPeak, BinaryPeak> peaks1 = o1.getConsensusSpectrum().getComparisonFilteredPeaks();
-        for(BinaryPeak p : o2.getConsensusSpectrum().getComparisonFilteredPeaks().keySet()) {
-            if (peaks1.keySet().contains(p)) {
-                nShared++;
-            }
+        ComparisonProfile profile1 = o1.getConsensusSpectrum().getComparisonProfile();
+        ComparisonProfile profile2 = o2.getConsensusSpectrum().getComparisonProfile();
 
-            if (nShared >= minSharedPeaks) {
-                return true;
-            }
+        // no need to count if the spectra cannot share enough peaks
+        if (profile1.size() < minSharedPeaks || profile2.size() < minSharedPeaks) {
+            return false;
         }
 
-        return nShared >= minSharedPeaks;
+        return profile1.countSharedPeaks(profile2) >= minSharedPeaks;
     }
 }
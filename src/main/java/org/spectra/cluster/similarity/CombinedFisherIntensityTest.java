@@ -1,17 +1,9 @@
 package org.spectra.cluster.similarity;
 
-import cern.jet.random.HyperGeometric;
-import cern.jet.random.Normal;
-import cern.jet.random.engine.RandomEngine;
-import org.apache.commons.math3.distribution.ChiSquaredDistribution;
 import org.apache.commons.math3.util.FastMath;
-import org.spectra.cluster.model.spectra.BinaryPeak;
+import org.spectra.cluster.model.spectra.ComparisonProfile;
 import org.spectra.cluster.model.spectra.IBinarySpectrum;
 
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Set;
-
 /**
  * Implementation of the combined FisherIntensity test as it
  * is used by the spectra-cluster v1 algorithm.
@@ -19,14 +11,16 @@ import java.util.Set;
 public class CombinedFisherIntensityTest implements IBinarySpectrumSimilarity {
 
     private final KendallsCorrelation kendallsCorrelation = new KendallsCorrelation();
-    /** Cached ChiSquareDistribution for the HGT score calculation */
-    protected final ChiSquaredDistribution chiSquaredDistribution = new ChiSquaredDistribution(4); // always 4 degrees of freedom
-    /** Static RandomEngine since it is not used */
-    protected final static RandomEngine RANDOM_ENGINE = RandomEngine.makeDefault();
+    /** Shared, precomputed kernel for the HGT, normal and chi-square (4 degrees of freedom) calculations */
+    protected final static CombinedFisherStatistics STATISTICS = CombinedFisherStatistics.INSTANCE;
+    /** Per-thread buffers holding the intensities of the shared peaks */
+    private final static ThreadLocal<int[][]> INTENSITY_BUFFERS = ThreadLocal.withInitial(() -> new int[][]{new int[64], new int[64]});
     /** Define a maximum score which is returned if infinity is reached */
     public static final double MAX_SCORE = 200;
     /** Value for an extremely low score */
     public static final double BAD_SCORE = 0;
+    /** Absolute tolerance added to upper bounds of the score to compensate for rounding errors */
+    private static final double SCORE_BOUND_TOLERANCE = 1e-6;
 
     /** Minimum number of shared peaks required to calculate the score. Otherwise BAD_SCORE is returned */
     private final int minSharedPeaks;
@@ -55,36 +49,54 @@ public class CombinedFisherIntensityTest implements IBinarySpectrumSimilarity {
 
     @Override
     public double correlation(IBinarySpectrum spectrum1, IBinarySpectrum spectrum2) {
-        // use copies since these will be changed
-        Set<BinaryPeak> peakSet1 = new HashSet<>(spectrum1.getComparisonFilteredPeaks().keySet());
-        Set<BinaryPeak> peakSet2 = new HashSet<>(spectrum2.getComparisonFilteredPeaks().keySet());
+        return correlationAtLeast(spectrum1, spectrum2, Double.NEGATIVE_INFINITY);
+    }
 
-        // retain shared peaks
-        peakSet1.retainAll(peakSet2);
-        peakSet2.retainAll(peakSet1);
+    /**
+     * Compute the correlation between two spectra. The Kendall correlation is only
+     * calculated if the HGT score still allows the final score to reach minScore.
+     * Otherwise the score's upper bound (assuming a perfect Kendall correlation) is
+     * returned.
+     * @param spectrum1 Spectrum A to be compare
+     * @param spectrum2 Spectrum B to be compare
+     * @param minScore The minimum score of interest.
+     * @return The similarity score or an upper bound of it below minScore.
+     */
+    @Override
+    public double correlationAtLeast(IBinarySpectrum spectrum1, IBinarySpectrum spectrum2, double minScore) {
+        ComparisonProfile profile1 = spectrum1.getComparisonProfile();
+        ComparisonProfile profile2 = spectrum2.getComparisonProfile();
+
+        // get the intensities of the shared peaks
+        int[][] intensityBuffers = getIntensityBuffers(FastMath.min(profile1.size(), profile2.size()));
+        int[] intensities1 = intensityBuffers[0];
+        int[] intensities2 = intensityBuffers[1];
+        int nSharedPeaks = profile1.getSharedIntensities(profile2, intensities1, intensities2);
 
         // return 0 if no intensities are shared
-        if (peakSet1.size() < minSharedPeaks) {
+        if (nSharedPeaks < minSharedPeaks) {
             return BAD_SCORE;
         }
 
         // calculate the hypergeometric score
-        int minBin = FastMath.min(spectrum1.getMinComparisonMz(), spectrum2.getMinComparisonMz());
-        int maxBin = FastMath.max(spectrum1.getMaxComparisonMz(), spectrum2.getMaxComparisonMz());
+        int minBin = FastMath.min(profile1.getMinMz(), profile2.getMinMz());
+        int maxBin = FastMath.max(profile1.getMaxMz(), profile2.getMaxMz());
 
-        int morePeaks = spectrum1.getComparisonFilteredPeaks().size();
-        int lessPeaks = spectrum2.getComparisonFilteredPeaks().size();
+        int morePeaks = profile1.size();
+        int lessPeaks = profile2.size();
 
+        // Note: this mirrors the original implementation which used the already
+        // intersected peak sets in this case
         if (morePeaks < lessPeaks) {
-            morePeaks = peakSet2.size();
-            lessPeaks = peakSet1.size();
+            morePeaks = nSharedPeaks;
+            lessPeaks = nSharedPeaks;
         }
 
         // the (maxBin - minBin) * 2 formula is used to keep the scores consistent with version
         // 1.x where the bins were evaluated based on the set fragment tolerance. Estimating based
         // on fragment tolerance leads to roughly twice as many bins.
         // -- JG 08.10.2018
-        double hgtScore = new HyperGeometric((maxBin - minBin) * 2, morePeaks, lessPeaks, RANDOM_ENGINE).pdf(peakSet1.size());
+        double hgtScore = STATISTICS.hypergeometricPdf((maxBin - minBin) * 2, morePeaks, lessPeaks, nSharedPeaks);
 
         if (hgtScore == 0) {
             hgtScore = 1;
@@ -95,17 +107,17 @@ public class CombinedFisherIntensityTest implements IBinarySpectrumSimilarity {
             return -FastMath.log(hgtScore);
         }
 
-        // create the list of intensities
-        Map<BinaryPeak, BinaryPeak> comparisonPeaks2 = spectrum2.getComparisonFilteredPeaks();
-        IntPair[] pairs = new IntPair[peakSet1.size()];
+        // stop if even a perfect intensity correlation cannot reach the minimum score
+        if (minScore > BAD_SCORE) {
+            double maxScore = getScoreUpperBound(hgtScore, nSharedPeaks);
 
-        int counter = 0;
-        for (BinaryPeak p : peakSet1) {
-            pairs[counter++] = new IntPair(p.getIntensity(), comparisonPeaks2.get(p).getIntensity());
+            if (maxScore < minScore) {
+                return maxScore;
+            }
         }
 
         // calculate the fisher p
-        double kendallP = assessKendallCorrelation(pairs);
+        double kendallP = assessKendallCorrelation(intensities1, intensities2, nSharedPeaks);
 
         // combine the two
         return combineProbabilities(hgtScore, kendallP);
@@ -128,7 +140,7 @@ public class CombinedFisherIntensityTest implements IBinarySpectrumSimilarity {
         if (Double.isInfinite(combined))
             pValue = 0;
         else
-            pValue = chiSquaredDistribution.density(combined);
+            pValue = STATISTICS.chiSquare4Density(combined);
 
         // return a very high score if the p-value is 0
         if (pValue == 0) {
@@ -138,13 +150,72 @@ public class CombinedFisherIntensityTest implements IBinarySpectrumSimilarity {
         return -FastMath.log(pValue);
     }
 
+    /**
+     * Calculates an upper bound of the combined score based on the HGT probability
+     * alone. The Kendall probability for a given number of shared peaks is limited by
+     * the probability of a perfect correlation (tau = 1) and 1. As the score is a convex
+     * function of the combined statistic, it reaches its maximum at one of these limits.
+     * @param hgtScore The HGT probability.
+     * @param nSharedPeaks The number of shared peaks.
+     * @return The maximum score or Double.POSITIVE_INFINITY if no bound can be determined.
+     */
+    private double getScoreUpperBound(double hgtScore, int nSharedPeaks) {
+        // the score is not bound if the combined statistic can approach 0
+        if (hgtScore >= 1) {
+            return Double.POSITIVE_INFINITY;
+        }
+
+        double minKendallP = 1;
+
+        if (nSharedPeaks > 1) {
+            double k = (double) nSharedPeaks;
+            double sd = FastMath.sqrt((2 * (2 * k + 5)) / (9 * k * (k - 1)));
+            // a slightly larger tau to be safe against rounding errors
+            minKendallP = STATISTICS.normalUpperTail((1 + SCORE_BOUND_TOLERANCE) / sd);
+        }
+
+        if (minKendallP <= 0) {
+            return Double.POSITIVE_INFINITY;
+        }
+
+        double noCorrelationScore = combineProbabilities(hgtScore, 1);
+        double perfectCorrelationScore = combineProbabilities(hgtScore, minKendallP);
+
+        // MAX_SCORE is used if the chi-square density underflows and is therefore no bound
+        if (noCorrelationScore == MAX_SCORE || perfectCorrelationScore == MAX_SCORE) {
+            return Double.POSITIVE_INFINITY;
+        }
+
+        return FastMath.max(noCorrelationScore, perfectCorrelationScore) + SCORE_BOUND_TOLERANCE;
+    }
+
+    /**
+     * Returns the calling thread's buffers to store the shared peaks' intensities in.
+     * @param minSize The minimum number of intensities the buffers must hold.
+     * @return Two int arrays with at least minSize elements.
+     */
+    private static int[][] getIntensityBuffers(int minSize) {
+        int[][] buffers = INTENSITY_BUFFERS.get();
+
+        if (buffers[0].length < minSize) {
+            int size = FastMath.max(minSize, buffers[0].length * 2);
+            buffers[0] = new int[size];
+            buffers[1] = new int[size];
+        }
+
+        return buffers;
+    }
+
     /**
      * Assess the Kendall Tau's correlation converted to a probability score.
+     * @param intensities1 The shared peaks' intensities in the first spectrum
+     * @param intensities2 The shared peaks' intensities in the second spectrum
+     * @param nSharedPeaks The number of shared peaks
      * @return Probability as a double
      */
-    private double assessKendallCorrelation(IntPair[] pairs) {
+    private double assessKendallCorrelation(int[] intensities1, int[] intensities2, int nSharedPeaks) {
         // get the Tau score
-        double correlation = kendallsCorrelation.correlation(pairs);
+        double correlation = kendallsCorrelation.correlation(intensities1, intensities2, nSharedPeaks);
 
         // map to p-value
         // if the correlation cannot be calculated, assume that there is none
@@ -154,7 +225,7 @@ public class CombinedFisherIntensityTest implements IBinarySpectrumSimilarity {
 
         // convert correlation into probability using the distribution used in Peptidome
         // Normal Distribution with mean = 0 and SD^2 = 2(2k + 5)/9k(k − 1)
-        double k = (double) pairs.length;
+        double k = (double) nSharedPeaks;
 
         // this cannot be calculated for only 1 shared peak
         if (k == 1)
@@ -163,9 +234,7 @@ public class CombinedFisherIntensityTest implements IBinarySpectrumSimilarity {
         double sdSquare = (2 * (2 * k + 5)) / (9 * k * (k - 1) );
         double sd = FastMath.sqrt(sdSquare);
 
-        Normal normal = new Normal(0, sd, RANDOM_ENGINE);
-        double probability = normal.cdf(correlation);
-
-        return 1 - probability;
+        // 1 - cdf of the normal distribution
+        return STATISTICS.normalUpperTail(correlation / sd);
     }
 }
@@ -0,0 +1,174 @@
+package org.spectra.cluster.similarity;
+
+import cern.jet.math.Arithmetic;
+import org.apache.commons.math3.special.Erf;
+import org.apache.commons.math3.special.Gamma;
+import org.apache.commons.math3.util.FastMath;
+
+/**
+ * Precomputed statistics kernel for the {@link CombinedFisherIntensityTest}.
+ *
+ * The kernel replaces the per-comparison creation of colt's HyperGeometric
+ * and Normal distributions as well as the commons-math ChiSquaredDistribution:
+ *
+ * <ul>
+ *     <li>The hypergeometric pdf is calculated in log space using a table of
+ *     log-factorials. Parameters outside of the table are calculated using
+ *     the log-gamma function. Unlike colt, the result stays finite for large
+ *     parameters (see {@link #hypergeometricPdf(int, int, int, int)}).</li>
+ *     <li>The upper tail of the standard normal distribution is interpolated
+ *     (cubic Hermite on log scale) from a table.</li>
+ *     <li>The chi-square density with 4 degrees of freedom has the closed form
+ *     x * exp(-x / 2) / 4 and therefore does not need a table.</li>
+ * </ul>
+ *
+ * All tables are created once. Objects of this class are immutable and can
+ * therefore be shared between all threads.
+ *
+ * @author jg
+ */
+public final class CombinedFisherStatistics {
+    /** Largest n for which log(n!) is tabulated **/
+    public static final int DEFAULT_MAX_TABULATED_FACTORIAL = 1 << 18;
+    /** Lower limit of the normal table. Below, the upper tail probability is 1 in double precision **/
+    private static final double NORMAL_TABLE_MIN_Z = -9;
+    /** Upper limit of the normal table. Above, 1 - cdf is 0 in double precision **/
+    private static final double NORMAL_TABLE_MAX_Z = 9;
+    /** Number of normal table entries per standard deviation **/
+    private static final int NORMAL_TABLE_RESOLUTION = 128;
+
+    /** Shared instance using the default table sizes **/
+    public static final CombinedFisherStatistics INSTANCE = new CombinedFisherStatistics(DEFAULT_MAX_TABULATED_FACTORIAL);
+
+    private final double[] logFactorials;
+    /** log of the upper tail probability of the standard normal distribution **/
+    private final double[] logUpperTail;
+    /** first derivative of logUpperTail **/
+    private final double[] logUpperTailSlope;
+
+    /**
+     * Creates a new statistics kernel.
+     * @param maxTabulatedFactorial Largest n for which log(n!) is precomputed.
+     */
+    public CombinedFisherStatistics(int maxTabulatedFactorial) {
+        logFactorials = new double[maxTabulatedFactorial + 1];
+        for (int i = 2; i < logFactorials.length; i++) {
+            logFactorials[i] = Gamma.logGamma(i + 1.0);
+        }
+
+        int nNormalEntries = (int) ((NORMAL_TABLE_MAX_Z - NORMAL_TABLE_MIN_Z) * NORMAL_TABLE_RESOLUTION) + 1;
+        logUpperTail = new double[nNormalEntries];
+        logUpperTailSlope = new double[nNormalEntries];
+
+        for (int i = 0; i < nNormalEntries; i++) {
+            double z = NORMAL_TABLE_MIN_Z + i / (double) NORMAL_TABLE_RESOLUTION;
+            double upperTail = 0.5 * Erf.erfc(z / FastMath.sqrt(2));
+            double density = FastMath.exp(-0.5 * z * z) / FastMath.sqrt(2 * FastMath.PI);
+
+            logUpperTail[i] = FastMath.log(upperTail);
+            logUpperTailSlope[i] = -density / upperTail;
+        }
+    }
+
+    /**
+     * Returns log(n!).
+     * @param n The number (must not be negative)
+     * @return log(n!)
+     */
+    public double logFactorial(int n) {
+        if (n < logFactorials.length) {
+            return logFactorials[n];
+        }
+
+        return Gamma.logGamma(n + 1.0);
+    }
+
+    /**
+     * Returns the log of the binomial coefficient n over k.
+     * @param n n
+     * @param k k
+     * @return log(n over k)
+     */
+    public double logBinomial(int n, int k) {
+        return logFactorial(n) - logFactorial(k) - logFactorial(n - k);
+    }
+
+    /**
+     * Calculates the probability of observing k successes when drawing n elements
+     * out of N elements of which s are successes. As long as colt's
+     * HyperGeometric(N, s, n).pdf(k) can evaluate its binomial coefficients, the
+     * same value is returned.
+     *
+     * Note: colt multiplies the binomial coefficients as doubles. Once they exceed
+     * ~1.8e308 (ie. N over n for large spectra), it returns NaN or loses all precision.
+     * The combined score of such comparisons was NaN. This implementation returns the
+     * actual probability in these cases, so that these comparisons get a regular score.
+     * If the result is too small to be represented as a double, 0 is returned.
+     *
+     * @param N The total number of elements
+     * @param s The number of successes
+     * @param n The number of elements drawn
+     * @param k The number of observed successes
+     * @return The probability
+     */
+    public double hypergeometricPdf(int N, int s, int n, int k) {
+        if (N < 1 || s < 0 || s > N || n < 0 || n > N || k < FastMath.max(0, n + s - N) || k > FastMath.min(n, s)) {
+            // outside of the distribution's support - use the same formula as colt to
+            // get the identical (degenerated) result
+            return Arithmetic.binomial(s, k) * Arithmetic.binomial(N - s, n - k) / Arithmetic.binomial(N, n);
+        }
+
+        return FastMath.exp(logBinomial(s, k) + logBinomial(N - s, n - k) - logBinomial(N, n));
+    }
+
+    /**
+     * Calculates 1 - cdf(z) of the standard normal distribution. To stay
+     * consistent with the original implementation, the result is rounded as
+     * if it was calculated as 1 - cdf(z). Therefore, the result is 0 for
+     * z &gt; ~8.3.
+     *
+     * @param z The z-score
+     * @return 1 - cdf(z)
+     */
+    public double normalUpperTail(double z) {
+        if (Double.isNaN(z)) {
+            return Double.NaN;
+        }
+        if (z <= NORMAL_TABLE_MIN_Z) {
+            return 1;
+        }
+        if (z >= NORMAL_TABLE_MAX_Z) {
+            return 0;
+        }
+
+        // cubic Hermite interpolation of the log probability
+        double position = (z - NORMAL_TABLE_MIN_Z) * NORMAL_TABLE_RESOLUTION;
+        int index = FastMath.min((int) position, logUpperTail.length - 2);
+        double t = position - index;
+        double h = 1.0 / NORMAL_TABLE_RESOLUTION;
+
+        double t2 = t * t;
+        double t3 = t2 * t;
+
+        double logProbability = (2 * t3 - 3 * t2 + 1) * logUpperTail[index] +
+                (t3 - 2 * t2 + t) * h * logUpperTailSlope[index] +
+                (-2 * t3 + 3 * t2) * logUpperTail[index + 1] +
+                (t3 - t2) * h * logUpperTailSlope[index + 1];
+
+        // round like 1 - cdf(z) to keep the same limits
+        return 1 - (1 - FastMath.exp(logProbability));
+    }
+
+    /**
+     * Density of the chi-square distribution with 4 degrees of freedom.
+     * @param x The value
+     * @return The density
+     */
+    public double chiSquare4Density(double x) {
+        if (x < 0) {
+            return 0;
+        }
+
+        return 0.25 * x * FastMath.exp(-0.5 * x);
+    }
+}
@@ -17,4 +17,22 @@ public interface IBinarySpectrumSimilarity extends Serializable {
      * @return The similarity score as a double.
      */
     double correlation(IBinarySpectrum spectrumA, IBinarySpectrum spectrumB);
+
+    /**
+     * Compute the correlation between two {@link IBinarySpectrum} if it can reach
+     * the defined minimum score. Implementations may stop the calculation as soon
+     * as it is clear that the similarity will be below minScore. In this case, an
+     * upper bound of the similarity is returned that is itself below minScore.
+     * Otherwise, the exact similarity is returned.
+     *
+     * The default implementation always calculates the exact similarity.
+     *
+     * @param spectrumA Spectrum A to be compare
+     * @param spectrumB Spectrum B to be compare
+     * @param minScore The minimum score of interest.
+     * @return The similarity score or an upper bound of it below minScore.
+     */
+    default double correlationAtLeast(IBinarySpectrum spectrumA, IBinarySpectrum spectrumB, double minScore) {
+        return correlation(spectrumA, spectrumB);
+    }
 }
@@ -167,6 +167,185 @@ public class KendallsCorrelation {
         return concordantMinusDiscordant / FastMath.sqrt(nonTiedPairsMultiplied);
     }
 
+    /**
+     * Computes the Kendall's Tau rank correlation coefficient between the first
+     * n values of the two arrays. This returns exactly the same value as
+     * {@link #correlation(IntPair[])} but works on primitive values and re-uses
+     * per-thread scratch buffers so that no objects are created. The passed
+     * arrays are not changed.
+     *
+     * @param x The first values
+     * @param y The second values
+     * @param n The number of values to use from both arrays
+     * @return Returns Kendall's Tau rank correlation coefficient or NaN if n &lt; 1
+     * @throws DimensionMismatchException if one of the arrays holds less than n values
+     */
+    public double correlation(int[] x, int[] y, int n)
+            throws DimensionMismatchException {
+        if (x.length < n) {
+            throw new DimensionMismatchException(x.length, n);
+        }
+        if (y.length < n) {
+            throw new DimensionMismatchException(y.length, n);
+        }
+        if (n < 1) {
+            return Double.NaN;
+        }
+
+        final int numPairs = sum(n - 1);
+        final ScratchBuffers scratch = SCRATCH_BUFFERS.get().ensureCapacity(n);
+
+        // sort the pairs according to x and y by packing them into one long. The
+        // sign bit of y is flipped so that the unsigned lower half sorts like the int.
+        long[] keys = scratch.keys;
+        for (int i = 0; i < n; i++) {
+            keys[i] = ((long) x[i] << 32) | ((y[i] ^ Integer.MIN_VALUE) & 0xFFFFFFFFL);
+        }
+        keys = sortKeys(keys, scratch.keysBuffer, n);
+
+        int tiedXPairs = 0;
+        int tiedXYPairs = 0;
+        int consecutiveXTies = 1;
+        int consecutiveXYTies = 1;
+        int[] values = scratch.values;
+        values[0] = unpackY(keys[0]);
+        for (int i = 1; i < n; i++) {
+            values[i] = unpackY(keys[i]);
+
+            if ((int) (keys[i] >> 32) == (int) (keys[i - 1] >> 32)) {
+                consecutiveXTies++;
+                if (values[i] == values[i - 1]) {
+                    consecutiveXYTies++;
+                } else {
+                    tiedXYPairs += sum(consecutiveXYTies - 1);
+                    consecutiveXYTies = 1;
+                }
+            } else {
+                tiedXPairs += sum(consecutiveXTies - 1);
+                consecutiveXTies = 1;
+                tiedXYPairs += sum(consecutiveXYTies - 1);
+                consecutiveXYTies = 1;
+            }
+        }
+        tiedXPairs += sum(consecutiveXTies - 1);
+        tiedXYPairs += sum(consecutiveXYTies - 1);
+
+        // count the swaps required to sort the y values (Knight's merge sort)
+        int swaps = 0;
+        int[] valuesDestination = scratch.valuesBuffer;
+        for (int segmentSize = 1; segmentSize < n; segmentSize <<= 1) {
+            for (int offset = 0; offset < n; offset += 2 * segmentSize) {
+                int i = offset;
+                final int iEnd = FastMath.min(i + segmentSize, n);
+                int j = iEnd;
+                final int jEnd = FastMath.min(j + segmentSize, n);
+
+                int copyLocation = offset;
+                while (i < iEnd && j < jEnd) {
+                    if (values[i] <= values[j]) {
+                        valuesDestination[copyLocation++] = values[i++];
+                    } else {
+                        valuesDestination[copyLocation++] = values[j++];
+                        swaps += iEnd - i;
+                    }
+                }
+                while (i < iEnd) {
+                    valuesDestination[copyLocation++] = values[i++];
+                }
+                while (j < jEnd) {
+                    valuesDestination[copyLocation++] = values[j++];
+                }
+            }
+            final int[] valuesTemp = values;
+            values = valuesDestination;
+            valuesDestination = valuesTemp;
+        }
+
+        int tiedYPairs = 0;
+        int consecutiveYTies = 1;
+        for (int i = 1; i < n; i++) {
+            if (values[i] == values[i - 1]) {
+                consecutiveYTies++;
+            } else {
+                tiedYPairs += sum(consecutiveYTies - 1);
+                consecutiveYTies = 1;
+            }
+        }
+        tiedYPairs += sum(consecutiveYTies - 1);
+
+        final int concordantMinusDiscordant = numPairs - tiedXPairs - tiedYPairs + tiedXYPairs - 2 * swaps;
+        final double nonTiedPairsMultiplied = (numPairs - tiedXPairs) * (double) (numPairs - tiedYPairs);
+        return concordantMinusDiscordant / FastMath.sqrt(nonTiedPairsMultiplied);
+    }
+
+    /**
+     * Extracts the y value from a packed (x, y) key.
+     * @param key The packed key
+     * @return The y value
+     */
+    private static int unpackY(long key) {
+        return ((int) key) ^ Integer.MIN_VALUE;
+    }
+
+    /**
+     * Sorts the first n keys using a bottom-up merge sort.
+     *
+     * @param keys The keys to sort
+     * @param buffer Buffer of at least n elements
+     * @param n Number of keys to sort
+     * @return The array (either keys or buffer) holding the sorted keys
+     */
+    private static long[] sortKeys(long[] keys, long[] buffer, int n) {
+        for (int segmentSize = 1; segmentSize < n; segmentSize <<= 1) {
+            for (int offset = 0; offset < n; offset += 2 * segmentSize) {
+                int i = offset;
+                final int iEnd = FastMath.min(i + segmentSize, n);
+                int j = iEnd;
+                final int jEnd = FastMath.min(j + segmentSize, n);
+
+                int copyLocation = offset;
+                while (i < iEnd && j < jEnd) {
+                    buffer[copyLocation++] = (keys[i] <= keys[j]) ? keys[i++] : keys[j++];
+                }
+                while (i < iEnd) {
+                    buffer[copyLocation++] = keys[i++];
+                }
+                while (j < jEnd) {
+                    buffer[copyLocation++] = keys[j++];
+                }
+            }
+            final long[] keysTemp = keys;
+            keys = buffer;
+            buffer = keysTemp;
+        }
+
+        return keys;
+    }
+
+    /**
+     * Per-thread scratch buffers used by {@link #correlation(int[], int[], int)}
+     */
+    private static final class ScratchBuffers {
+        private long[] keys = new long[0];
+        private long[] keysBuffer = new long[0];
+        private int[] values = new int[0];
+        private int[] valuesBuffer = new int[0];
+
+        private ScratchBuffers ensureCapacity(int n) {
+            if (keys.length < n) {
+                int capacity = FastMath.max(n, 2 * keys.length);
+                keys = new long[capacity];
+                keysBuffer = new long[capacity];
+                values = new int[capacity];
+                valuesBuffer = new int[capacity];
+            }
+
+            return this;
+        }
+    }
+
+    private static final ThreadLocal<ScratchBuffers> SCRATCH_BUFFERS = ThreadLocal.withInitial(ScratchBuffers::new);
+
     /**
      * Returns the sum of the number from 1 .. n according to Gauss' summation formula:
      * \[ \sum\limits_{k=1}^n k = \frac{n(n + 1)}{2} \]
@@ -23,6 +23,7 @@ public class CliOptions {
         FRAGMENT_PRECISION("fragment.precision", "f"),
 
         N_THREADS("n.threads", "t"),
+        STORAGE_MODE("storage.mode", "sm"),
 
         START_THRESHOLD("threshold.start", "s"),
         END_THRESHOLD("threshold.end", "e"),
@@ -145,6 +146,14 @@ public class CliOptions {
                 .create(OPTIONS.N_THREADS.getValue());
         options.addOption(majorPeakJobs);
 
+        Option storageMode = OptionBuilder
+                .hasArg()
+                .withArgName("MODE")
+                .withDescription("Where the clusters are kept during clustering. Possible MODES are 'memory', 'disk' (default) and 'auto'. 'auto' keeps the clusters in memory if their estimated size fits into the available heap.")
+                .withLongOpt(OPTIONS.STORAGE_MODE.getLongValue())
+                .create(OPTIONS.STORAGE_MODE.getValue());
+        options.addOption(storageMode);
+
         Option binaryDirectory = OptionBuilder
                 .hasArg()
                 .withDescription("Path to the directory to (temporarily) store the binary files. By default a temporary directory is being created")
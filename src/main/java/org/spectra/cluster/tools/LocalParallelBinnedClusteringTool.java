@@ -6,19 +6,34 @@ import io.github.bigbio.pgatk.io.objectdb.LongObject;
 import io.github.bigbio.pgatk.io.objectdb.ObjectsDB;
 import lombok.Data;
 import lombok.extern.slf4j.Slf4j;
+import org.spectra.cluster.binning.BinCostEstimator;
 import org.spectra.cluster.binning.IClusterBinner;
 import org.spectra.cluster.engine.IClusteringEngine;
 import org.spectra.cluster.exceptions.SpectraClusterException;
+import org.spectra.cluster.io.cluster.ChronicleMapClusterStorage;
 import org.spectra.cluster.io.cluster.ClusterStorageFactory;
+import org.spectra.cluster.io.cluster.IClusterViewStorage;
+import org.spectra.cluster.io.cluster.InMemoryClusterStorage;
 import org.spectra.cluster.io.cluster.ObjectDBGreedyClusterStorage;
+import org.spectra.cluster.io.cluster.SegmentClusterStorage;
+import org.spectra.cluster.io.cluster.ShardedClusterStorage;
+import org.spectra.cluster.model.cluster.ClusterView;
 import org.spectra.cluster.model.cluster.GreedySpectralCluster;
 import org.spectra.cluster.model.cluster.ICluster;
 import org.spectra.cluster.model.cluster.IClusterProperties;
 import org.spectra.cluster.util.ClusteringParameters;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.stream.Collectors;
 
 /**
  * This class clusters binned clusters using local temporary files
@@ -29,10 +44,15 @@ import java.util.concurrent.ForkJoinPool;
 @Data
 @Slf4j
 public class LocalParallelBinnedClusteringTool {
+    // number of clusters used to estimate the size of the stored clusters
+    private static final int SIZE_SAMPLE_CLUSTERS = 100;
+
     private final int parallelJobs;
     private final File temporaryStorageDir;
     private final IClusterBinner binner;
     private final Class clusterClass;
+    /** If set, the results of the clustering rounds are kept on the heap */
+    private boolean inMemory = false;
 
     public void runClustering(IClusterProperties[] clusters, IMapStorage<ICluster> clusterStorage,
                               ClusteringParameters clusteringParameters) throws SpectraClusterException {
@@ -50,14 +70,14 @@ public class LocalParallelBinnedClusteringTool {
             if (!firstRoundStorageDir.mkdir())
                 throw new SpectraClusterException("Failed to create storage directory " + firstRoundStorageDir.getAbsolutePath());
 
-            IMapStorage<ICluster> firstRoundStorage = ClusterStorageFactory.buildTemporaryDynamicStorage(firstRoundStorageDir, clusterClass);
-
             // ensure that all clusters were written in the initial storage
             clusterStorage.flush();
 
+            IMapStorage<ICluster> firstRoundStorage = buildRoundStorage(firstRoundStorageDir, clusterStorage, clusters);
+
             // cluster the initially binned clusters
-            IClusterProperties[][] firstRoundResult = clusterMapped(binnedClusterIds, clusterStorage, firstRoundStorage,
-                    clusteringParameters);
+            IClusterProperties[][] firstRoundResult = clusterMapped(binnedClusterIds, clusters, clusterStorage,
+                    firstRoundStorage, clusteringParameters, false);
 
             // close the initial storage
             clusterStorage.close();
@@ -67,7 +87,7 @@ public class LocalParallelBinnedClusteringTool {
                     .flatMap(Arrays::stream)
                     .toArray(IClusterProperties[]::new);
 
-            // repeat for the second round with shifted windows
+            // repeat for the second round with shifted windows - depending on the binner, only some clusters are re-binned
             String[][] rebinnedClusterIds = binner.binClusters(flatFirstRoundResult, true);
 
             // need another temporary storage for the final result
@@ -75,30 +95,30 @@ public class LocalParallelBinnedClusteringTool {
             if (!secondRoundStorageDir.mkdir())
                 throw new SpectraClusterException("Failed to create storage directory " + secondRoundStorageDir.getAbsolutePath());
 
-            IMapStorage<ICluster> secondRoundStorage = ClusterStorageFactory.buildTemporaryDynamicStorage(secondRoundStorageDir, clusterClass);
-
-            // run the clustering again on the re-binned ids
-            IClusterProperties[][] secondRoundResult = clusterMapped(rebinnedClusterIds, firstRoundStorage, secondRoundStorage,
-                    clusteringParameters);
+            IMapStorage<ICluster> secondRoundStorage = buildRoundStorage(secondRoundStorageDir, firstRoundStorage,
+                    flatFirstRoundResult);
 
-            // close the first round storage - thereby deleting the temporary data
-            firstRoundStorage.close();
+            // run the clustering again on the re-binned ids - these clusters no longer change
+            IClusterProperties[][] secondRoundResult = clusterMapped(rebinnedClusterIds, flatFirstRoundResult,
+                    firstRoundStorage, secondRoundStorage, clusteringParameters, true);
 
             // write the final clusters to file
             ObjectDBGreedyClusterStorage writer = new ObjectDBGreedyClusterStorage(
                     new ObjectsDB(clusteringParameters.getOutputFile().getAbsolutePath(), true));
 
+            // clusters that were not clustered again are final after the first round
+            if (!binner.isShiftedBinningComplete()) {
+                writeFirstRoundClusters(firstRoundResult, rebinnedClusterIds, firstRoundStorage, writer);
+            }
+
+            // close the first round storage - thereby deleting the temporary data
+            firstRoundStorage.close();
+
             // write all clusters to storage
-            Arrays.stream(secondRoundResult).flatMap(Arrays::stream)
-                    .forEach((IClusterProperties cp) -> {
-                        try {
-                            GreedySpectralCluster cluster = (GreedySpectralCluster) secondRoundStorage.get(cp.getId());
-                            writer.addGreedySpectralCluster(LongObject.asLongHash(cluster.getId()), cluster);
-                        }
-                        catch (Exception e) {
-                            throw new RuntimeException(e);
-                        }
-                    });
+            for (IClusterProperties[] bin : secondRoundResult) {
+                writeFinalClusters(secondRoundStorage,
+                        Arrays.stream(bin).map(IClusterProperties::getId).toArray(String[]::new), writer);
+            }
 
             // save the final file
             writer.writeDBMode();
@@ -111,65 +131,360 @@ public class LocalParallelBinnedClusteringTool {
         }
     }
 
+    /**
+     * Writes the clusters of the first round that were not re-binned for the second round
+     * in their frozen form.
+     *
+     * @param firstRoundResult The first round's clusters per bin.
+     * @param rebinnedClusterIds The ids of the clusters that were clustered again.
+     * @param firstRoundStorage The storage holding the first round's clusters.
+     * @param writer The writer to add the clusters to.
+     */
+    private void writeFirstRoundClusters(IClusterProperties[][] firstRoundResult, String[][] rebinnedClusterIds,
+                                         IMapStorage<ICluster> firstRoundStorage, ObjectDBGreedyClusterStorage writer) throws Exception {
+        Set<String> rebinnedIds = Arrays.stream(rebinnedClusterIds)
+                .flatMap(Arrays::stream)
+                .collect(Collectors.toSet());
+        int nWrittenClusters = 0;
+
+        // load the clusters bin-wise
+        for (IClusterProperties[] bin : firstRoundResult) {
+            String[] finalIds = Arrays.stream(bin)
+                    .map(IClusterProperties::getId)
+                    .filter(id -> !rebinnedIds.contains(id))
+                    .toArray(String[]::new);
+
+            writeFinalClusters(firstRoundStorage, finalIds, writer);
+
+            nWrittenClusters += finalIds.length;
+        }
+
+        log.info(String.format("%d clusters were final after the first round", nWrittenClusters));
+    }
+
+    /**
+     * Writes clusters to the final result in their frozen form.
+     *
+     * If the storage keeps the clusters in their binary representation, clusters that
+     * are already frozen (ie. the result of the second round) are copied as they are
+     * using their {@link ClusterView}. Only clusters that still have to be frozen are
+     * loaded completely.
+     *
+     * @param storage The storage holding the clusters.
+     * @param clusterIds The ids of the clusters to write.
+     * @param writer The writer to add the clusters to.
+     */
+    private void writeFinalClusters(IMapStorage<ICluster> storage, String[] clusterIds,
+                                    ObjectDBGreedyClusterStorage writer) throws Exception {
+        if (!(storage instanceof IClusterViewStorage)) {
+            for (ICluster cluster : loadClusters(storage, clusterIds)) {
+                GreedySpectralCluster frozenCluster = ((GreedySpectralCluster) cluster).freeze();
+                writer.addGreedySpectralCluster(LongObject.asLongHash(frozenCluster.getId()), frozenCluster);
+            }
+
+            return;
+        }
+
+        for (String clusterId : clusterIds) {
+            ClusterView view = ((IClusterViewStorage) storage).getClusterView(clusterId);
+
+            if (view == null) {
+                throw new SpectraClusterException("Cluster " + clusterId + " is missing in the temporary storage");
+            }
+
+            if (view.isFrozen()) {
+                writer.addClusterView(view);
+            } else {
+                GreedySpectralCluster frozenCluster = ((GreedySpectralCluster) view.toCluster()).freeze();
+                writer.addGreedySpectralCluster(LongObject.asLongHash(frozenCluster.getId()), frozenCluster);
+            }
+        }
+    }
+
+    /**
+     * Creates the temporary storage for the result of a clustering round. In the in-memory mode,
+     * the clusters are kept on the heap. {@link GreedySpectralCluster}s are stored in sharded
+     * {@link SegmentClusterStorage}s, every clustering thread writes to its own shard and every
+     * bin's clusters are stored as one segment.
+     *
+     * Other cluster classes are stored in a static storage (see
+     * {@link ClusterStorageFactory#buildTemporaryStorage(File, long, ICluster[], Class)}). Since a round
+     * never creates more clusters than it receives, the number of clusters entering the round is used
+     * as the number of entries. The average entry size is measured on a sample of these clusters. Merged
+     * clusters are larger but fewer, clusters exceeding the average are covered by the storage's
+     * bloat factor.
+     *
+     * @param storageDir The directory to create the storage in.
+     * @param inputStorage The storage holding the clusters entering the round.
+     * @param inputClusters The clusters entering the round.
+     * @return The storage.
+     * @throws SpectraClusterException If the storage cannot be created.
+     * @throws PgatkIOException If the sample clusters cannot be loaded.
+     */
+    private IMapStorage<ICluster> buildRoundStorage(File storageDir, IMapStorage<ICluster> inputStorage,
+                                                    IClusterProperties[] inputClusters) throws SpectraClusterException, PgatkIOException {
+        if (inMemory) {
+            log.info("Keeping clustering results in memory");
+            return ClusterStorageFactory.buildInMemoryStorage();
+        }
+
+        // the segment storage relies on the GreedySpectralCluster's serialization
+        if (clusterClass == GreedySpectralCluster.class) {
+            log.info(String.format("Using segment cluster storage with %d shards in %s", parallelJobs, storageDir.getAbsolutePath()));
+            return ClusterStorageFactory.buildTemporaryShardedSegmentStorage(storageDir, parallelJobs);
+        }
+
+        // load evenly spaced clusters to estimate their size
+        int nSamples = Math.min(SIZE_SAMPLE_CLUSTERS, inputClusters.length);
+        String[] sampleIds = new String[nSamples];
+
+        for (int i = 0; i < nSamples; i++) {
+            sampleIds[i] = inputClusters[(int) ((long) i * inputClusters.length / nSamples)].getId();
+        }
+
+        ICluster[] sampleClusters = Arrays.stream(loadClusters(inputStorage, sampleIds))
+                .filter(Objects::nonNull)
+                .toArray(ICluster[]::new);
+
+        return ClusterStorageFactory.buildTemporaryStorage(storageDir, inputClusters.length, sampleClusters, clusterClass);
+    }
+
+    /**
+     * Loads the clusters of a bin.
+     *
+     * @param clusterStorage The storage to load the clusters from.
+     * @param clusterIds The ids of the clusters to load.
+     * @return The loaded clusters.
+     */
+    private ICluster[] loadClusters(IMapStorage<ICluster> clusterStorage, String[] clusterIds) throws PgatkIOException {
+        // read the required segments at once
+        if (clusterStorage instanceof ShardedClusterStorage) {
+            return ((ShardedClusterStorage) clusterStorage).getAll(clusterIds);
+        }
+        if (clusterStorage instanceof SegmentClusterStorage) {
+            return ((SegmentClusterStorage) clusterStorage).getAll(clusterIds);
+        }
+
+        // parallel reads are not a problem
+        ICluster[] loadedClusters = new ICluster[clusterIds.length];
+
+        for (int i = 0; i < clusterIds.length; i++) {
+            loadedClusters[i] = clusterStorage.get(clusterIds[i]);
+        }
+
+        return loadedClusters;
+    }
+
     /**
      * Write clusters to a shared storage.
      *
-     * The function ensures that only one writing process is active at a time.
+     * {@link ShardedClusterStorage}s are written to without any locking, every thread writes
+     * to its own shard. These storages are only flushed at the end of the round. {@link InMemoryClusterStorage}s
+     * and {@link ChronicleMapClusterStorage}s support concurrent writes and are also written to without
+     * any locking. For all other storages, the function ensures that only one writing process is
+     * active at a time.
      *
      * Clusters are stored with their id as key.
      *
-     * @param storage The storage to use. After writing all clusters, "flush" is called on the storage object.
+     * @param storage The storage to use. After writing all clusters, "flush" is called on non-sharded storage objects.
      * @param clusters The clusters to write.
      * @throws PgatkIOException Thrown on I/O errors.
      */
-    private synchronized void writeClusters(IMapStorage<ICluster> storage, ICluster[] clusters) throws PgatkIOException {
+    private void writeClusters(IMapStorage<ICluster> storage, ICluster[] clusters) throws PgatkIOException {
         log.debug("Writing clusters...");
-        for (ICluster cluster : clusters)  {
-            storage.put(cluster.getId(), cluster);
+
+        if (storage instanceof ShardedClusterStorage) {
+            ((ShardedClusterStorage) storage).putAll(clusters);
+            log.debug("Writing clusters DONE.");
+            return;
         }
 
-        try {
-            storage.flush();
-        } catch (PgatkIOException e) {
-            log.error("Failed to flush clusters");
-            e.printStackTrace();
-            throw e;
+        // the in-memory storage and ChronicleMap support concurrent writes and do not need to be flushed
+        if (storage instanceof InMemoryClusterStorage || storage instanceof ChronicleMapClusterStorage) {
+            for (ICluster cluster : clusters) {
+                storage.put(cluster.getId(), cluster);
+            }
+
+            log.debug("Writing clusters DONE.");
+            return;
+        }
+
+        synchronized (this) {
+            for (ICluster cluster : clusters) {
+                storage.put(cluster.getId(), cluster);
+            }
+
+            try {
+                storage.flush();
+            } catch (PgatkIOException e) {
+                log.error("Failed to flush clusters");
+                e.printStackTrace();
+                throw e;
+            }
         }
 
         log.debug("Writing clusters DONE.");
     }
 
-    private IClusterProperties[][] clusterMapped(String[][] binnedClusterIds, IMapStorage<ICluster> clusterStorage,
-                                                 IMapStorage<ICluster> resultStorage, ClusteringParameters clusteringParameters) throws Exception {
-        // start the clustering
-        ForkJoinPool clusteringPool = new ForkJoinPool(parallelJobs, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
-        return clusteringPool.submit(() -> Arrays.stream(binnedClusterIds).parallel().map((String[] clusterIds) -> {
-            try {
-                IClusteringEngine engine = clusteringParameters.createGreedyClusteringEngine();
+    /**
+     * Clusters every bin and writes the resulting clusters to the result storage.
+     *
+     * The bins are dispatched to the clustering threads in the order of their estimated cost
+     * (see {@link BinCostEstimator}), the most expensive bin first. Every bin is a separate task
+     * so that idle threads take over the remaining bins while the expensive ones are still
+     * being processed. Thereby, the round is no longer delayed by a large bin that is only
+     * started at the end.
+     *
+     * @param binnedClusterIds The cluster ids per bin.
+     * @param clusters The properties of all binned clusters. Used to estimate the bins' cost.
+     * @param clusterStorage The storage to load the clusters from.
+     * @param resultStorage The storage to write the resulting clusters to.
+     * @param clusteringParameters The clustering parameters to use.
+     * @param freezeResult If set, the resulting clusters are stored in their frozen form
+     *                     (see {@link GreedySpectralCluster#freeze()}). This must only be used
+     *                     if the resulting clusters are not clustered again.
+     * @return The properties of the resulting clusters per bin.
+     */
+    private IClusterProperties[][] clusterMapped(String[][] binnedClusterIds, IClusterProperties[] clusters,
+                                                 IMapStorage<ICluster> clusterStorage, IMapStorage<ICluster> resultStorage,
+                                                 ClusteringParameters clusteringParameters, boolean freezeResult) throws Exception {
+        // estimate the cost of every bin
+        long[] binCosts = estimateBinCosts(binnedClusterIds, clusters, clusteringParameters.getIntPrecursorTolerance());
+        int[] binOrder = BinCostEstimator.orderByCost(binCosts);
+
+        IClusterProperties[][] roundResult = new IClusterProperties[binnedClusterIds.length][];
+        long[] binTimes = new long[binnedClusterIds.length];
 
-                // load the clusters - parallel reads are not a problem
-                ICluster[] loadedClusters = new ICluster[clusterIds.length];
+        // start the clustering - the pool uses FIFO scheduling for the submitted bins
+        ForkJoinPool clusteringPool = new ForkJoinPool(parallelJobs, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+        List<ForkJoinTask<?>> binTasks = new ArrayList<>(binnedClusterIds.length);
+        long roundStart = System.currentTimeMillis();
 
-                for (int i = 0; i < clusterIds.length; i++) {
+        try {
+            for (int binIndex : binOrder) {
+                binTasks.add(clusteringPool.submit(() -> {
                     try {
-                        loadedClusters[i] = clusterStorage.get(clusterIds[i]);
+                        long binStart = System.currentTimeMillis();
+
+                        roundResult[binIndex] = clusterBin(binnedClusterIds[binIndex], clusterStorage, resultStorage,
+                                clusteringParameters, freezeResult);
+
+                        binTimes[binIndex] = System.currentTimeMillis() - binStart;
+                        log.debug(String.format("Bin %d (%d clusters, estimated cost %d) clustered in %d ms",
+                                binIndex, binnedClusterIds[binIndex].length, binCosts[binIndex], binTimes[binIndex]));
                     } catch (Exception e) {
+                        log.error("Clustering failed: " + e.toString());
                         throw new RuntimeException(e);
                     }
+                }));
+            }
+
+            for (ForkJoinTask<?> binTask : binTasks) {
+                binTask.get();
+            }
+        } finally {
+            clusteringPool.shutdownNow();
+        }
+
+        // the round is complete
+        resultStorage.flush();
+
+        logRoundTimes(binnedClusterIds, binTimes, System.currentTimeMillis() - roundStart);
+
+        return roundResult;
+    }
+
+    /**
+     * Clusters the clusters of a single bin and writes the result to the result storage.
+     *
+     * @param clusterIds The ids of the bin's clusters.
+     * @param clusterStorage The storage to load the clusters from.
+     * @param resultStorage The storage to write the resulting clusters to.
+     * @param clusteringParameters The clustering parameters to use.
+     * @param freezeResult If set, the resulting clusters are stored in their frozen form.
+     * @return The properties of the resulting clusters.
+     */
+    private IClusterProperties[] clusterBin(String[] clusterIds, IMapStorage<ICluster> clusterStorage,
+                                            IMapStorage<ICluster> resultStorage, ClusteringParameters clusteringParameters,
+                                            boolean freezeResult) throws Exception {
+        IClusteringEngine engine = clusteringParameters.createGreedyClusteringEngine();
+
+        // load the clusters
+        ICluster[] loadedClusters = loadClusters(clusterStorage, clusterIds);
+
+        // run the clustering
+        ICluster[] result = engine.clusterSpectra(loadedClusters);
+
+        // drop the merge state if it's no longer needed
+        if (freezeResult) {
+            for (int i = 0; i < result.length; i++) {
+                if (result[i] instanceof GreedySpectralCluster) {
+                    result[i] = ((GreedySpectralCluster) result[i]).freeze();
                 }
+            }
+        }
+
+        // save the clusters
+        writeClusters(resultStorage, result);
+
+        // return the properties
+        return Arrays.stream(result).map(ICluster::getProperties).toArray(IClusterProperties[]::new);
+    }
+
+    /**
+     * Estimates the cost of clustering every bin (see {@link BinCostEstimator}).
+     *
+     * @param binnedClusterIds The cluster ids per bin.
+     * @param clusters The properties of all binned clusters.
+     * @param windowSize The precursor window size to use.
+     * @return The estimated cost per bin.
+     */
+    private long[] estimateBinCosts(String[][] binnedClusterIds, IClusterProperties[] clusters, int windowSize) {
+        Map<String, Integer> precursorMz = new HashMap<>(clusters.length);
 
-                // run the clustering
-                ICluster[] result = engine.clusterSpectra(loadedClusters);
+        for (IClusterProperties cluster : clusters) {
+            precursorMz.put(cluster.getId(), cluster.getPrecursorMz());
+        }
+
+        long[] binCosts = new long[binnedClusterIds.length];
+
+        for (int i = 0; i < binnedClusterIds.length; i++) {
+            int[] binPrecursorMz = Arrays.stream(binnedClusterIds[i])
+                    .mapToInt(precursorMz::get)
+                    .toArray();
+
+            binCosts[i] = BinCostEstimator.estimateCost(binPrecursorMz, Math.max(1, windowSize));
+        }
 
-                // save the clusters
-                writeClusters(resultStorage, result);
+        return binCosts;
+    }
 
-                // return the properties
-                return Arrays.stream(result).map(ICluster::getProperties).toArray(IClusterProperties[]::new);
-            } catch (Exception e) {
-                log.error("Clustering failed: " + e.toString());
-                throw new RuntimeException(e);
+    /**
+     * Reports the bins' clustering times.
+     *
+     * @param binnedClusterIds The cluster ids per bin.
+     * @param binTimes The clustering time per bin in milliseconds.
+     * @param roundTime The total time of the round in milliseconds.
+     */
+    private void logRoundTimes(String[][] binnedClusterIds, long[] binTimes, long roundTime) {
+        if (binTimes.length < 1) {
+            return;
+        }
+
+        int slowestBin = 0;
+        long totalBinTime = 0;
+
+        for (int i = 0; i < binTimes.length; i++) {
+            totalBinTime += binTimes[i];
+
+            if (binTimes[i] > binTimes[slowestBin]) {
+                slowestBin = i;
             }
-        }).toArray(IClusterProperties[][]::new)).get();
+        }
+
+        log.info(String.format("Clustered %d bins in %d ms (%d ms total bin time, %.1f%% thread utilization). " +
+                        "Slowest bin: %d ms (%d clusters)", binTimes.length, roundTime, totalBinTime,
+                (roundTime > 0) ? 100.0 * totalBinTime / (roundTime * parallelJobs) : 100.0,
+                binTimes[slowestBin], binnedClusterIds[slowestBin].length));
     }
 }
@@ -9,11 +9,13 @@ import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.PosixParser;
+import org.spectra.cluster.binning.GapPartitionBinner;
 import org.spectra.cluster.binning.IClusterBinner;
 import org.spectra.cluster.binning.SimilarSizedClusterBinner;
 import org.spectra.cluster.consensus.AverageConsensusSpectrumBuilder;
 import org.spectra.cluster.exceptions.MissingParameterException;
 import org.spectra.cluster.io.cluster.ClusterStorageFactory;
+import org.spectra.cluster.io.cluster.InMemoryClusterStorage;
 import org.spectra.cluster.io.cluster.ObjectDBGreedyClusterStorage;
 import org.spectra.cluster.io.result.DotClusteringWriter;
 import org.spectra.cluster.io.result.IClusteringResultWriter;
@@ -50,6 +52,18 @@ import java.util.List;
  */
 @Slf4j
 public class SpectraClusterTool implements IProgressListener {
+    public static final String STORAGE_MODE_MEMORY = "memory";
+    public static final String STORAGE_MODE_DISK = "disk";
+    public static final String STORAGE_MODE_AUTO = "auto";
+    public static final String BINNING_MODE_WINDOW = "window";
+    public static final String BINNING_MODE_GAP = "gap";
+
+    // every n-th loaded cluster is serialized to estimate the clusters' size in the automatic storage mode
+    private static final int SIZE_SAMPLE_INTERVAL = 100;
+    // heap used by a loaded cluster per byte of its serialized form (measured as 1.1 - 2 depending on the number of peaks)
+    private static final double HEAP_BYTES_PER_SERIALIZED_BYTE = 2;
+    // the loaded clusters and the results of both clustering rounds are kept in memory at the same time
+    private static final int IN_MEMORY_CLUSTER_COPIES = 3;
 
     public static void main(String[] args) {
         SpectraClusterTool instance = new SpectraClusterTool();
@@ -142,6 +156,9 @@ public class SpectraClusterTool implements IProgressListener {
         log.info("Remove reporter peaks: {}", clusteringParameters.isFilterReportPeaks());
         log.info("Minimum number of comparisons: {}", clusteringParameters.getMinNumberOfComparisons());
         log.info("Number of threads: {}", clusteringParameters.getNThreads());
+        log.info("Binning mode: {}", clusteringParameters.getBinningMode());
+        log.info("Maximum bin size: {}", clusteringParameters.getMaxBinSize() > 0 ? clusteringParameters.getMaxBinSize() : "unlimited");
+        log.info("Storage mode: {}", clusteringParameters.getStorageMode());
         log.info("-----------------------------------------------");
     }
 
@@ -156,26 +173,33 @@ public class SpectraClusterTool implements IProgressListener {
         IPropertyStorage propertyStorage = PropertyStorageFactory
                 .buildDynamicLevelDBPropertyStorage(new File(clusteringParameters.getBinaryDirectory()));
 
-        File clusterStorageDir = createUniqueDirectory(new File(clusteringParameters.getBinaryDirectory(), "loaded-clusters"));
-        log.debug("Storing loaded clusters in {}", clusterStorageDir.getAbsolutePath());
-        IMapStorage<ICluster> clusterStorage = ClusterStorageFactory.buildTemporaryDynamicStorage(clusterStorageDir, GreedySpectralCluster.class);
+        // in the automatic mode, the clusters are loaded into memory as long as their estimated size fits into the heap
+        String storageMode = clusteringParameters.getStorageMode();
+        IMapStorage<ICluster> clusterStorage = STORAGE_MODE_DISK.equalsIgnoreCase(storageMode) ?
+                createLoadingStorage(clusteringParameters) : ClusterStorageFactory.buildInMemoryStorage();
 
         // load the spectra
         log.info("Loading spectra from {} input files...", peakFiles.length);
-        IClusterProperties[] loadedClusters = loadInputFiles(peakFiles, clusteringParameters, propertyStorage, clusterStorage);
+        List<IClusterProperties> loadedClusterList = new ArrayList<>(1000);
+        clusterStorage = loadInputFiles(peakFiles, clusteringParameters, propertyStorage, clusterStorage,
+                loadedClusterList, STORAGE_MODE_AUTO.equalsIgnoreCase(storageMode));
+        IClusterProperties[] loadedClusters = loadedClusterList.toArray(new IClusterProperties[0]);
 
         log.info("Loaded {} spectra", loadedClusters.length);
 
         // run the clustering in parallel
         File clusteringTmpDir = createUniqueDirectory(new File(clusteringParameters.getBinaryDirectory(), "clustering-files"));
 
-        IClusterBinner clusterBinner = new SimilarSizedClusterBinner(
-                2 * clusteringParameters.getIntPrecursorTolerance(),
-                1_000, !clusteringParameters.isIgnoreCharge());
+        IClusterBinner clusterBinner = createClusterBinner(clusteringParameters);
 
         LocalParallelBinnedClusteringTool clusteringTool = new LocalParallelBinnedClusteringTool(
                 clusteringParameters.getNThreads(), clusteringTmpDir, clusterBinner, GreedySpectralCluster.class);
 
+        // the clustering rounds are only kept in memory if the loaded clusters fit into the heap
+        boolean inMemory = clusterStorage instanceof InMemoryClusterStorage;
+        clusteringTool.setInMemory(inMemory);
+        log.info("Clustering mode: {}", inMemory ? "in memory" : "disk based");
+
         LocalDateTime startTime = LocalDateTime.now();
         log.info("Clustering input data using {} threads...", clusteringParameters.getNThreads());
 
@@ -219,19 +243,49 @@ public class SpectraClusterTool implements IProgressListener {
         propertyStorage.close();
     }
 
+    /**
+     * Creates the cluster binner defined by the binning mode.
+     *
+     * @param clusteringParameters The clustering parameters to use.
+     * @return The cluster binner.
+     */
+    private IClusterBinner createClusterBinner(ClusteringParameters clusteringParameters) {
+        if (BINNING_MODE_GAP.equalsIgnoreCase(clusteringParameters.getBinningMode())) {
+            return new GapPartitionBinner(clusteringParameters.getIntPrecursorTolerance(), 1_000,
+                    clusteringParameters.getMaxBinSize(), !clusteringParameters.isIgnoreCharge());
+        }
+
+        SimilarSizedClusterBinner clusterBinner = new SimilarSizedClusterBinner(
+                2 * clusteringParameters.getIntPrecursorTolerance(),
+                1_000, !clusteringParameters.isIgnoreCharge());
+        clusterBinner.setMaximumBinSizeCluster(clusteringParameters.getMaxBinSize());
+
+        return clusterBinner;
+    }
+
     /**
      * Loads all spectra from the defined peak list files as IClusters. The clusters are stored in the defined clusterStorage.
-     * The cluster's properties are stored in the propertyStorage. The cluster's basic properties are returned as an array.
+     * The cluster's properties are stored in the propertyStorage. The cluster's basic properties are added to
+     * the loadedClusters.
+     *
+     * If limitHeapUsage is set and the clusters are loaded into an {@link InMemoryClusterStorage}, the
+     * clusters are moved to a disk based storage once their estimated size no longer fits into the heap
+     * that was available when loading started. The clusters' size is extrapolated from the serialized
+     * size of every {@link #SIZE_SAMPLE_INTERVAL}-th cluster. Since the clustering rounds keep their
+     * results in memory as well, {@link #IN_MEMORY_CLUSTER_COPIES} times this size must fit into the heap.
      *
      * @param peakFiles Files to load.
      * @param clusteringParameters Clustering parameters to use.
      * @param propertyStorage The property storage.
      * @param clusterStorage Storage to store the clusters in.
-     * @return The IClusterProperties of the loaded clusters.
+     * @param loadedClusters List to add the IClusterProperties of the loaded clusters to.
+     * @param limitHeapUsage If set, in-memory storages are replaced by a disk based storage if the clusters do not fit into the heap.
+     * @return The storage holding the loaded clusters.
      */
-    private IClusterProperties[] loadInputFiles(String[] peakFiles, ClusteringParameters clusteringParameters,
-                                                IPropertyStorage propertyStorage, IMapStorage<ICluster> clusterStorage)
-                                                throws Exception {
+    private IMapStorage<ICluster> loadInputFiles(String[] peakFiles, ClusteringParameters clusteringParameters,
+                                                 IPropertyStorage propertyStorage, IMapStorage<ICluster> clusterStorage,
+                                                 List<IClusterProperties> loadedClusters, boolean limitHeapUsage)
+                                                 throws Exception {
         log.debug(String.format("Loading spectra from %d input files", peakFiles.length));
         LocalDateTime startTime = LocalDateTime.now();
 
@@ -245,8 +299,10 @@ public class SpectraClusterTool implements IProgressListener {
 
         // create the iterator to load the clusters
         Iterator<ICluster> iterator = reader.readClusterIterator(propertyStorage);
-
-        List<IClusterProperties> loadedClusters = new ArrayList<>(1000);
+        Runtime runtime = Runtime.getRuntime();
+        long heapBudget = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+        long sampledBytes = 0;
+        int nSampledClusters = 0;
 
         while (iterator.hasNext()) {
             ICluster cluster = iterator.next();
@@ -256,6 +312,22 @@ public class SpectraClusterTool implements IProgressListener {
 
             // only retain the basic properties
             loadedClusters.add(cluster.getProperties());
+
+            // estimate the size of all clusters based on a sample of serialized clusters
+            if (limitHeapUsage && clusterStorage instanceof InMemoryClusterStorage &&
+                    loadedClusters.size() % SIZE_SAMPLE_INTERVAL == 1) {
+                sampledBytes += cluster.toBytes().length;
+                nSampledClusters++;
+
+                double estimatedSize = (double) sampledBytes / nSampledClusters * loadedClusters.size() *
+                        HEAP_BYTES_PER_SERIALIZED_BYTE * IN_MEMORY_CLUSTER_COPIES;
+
+                if (estimatedSize > heapBudget) {
+                    log.info("Estimated size of the clusters exceeds the available heap after {} spectra, moving them to disk",
+                            loadedClusters.size());
+                    clusterStorage = moveToDisk((InMemoryClusterStorage) clusterStorage, clusteringParameters);
+                }
+            }
         }
 
         // some nice output
@@ -263,7 +335,41 @@ public class SpectraClusterTool implements IProgressListener {
         log.debug(String.format("Loaded %d spectra in %d seconds", loadedClusters.size(),
                 Duration.between(startTime, loadingCompleteTime).getSeconds()));
 
-        return loadedClusters.toArray(new IClusterProperties[0]);
+        return clusterStorage;
+    }
+
+    /**
+     * Creates the disk based storage to load the spectra into.
+     *
+     * @param clusteringParameters The clustering parameters defining the temporary directory.
+     * @return The storage.
+     * @throws Exception If the storage cannot be created.
+     */
+    private IMapStorage<ICluster> createLoadingStorage(ClusteringParameters clusteringParameters) throws Exception {
+        File clusterStorageDir = createUniqueDirectory(new File(clusteringParameters.getBinaryDirectory(), "loaded-clusters"));
+        log.debug("Storing loaded clusters in {}", clusterStorageDir.getAbsolutePath());
+
+        return ClusterStorageFactory.buildTemporaryDynamicStorage(clusterStorageDir, GreedySpectralCluster.class);
+    }
+
+    /**
+     * Moves all clusters from the in-memory storage to a new disk based storage.
+     *
+     * @param memoryStorage The in-memory storage. It is closed afterwards.
+     * @param clusteringParameters The clustering parameters defining the temporary directory.
+     * @return The disk based storage.
+     * @throws Exception If the storage cannot be created.
+     */
+    private IMapStorage<ICluster> moveToDisk(InMemoryClusterStorage memoryStorage, ClusteringParameters clusteringParameters) throws Exception {
+        IMapStorage<ICluster> diskStorage = createLoadingStorage(clusteringParameters);
+
+        for (ICluster cluster : memoryStorage.getClusters()) {
+            diskStorage.put(cluster.getId(), cluster);
+        }
+
+        memoryStorage.close();
+
+        return diskStorage;
     }
 
     /**
@@ -313,6 +419,19 @@ public class SpectraClusterTool implements IProgressListener {
             !"low".equalsIgnoreCase(clusteringParameters.getFragmentIonPrecision())) {
             throw new Exception("Invalid fragment precision set. Allowed values are 'low' and 'high'");
         }
+
+        // check whether the storage mode is valid
+        if (!STORAGE_MODE_MEMORY.equalsIgnoreCase(clusteringParameters.getStorageMode()) &&
+            !STORAGE_MODE_DISK.equalsIgnoreCase(clusteringParameters.getStorageMode()) &&
+            !STORAGE_MODE_AUTO.equalsIgnoreCase(clusteringParameters.getStorageMode())) {
+            throw new Exception("Invalid storage mode set. Allowed values are 'memory', 'disk' and 'auto'");
+        }
+
+        // check whether the binning mode is valid
+        if (!BINNING_MODE_WINDOW.equalsIgnoreCase(clusteringParameters.getBinningMode()) &&
+            !BINNING_MODE_GAP.equalsIgnoreCase(clusteringParameters.getBinningMode())) {
+            throw new Exception("Invalid binning mode set. Allowed values are 'window' and 'gap'");
+        }
     }
 
     private void printUsage() {
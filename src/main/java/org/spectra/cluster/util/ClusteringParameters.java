@@ -3,7 +3,9 @@ package org.spectra.cluster.util;
 import lombok.Data;
 import org.apache.commons.cli.CommandLine;
 import org.spectra.cluster.cdf.SpectraPerBinNumberComparisonAssessor;
+import org.spectra.cluster.engine.ComparisonPeakIndex;
 import org.spectra.cluster.engine.GreedyClusteringEngine;
+import org.spectra.cluster.engine.MinHashCandidateIndex;
 import org.spectra.cluster.filter.binaryspectrum.IBinarySpectrumFunction;
 import org.spectra.cluster.filter.rawpeaks.*;
 import org.spectra.cluster.model.cluster.ICluster;
@@ -48,12 +50,23 @@ public class ClusteringParameters {
     private Float thresholdEnd;
     private int nInitiallySharedPeaks;
     private int minNumberOfComparisons;
+    /** Size of the MinHash signature used to pre-select candidates. 0 disables the LSH pre-filter. */
+    private int lshSignatureSize;
+    private int lshBands = MinHashCandidateIndex.DEFAULT_BANDS;
+    /** Maximum number of peaks per noise filter window kept by consensus spectra. 0 keeps all peaks. */
+    private int maxConsensusPeaksPerWindow;
+    /** Maximum number of clusters per bin. Larger bins are split. 0 disables splitting. */
+    private int maxBinSize;
+    /** How clusters are binned: "window" for fixed width, shifted windows or "gap" to partition at precursor gaps. */
+    private String binningMode = "window";
 
     private File outputFile;
     private boolean outputMsp;
     private boolean outputDotClustering;
 
     private int nThreads;
+    /** Where the clusters are kept during clustering: "memory", "disk" or "auto" to decide based on the clusters' estimated size. */
+    private String storageMode = "disk";
 
 
     public ClusteringParameters(){
@@ -95,6 +108,18 @@ public class ClusteringParameters {
             this.nInitiallySharedPeaks = Integer.parseInt(properties.getProperty("initially.shared.peaks"));
         if(properties.containsKey("x.min.comparisons"))
             this.minNumberOfComparisons = Integer.parseInt(properties.getProperty("x.min.comparisons"));
+        if(properties.containsKey("x.lsh.signature.size"))
+            this.lshSignatureSize = Integer.parseInt(properties.getProperty("x.lsh.signature.size").trim());
+        if(properties.containsKey("x.lsh.bands"))
+            this.lshBands = Integer.parseInt(properties.getProperty("x.lsh.bands").trim());
+        if(properties.containsKey("x.consensus.max.peaks.per.window"))
+            this.maxConsensusPeaksPerWindow = Integer.parseInt(properties.getProperty("x.consensus.max.peaks.per.window").trim());
+        if(properties.containsKey("x.max.bin.size"))
+            this.maxBinSize = Integer.parseInt(properties.getProperty("x.max.bin.size").trim());
+        if(properties.containsKey("x.binning.mode"))
+            this.binningMode = properties.getProperty("x.binning.mode").trim();
+        if(properties.containsKey("storage.mode"))
+            this.storageMode = properties.getProperty("storage.mode").trim();
         if(properties.containsKey("output.msp"))
             this.outputMsp = Boolean.parseBoolean(properties.getProperty("output.msp"));
         if(properties.containsKey("output.dot_clustering"))
@@ -153,6 +178,9 @@ public class ClusteringParameters {
         if (commandLine.hasOption(CliOptions.OPTIONS.N_THREADS.getValue()))
             nThreads = Integer.parseInt(commandLine.getOptionValue(CliOptions.OPTIONS.N_THREADS.getValue()));
 
+        if (commandLine.hasOption(CliOptions.OPTIONS.STORAGE_MODE.getValue()))
+            storageMode = commandLine.getOptionValue(CliOptions.OPTIONS.STORAGE_MODE.getValue());
+
         outputMsp = commandLine.hasOption(CliOptions.OPTIONS.OUTPUT_MSP.getValue());
         outputDotClustering = commandLine.hasOption(CliOptions.OPTIONS.OUTPUT_CLUSTERING.getValue());
     }
@@ -219,6 +247,20 @@ public class ClusteringParameters {
                 numberOfComparisonAssessor, firstRoundPredicate,
                 windowSizeNoiseFilter);
 
+        // the LSH pre-filter is approximate and therefore has to be enabled explicitly
+        if (lshSignatureSize > 0) {
+            int signatureSize = lshSignatureSize;
+            int bands = lshBands;
+            engine.setFirstRoundCandidateIndexSupplier(() -> new MinHashCandidateIndex(signatureSize, bands));
+        }
+        // the index only returns clusters sharing the minimum number of peaks
+        else if (nInitiallySharedPeaks > 0) {
+            int minSharedPeaks = nInitiallySharedPeaks;
+            engine.setFirstRoundCandidateIndexSupplier(() -> new ComparisonPeakIndex(minSharedPeaks));
+        }
+
+        engine.setMaxConsensusPeaksPerWindow(maxConsensusPeaksPerWindow);
+
         return engine;
     }
 
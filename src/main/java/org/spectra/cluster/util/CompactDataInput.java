@@ -0,0 +1,203 @@
+package org.spectra.cluster.util;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads the values written by a {@link CompactDataOutput}. All methods throw an
+ * IllegalArgumentException if the data ends unexpectedly.
+ *
+ * @author jg
+ */
+public class CompactDataInput {
+    private final byte[] data;
+    private final int end;
+    private int position;
+
+    /**
+     * Creates a new input reading all passed bytes.
+     * @param data The data to read.
+     */
+    public CompactDataInput(byte[] data) {
+        this(data, 0, data.length);
+    }
+
+    /**
+     * Creates a new input.
+     * @param data The data to read.
+     * @param offset The first byte to read.
+     * @param length The number of bytes to read.
+     */
+    public CompactDataInput(byte[] data, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > data.length) {
+            throw new IllegalArgumentException("Invalid data range");
+        }
+
+        this.data = data;
+        this.position = offset;
+        this.end = offset + length;
+    }
+
+    public int readByte() {
+        checkAvailable(1);
+        return data[position++];
+    }
+
+    public byte[] readBytes() {
+        int length = readUnsignedVarInt();
+        checkAvailable(length);
+
+        byte[] bytes = new byte[length];
+        System.arraycopy(data, position, bytes, 0, length);
+        position += length;
+
+        return bytes;
+    }
+
+    public boolean readBoolean() {
+        return readByte() != 0;
+    }
+
+    public int readUnsignedVarInt() {
+        long value = readUnsignedVarLong();
+
+        if (value > 0xFFFFFFFFL) {
+            throw new IllegalArgumentException("Invalid variable length integer");
+        }
+
+        return (int) value;
+    }
+
+    public long readUnsignedVarLong() {
+        long value = 0;
+        int shift = 0;
+        int b;
+
+        do {
+            if (shift > 63) {
+                throw new IllegalArgumentException("Invalid variable length integer");
+            }
+
+            checkAvailable(1);
+            b = data[position++];
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+
+        return value;
+    }
+
+    public int readVarInt() {
+        int value = readUnsignedVarInt();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    public long readVarLong() {
+        long value = readUnsignedVarLong();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    public float readFloat() {
+        checkAvailable(4);
+        int bits = 0;
+
+        for (int i = 0; i < 4; i++) {
+            bits = (bits << 8) | (data[position++] & 0xFF);
+        }
+
+        return Float.intBitsToFloat(bits);
+    }
+
+    public String readString() {
+        int length = readUnsignedVarInt();
+
+        if (length == 0) {
+            return null;
+        }
+
+        length--;
+        checkAvailable(length);
+
+        String value = new String(data, position, length, StandardCharsets.UTF_8);
+        position += length;
+
+        return value;
+    }
+
+    /**
+     * Reads values written by {@link CompactDataOutput#writeDeltaInts(int[], int)}.
+     */
+    public int[] readDeltaInts() {
+        int[] values = new int[readLength()];
+        int last = 0;
+
+        for (int i = 0; i < values.length; i++) {
+            last += readVarInt();
+            values[i] = last;
+        }
+
+        return values;
+    }
+
+    /**
+     * Reads values written by {@link CompactDataOutput#writeInts(int[], int)}.
+     */
+    public int[] readInts() {
+        int[] values = new int[readLength()];
+
+        for (int i = 0; i < values.length; i++) {
+            values[i] = readVarInt();
+        }
+
+        return values;
+    }
+
+    /**
+     * Skips values written by {@link CompactDataOutput#writeInts(int[], int)} or
+     * {@link CompactDataOutput#writeDeltaInts(int[], int)}.
+     */
+    public void skipInts() {
+        int n = readUnsignedVarInt();
+
+        for (int i = 0; i < n; i++) {
+            readUnsignedVarLong();
+        }
+    }
+
+    /**
+     * Returns the current position within the data.
+     */
+    public int getPosition() {
+        return position;
+    }
+
+    /**
+     * Returns the number of bytes that were not read yet.
+     */
+    public int available() {
+        return end - position;
+    }
+
+    /**
+     * Indicates whether all data was read.
+     */
+    public boolean isAtEnd() {
+        return position >= end;
+    }
+
+    /**
+     * Reads an array length. Every element needs at least one byte which
+     * prevents huge allocations for corrupt data.
+     */
+    private int readLength() {
+        int length = readUnsignedVarInt();
+        checkAvailable(length);
+
+        return length;
+    }
+
+    private void checkAvailable(int bytes) {
+        if (bytes < 0 || position + bytes > end) {
+            throw new IllegalArgumentException("Unexpected end of data");
+        }
+    }
+}
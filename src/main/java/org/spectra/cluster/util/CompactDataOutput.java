@@ -0,0 +1,146 @@
+package org.spectra.cluster.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Growable byte buffer used by the binary codecs. Integers are written as
+ * variable length integers (7 bits per byte), signed values using the zig-zag
+ * encoding. Sorted values can be written as deltas.
+ *
+ * The matching reader is {@link CompactDataInput}.
+ *
+ * @author jg
+ */
+public class CompactDataOutput {
+    private byte[] buffer;
+    private int size = 0;
+
+    public CompactDataOutput() {
+        this(256);
+    }
+
+    /**
+     * Creates a new output.
+     * @param initialCapacity The initial size of the buffer in bytes.
+     */
+    public CompactDataOutput(int initialCapacity) {
+        buffer = new byte[Math.max(16, initialCapacity)];
+    }
+
+    public void writeByte(int value) {
+        ensureCapacity(1);
+        buffer[size++] = (byte) value;
+    }
+
+    public void writeBytes(byte[] bytes) {
+        writeUnsignedVarInt(bytes.length);
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buffer, size, bytes.length);
+        size += bytes.length;
+    }
+
+    public void writeBoolean(boolean value) {
+        writeByte(value ? 1 : 0);
+    }
+
+    /**
+     * Writes a value that must not be negative.
+     */
+    public void writeUnsignedVarInt(int value) {
+        writeUnsignedVarLong(value & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Writes a value that must not be negative.
+     */
+    public void writeUnsignedVarLong(long value) {
+        ensureCapacity(10);
+
+        while ((value & ~0x7FL) != 0) {
+            buffer[size++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+
+        buffer[size++] = (byte) value;
+    }
+
+    public void writeVarInt(int value) {
+        writeUnsignedVarInt((value << 1) ^ (value >> 31));
+    }
+
+    public void writeVarLong(long value) {
+        writeUnsignedVarLong((value << 1) ^ (value >> 63));
+    }
+
+    public void writeFloat(float value) {
+        int bits = Float.floatToIntBits(value);
+        ensureCapacity(4);
+
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            buffer[size++] = (byte) (bits >>> shift);
+        }
+    }
+
+    /**
+     * Writes a (nullable) String as UTF-8.
+     */
+    public void writeString(String value) {
+        if (value == null) {
+            writeUnsignedVarInt(0);
+            return;
+        }
+
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        // 0 is used for null
+        writeUnsignedVarInt(bytes.length + 1);
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buffer, size, bytes.length);
+        size += bytes.length;
+    }
+
+    /**
+     * Writes the first n values of the array. Every value is stored as the difference to
+     * the previous one which is efficient for (mostly) sorted values.
+     */
+    public void writeDeltaInts(int[] values, int n) {
+        writeUnsignedVarInt(n);
+        int last = 0;
+
+        for (int i = 0; i < n; i++) {
+            writeVarInt(values[i] - last);
+            last = values[i];
+        }
+    }
+
+    /**
+     * Writes the first n values of the array.
+     */
+    public void writeInts(int[] values, int n) {
+        writeUnsignedVarInt(n);
+
+        for (int i = 0; i < n; i++) {
+            writeVarInt(values[i]);
+        }
+    }
+
+    /**
+     * Returns the number of written bytes.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns a copy of the written bytes.
+     */
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buffer, size);
+    }
+
+    private void ensureCapacity(int additionalBytes) {
+        if (size + additionalBytes > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(size + additionalBytes, buffer.length * 2));
+        }
+    }
+}
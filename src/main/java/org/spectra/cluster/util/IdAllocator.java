@@ -0,0 +1,155 @@
+package org.spectra.cluster.util;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Allocates the ids of spectra and clusters created during a clustering run.
+ *
+ * Ids consist of the run prefix followed by consecutive numbers starting at 0 that are
+ * represented as (base 36) strings. The run prefix is the reserved character '~' followed
+ * by a random run id that is created once per JVM. Ids are therefore unique across runs and
+ * tools while still being much shorter than random UUIDs. In contrast to these, they do not
+ * require a shared SecureRandom for every id. The numeric part of ids allocated in this JVM
+ * can be extracted using {@link #toNumericId(String)}.
+ *
+ * Ids of objects loaded from external sources (ie. .clustering files or results of other
+ * runs) are never treated as numeric ids (see {@link #isNumericId(String)}) since they either
+ * lack the reserved prefix or contain a different run id. External ids must therefore not
+ * start with the run prefix of this JVM.
+ *
+ * @author jg
+ */
+public final class IdAllocator {
+    /**
+     * The reserved first character of all allocated ids.
+     */
+    public static final char ID_PREFIX = '~';
+
+    private static final int RADIX = Character.MAX_RADIX;
+    private static final int RUN_ID_LENGTH = 10;
+    private static final int MAX_NUMERIC_ID_LENGTH = 12;
+    private static final String RUN_PREFIX = createRunPrefix();
+    private static final AtomicLong nextId = new AtomicLong(0);
+
+    private IdAllocator() {
+    }
+
+    /**
+     * Creates the prefix of all ids allocated in this JVM: The reserved character followed by
+     * a random, fixed length run id.
+     */
+    private static String createRunPrefix() {
+        long maxRunId = 1;
+
+        for (int i = 0; i < RUN_ID_LENGTH; i++) {
+            maxRunId *= RADIX;
+        }
+
+        long runId = Math.floorMod(new SecureRandom().nextLong(), maxRunId);
+        StringBuilder prefix = new StringBuilder(RUN_ID_LENGTH + 1).append(ID_PREFIX);
+        String runIdString = Long.toString(runId, RADIX);
+
+        for (int i = runIdString.length(); i < RUN_ID_LENGTH; i++) {
+            prefix.append('0');
+        }
+
+        return prefix.append(runIdString).toString();
+    }
+
+    /**
+     * Returns the prefix of all ids allocated in this JVM.
+     * @return The run prefix
+     */
+    public static String getRunPrefix() {
+        return RUN_PREFIX;
+    }
+
+    /**
+     * Returns a new, unique id.
+     * @return The id
+     */
+    public static String nextId() {
+        return toId(nextNumericId());
+    }
+
+    /**
+     * Returns the numeric part of a new, unique id.
+     * @return The id
+     */
+    public static long nextNumericId() {
+        return nextId.getAndIncrement();
+    }
+
+    /**
+     * Returns the string representation of a numeric id allocated in this JVM.
+     * @param numericId The numeric id. Must not be negative.
+     * @return The id
+     */
+    public static String toId(long numericId) {
+        return toId(RUN_PREFIX, numericId);
+    }
+
+    /**
+     * Returns the string representation of a numeric id allocated using the passed
+     * run prefix.
+     * @param runPrefix The run prefix (see {@link #getRunPrefix()}) of the JVM that allocated the id.
+     * @param numericId The numeric id. Must not be negative.
+     * @return The id
+     */
+    public static String toId(String runPrefix, long numericId) {
+        if (numericId < 0) {
+            throw new IllegalArgumentException("Numeric ids must not be negative");
+        }
+
+        return runPrefix + Long.toString(numericId, RADIX);
+    }
+
+    /**
+     * Returns the numeric part of an id created by {@link #toId(long)} in this JVM.
+     * @param id The id
+     * @return The numeric id or -1 if the id was not allocated in this JVM or is not
+     *         the canonical representation of a numeric id (below 36^12).
+     */
+    public static long toNumericId(String id) {
+        int length = id.length() - RUN_PREFIX.length();
+
+        if (length < 1 || length > MAX_NUMERIC_ID_LENGTH || !id.startsWith(RUN_PREFIX)) {
+            return -1;
+        }
+
+        // no leading zeros or signs - this ensures that toId(toNumericId(id)) == id
+        if (length > 1 && id.charAt(RUN_PREFIX.length()) == '0') {
+            return -1;
+        }
+
+        long numericId = 0;
+
+        for (int i = RUN_PREFIX.length(); i < id.length(); i++) {
+            char c = id.charAt(i);
+            int digit;
+
+            if (c >= '0' && c <= '9') {
+                digit = c - '0';
+            } else if (c >= 'a' && c <= 'z') {
+                digit = c - 'a' + 10;
+            } else {
+                return -1;
+            }
+
+            numericId = numericId * RADIX + digit;
+        }
+
+        return numericId;
+    }
+
+    /**
+     * Tests whether the id was allocated in this JVM and is the canonical representation
+     * of a numeric id.
+     * @param id The id to test
+     * @return True if the id can be converted using {@link #toNumericId(String)}.
+     */
+    public static boolean isNumericId(String id) {
+        return toNumericId(id) >= 0;
+    }
+}
@@ -0,0 +1,36 @@
+package org.spectra.cluster.binning;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BinCostEstimatorTest {
+    @Test
+    public void testEstimateCost() {
+        // windows: [0-99] -> 3, [100-199] -> 1, [500-599] -> 2
+        int[] precursorMz = {510, 20, 150, 10, 599, 99};
+
+        Assert.assertEquals(9 + 1 + 4, BinCostEstimator.estimateCost(precursorMz, 100));
+
+        // the input is not changed
+        Assert.assertEquals(510, precursorMz[0]);
+
+        // a single window
+        Assert.assertEquals(36, BinCostEstimator.estimateCost(precursorMz, 1000));
+        Assert.assertEquals(0, BinCostEstimator.estimateCost(new int[0], 100));
+    }
+
+    @Test
+    public void testDenseBinIsMoreExpensive() {
+        int[] denseBin = {100, 101, 102, 103};
+        int[] wideBin = {100, 300, 500, 700};
+
+        Assert.assertTrue(BinCostEstimator.estimateCost(denseBin, 100) > BinCostEstimator.estimateCost(wideBin, 100));
+    }
+
+    @Test
+    public void testOrderByCost() {
+        int[] order = BinCostEstimator.orderByCost(new long[] {4, 16, 1, 9});
+
+        Assert.assertArrayEquals(new int[] {1, 3, 0, 2}, order);
+    }
+}
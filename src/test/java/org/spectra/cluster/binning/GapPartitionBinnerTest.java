@@ -0,0 +1,163 @@
+package org.spectra.cluster.binning;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.spectra.cluster.model.cluster.BasicClusterProperties;
+import org.spectra.cluster.model.cluster.IClusterProperties;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+public class GapPartitionBinnerTest {
+    @Test
+    public void testPartitionAtGaps() throws Exception {
+        GapPartitionBinner binner = new GapPartitionBinner(10, 1, 0, false);
+
+        // two partitions separated by a gap larger than the tolerance
+        IClusterProperties[] clusters = {
+                new BasicClusterProperties(1000, 2, "c1"),
+                new BasicClusterProperties(1010, 2, "c2"),
+                new BasicClusterProperties(1020, 2, "c3"),
+                new BasicClusterProperties(1031, 2, "c4"),
+                new BasicClusterProperties(1035, 2, "c5")
+        };
+
+        String[][] bins = binner.binClusters(clusters, false);
+
+        Assert.assertEquals(2, bins.length);
+        Assert.assertArrayEquals(new String[] {"c1", "c2", "c3"}, bins[0]);
+        Assert.assertArrayEquals(new String[] {"c4", "c5"}, bins[1]);
+
+        // no cuts, nothing has to be clustered again
+        Assert.assertFalse(binner.isShiftedBinningComplete());
+        Assert.assertEquals(0, binner.binClusters(clusters, true).length);
+    }
+
+    @Test
+    public void testCombineSmallPartitions() throws Exception {
+        GapPartitionBinner binner = new GapPartitionBinner(10, 3, 0, false);
+
+        IClusterProperties[] clusters = {
+                new BasicClusterProperties(1000, 2, "c1"),
+                new BasicClusterProperties(1100, 2, "c2"),
+                new BasicClusterProperties(1200, 2, "c3"),
+                new BasicClusterProperties(1300, 2, "c4")
+        };
+
+        String[][] bins = binner.binClusters(clusters, false);
+
+        Assert.assertEquals(2, bins.length);
+        Assert.assertEquals(3, bins[0].length);
+        Assert.assertEquals(1, bins[1].length);
+    }
+
+    @Test
+    public void testSeparateCharges() throws Exception {
+        GapPartitionBinner binner = new GapPartitionBinner(10, 1, 0, true);
+
+        IClusterProperties[] clusters = {
+                new BasicClusterProperties(1000, 2, "c1"),
+                new BasicClusterProperties(1001, 3, "c2"),
+                new BasicClusterProperties(1002, 2, "c3")
+        };
+
+        String[][] bins = binner.binClusters(clusters, false);
+
+        Assert.assertEquals(2, bins.length);
+        Assert.assertArrayEquals(new String[] {"c1", "c3"}, bins[0]);
+        Assert.assertArrayEquals(new String[] {"c2"}, bins[1]);
+    }
+
+    @Test
+    public void testCutDenseRegion() throws Exception {
+        GapPartitionBinner binner = new GapPartitionBinner(10, 1, 10, false);
+
+        // one dense partition of 40 clusters with the largest gap after cluster 20
+        IClusterProperties[] clusters = new IClusterProperties[40];
+
+        for (int i = 0; i < clusters.length; i++) {
+            int mz = 1000 + i * 8 + (i >= 20 ? 2 : 0);
+            clusters[i] = new BasicClusterProperties(mz, 2, "c" + i);
+        }
+
+        String[][] bins = binner.binClusters(clusters, false);
+
+        Set<String> binnedIds = new HashSet<>();
+
+        for (String[] bin : bins) {
+            Assert.assertTrue(bin.length <= 10);
+            binnedIds.addAll(Arrays.asList(bin));
+        }
+
+        Assert.assertEquals(clusters.length, binnedIds.size());
+
+        // the first cut must be at the largest gap
+        Assert.assertTrue(Arrays.stream(bins).anyMatch(bin -> bin[bin.length - 1].equals("c19")));
+
+        // the shifted binning only contains the clusters around the cuts
+        String[][] shiftedBins = binner.binClusters(clusters, true);
+
+        Assert.assertTrue(shiftedBins.length > 0);
+
+        Set<String> shiftedIds = new HashSet<>();
+        Arrays.stream(shiftedBins).forEach(bin -> shiftedIds.addAll(Arrays.asList(bin)));
+
+        Assert.assertTrue(shiftedIds.size() < clusters.length);
+        Assert.assertTrue(shiftedIds.contains("c19"));
+        Assert.assertTrue(shiftedIds.contains("c20"));
+        Assert.assertFalse(shiftedIds.contains("c0"));
+        Assert.assertFalse(shiftedIds.contains("c39"));
+
+        // neighbours of every cut end up in the same shifted bin
+        for (String[] bin : bins) {
+            String lastId = bin[bin.length - 1];
+            int nextIndex = Integer.parseInt(lastId.substring(1)) + 1;
+
+            if (nextIndex >= clusters.length)
+                continue;
+
+            Assert.assertTrue(Arrays.stream(shiftedBins).anyMatch(shiftedBin ->
+                    Arrays.asList(shiftedBin).contains(lastId) && Arrays.asList(shiftedBin).contains("c" + nextIndex)));
+        }
+    }
+
+    @Test
+    public void testShiftedBinsFromFirstRoundResult() throws Exception {
+        GapPartitionBinner binner = new GapPartitionBinner(10, 1, 10, false);
+
+        // one dense partition of 20 clusters, cut between 1072 and 1082
+        IClusterProperties[] clusters = new IClusterProperties[20];
+
+        for (int i = 0; i < clusters.length; i++) {
+            clusters[i] = new BasicClusterProperties(1000 + i * 8 + (i >= 10 ? 2 : 0), 2, "c" + i);
+        }
+
+        Assert.assertEquals(2, binner.binClusters(clusters, false).length);
+
+        // only the clusters that are within the tolerance of a cluster on the other side are re-binned
+        IClusterProperties[] firstRoundResult = {
+                new BasicClusterProperties(1040, 2, "r1"),
+                new BasicClusterProperties(1064, 2, "r2"),
+                new BasicClusterProperties(1072, 2, "r3"),
+                new BasicClusterProperties(1082, 2, "r4"),
+                new BasicClusterProperties(1086, 2, "r5"),
+                new BasicClusterProperties(1130, 2, "r6")
+        };
+
+        String[][] shiftedBins = binner.binClusters(firstRoundResult, true);
+
+        Assert.assertEquals(1, shiftedBins.length);
+        Assert.assertArrayEquals(new String[] {"r3", "r4"}, shiftedBins[0]);
+
+        // the merged clusters moved apart, nothing has to be clustered again
+        IClusterProperties[] separatedResult = {
+                new BasicClusterProperties(1040, 2, "r1"),
+                new BasicClusterProperties(1068, 2, "r2"),
+                new BasicClusterProperties(1084, 2, "r3"),
+                new BasicClusterProperties(1130, 2, "r4")
+        };
+
+        Assert.assertEquals(0, binner.binClusters(separatedResult, true).length);
+    }
+}
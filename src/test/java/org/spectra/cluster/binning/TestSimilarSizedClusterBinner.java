@@ -209,4 +209,86 @@ public class TestSimilarSizedClusterBinner {
             }
         }
     }
+
+    @Test
+    public void testSplitting() throws Exception {
+        BasicIntegerNormalizer normalizer = new BasicIntegerNormalizer();
+
+        SimilarSizedClusterBinner binner = new SimilarSizedClusterBinner(
+                BasicIntegerNormalizer.MZ_CONSTANT * 2, 1, false);
+        binner.setMaximumBinSizeCluster(3);
+
+        // two groups within one bin, separated by the largest gap
+        IClusterProperties[] testCluster = {
+                new BasicClusterProperties(normalizer.binValue(300.1), 2, "c1"),
+                new BasicClusterProperties(normalizer.binValue(300.15), 2, "c2"),
+                new BasicClusterProperties(normalizer.binValue(300.2), 2, "c3"),
+                new BasicClusterProperties(normalizer.binValue(301.2), 2, "c4"),
+                new BasicClusterProperties(normalizer.binValue(301.25), 2, "c5")
+        };
+
+        String[][] bins = binner.binClusters(testCluster, false);
+
+        Assert.assertEquals(2, bins.length);
+        Assert.assertArrayEquals(new String[] {"c1", "c2", "c3"}, bins[0]);
+        Assert.assertArrayEquals(new String[] {"c4", "c5"}, bins[1]);
+
+        // without a maximum, all clusters are in one bin
+        binner.setMaximumBinSizeCluster(0);
+        Assert.assertEquals(1, binner.binClusters(testCluster, false).length);
+    }
+
+    @Test
+    public void testShiftedBinningCoversSplitPoints() throws Exception {
+        int binSize = BasicIntegerNormalizer.MZ_CONSTANT * 2;
+        int tolerance = binSize / 2;
+        Random random = new Random(1);
+
+        // a dense precursor region
+        IClusterProperties[] testCluster = new IClusterProperties[2_000];
+
+        for (int i = 0; i < testCluster.length; i++) {
+            testCluster[i] = new BasicClusterProperties(
+                    BasicIntegerNormalizer.MZ_CONSTANT * 500 + random.nextInt(BasicIntegerNormalizer.MZ_CONSTANT * 200),
+                    2, "c" + i);
+        }
+
+        SimilarSizedClusterBinner binner = new SimilarSizedClusterBinner(binSize, 10, true);
+        binner.setMaximumBinSizeCluster(50);
+
+        Map<String, Integer> firstBins = getBinIndex(binner.binClusters(testCluster, false), testCluster.length);
+        Map<String, Integer> shiftedBins = getBinIndex(binner.binClusters(testCluster, true), testCluster.length);
+
+        // the dense region is split
+        Assert.assertTrue(firstBins.values().stream().distinct().count() >= testCluster.length / 50);
+
+        // all clusters within the tolerance must share a bin in at least one of the binnings
+        IClusterProperties[] sortedClusters = testCluster.clone();
+        Arrays.sort(sortedClusters, Comparator.comparingInt(IClusterProperties::getPrecursorMz));
+
+        for (int i = 0; i < sortedClusters.length; i++) {
+            for (int j = i + 1; j < sortedClusters.length &&
+                    sortedClusters[j].getPrecursorMz() - sortedClusters[i].getPrecursorMz() <= tolerance; j++) {
+                String id1 = sortedClusters[i].getId();
+                String id2 = sortedClusters[j].getId();
+
+                Assert.assertTrue(firstBins.get(id1).equals(firstBins.get(id2)) ||
+                        shiftedBins.get(id1).equals(shiftedBins.get(id2)));
+            }
+        }
+    }
+
+    private Map<String, Integer> getBinIndex(String[][] bins, int nClusters) {
+        Map<String, Integer> binIndex = new HashMap<>(nClusters);
+
+        for (int i = 0; i < bins.length; i++) {
+            for (String id : bins[i]) {
+                Assert.assertNull(binIndex.put(id, i));
+            }
+        }
+
+        Assert.assertEquals(nClusters, binIndex.size());
+
+        return binIndex;
+    }
 }
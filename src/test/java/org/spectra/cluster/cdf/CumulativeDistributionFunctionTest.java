@@ -2,6 +2,7 @@ package org.spectra.cluster.cdf;
 
 import org.junit.Assert;
 import org.junit.Test;
+import org.spectra.cluster.similarity.CombinedFisherIntensityTest;
 
 public class CumulativeDistributionFunctionTest {
     @Test
@@ -76,4 +77,43 @@ public class CumulativeDistributionFunctionTest {
         Assert.assertEquals(0, cdf.probability(2.2, 1), 0.0001);
         Assert.assertEquals(0.714, cdf.probability(0, 1), 0.001);
     }
+
+    @Test
+    public void testMinimumSaveSimilarity() {
+        double[] relPeptidesBelowScore = {0.2857142857142857, 0.7142857142857143, 0.7142857142857143,
+                0.8571428571428571, 1.0};
+        CumulativeDistributionFunction cdf = new CumulativeDistributionFunction(14L, 0.1, relPeptidesBelowScore);
+
+        double minSimilarity = cdf.getMinimumSaveSimilarity(10, 0.9);
+        Assert.assertEquals(0.2, minSimilarity, 0.0000001);
+        Assert.assertFalse(cdf.isSaveMatch(minSimilarity, 10, 0.9));
+        Assert.assertTrue(cdf.isSaveMatch(Math.nextUp(minSimilarity), 10, 0.9));
+
+        Assert.assertTrue(cdf.isSaveMatch(Math.nextUp(cdf.getMinimumSaveSimilarity(1, 0.9)), 1, 0.9));
+        Assert.assertEquals(Double.POSITIVE_INFINITY, cdf.getMinimumSaveSimilarity(1, 0), 0);
+    }
+
+    @Test
+    public void testMinimumSaveSimilarityMatchesSaveMatch() throws Exception {
+        CumulativeDistributionFunction cdf = CumulativeDistributionFunctionFactory
+                .getCumulativeDistributionFunctionForSimilarityMetric(CombinedFisherIntensityTest.class);
+        int[] comparisons = {1, 10, 100, 1_000, 10_000, 100_000};
+        double[] mixtureProbabilities = {0, 0.001, 0.005, 0.01, 0.1};
+
+        for (int nComparisons : comparisons) {
+            for (double mixtureProbability : mixtureProbabilities) {
+                double minSimilarity = cdf.getMinimumSaveSimilarity(nComparisons, mixtureProbability);
+
+                if (Double.isInfinite(minSimilarity)) {
+                    continue;
+                }
+
+                Assert.assertFalse(cdf.isSaveMatch(minSimilarity, nComparisons, mixtureProbability));
+
+                for (double similarity = 0; similarity <= minSimilarity; similarity += 0.01) {
+                    Assert.assertFalse(cdf.isSaveMatch(similarity, nComparisons, mixtureProbability));
+                }
+            }
+        }
+    }
 }
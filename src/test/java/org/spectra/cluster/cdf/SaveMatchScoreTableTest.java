@@ -0,0 +1,49 @@
+package org.spectra.cluster.cdf;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.spectra.cluster.similarity.CombinedFisherIntensityTest;
+
+import java.util.Random;
+
+public class SaveMatchScoreTableTest {
+    @Test
+    public void testSameDecisions() throws Exception {
+        CumulativeDistributionFunction cdf = CumulativeDistributionFunctionFactory
+                .getCumulativeDistributionFunctionForSimilarityMetric(CombinedFisherIntensityTest.class);
+        Random random = new Random(1);
+
+        for (double mixtureProbability : new double[]{0, 0.0025, 0.005, 0.01, 0.1}) {
+            SaveMatchScoreTable table = new SaveMatchScoreTable(cdf, mixtureProbability);
+
+            for (int i = 0; i < 200_000; i++) {
+                int nComparisons = 1 + random.nextInt(random.nextBoolean() ? 100 : 100_000);
+                double similarity = random.nextDouble() * 150;
+
+                Assert.assertEquals(String.format("Different decision for %.4f with %d comparisons", similarity, nComparisons),
+                        cdf.isSaveMatch(similarity, nComparisons, mixtureProbability), table.isSaveMatch(similarity, nComparisons));
+            }
+        }
+    }
+
+    @Test
+    public void testLimits() {
+        double[] relPeptidesBelowScore = {0.2857142857142857, 0.7142857142857143, 0.7142857142857143,
+                0.8571428571428571, 1.0};
+        CumulativeDistributionFunction cdf = new CumulativeDistributionFunction(14L, 0.1, relPeptidesBelowScore);
+        SaveMatchScoreTable table = new SaveMatchScoreTable(cdf, 0.9);
+
+        Assert.assertEquals(cdf.getMinimumSaveSimilarity(10, 0.9), table.getMinimumSaveSimilarity(10), 0);
+        Assert.assertFalse(table.isSaveMatch(0.2, 10));
+        Assert.assertTrue(table.isSaveMatch(Math.nextUp(0.2), 10));
+        Assert.assertTrue(table.isSaveMatch(100, 10));
+
+        // entries are only created once
+        for (int nComparisons = 1; nComparisons <= 100; nComparisons++) {
+            table.isSaveMatch(0.25, nComparisons);
+            table.isSaveMatch(0.25, nComparisons);
+        }
+
+        Assert.assertEquals(100, table.size());
+    }
+}
@@ -0,0 +1,152 @@
+package org.spectra.cluster.engine;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.spectra.cluster.io.spectra.MzSpectraReader;
+import org.spectra.cluster.model.cluster.ICluster;
+import org.spectra.cluster.util.ClusteringParameters;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+
+public class ClusterSimilarityMemoTest {
+    private List<ICluster> clusters;
+
+    @Before
+    public void setUp() throws Exception {
+        File mgfFile = new File(Objects.requireNonNull(ClusterSimilarityMemoTest.class.getClassLoader().getResource("same_sequence_cluster.mgf")).toURI());
+        MzSpectraReader reader = new MzSpectraReader(new ClusteringParameters(), mgfFile);
+        Iterator<ICluster> iterator = reader.readClusterIterator();
+        clusters = new ArrayList<>(30);
+
+        while (iterator.hasNext()) {
+            clusters.add(iterator.next());
+        }
+    }
+
+    @Test
+    public void testStoreAndChange() {
+        ClusterSimilarityMemo memo = new ClusterSimilarityMemo();
+        ICluster cluster1 = clusters.get(0);
+        ICluster cluster2 = clusters.get(1);
+        ICluster cluster3 = clusters.get(2);
+
+        Assert.assertTrue(Double.isNaN(memo.getSimilarity(cluster1, cluster2, Double.NEGATIVE_INFINITY)));
+
+        memo.putSimilarity(cluster1, cluster2, Double.NEGATIVE_INFINITY, 10);
+        memo.putSimilarity(cluster1, cluster3, Double.NEGATIVE_INFINITY, 20);
+
+        Assert.assertEquals(10, memo.getSimilarity(cluster1, cluster2, Double.NEGATIVE_INFINITY), 0);
+        Assert.assertEquals(10, memo.getSimilarity(cluster1, cluster2, 50), 0);
+        // pairs are ordered
+        Assert.assertTrue(Double.isNaN(memo.getSimilarity(cluster2, cluster1, Double.NEGATIVE_INFINITY)));
+
+        // changed clusters invalidate all of their scores
+        memo.clusterChanged(cluster2);
+        Assert.assertTrue(Double.isNaN(memo.getSimilarity(cluster1, cluster2, Double.NEGATIVE_INFINITY)));
+        Assert.assertEquals(20, memo.getSimilarity(cluster1, cluster3, Double.NEGATIVE_INFINITY), 0);
+
+        memo.putSimilarity(cluster1, cluster2, Double.NEGATIVE_INFINITY, 15);
+        Assert.assertEquals(15, memo.getSimilarity(cluster1, cluster2, Double.NEGATIVE_INFINITY), 0);
+        Assert.assertEquals(2, memo.size());
+    }
+
+    @Test
+    public void testUpperBounds() {
+        ClusterSimilarityMemo memo = new ClusterSimilarityMemo();
+        ICluster cluster1 = clusters.get(0);
+        ICluster cluster2 = clusters.get(1);
+
+        // the score was calculated with a minimum score of 20 and may only be an upper bound
+        memo.putSimilarity(cluster1, cluster2, 20, 12);
+
+        Assert.assertEquals(12, memo.getSimilarity(cluster1, cluster2, 20), 0);
+        Assert.assertEquals(12, memo.getSimilarity(cluster1, cluster2, 15), 0);
+        Assert.assertTrue(Double.isNaN(memo.getSimilarity(cluster1, cluster2, 10)));
+        Assert.assertTrue(Double.isNaN(memo.getSimilarity(cluster1, cluster2, Double.NEGATIVE_INFINITY)));
+
+        // scores reaching the minimum score are exact
+        memo.putSimilarity(cluster1, cluster2, 10, 12);
+        Assert.assertEquals(12, memo.getSimilarity(cluster1, cluster2, Double.NEGATIVE_INFINITY), 0);
+    }
+
+    @Test
+    public void testManyPairs() {
+        ClusterSimilarityMemo memo = new ClusterSimilarityMemo();
+
+        for (int i = 0; i < clusters.size(); i++) {
+            for (int j = 0; j < clusters.size(); j++) {
+                memo.putSimilarity(clusters.get(i), clusters.get(j), Double.NEGATIVE_INFINITY, i * 1000 + j);
+            }
+        }
+
+        Assert.assertEquals(clusters.size() * clusters.size(), memo.size());
+
+        for (int i = 0; i < clusters.size(); i++) {
+            for (int j = 0; j < clusters.size(); j++) {
+                Assert.assertEquals(i * 1000 + j, memo.getSimilarity(clusters.get(i), clusters.get(j), 0), 0);
+            }
+        }
+    }
+
+    @Test
+    public void testRemoveCluster() {
+        ClusterSimilarityMemo memo = new ClusterSimilarityMemo();
+        ICluster cluster1 = clusters.get(0);
+        ICluster cluster2 = clusters.get(1);
+        ICluster cluster3 = clusters.get(2);
+
+        memo.putSimilarity(cluster1, cluster2, Double.NEGATIVE_INFINITY, 10);
+        memo.putSimilarity(cluster3, cluster2, Double.NEGATIVE_INFINITY, 20);
+        memo.putSimilarity(cluster1, cluster3, Double.NEGATIVE_INFINITY, 30);
+
+        // the merged cluster's scores are dropped
+        memo.removeCluster(cluster2);
+
+        Assert.assertEquals(1, memo.size());
+        Assert.assertTrue(Double.isNaN(memo.getSimilarity(cluster1, cluster2, Double.NEGATIVE_INFINITY)));
+        Assert.assertTrue(Double.isNaN(memo.getSimilarity(cluster3, cluster2, Double.NEGATIVE_INFINITY)));
+        Assert.assertEquals(30, memo.getSimilarity(cluster1, cluster3, Double.NEGATIVE_INFINITY), 0);
+
+        // removing unknown clusters has no effect
+        memo.removeCluster(cluster2);
+        Assert.assertEquals(1, memo.size());
+    }
+
+    @Test
+    public void testChangedClustersAreDropped() {
+        ClusterSimilarityMemo memo = new ClusterSimilarityMemo();
+
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < clusters.size(); i++) {
+                for (int j = 0; j < clusters.size(); j++) {
+                    memo.putSimilarity(clusters.get(i), clusters.get(j), Double.NEGATIVE_INFINITY, i * 1000 + j);
+                }
+            }
+
+            // change every second cluster
+            for (int i = 0; i < clusters.size(); i += 2) {
+                memo.clusterChanged(clusters.get(i));
+            }
+
+            int nUnchanged = clusters.size() / 2;
+            Assert.assertEquals(nUnchanged * nUnchanged, memo.size());
+
+            for (int i = 0; i < clusters.size(); i++) {
+                for (int j = 0; j < clusters.size(); j++) {
+                    double similarity = memo.getSimilarity(clusters.get(i), clusters.get(j), 0);
+
+                    if (i % 2 == 0 || j % 2 == 0) {
+                        Assert.assertTrue(Double.isNaN(similarity));
+                    } else {
+                        Assert.assertEquals(i * 1000 + j, similarity, 0);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package org.spectra.cluster.engine;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.spectra.cluster.io.spectra.MzSpectraReader;
+import org.spectra.cluster.model.cluster.ICluster;
+import org.spectra.cluster.predicates.ShareNComparisonPeaksPredicate;
+import org.spectra.cluster.util.ClusteringParameters;
+
+import java.io.File;
+import java.util.*;
+
+public class ComparisonPeakIndexTest {
+    private List<ICluster> clusters;
+
+    @Before
+    public void setUp() throws Exception {
+        File mgfFile = new File(Objects.requireNonNull(ComparisonPeakIndexTest.class.getClassLoader().getResource("same_sequence_cluster.mgf")).toURI());
+        MzSpectraReader reader = new MzSpectraReader(new ClusteringParameters(), mgfFile);
+        Iterator<ICluster> iterator = reader.readClusterIterator();
+        clusters = new ArrayList<>(30);
+
+        while (iterator.hasNext()) {
+            clusters.add(iterator.next());
+        }
+    }
+
+    @Test
+    public void testSameCandidatesAsPredicate() {
+        for (int minSharedPeaks : new int[]{1, 5, 10, 20}) {
+            ComparisonPeakIndex index = new ComparisonPeakIndex(minSharedPeaks);
+            ShareNComparisonPeaksPredicate predicate = new ShareNComparisonPeaksPredicate(minSharedPeaks);
+
+            for (int i = 0; i < clusters.size(); i++) {
+                index.findCandidates(clusters.get(i), 0);
+
+                for (int j = 0; j < i; j++) {
+                    Assert.assertEquals(predicate.test(clusters.get(j), clusters.get(i)), index.isCandidate(j));
+                }
+
+                index.add(i, clusters.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void testOffsetAndUpdate() {
+        ComparisonPeakIndex index = new ComparisonPeakIndex(1);
+        ICluster query = clusters.get(0);
+
+        index.add(0, clusters.get(0));
+        index.add(1, clusters.get(0));
+
+        index.findCandidates(query, 0);
+        Assert.assertTrue(index.isCandidate(0));
+        Assert.assertTrue(index.isCandidate(1));
+
+        // slots below the offset are dropped
+        index.findCandidates(query, 1);
+        Assert.assertFalse(index.isCandidate(0));
+        Assert.assertTrue(index.isCandidate(1));
+
+        // changed clusters are re-indexed
+        clusters.get(1).mergeCluster(clusters.get(2));
+        index.update(1, clusters.get(1));
+        ShareNComparisonPeaksPredicate predicate = new ShareNComparisonPeaksPredicate(1);
+
+        for (ICluster cluster : clusters.subList(3, clusters.size())) {
+            index.findCandidates(cluster, 1);
+            Assert.assertEquals(predicate.test(clusters.get(1), cluster), index.isCandidate(1));
+        }
+    }
+
+    @Test
+    public void testStalePostingsAreCompacted() {
+        // the queries never reach the minimum number of keys, so no posting list is read
+        ComparisonPeakIndex index = new ComparisonPeakIndex(Integer.MAX_VALUE);
+        ICluster cluster = clusters.get(0);
+        int nKeys = index.getKeys(cluster).length;
+
+        index.add(0, cluster);
+        index.add(1, cluster);
+
+        for (int i = 0; i < 10_000; i++) {
+            index.update(1, cluster);
+            index.findCandidates(cluster, 0);
+        }
+
+        long maxPostings = (long) (2 * nKeys * (1 + AbstractPostingListIndex.MAX_STALE_FRACTION)) +
+                AbstractPostingListIndex.MIN_STALE_POSTINGS;
+        Assert.assertTrue(index.getNumberOfStoredPostings() <= maxPostings);
+
+        // postings below the offset are compacted as well
+        for (int i = 2; i < 10_000; i++) {
+            index.add(i, cluster);
+            index.findCandidates(cluster, i - 1);
+        }
+
+        Assert.assertTrue(index.getNumberOfStoredPostings() <= maxPostings);
+
+        // the remaining postings are still found
+        ComparisonPeakIndex lowIndex = new ComparisonPeakIndex(1);
+        lowIndex.add(0, cluster);
+
+        for (int i = 0; i < 10_000; i++) {
+            lowIndex.update(0, cluster);
+            lowIndex.findCandidates(clusters.get(1), 0);
+        }
+
+        lowIndex.findCandidates(cluster, 0);
+        Assert.assertTrue(lowIndex.isCandidate(0));
+    }
+}
@@ -15,6 +15,7 @@ import org.spectra.cluster.model.cluster.ICluster;
 import org.spectra.cluster.model.consensus.GreedyClusteringConsensusSpectrum;
 import org.spectra.cluster.normalizer.BasicIntegerNormalizer;
 import org.spectra.cluster.predicates.ShareHighestPeaksClusterPredicate;
+import org.spectra.cluster.predicates.ShareNComparisonPeaksPredicate;
 import org.spectra.cluster.similarity.CombinedFisherIntensityTest;
 import org.spectra.cluster.util.ClusteringParameters;
 
@@ -142,6 +143,45 @@ public class GreedyClusteringEngineTest {
         }
     }
 
+    @Test
+    public void testFirstRoundCandidateIndex() throws Exception {
+        GreedyClusteringEngine exhaustiveEngine = new GreedyClusteringEngine(BasicIntegerNormalizer.MZ_CONSTANT,
+                1, 0.99f, 5, new CombinedFisherIntensityTest(),
+                new MinNumberComparisonsAssessor(10000), new ShareNComparisonPeaksPredicate(5),
+                GreedyClusteringConsensusSpectrum.NOISE_FILTER_INCREMENT);
+        GreedyClusteringEngine indexedEngine = new GreedyClusteringEngine(BasicIntegerNormalizer.MZ_CONSTANT,
+                1, 0.99f, 5, new CombinedFisherIntensityTest(),
+                new MinNumberComparisonsAssessor(10000), new ShareNComparisonPeaksPredicate(5),
+                GreedyClusteringConsensusSpectrum.NOISE_FILTER_INCREMENT);
+        indexedEngine.setFirstRoundCandidateIndexSupplier(() -> new ComparisonPeakIndex(5));
+
+        ICluster[] exhaustiveClusters = exhaustiveEngine.clusterSpectra(loadSortedClusters());
+        ICluster[] indexedClusters = indexedEngine.clusterSpectra(loadSortedClusters());
+
+        // the index must not change the result
+        Assert.assertEquals(exhaustiveClusters.length, indexedClusters.length);
+
+        for (int i = 0; i < exhaustiveClusters.length; i++) {
+            Assert.assertEquals(exhaustiveClusters[i].getPrecursorMz(), indexedClusters[i].getPrecursorMz());
+            Assert.assertEquals(exhaustiveClusters[i].getClusteredSpectraCount(), indexedClusters[i].getClusteredSpectraCount());
+        }
+    }
+
+    private ICluster[] loadSortedClusters() throws Exception {
+        File mgfFile = new File(GreedyClusteringEngineTest.class.getClassLoader().getResource("same_sequence_cluster.mgf").toURI());
+        MzSpectraReader reader = new MzSpectraReader(new ClusteringParameters(), mgfFile);
+        Iterator<ICluster> iterator = reader.readClusterIterator();
+        List<ICluster> clusters = new ArrayList<>(30);
+
+        while (iterator.hasNext()) {
+            clusters.add(iterator.next());
+        }
+
+        clusters.sort(Comparator.comparingInt(ICluster::getPrecursorMz));
+
+        return clusters.toArray(new ICluster[0]);
+    }
+
     @Test
     public void localTestSyntheticPeptides() throws Exception {
         if (!runLocalTests) {
@@ -0,0 +1,105 @@
+package org.spectra.cluster.engine;
+
+import lombok.extern.slf4j.Slf4j;
+import org.junit.Assert;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.spectra.cluster.cdf.CumulativeDistributionFunction;
+import org.spectra.cluster.cdf.CumulativeDistributionFunctionFactory;
+import org.spectra.cluster.io.spectra.MzSpectraReader;
+import org.spectra.cluster.model.cluster.ICluster;
+import org.spectra.cluster.similarity.CombinedFisherIntensityTest;
+import org.spectra.cluster.similarity.IBinarySpectrumSimilarity;
+import org.spectra.cluster.util.ClusteringParameters;
+
+import java.io.File;
+import java.util.*;
+
+@Slf4j
+public class MinHashCandidateIndexBenchmarkTest {
+    /**
+     * Reports the recall of the LSH pre-filter compared to the exhaustive scoring of all
+     * pairs as well as the proportion of pairs that still have to be scored. The recall
+     * depends on the data and is therefore only reported but not tested.
+     */
+    @Ignore
+    @Test
+    public void testRecallReport() throws Exception {
+        IBinarySpectrumSimilarity similarity = new CombinedFisherIntensityTest();
+        CumulativeDistributionFunction cdf = CumulativeDistributionFunctionFactory
+                .getCumulativeDistributionFunctionForSimilarityMetric(CombinedFisherIntensityTest.class);
+        double minSimilarity = cdf.getMinimumSaveSimilarity(1, 0.01);
+        int totalFound = 0;
+
+        for (String file : new String[]{"same_sequence_cluster.mgf", "imp_single_cluster.mgf"}) {
+            List<ICluster> clusters = loadClusters(file);
+
+            // exhaustive scoring
+            long start = System.nanoTime();
+            int totalPairs = 0;
+            Set<Long> matches = new HashSet<>();
+
+            for (int i = 1; i < clusters.size(); i++) {
+                for (int j = 0; j < i; j++) {
+                    totalPairs++;
+
+                    if (similarity.correlation(clusters.get(i).getConsensusSpectrum(), clusters.get(j).getConsensusSpectrum()) > minSimilarity) {
+                        matches.add((long) i << 32 | j);
+                    }
+                }
+            }
+            long exhaustiveTime = System.nanoTime() - start;
+
+            // LSH based scoring
+            start = System.nanoTime();
+            MinHashCandidateIndex index = new MinHashCandidateIndex(MinHashCandidateIndex.DEFAULT_SIGNATURE_SIZE,
+                    MinHashCandidateIndex.DEFAULT_BANDS);
+            index.add(0, clusters.get(0));
+            int scoredPairs = 0;
+            int foundMatches = 0;
+
+            for (int i = 1; i < clusters.size(); i++) {
+                index.findCandidates(clusters.get(i), 0);
+
+                for (int j = 0; j < i; j++) {
+                    if (!index.isCandidate(j)) {
+                        continue;
+                    }
+
+                    scoredPairs++;
+
+                    if (similarity.correlation(clusters.get(i).getConsensusSpectrum(), clusters.get(j).getConsensusSpectrum()) > minSimilarity &&
+                            matches.contains((long) i << 32 | j)) {
+                        foundMatches++;
+                    }
+                }
+
+                index.add(i, clusters.get(i));
+            }
+            long lshTime = System.nanoTime() - start;
+
+            log.info(String.format("%s: recall = %.2f (%d / %d), scored pairs = %.2f (%d / %d), time = %d ms (exhaustive %d ms)",
+                    file, matches.isEmpty() ? 1 : (double) foundMatches / matches.size(), foundMatches, matches.size(),
+                    (double) scoredPairs / totalPairs, scoredPairs, totalPairs, lshTime / 1_000_000, exhaustiveTime / 1_000_000));
+
+            Assert.assertTrue(scoredPairs <= totalPairs);
+            totalFound += foundMatches;
+        }
+
+        // the test files contain spectra of the same peptides
+        Assert.assertTrue(totalFound > 0);
+    }
+
+    private List<ICluster> loadClusters(String resource) throws Exception {
+        File mgfFile = new File(Objects.requireNonNull(MinHashCandidateIndexBenchmarkTest.class.getClassLoader().getResource(resource)).toURI());
+        MzSpectraReader reader = new MzSpectraReader(new ClusteringParameters(), mgfFile);
+        Iterator<ICluster> iterator = reader.readClusterIterator();
+        List<ICluster> clusters = new ArrayList<>(50);
+
+        while (iterator.hasNext()) {
+            clusters.add(iterator.next());
+        }
+
+        return clusters;
+    }
+}
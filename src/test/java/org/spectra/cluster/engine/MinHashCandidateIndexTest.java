@@ -0,0 +1,51 @@
+package org.spectra.cluster.engine;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.spectra.cluster.io.spectra.MzSpectraReader;
+import org.spectra.cluster.model.cluster.ICluster;
+import org.spectra.cluster.util.ClusteringParameters;
+
+import java.io.File;
+import java.util.*;
+
+public class MinHashCandidateIndexTest {
+    @Test
+    public void testIdenticalClusters() throws Exception {
+        List<ICluster> clusters = loadClusters("same_sequence_cluster.mgf");
+        MinHashCandidateIndex index = new MinHashCandidateIndex(MinHashCandidateIndex.DEFAULT_SIGNATURE_SIZE,
+                MinHashCandidateIndex.DEFAULT_BANDS);
+
+        for (int i = 0; i < clusters.size(); i++) {
+            index.add(i, clusters.get(i));
+        }
+
+        // a cluster is always a candidate of itself
+        for (int i = 0; i < clusters.size(); i++) {
+            index.findCandidates(clusters.get(i), 0);
+            Assert.assertTrue(index.isCandidate(i));
+        }
+
+        // slots below the offset are no longer returned
+        index.findCandidates(clusters.get(0), 1);
+        Assert.assertFalse(index.isCandidate(0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidBands() {
+        new MinHashCandidateIndex(32, 5);
+    }
+
+    private List<ICluster> loadClusters(String resource) throws Exception {
+        File mgfFile = new File(Objects.requireNonNull(MinHashCandidateIndexTest.class.getClassLoader().getResource(resource)).toURI());
+        MzSpectraReader reader = new MzSpectraReader(new ClusteringParameters(), mgfFile);
+        Iterator<ICluster> iterator = reader.readClusterIterator();
+        List<ICluster> clusters = new ArrayList<>(50);
+
+        while (iterator.hasNext()) {
+            clusters.add(iterator.next());
+        }
+
+        return clusters;
+    }
+}
@@ -9,8 +9,11 @@ import org.spectra.cluster.cdf.MinNumberComparisonsAssessor;
 import org.spectra.cluster.engine.GreedyClusteringEngine;
 import org.spectra.cluster.exceptions.SpectraClusterException;
 import org.spectra.cluster.filter.rawpeaks.*;
+import org.spectra.cluster.io.cluster.ChronicleMapClusterStorage;
 import org.spectra.cluster.io.cluster.ClusterStorageFactory;
+import org.spectra.cluster.io.cluster.SparkKeyClusterStorage;
 import org.spectra.cluster.io.spectra.MzSpectraReader;
+import org.spectra.cluster.model.cluster.GreedySpectralCluster;
 import org.spectra.cluster.model.cluster.ICluster;
 import org.spectra.cluster.model.consensus.GreedyClusteringConsensusSpectrum;
 import org.spectra.cluster.normalizer.BasicIntegerNormalizer;
@@ -23,8 +26,10 @@ import java.io.File;
 import java.net.URI;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 
 public class ChronicleMapClusterStorageTest {
@@ -167,4 +172,39 @@ public class ChronicleMapClusterStorageTest {
 
         Files.delete(temporaryTestDir);
     }
+
+    @Test
+    public void testSizedTemporaryStorage() throws Exception {
+        MzSpectraReader reader = new MzSpectraReader(new ClusteringParameters(), new File(this.mgfFiles[0]));
+        Iterator<ICluster> iterator = reader.readClusterIterator(new InMemoryPropertyStorage());
+        List<ICluster> clusters = new ArrayList<>(200);
+
+        while (iterator.hasNext()) {
+            clusters.add(iterator.next());
+        }
+
+        // the number of clusters is known
+        IMapStorage<ICluster> clusterStorage = ClusterStorageFactory.buildTemporaryStorage(testDir.toFile(),
+                clusters.size(), clusters.subList(0, 10).toArray(new ICluster[0]), GreedySpectralCluster.class);
+        Assert.assertTrue(clusterStorage instanceof ChronicleMapClusterStorage);
+
+        for (ICluster cluster : clusters) {
+            clusterStorage.put(cluster.getId(), cluster);
+        }
+
+        Assert.assertEquals(clusters.size(), clusterStorage.storageSize());
+
+        for (ICluster cluster : clusters) {
+            Assert.assertEquals(cluster.getId(), clusterStorage.get(cluster.getId()).getId());
+        }
+
+        clusterStorage.close();
+
+        // the number of clusters is unknown
+        Path dynamicTestDir = Files.createTempDirectory(testDir, "dynamic-");
+        IMapStorage<ICluster> dynamicStorage = ClusterStorageFactory.buildTemporaryStorage(dynamicTestDir.toFile(),
+                -1, new ICluster[0], GreedySpectralCluster.class);
+        Assert.assertTrue(dynamicStorage instanceof SparkKeyClusterStorage);
+        dynamicStorage.close();
+    }
 }
@@ -163,7 +163,7 @@ public class MapClusterStorageBenchmarkTest {
             clusterStorage.addGreedySpectralCluster(longKey, cluster);
         }
 
-        Assert.assertEquals(NUMBER_CLUSTERS, clusterStorage.getNumber(GreedySpectralCluster.class));
+        Assert.assertEquals(NUMBER_CLUSTERS, clusterStorage.getNumberOfClusters());
         System.out.println("Sparkey: Writing 1M Clusters -- " + (System.currentTimeMillis() - time) / 1000);
 
     }
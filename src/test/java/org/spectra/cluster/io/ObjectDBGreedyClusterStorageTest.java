@@ -0,0 +1,118 @@
+package org.spectra.cluster.io;
+
+import io.github.bigbio.pgatk.io.objectdb.LongObject;
+import io.github.bigbio.pgatk.io.objectdb.ObjectsDB;
+import io.github.bigbio.pgatk.io.properties.IPropertyStorage;
+import io.github.bigbio.pgatk.io.properties.InMemoryPropertyStorage;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.spectra.cluster.io.cluster.ObjectDBGreedyClusterStorage;
+import org.spectra.cluster.io.spectra.MzSpectraReader;
+import org.spectra.cluster.model.cluster.GreedySpectralCluster;
+import org.spectra.cluster.model.cluster.ICluster;
+import org.spectra.cluster.util.ClusterUtils;
+import org.spectra.cluster.util.ClusteringParameters;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+public class ObjectDBGreedyClusterStorageTest {
+    private Path testDir;
+
+    @Before
+    public void setUp() throws Exception {
+        testDir = Files.createTempDirectory("clusters-");
+    }
+
+    @After
+    public void cleanUp() throws Exception {
+        ClusterUtils.cleanFilePersistence(testDir.toFile());
+
+        if (Files.exists(testDir))
+            Files.delete(testDir);
+    }
+
+    private List<GreedySpectralCluster> loadClusters() throws Exception {
+        IPropertyStorage propertyStorage = new InMemoryPropertyStorage();
+        MzSpectraReader reader = new MzSpectraReader(new ClusteringParameters(),
+                new File(getClass().getClassLoader().getResource("same_sequence_cluster.mgf").toURI()));
+
+        Iterator<ICluster> iterator = reader.readClusterIterator(propertyStorage);
+        List<GreedySpectralCluster> clusters = new ArrayList<>(200);
+
+        while (iterator.hasNext()) {
+            clusters.add((GreedySpectralCluster) iterator.next());
+        }
+
+        // merge every ten spectra into one cluster to get clusters with multiple members
+        List<GreedySpectralCluster> mergedClusters = new ArrayList<>(clusters.size() / 10 + 1);
+
+        for (int i = 0; i < clusters.size(); i += 10) {
+            GreedySpectralCluster cluster = clusters.get(i);
+
+            for (int j = i + 1; j < Math.min(i + 10, clusters.size()); j++) {
+                cluster.mergeCluster(clusters.get(j));
+            }
+
+            mergedClusters.add(cluster.freeze());
+        }
+
+        return mergedClusters;
+    }
+
+    @Test
+    public void testReadWriteClusters() throws Exception {
+        List<GreedySpectralCluster> clusters = loadClusters();
+        File resultFile = new File(testDir.toFile(), "result.zcl");
+
+        ObjectDBGreedyClusterStorage writer = new ObjectDBGreedyClusterStorage(
+                new ObjectsDB(resultFile.getAbsolutePath(), true));
+
+        for (GreedySpectralCluster cluster : clusters) {
+            writer.addGreedySpectralCluster(LongObject.asLongHash(cluster.getId()), cluster);
+        }
+
+        writer.writeDBMode();
+        writer.flush();
+
+        // re-open the file
+        ObjectDBGreedyClusterStorage reader = new ObjectDBGreedyClusterStorage(
+                new ObjectsDB(resultFile.getAbsolutePath(), false));
+
+        Assert.assertEquals(clusters.size(), reader.getNumberOfClusters());
+
+        Map<String, GreedySpectralCluster> loadedClusters = new HashMap<>(clusters.size());
+
+        while (reader.hasNext()) {
+            GreedySpectralCluster cluster = (GreedySpectralCluster) reader.next();
+            loadedClusters.put(cluster.getId(), cluster);
+        }
+
+        Assert.assertEquals(clusters.size(), loadedClusters.size());
+
+        for (GreedySpectralCluster cluster : clusters) {
+            GreedySpectralCluster loadedCluster = loadedClusters.get(cluster.getId());
+
+            Assert.assertNotNull(loadedCluster);
+            Assert.assertTrue(loadedCluster.isFrozen());
+            Assert.assertEquals(cluster.getClusteredSpectraIds(), loadedCluster.getClusteredSpectraIds());
+            Assert.assertEquals(cluster.getPrecursorMz(), loadedCluster.getPrecursorMz());
+            Assert.assertEquals(cluster.getPrecursorCharge(), loadedCluster.getPrecursorCharge());
+            Assert.assertEquals(cluster.getConsensusSpectrum().getPeaks().length,
+                    loadedCluster.getConsensusSpectrum().getPeaks().length);
+        }
+
+        // single clusters are decoded as well
+        GreedySpectralCluster firstCluster = clusters.get(0);
+        Assert.assertEquals(firstCluster.getClusteredSpectraIds(),
+                reader.getGreedySpectraCluster(LongObject.asLongHash(firstCluster.getId())).getClusteredSpectraIds());
+    }
+}
@@ -0,0 +1,159 @@
+package org.spectra.cluster.io;
+
+import io.github.bigbio.pgatk.io.properties.IPropertyStorage;
+import io.github.bigbio.pgatk.io.properties.InMemoryPropertyStorage;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.spectra.cluster.io.cluster.ClusterStorageFactory;
+import org.spectra.cluster.io.cluster.SegmentClusterStorage;
+import org.spectra.cluster.io.spectra.MzSpectraReader;
+import org.spectra.cluster.model.cluster.ClusterView;
+import org.spectra.cluster.model.cluster.ICluster;
+import org.spectra.cluster.util.ClusterUtils;
+import org.spectra.cluster.util.ClusteringParameters;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+public class SegmentClusterStorageTest {
+    private Path testDir;
+
+    @Before
+    public void setUp() throws Exception {
+        testDir = Files.createTempDirectory("clusters-");
+    }
+
+    @After
+    public void cleanUp() throws Exception {
+        // remove the test directory
+        ClusterUtils.cleanFilePersistence(testDir.toFile());
+
+        if (Files.exists(testDir))
+            Files.delete(testDir);
+    }
+
+    private List<ICluster> loadClusters() throws Exception {
+        IPropertyStorage propertyStorage = new InMemoryPropertyStorage();
+        MzSpectraReader reader = new MzSpectraReader(new ClusteringParameters(),
+                new File(getClass().getClassLoader().getResource("same_sequence_cluster.mgf").toURI()));
+
+        Iterator<ICluster> iterator = reader.readClusterIterator(propertyStorage);
+        List<ICluster> clusters = new ArrayList<>(200);
+
+        while (iterator.hasNext()) {
+            clusters.add(iterator.next());
+        }
+
+        return clusters;
+    }
+
+    @Test
+    public void testReadWriteSegments() throws Exception {
+        List<ICluster> clusters = loadClusters();
+        SegmentClusterStorage storage = ClusterStorageFactory.buildTemporarySegmentStorage(testDir.toFile());
+
+        // write the clusters as two segments
+        int half = clusters.size() / 2;
+
+        for (int i = 0; i < clusters.size(); i++) {
+            storage.put(clusters.get(i).getId(), clusters.get(i));
+
+            if (i == half - 1) {
+                // clusters are only available after the flush
+                Assert.assertNull(storage.get(clusters.get(0).getId()));
+                storage.flush();
+            }
+        }
+
+        storage.flush();
+
+        Assert.assertEquals(2, storage.getSegmentCount());
+        Assert.assertEquals(clusters.size(), storage.storageSize());
+        Assert.assertNull(storage.get("does-not-exist"));
+
+        // segments are sorted by precursor m/z
+        for (int segment = 0; segment < storage.getSegmentCount(); segment++) {
+            ICluster[] segmentClusters = storage.readSegment(segment);
+
+            Assert.assertEquals(storage.getMinPrecursorMz(segment), segmentClusters[0].getPrecursorMz());
+            Assert.assertEquals(storage.getMaxPrecursorMz(segment), segmentClusters[segmentClusters.length - 1].getPrecursorMz());
+
+            for (int i = 1; i < segmentClusters.length; i++) {
+                Assert.assertTrue(segmentClusters[i - 1].getPrecursorMz() <= segmentClusters[i].getPrecursorMz());
+            }
+        }
+
+        // load the clusters in random order
+        Collections.shuffle(clusters);
+        String[] ids = new String[clusters.size() + 1];
+
+        for (int i = 0; i < clusters.size(); i++) {
+            ids[i] = clusters.get(i).getId();
+        }
+        ids[clusters.size()] = "does-not-exist";
+
+        ICluster[] loadedClusters = storage.getAll(ids);
+
+        for (int i = 0; i < clusters.size(); i++) {
+            Assert.assertEquals(ids[i], loadedClusters[i].getId());
+            Assert.assertEquals(clusters.get(i).getClusteredSpectraIds(), loadedClusters[i].getClusteredSpectraIds());
+            Assert.assertEquals(ids[i], storage.get(ids[i]).getId());
+
+            ClusterView view = storage.getClusterView(ids[i]);
+            Assert.assertEquals(clusters.get(i).getPrecursorMz(), view.getPrecursorMz());
+        }
+
+        Assert.assertNull(loadedClusters[clusters.size()]);
+
+        // the temporary storage is removed
+        storage.close();
+        Assert.assertEquals(0, Files.list(testDir).count());
+    }
+
+    @Test
+    public void testSplitSegments() throws Exception {
+        List<ICluster> clusters = loadClusters();
+        long totalLength = 0;
+
+        for (ICluster cluster : clusters) {
+            totalLength += cluster.toBytes().length;
+        }
+
+        // limit the segments to a third of the data
+        SegmentClusterStorage storage = new SegmentClusterStorage(testDir.toFile(), true, (int) (totalLength / 3 + 1));
+        storage.putSegment(clusters.toArray(new ICluster[0]));
+
+        Assert.assertTrue(storage.getSegmentCount() >= 3);
+        Assert.assertEquals(clusters.size(), storage.storageSize());
+
+        // the segments continue each other
+        int nClusters = 0;
+
+        for (int segment = 0; segment < storage.getSegmentCount(); segment++) {
+            ICluster[] segmentClusters = storage.readSegment(segment);
+            nClusters += segmentClusters.length;
+
+            if (segment > 0) {
+                Assert.assertTrue(storage.getMaxPrecursorMz(segment - 1) <= storage.getMinPrecursorMz(segment));
+            }
+        }
+
+        Assert.assertEquals(clusters.size(), nClusters);
+
+        for (ICluster cluster : clusters) {
+            ICluster loadedCluster = storage.get(cluster.getId());
+
+            Assert.assertEquals(cluster.getId(), loadedCluster.getId());
+            Assert.assertEquals(cluster.getClusteredSpectraIds(), loadedCluster.getClusteredSpectraIds());
+        }
+
+        storage.close();
+    }
+}
@@ -0,0 +1,79 @@
+package org.spectra.cluster.io;
+
+import io.github.bigbio.pgatk.io.properties.InMemoryPropertyStorage;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.spectra.cluster.io.cluster.ClusterStorageFactory;
+import org.spectra.cluster.io.cluster.ShardedClusterStorage;
+import org.spectra.cluster.io.spectra.MzSpectraReader;
+import org.spectra.cluster.model.cluster.ICluster;
+import org.spectra.cluster.util.ClusterUtils;
+import org.spectra.cluster.util.ClusteringParameters;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+public class ShardedClusterStorageTest {
+    private Path testDir;
+
+    @Before
+    public void setUp() throws Exception {
+        testDir = Files.createTempDirectory("clusters-");
+    }
+
+    @After
+    public void cleanUp() throws Exception {
+        // remove the test directory
+        ClusterUtils.cleanFilePersistence(testDir.toFile());
+    }
+
+    @Test
+    public void testParallelWriting() throws Exception {
+        MzSpectraReader reader = new MzSpectraReader(new ClusteringParameters(),
+                new File(getClass().getClassLoader().getResource("same_sequence_cluster.mgf").toURI()));
+        Iterator<ICluster> iterator = reader.readClusterIterator(new InMemoryPropertyStorage());
+        List<ICluster> clusters = new ArrayList<>(200);
+
+        while (iterator.hasNext()) {
+            clusters.add(iterator.next());
+        }
+
+        ShardedClusterStorage storage = ClusterStorageFactory.buildTemporaryShardedSegmentStorage(testDir.toFile(), 4);
+
+        // write batches of 10 clusters in parallel
+        int nBatches = (clusters.size() + 9) / 10;
+        ForkJoinPool pool = new ForkJoinPool(4);
+
+        pool.submit(() -> IntStream.range(0, nBatches).parallel().forEach(batch -> {
+            try {
+                storage.putAll(clusters.subList(batch * 10, Math.min(clusters.size(), batch * 10 + 10)).toArray(new ICluster[0]));
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        })).get();
+
+        storage.flush();
+
+        Assert.assertEquals(clusters.size(), storage.storageSize());
+        Assert.assertNull(storage.get("does-not-exist"));
+
+        String[] ids = clusters.stream().map(ICluster::getId).toArray(String[]::new);
+        ICluster[] loadedClusters = storage.getAll(ids);
+
+        for (int i = 0; i < ids.length; i++) {
+            Assert.assertEquals(ids[i], loadedClusters[i].getId());
+            Assert.assertEquals(ids[i], storage.get(ids[i]).getId());
+            Assert.assertEquals(clusters.get(i).getPrecursorMz(), storage.getClusterView(ids[i]).getPrecursorMz());
+        }
+
+        storage.close();
+    }
+}
@@ -0,0 +1,119 @@
+package org.spectra.cluster.model.cluster;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.spectra.cluster.util.CompactDataInput;
+import org.spectra.cluster.util.CompactDataOutput;
+import org.spectra.cluster.util.IdAllocator;
+
+import java.io.*;
+import java.util.*;
+
+public class ClusterMemberSetTest {
+    @Test
+    public void testAddAndContains() {
+        ClusterMemberSet members = new ClusterMemberSet();
+
+        Assert.assertTrue(members.isEmpty());
+        Assert.assertTrue(members.add(IdAllocator.toId(10)));
+        Assert.assertTrue(members.add(IdAllocator.toId(5)));
+        Assert.assertTrue(members.add("external-id"));
+        Assert.assertFalse(members.add(IdAllocator.toId(10)));
+        Assert.assertFalse(members.add("external-id"));
+
+        Assert.assertEquals(3, members.size());
+        Assert.assertTrue(members.contains(IdAllocator.toId(5)));
+        Assert.assertTrue(members.contains("external-id"));
+        Assert.assertFalse(members.contains(IdAllocator.toId(6)));
+        Assert.assertFalse(members.contains("other-id"));
+
+        Assert.assertEquals(new HashSet<>(Arrays.asList(IdAllocator.toId(5), IdAllocator.toId(10), "external-id")), members);
+    }
+
+    @Test
+    public void testRandomMerges() {
+        Random random = new Random(1);
+
+        for (int test = 0; test < 500; test++) {
+            ClusterMemberSet members = new ClusterMemberSet();
+            Set<String> expected = new HashSet<>();
+
+            for (int round = 0; round < 10; round++) {
+                ClusterMemberSet other = new ClusterMemberSet();
+                Set<String> otherExpected = new HashSet<>();
+                long offset = random.nextInt(1000);
+
+                for (int i = 0; i < random.nextInt(50); i++) {
+                    String id = (random.nextInt(10) == 0) ? "ext-" + random.nextInt(20) :
+                            IdAllocator.toId(offset + random.nextInt(100));
+                    other.add(id);
+                    otherExpected.add(id);
+                }
+
+                boolean expectedIntersection = otherExpected.stream().anyMatch(expected::contains);
+                Assert.assertEquals(expectedIntersection, members.intersects(other));
+
+                if (random.nextBoolean()) {
+                    members.addAll(other);
+                } else {
+                    members.addAll(otherExpected);
+                }
+                expected.addAll(otherExpected);
+
+                Assert.assertEquals(expected.size(), members.size());
+                Assert.assertEquals(expected, members);
+            }
+        }
+    }
+
+    @Test
+    public void testSerialization() throws Exception {
+        ClusterMemberSet members = new ClusterMemberSet(Arrays.asList(
+                IdAllocator.toId(1), IdAllocator.toId(1_000_000_000_000L), IdAllocator.toId(2), "external-id"));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new ObjectOutputStream(bytes).writeObject(members);
+        ClusterMemberSet loadedMembers = (ClusterMemberSet) new ObjectInputStream(
+                new ByteArrayInputStream(bytes.toByteArray())).readObject();
+
+        Assert.assertEquals(members, loadedMembers);
+        Assert.assertEquals(4, loadedMembers.size());
+    }
+
+    @Test
+    public void testCodec() {
+        ClusterMemberSet members = new ClusterMemberSet(Arrays.asList(
+                IdAllocator.toId(1), IdAllocator.toId(1_000_000_000_000L), IdAllocator.toId(2), "external-id"));
+
+        CompactDataOutput out = new CompactDataOutput();
+        members.writeTo(out);
+        ClusterMemberSet loadedMembers = ClusterMemberSet.readFrom(new CompactDataInput(out.toByteArray()));
+
+        Assert.assertEquals(members, loadedMembers);
+
+        List<String> iteratedIds = new ArrayList<>();
+        ClusterMemberSet.idIterator(new CompactDataInput(out.toByteArray())).forEachRemaining(iteratedIds::add);
+        Assert.assertEquals(members, new HashSet<>(iteratedIds));
+    }
+
+    @Test
+    public void testIdsOfOtherRuns() {
+        // a set written by a different run
+        CompactDataOutput out = new CompactDataOutput();
+        out.writeUnsignedVarInt(2);
+        out.writeString("~other");
+        out.writeUnsignedVarLong(1);
+        out.writeUnsignedVarLong(1);
+        out.writeUnsignedVarInt(1);
+        out.writeString("external-id");
+
+        ClusterMemberSet loadedMembers = ClusterMemberSet.readFrom(new CompactDataInput(out.toByteArray()));
+
+        Assert.assertEquals(new HashSet<>(Arrays.asList("~other1", "~other2", "external-id")), loadedMembers);
+
+        // the ids do not collide with the ids of this run
+        Assert.assertFalse(loadedMembers.contains(IdAllocator.toId(1)));
+        Assert.assertTrue(loadedMembers.add(IdAllocator.toId(1)));
+        Assert.assertEquals(4, loadedMembers.size());
+    }
+}
@@ -0,0 +1,94 @@
+package org.spectra.cluster.model.cluster;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.spectra.cluster.engine.GreedyClusteringEngine;
+import org.spectra.cluster.exceptions.SpectraClusterException;
+import org.spectra.cluster.io.spectra.MzSpectraReader;
+import org.spectra.cluster.model.consensus.GreedyClusteringConsensusSpectrum;
+import org.spectra.cluster.model.spectra.IBinarySpectrum;
+import org.spectra.cluster.util.ClusteringParameters;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.ObjectOutputStream;
+import java.util.*;
+
+public class ClusterViewTest {
+    private GreedySpectralCluster createCluster() throws Exception {
+        File testFile = new File(Objects.requireNonNull(ClusterViewTest.class.getClassLoader().getResource("same_sequence_cluster.mgf")).toURI());
+        MzSpectraReader reader = new MzSpectraReader(new ClusteringParameters(), testFile);
+
+        Iterator<IBinarySpectrum> spectrumIterator = reader.readBinarySpectraIterator();
+        List<IBinarySpectrum> spectra = new ArrayList<>();
+
+        while (spectrumIterator.hasNext()) {
+            spectra.add(spectrumIterator.next());
+        }
+
+        GreedySpectralCluster cluster = new GreedySpectralCluster(new GreedyClusteringConsensusSpectrum("test", GreedyClusteringEngine.COMPARISON_FILTER));
+        cluster.addSpectra(spectra.toArray(new IBinarySpectrum[0]));
+        cluster.saveComparisonResult("other", 0.5f);
+
+        return cluster;
+    }
+
+    private void assertViewMatches(GreedySpectralCluster cluster, ClusterView view) {
+        Assert.assertEquals(cluster.getId(), view.getId());
+        Assert.assertEquals(cluster.getPrecursorMz(), view.getPrecursorMz());
+        Assert.assertEquals(cluster.getPrecursorCharge(), view.getPrecursorCharge());
+        Assert.assertEquals(cluster.getClusteredSpectraCount(), view.getClusteredSpectraCount());
+
+        Set<String> ids = new HashSet<>();
+        view.getClusteredSpectraIdIterator().forEachRemaining(ids::add);
+        Assert.assertEquals(cluster.getClusteredSpectraIds(), ids);
+
+        IBinarySpectrum consensus = cluster.getConsensusSpectrum();
+        Assert.assertEquals(consensus.getNumberOfPeaks(), view.getConsensusPeakCount());
+        Assert.assertArrayEquals(consensus.getCopyMzVector(), view.getConsensusMz());
+        Assert.assertArrayEquals(consensus.getCopyIntensityVector(), view.getConsensusIntensities());
+        Assert.assertEquals(consensus.getNumberOfPeaks(), view.getConsensusCounts().length);
+    }
+
+    @Test
+    public void testView() throws Exception {
+        GreedySpectralCluster cluster = createCluster();
+
+        assertViewMatches(cluster, new ClusterView(cluster.toBytes()));
+        assertViewMatches(cluster.freeze(), new ClusterView(cluster.freeze().toBytes()));
+
+        Assert.assertFalse(new ClusterView(cluster.toBytes()).isFrozen());
+        Assert.assertTrue(new ClusterView(cluster.freeze().toBytes()).isFrozen());
+
+        ICluster loadedCluster = new ClusterView(cluster.toBytes()).toCluster();
+        Assert.assertEquals(cluster.getClusteredSpectraIds(), loadedCluster.getClusteredSpectraIds());
+    }
+
+    @Test
+    public void testWrap() throws Exception {
+        GreedySpectralCluster cluster = createCluster();
+        byte[] clusterBytes = cluster.toBytes();
+
+        // views can be created on part of a larger buffer
+        byte[] buffer = new byte[clusterBytes.length + 20];
+        System.arraycopy(clusterBytes, 0, buffer, 10, clusterBytes.length);
+
+        ClusterView view = new ClusterView();
+        assertViewMatches(cluster, view.wrap(buffer, 10, clusterBytes.length));
+        Assert.assertEquals(cluster.getId(), view.toCluster().getId());
+        Assert.assertArrayEquals(clusterBytes, view.toBytes());
+
+        // other formats are rejected
+        ByteArrayOutputStream javaBytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(javaBytes)) {
+            out.writeObject(cluster);
+        }
+
+        try {
+            view.wrap(javaBytes.toByteArray(), 0, javaBytes.size());
+            Assert.fail("Java serialized clusters must not be wrapped");
+        } catch (SpectraClusterException e) {
+            // expected
+        }
+    }
+}
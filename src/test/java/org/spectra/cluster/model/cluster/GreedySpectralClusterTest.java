@@ -3,13 +3,17 @@ package org.spectra.cluster.model.cluster;
 import org.junit.Assert;
 import org.junit.Test;
 import org.spectra.cluster.engine.GreedyClusteringEngine;
+import org.spectra.cluster.exceptions.SpectraClusterException;
 import org.spectra.cluster.io.spectra.MzSpectraReader;
 import org.spectra.cluster.model.consensus.GreedyClusteringConsensusSpectrum;
 import org.spectra.cluster.model.spectra.IBinarySpectrum;
 import org.spectra.cluster.util.ClusteringParameters;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.ObjectOutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Objects;
@@ -83,4 +87,131 @@ public class GreedySpectralClusterTest {
         Assert.assertEquals(precursorMz, properties.getPrecursorMz());
         Assert.assertEquals(cluster.getPrecursorCharge(), properties.getPrecursorCharge());
     }
+
+    @Test
+    public void testFreeze() throws Exception {
+        File testFile = new File(Objects.requireNonNull(GreedySpectralClusterTest.class.getClassLoader().getResource("same_sequence_cluster.mgf")).toURI());
+        MzSpectraReader reader = new MzSpectraReader(new ClusteringParameters(), testFile);
+
+        Iterator<IBinarySpectrum> spectrumIterator = reader.readBinarySpectraIterator();
+        List<IBinarySpectrum> spectra = new ArrayList<>();
+
+        while (spectrumIterator.hasNext()) {
+            spectra.add(spectrumIterator.next());
+        }
+
+        GreedySpectralCluster cluster = new GreedySpectralCluster(new GreedyClusteringConsensusSpectrum("test", GreedyClusteringEngine.COMPARISON_FILTER));
+        cluster.addSpectra(spectra.toArray(new IBinarySpectrum[0]));
+        cluster.saveComparisonResult("other", 1);
+
+        GreedySpectralCluster frozenCluster = cluster.freeze();
+
+        Assert.assertTrue(frozenCluster.isFrozen());
+        Assert.assertFalse(cluster.isFrozen());
+        Assert.assertSame(frozenCluster, frozenCluster.freeze());
+
+        Assert.assertEquals(cluster.getId(), frozenCluster.getId());
+        Assert.assertEquals(cluster.getPrecursorMz(), frozenCluster.getPrecursorMz());
+        Assert.assertEquals(cluster.getPrecursorCharge(), frozenCluster.getPrecursorCharge());
+        Assert.assertEquals(cluster.getClusteredSpectraIds(), frozenCluster.getClusteredSpectraIds());
+        Assert.assertTrue(frozenCluster.getComparisonMatches().isEmpty());
+        Assert.assertArrayEquals(cluster.getConsensusSpectrum().getCopyMzVector(), frozenCluster.getConsensusSpectrum().getCopyMzVector());
+        Assert.assertArrayEquals(cluster.getConsensusSpectrum().getCopyIntensityVector(), frozenCluster.getConsensusSpectrum().getCopyIntensityVector());
+
+        for (int i = 0; i < cluster.getConsensusSpectrum().getNumberOfPeaks(); i++) {
+            Assert.assertEquals(cluster.getConsensusSpectrum().getPeakRank(i), frozenCluster.getConsensusSpectrum().getPeakRank(i));
+        }
+
+        // the frozen form is considerably smaller
+        Assert.assertTrue(frozenCluster.toBytes().length < cluster.toBytes().length);
+
+        GreedySpectralCluster loadedCluster = (GreedySpectralCluster) GreedySpectralCluster.fromBytes(frozenCluster.toBytes());
+        Assert.assertTrue(loadedCluster.isFrozen());
+        Assert.assertEquals(cluster.getClusteredSpectraIds(), loadedCluster.getClusteredSpectraIds());
+        Assert.assertEquals(cluster.getConsensusSpectrum().getComparisonProfile().size(),
+                loadedCluster.getConsensusSpectrum().getComparisonProfile().size());
+
+        // merging the frozen cluster yields the same result
+        GreedySpectralCluster mergedCluster = new GreedySpectralCluster(new GreedyClusteringConsensusSpectrum("merged", GreedyClusteringEngine.COMPARISON_FILTER));
+        mergedCluster.mergeCluster(cluster);
+        GreedySpectralCluster mergedFrozenCluster = new GreedySpectralCluster(new GreedyClusteringConsensusSpectrum("merged", GreedyClusteringEngine.COMPARISON_FILTER));
+        mergedFrozenCluster.mergeCluster(frozenCluster);
+
+        Assert.assertEquals(mergedCluster.getClusteredSpectraIds(), mergedFrozenCluster.getClusteredSpectraIds());
+        Assert.assertEquals(mergedCluster.getPrecursorMz(), mergedFrozenCluster.getPrecursorMz());
+        Assert.assertArrayEquals(mergedCluster.getConsensusSpectrum().getCopyMzVector(), mergedFrozenCluster.getConsensusSpectrum().getCopyMzVector());
+        Assert.assertArrayEquals(mergedCluster.getConsensusSpectrum().getCopyIntensityVector(), mergedFrozenCluster.getConsensusSpectrum().getCopyIntensityVector());
+
+        // frozen clusters cannot be changed
+        try {
+            frozenCluster.addSpectra(spectra.get(0));
+            Assert.fail("Frozen clusters must not accept spectra");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testBinaryCodec() throws Exception {
+        File testFile = new File(Objects.requireNonNull(GreedySpectralClusterTest.class.getClassLoader().getResource("same_sequence_cluster.mgf")).toURI());
+        MzSpectraReader reader = new MzSpectraReader(new ClusteringParameters(), testFile);
+
+        Iterator<IBinarySpectrum> spectrumIterator = reader.readBinarySpectraIterator();
+        List<IBinarySpectrum> spectra = new ArrayList<>();
+
+        while (spectrumIterator.hasNext()) {
+            spectra.add(spectrumIterator.next());
+        }
+
+        int half = spectra.size() / 2;
+        GreedySpectralCluster cluster = new GreedySpectralCluster(new GreedyClusteringConsensusSpectrum("test", GreedyClusteringEngine.COMPARISON_FILTER));
+        cluster.addSpectra(spectra.subList(0, half).toArray(new IBinarySpectrum[0]));
+        cluster.saveComparisonResult("other", 0.5f);
+        cluster.saveComparisonResult("another", 0.7f);
+
+        byte[] clusterBytes = cluster.toBytes();
+        GreedySpectralCluster loadedCluster = (GreedySpectralCluster) GreedySpectralCluster.fromBytes(clusterBytes);
+
+        Assert.assertEquals(cluster.getId(), loadedCluster.getId());
+        Assert.assertEquals(cluster.getPrecursorMz(), loadedCluster.getPrecursorMz());
+        Assert.assertEquals(cluster.getPrecursorCharge(), loadedCluster.getPrecursorCharge());
+        Assert.assertEquals(cluster.getClusteredSpectraIds(), loadedCluster.getClusteredSpectraIds());
+        Assert.assertEquals(cluster.getComparisonMatches().size(), loadedCluster.getComparisonMatches().size());
+        Assert.assertTrue(loadedCluster.isKnownComparisonMatch("another"));
+        Assert.assertEquals(cluster.getMinimumSavedComparisonSimilarity(), loadedCluster.getMinimumSavedComparisonSimilarity(), 0);
+        Assert.assertArrayEquals(cluster.getConsensusSpectrum().getCopyMzVector(), loadedCluster.getConsensusSpectrum().getCopyMzVector());
+        Assert.assertArrayEquals(cluster.getConsensusSpectrum().getCopyIntensityVector(), loadedCluster.getConsensusSpectrum().getCopyIntensityVector());
+
+        // the loaded cluster keeps all peaks and therefore continues exactly like the original one
+        IBinarySpectrum[] remainingSpectra = spectra.subList(half, spectra.size()).toArray(new IBinarySpectrum[0]);
+        cluster.addSpectra(remainingSpectra);
+        loadedCluster.addSpectra(remainingSpectra);
+
+        Assert.assertEquals(cluster.getPrecursorMz(), loadedCluster.getPrecursorMz());
+        Assert.assertArrayEquals(cluster.getConsensusSpectrum().getCopyMzVector(), loadedCluster.getConsensusSpectrum().getCopyMzVector());
+        Assert.assertArrayEquals(cluster.getConsensusSpectrum().getCopyIntensityVector(), loadedCluster.getConsensusSpectrum().getCopyIntensityVector());
+
+        // the codec is more compact than Java serialization which is not supported
+        ByteArrayOutputStream javaBytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(javaBytes)) {
+            out.writeObject(cluster);
+        }
+
+        Assert.assertTrue(cluster.toBytes().length < javaBytes.size());
+
+        try {
+            GreedySpectralCluster.fromBytes(javaBytes.toByteArray());
+            Assert.fail("Java serialized clusters must not be loaded");
+        } catch (SpectraClusterException e) {
+            // expected
+        }
+
+        // invalid data is rejected
+        try {
+            GreedySpectralCluster.fromBytes(Arrays.copyOf(clusterBytes, clusterBytes.length / 2));
+            Assert.fail("Truncated data must not be loaded");
+        } catch (SpectraClusterException e) {
+            // expected
+        }
+    }
 }
@@ -0,0 +1,95 @@
+package org.spectra.cluster.model.cluster;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.*;
+import java.util.*;
+
+public class TopComparisonMatchesTest {
+    @Test
+    public void testKeepsBestMatches() {
+        TopComparisonMatches matches = new TopComparisonMatches(5);
+
+        Assert.assertEquals(0, matches.size());
+        Assert.assertFalse(matches.contains("1"));
+
+        for (int i = 1; i <= 10; i++) {
+            Assert.assertTrue(matches.offer(String.valueOf(i), i));
+        }
+
+        Assert.assertTrue(matches.isFull());
+        Assert.assertEquals(6, matches.getLowestSimilarity(), 0);
+        Assert.assertFalse(matches.offer("11", 1));
+
+        List<ComparisonMatch> list = matches.toList();
+        Assert.assertEquals(5, list.size());
+
+        for (int i = 0; i < 5; i++) {
+            Assert.assertEquals(i + 6, list.get(i).getSimilarity(), 0);
+            Assert.assertEquals(String.valueOf(i + 6), list.get(i).getSpectrumId());
+        }
+
+        for (int i = 1; i <= 11; i++) {
+            Assert.assertEquals(i > 5 && i <= 10, matches.contains(String.valueOf(i)));
+        }
+    }
+
+    @Test
+    public void testRandomMatches() {
+        Random random = new Random(1);
+
+        for (int test = 0; test < 1000; test++) {
+            int capacity = 1 + random.nextInt(40);
+            int nIds = 1 + random.nextInt(100);
+            TopComparisonMatches matches = new TopComparisonMatches(capacity);
+            List<Float> allSimilarities = new ArrayList<>();
+
+            for (int i = 0; i < random.nextInt(200); i++) {
+                float similarity = random.nextInt(50);
+                matches.offer(String.valueOf(random.nextInt(nIds)), similarity);
+                allSimilarities.add(similarity);
+            }
+
+            // the highest similarities must be kept
+            Collections.sort(allSimilarities);
+            List<ComparisonMatch> list = matches.toList();
+            int expectedSize = Math.min(capacity, allSimilarities.size());
+
+            Assert.assertEquals(expectedSize, list.size());
+
+            for (int i = 0; i < expectedSize; i++) {
+                Assert.assertEquals(allSimilarities.get(allSimilarities.size() - expectedSize + i), list.get(i).getSimilarity(), 0);
+            }
+
+            // the membership test must match the stored ids
+            Set<String> storedIds = new HashSet<>();
+            list.forEach(match -> storedIds.add(match.getSpectrumId()));
+
+            for (int i = 0; i < nIds; i++) {
+                Assert.assertEquals(storedIds.contains(String.valueOf(i)), matches.contains(String.valueOf(i)));
+            }
+        }
+    }
+
+    @Test
+    public void testSerialization() throws Exception {
+        TopComparisonMatches matches = new TopComparisonMatches(3);
+        matches.offer("A", 1);
+        matches.offer("B", 2);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new ObjectOutputStream(bytes).writeObject(matches);
+        TopComparisonMatches loadedMatches = (TopComparisonMatches) new ObjectInputStream(
+                new ByteArrayInputStream(bytes.toByteArray())).readObject();
+
+        Assert.assertEquals(2, loadedMatches.size());
+        Assert.assertTrue(loadedMatches.contains("A"));
+        Assert.assertTrue(loadedMatches.contains("B"));
+
+        loadedMatches.offer("C", 3);
+        loadedMatches.offer("D", 4);
+        Assert.assertFalse(loadedMatches.contains("A"));
+        Assert.assertTrue(loadedMatches.contains("D"));
+    }
+}
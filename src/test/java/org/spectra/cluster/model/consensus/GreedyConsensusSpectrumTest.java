@@ -11,6 +11,7 @@ import org.spectra.cluster.model.cluster.GreedySpectralClusterTest;
 import org.spectra.cluster.model.spectra.BinaryPeak;
 import org.spectra.cluster.model.spectra.BinarySpectrum;
 import org.spectra.cluster.model.spectra.IBinarySpectrum;
+import org.spectra.cluster.model.spectra.PackedBinarySpectrum;
 import org.spectra.cluster.normalizer.BasicIntegerNormalizer;
 import org.spectra.cluster.normalizer.CumulativeIntensityNormalizer;
 import org.spectra.cluster.similarity.CombinedFisherIntensityTest;
@@ -34,6 +35,16 @@ public class GreedyConsensusSpectrumTest {
                 .specAndThen(new RawPeaksWrapperFunction(new KeepNHighestRawPeaks(70)));
     }
 
+    /**
+     * Creates a consensus spectrum whose cluster contains the passed peaks.
+     */
+    private static GreedyClusteringConsensusSpectrum createConsensusSpectrum(BinaryConsensusPeak[] existingPeaks, int nSpectra) {
+        return new GreedyClusteringConsensusSpectrum("Test", null, null, (IBinarySpectrum s) -> s, 0, 0,
+                existingPeaks, true, nSpectra, 1000, 2, 2 * nSpectra,
+                GreedyClusteringConsensusSpectrum.MIN_PEAKS_TO_KEEP, GreedyClusteringConsensusSpectrum.DEFAULT_PEAKS_TO_KEEP,
+                GreedyClusteringConsensusSpectrum.NOISE_FILTER_INCREMENT);
+    }
+
     @Test
     public void testAddPeaksToConsensus() {
         BinaryConsensusPeak[] existingPeaks = {
@@ -42,13 +53,11 @@ public class GreedyConsensusSpectrumTest {
                 new BinaryConsensusPeak(100, 1000, 30)
         };
 
-        BinaryPeak[] peaksToAdd = {
-                new BinaryPeak(5, 10),
-                new BinaryPeak(20, 10),
-                new BinaryPeak(110, 20)
-        };
+        GreedyClusteringConsensusSpectrum consensusSpectrum = createConsensusSpectrum(existingPeaks, 30);
+        consensusSpectrum.addSpectra(new PackedBinarySpectrum("s1", 1000, 2,
+                new int[] {5, 20, 110}, new int[] {10, 10, 20}, (IBinarySpectrum s) -> s));
 
-        BinaryConsensusPeak[] mergedPeaks = GreedyClusteringConsensusSpectrum.addPeaksToConsensus(existingPeaks, peaksToAdd);
+        BinaryConsensusPeak[] mergedPeaks = consensusSpectrum.getAllPeaks();
 
         Assert.assertEquals(5, mergedPeaks.length);
         Assert.assertEquals(5, mergedPeaks[0].getMz());
@@ -68,13 +77,12 @@ public class GreedyConsensusSpectrumTest {
                 new BinaryConsensusPeak(100, 1000, 30)
         };
 
-        BinaryConsensusPeak[] peaksToAdd = {
-                new BinaryConsensusPeak(5, 10, 5),
-                new BinaryConsensusPeak(20, 10, 10),
-                new BinaryConsensusPeak(110, 20, 10)
-        };
+        GreedyClusteringConsensusSpectrum consensusSpectrum = createConsensusSpectrum(existingPeaks, 30);
+        consensusSpectrum.addConsensusSpectrum(new FrozenConsensusSpectrum("c2",
+                new int[] {5, 20, 110}, new int[] {10, 10, 20}, new int[] {5, 10, 10},
+                10, 1000, 2, 20, (IBinarySpectrum s) -> s));
 
-        BinaryConsensusPeak[] mergedPeaks = GreedyClusteringConsensusSpectrum.addPeaksToConsensus(existingPeaks, peaksToAdd);
+        BinaryConsensusPeak[] mergedPeaks = consensusSpectrum.getAllPeaks();
 
         Assert.assertEquals(5, mergedPeaks.length);
         Assert.assertEquals(5, mergedPeaks[0].getMz());
@@ -87,6 +95,23 @@ public class GreedyConsensusSpectrumTest {
         Assert.assertEquals(10, mergedPeaks[4].getCount());
     }
 
+    @Test
+    public void testAddPeaksDoesNotOverflow() {
+        BinaryConsensusPeak[] existingPeaks = {
+                new BinaryConsensusPeak(10, 1_000_000_000, 10)
+        };
+
+        GreedyClusteringConsensusSpectrum consensusSpectrum = createConsensusSpectrum(existingPeaks, 10);
+        consensusSpectrum.addSpectra(new PackedBinarySpectrum("s1", 1000, 2,
+                new int[] {10}, new int[] {1_000_000_000}, (IBinarySpectrum s) -> s));
+
+        BinaryConsensusPeak[] mergedPeaks = consensusSpectrum.getAllPeaks();
+
+        Assert.assertEquals(1, mergedPeaks.length);
+        Assert.assertEquals(1_000_000_000, mergedPeaks[0].getIntensity());
+        Assert.assertEquals(11, mergedPeaks[0].getCount());
+    }
+
     /**
      * Tests whether the consensus spectrum of the first 10 test spectra (all from the same peptide) are similar to the consensus.
      *
@@ -309,4 +334,83 @@ public class GreedyConsensusSpectrumTest {
 
         Assert.assertEquals(1, Math.round(sumCharge / (float) nSpectra));
     }
+
+    @Test
+    public void testNoiseFilterKeepsTopPeaks() {
+        // keep 2 peaks per 100 m/z
+        GreedyClusteringConsensusSpectrum consensusSpectrum = new GreedyClusteringConsensusSpectrum("Test", 1, 2, 100, (IBinarySpectrum s) -> s);
+        consensusSpectrum.addSpectra(new PackedBinarySpectrum(1000, 2, new int[]{10, 20, 30, 40, 150},
+                new int[]{300, 300, 300, 100, 50}, (IBinarySpectrum s) -> s));
+
+        IBinarySpectrum consensus = consensusSpectrum.getConsensusSpectrum();
+
+        // among peaks with the same intensity, the ones with the higher m/z are kept
+        Assert.assertArrayEquals(new int[]{20, 30, 150}, consensus.getCopyMzVector());
+        Assert.assertEquals(1, consensus.getPeakRank(0));
+        Assert.assertEquals(2, consensus.getPeakRank(1));
+        Assert.assertEquals(3, consensus.getPeakRank(2));
+
+        BinaryPeak[] peaks = consensus.getPeaks();
+        Assert.assertEquals(3, peaks.length);
+        Assert.assertEquals(30, peaks[1].getMz());
+        Assert.assertEquals(consensus.getPeakIntensity(1), peaks[1].getIntensity());
+        Assert.assertEquals(2, peaks[1].getRank());
+    }
+
+    @Test
+    public void testAddConsensusSpectrumInPlace() {
+        GreedyClusteringConsensusSpectrum consensusSpectrum = new GreedyClusteringConsensusSpectrum("Test", (IBinarySpectrum s) -> s);
+        GreedyClusteringConsensusSpectrum consensusSpectrum2 = new GreedyClusteringConsensusSpectrum("Test2", (IBinarySpectrum s) -> s);
+
+        for (int i = 0; i < 3; i++) {
+            consensusSpectrum.addSpectra(new PackedBinarySpectrum(1000, 2, new int[]{10, 20, 30},
+                    new int[]{100, 200, 300}, (IBinarySpectrum s) -> s));
+        }
+
+        consensusSpectrum2.addSpectra(new PackedBinarySpectrum(1000, 2, new int[]{5, 20, 40},
+                new int[]{100, 200, 300}, (IBinarySpectrum s) -> s));
+        consensusSpectrum.addConsensusSpectrum(consensusSpectrum2);
+
+        BinaryPeak[] peaks = consensusSpectrum.getConsensusSpectrum().getPeaks();
+
+        Assert.assertEquals(4, consensusSpectrum.getSpectraCount());
+        Assert.assertArrayEquals(new int[]{5, 10, 20, 30, 40}, consensusSpectrum.getCopyMzVector());
+        Assert.assertEquals(1, ((BinaryConsensusPeak) peaks[0]).getCount());
+        Assert.assertEquals(3, ((BinaryConsensusPeak) peaks[1]).getCount());
+        Assert.assertEquals(4, ((BinaryConsensusPeak) peaks[2]).getCount());
+    }
+
+    @Test
+    public void testMaxPeaksPerWindow() throws Exception {
+        File testFile = new File(Objects.requireNonNull(GreedySpectralClusterTest.class.getClassLoader().getResource("same_sequence_cluster.mgf")).toURI());
+        MzSpectraReader reader = new MzSpectraReader(new ClusteringParameters(), (IBinarySpectrum s) -> s, testFile);
+        Iterator<IBinarySpectrum> spectrumIterator = reader.readBinarySpectraIterator();
+
+        GreedyClusteringConsensusSpectrum consensusSpectrum = new GreedyClusteringConsensusSpectrum("Test", (IBinarySpectrum s) -> s);
+        GreedyClusteringConsensusSpectrum largeLimitSpectrum = new GreedyClusteringConsensusSpectrum("Test", (IBinarySpectrum s) -> s);
+        GreedyClusteringConsensusSpectrum smallLimitSpectrum = new GreedyClusteringConsensusSpectrum("Test", (IBinarySpectrum s) -> s);
+        largeLimitSpectrum.setMaxPeaksPerWindow(1000);
+        smallLimitSpectrum.setMaxPeaksPerWindow(GreedyClusteringConsensusSpectrum.DEFAULT_PEAKS_TO_KEEP);
+
+        while (spectrumIterator.hasNext()) {
+            IBinarySpectrum spectrum = spectrumIterator.next();
+            consensusSpectrum.addSpectra(spectrum);
+            largeLimitSpectrum.addSpectra(spectrum);
+            smallLimitSpectrum.addSpectra(spectrum);
+        }
+
+        // nothing is removed if the limit is not reached
+        Assert.assertEquals(0, largeLimitSpectrum.getEvictedPeakCount());
+        Assert.assertArrayEquals(consensusSpectrum.getCopyMzVector(), largeLimitSpectrum.getCopyMzVector());
+        Assert.assertArrayEquals(consensusSpectrum.getCopyIntensityVector(), largeLimitSpectrum.getCopyIntensityVector());
+
+        Assert.assertTrue(smallLimitSpectrum.getEvictedPeakCount() > 0);
+        Assert.assertTrue(smallLimitSpectrum.getEvictedPeakIntensity() > 0);
+        Assert.assertEquals(consensusSpectrum.getSpectraCount(), smallLimitSpectrum.getSpectraCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMaxPeaksPerWindowTooSmall() {
+        new GreedyClusteringConsensusSpectrum("Test", (IBinarySpectrum s) -> s).setMaxPeaksPerWindow(1);
+    }
 }
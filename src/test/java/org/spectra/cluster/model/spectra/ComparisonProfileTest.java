@@ -0,0 +1,99 @@
+package org.spectra.cluster.model.spectra;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.spectra.cluster.filter.binaryspectrum.FractionTicFilterFunction;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class ComparisonProfileTest {
+    private final FractionTicFilterFunction noFilter = new FractionTicFilterFunction(1, 100);
+
+    @Test
+    public void testFromSpectrum() {
+        IBinarySpectrum spectrum = new PackedBinarySpectrum(1, 2, new int[]{5, 10, 10, 20}, new int[]{3, 4, 5, 6}, noFilter);
+        ComparisonProfile profile = spectrum.getComparisonProfile();
+
+        Assert.assertEquals(3, profile.size());
+        Assert.assertEquals(5, profile.getMinMz());
+        Assert.assertEquals(20, profile.getMaxMz());
+        Assert.assertEquals(4, profile.getIntensity(1));
+        Assert.assertSame(profile, spectrum.getComparisonProfile());
+        Assert.assertEquals(5, spectrum.getMinComparisonMz());
+        Assert.assertEquals(20, spectrum.getMaxComparisonMz());
+    }
+
+    @Test
+    public void testSharedPeaks() {
+        ComparisonProfile profile1 = new PackedBinarySpectrum(1, 2, new int[]{1, 3, 5, 7, 9}, new int[]{10, 30, 50, 70, 90}, noFilter)
+                .getComparisonProfile();
+        ComparisonProfile profile2 = new PackedBinarySpectrum(1, 2, new int[]{2, 3, 7, 9, 11, 13}, new int[]{20, 31, 71, 91, 111, 131}, noFilter)
+                .getComparisonProfile();
+
+        Assert.assertEquals(3, profile1.countSharedPeaks(profile2));
+        Assert.assertEquals(3, profile2.countSharedPeaks(profile1));
+
+        int[] intensities1 = new int[5];
+        int[] intensities2 = new int[5];
+
+        Assert.assertEquals(3, profile1.getSharedIntensities(profile2, intensities1, intensities2));
+        Assert.assertArrayEquals(new int[]{30, 70, 90, 0, 0}, intensities1);
+        Assert.assertArrayEquals(new int[]{31, 71, 91, 0, 0}, intensities2);
+    }
+
+    @Test
+    public void testEmptyProfile() {
+        ComparisonProfile profile = new PackedBinarySpectrum(1, 2, new int[0], new int[0], noFilter).getComparisonProfile();
+
+        Assert.assertEquals(0, profile.size());
+        Assert.assertEquals(0, profile.getMinMz());
+        Assert.assertEquals(0, profile.countSharedPeaks(ComparisonProfile.EMPTY));
+    }
+
+    @Test
+    public void testBitset() {
+        Assert.assertTrue(createProfile(new int[]{100, 2000}).hasBitset());
+        Assert.assertFalse(createProfile(new int[]{100, 100 + ComparisonProfile.MAX_BITSET_BINS}).hasBitset());
+        Assert.assertFalse(ComparisonProfile.EMPTY.hasBitset());
+    }
+
+    @Test
+    public void testBitsetSharedPeaks() {
+        Random random = new Random(1);
+
+        for (int i = 0; i < 10_000; i++) {
+            // the second range sometimes exceeds the bitset's limit
+            int[] mz1 = randomMz(random, random.nextInt(500), 2500);
+            int[] mz2 = randomMz(random, random.nextInt(500), random.nextBoolean() ? 2500 : 10_000);
+            ComparisonProfile profile1 = createProfile(mz1);
+            ComparisonProfile profile2 = createProfile(mz2);
+
+            int[] intensities1 = new int[50];
+            int[] intensities2 = new int[50];
+            int nShared = profile1.getSharedIntensities(profile2, intensities1, intensities2);
+
+            int[] expectedShared = Arrays.stream(mz1).filter(mz -> Arrays.binarySearch(mz2, mz) >= 0).toArray();
+
+            Assert.assertEquals(expectedShared.length, profile1.countSharedPeaks(profile2));
+            Assert.assertEquals(expectedShared.length, profile2.countSharedPeaks(profile1));
+            Assert.assertEquals(expectedShared.length, nShared);
+
+            // intensities are set to m/z + 1
+            for (int j = 0; j < nShared; j++) {
+                Assert.assertEquals(expectedShared[j] + 1, intensities1[j]);
+                Assert.assertEquals(expectedShared[j] + 1, intensities2[j]);
+            }
+        }
+    }
+
+    private int[] randomMz(Random random, int minMz, int range) {
+        return random.ints(1 + random.nextInt(40), minMz, minMz + range).sorted().distinct().toArray();
+    }
+
+    private ComparisonProfile createProfile(int[] mz) {
+        int[] intensity = Arrays.stream(mz).map(m -> m + 1).toArray();
+
+        return new PackedBinarySpectrum(1, 2, mz, intensity, noFilter).getComparisonProfile();
+    }
+}
@@ -0,0 +1,121 @@
+package org.spectra.cluster.model.spectra;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.spectra.cluster.engine.GreedyClusteringEngine;
+import org.spectra.cluster.filter.binaryspectrum.FractionTicFilterFunction;
+import org.spectra.cluster.filter.binaryspectrum.HighestIntensityNPeaksFunction;
+import org.spectra.cluster.filter.binaryspectrum.HighestPeakPerBinFunction;
+import org.spectra.cluster.io.spectra.MzSpectraReader;
+import org.spectra.cluster.util.ClusteringParameters;
+
+import java.io.File;
+import java.net.URI;
+import java.util.Iterator;
+import java.util.Objects;
+
+public class PackedBinarySpectrumTest {
+    private final int[] mz = {1, 2, 3, 4, 5, 6, 7, 8};
+    private final int[] intensity = {5, 8, 1, 8, 3, 7, 2, 6};
+
+    @Test
+    public void testRanksMatchBinarySpectrum() {
+        PackedBinarySpectrum packed = new PackedBinarySpectrum(1, 2, mz, intensity, GreedyClusteringEngine.COMPARISON_FILTER);
+        BinarySpectrum binarySpectrum = new BinarySpectrum(1, 2, createPeaks(), GreedyClusteringEngine.COMPARISON_FILTER);
+
+        Assert.assertEquals(8, packed.getNumberOfPeaks());
+
+        for (int i = 0; i < packed.getNumberOfPeaks(); i++) {
+            Assert.assertEquals(binarySpectrum.getPeaks()[i].getMz(), packed.getPeakMz(i));
+            Assert.assertEquals(binarySpectrum.getPeaks()[i].getIntensity(), packed.getPeakIntensity(i));
+            Assert.assertEquals(binarySpectrum.getPeaks()[i].getRank(), packed.getPeakRank(i));
+        }
+
+        // ties are resolved by m/z
+        Assert.assertEquals(1, packed.getPeakRank(1));
+        Assert.assertEquals(2, packed.getPeakRank(3));
+    }
+
+    @Test
+    public void testGetPeaks() {
+        PackedBinarySpectrum packed = new PackedBinarySpectrum(1, 2, mz, intensity, GreedyClusteringEngine.COMPARISON_FILTER);
+        BinaryPeak[] peaks = packed.getPeaks();
+
+        Assert.assertEquals(8, peaks.length);
+        Assert.assertSame(peaks, packed.getPeaks());
+        Assert.assertEquals(4, peaks[3].getMz());
+        Assert.assertEquals(8, peaks[3].getIntensity());
+        Assert.assertEquals(2, peaks[3].getRank());
+        Assert.assertArrayEquals(mz, packed.getCopyMzVector());
+        Assert.assertArrayEquals(intensity, packed.getCopyIntensityVector());
+    }
+
+    @Test
+    public void testFiltersMatchBinarySpectrum() {
+        PackedBinarySpectrum packed = new PackedBinarySpectrum(1, 2, mz, intensity, GreedyClusteringEngine.COMPARISON_FILTER);
+        BinarySpectrum binarySpectrum = new BinarySpectrum(1, 2, createPeaks(), GreedyClusteringEngine.COMPARISON_FILTER);
+
+        assertSamePeaks(new FractionTicFilterFunction(0.5f, 2).apply(binarySpectrum),
+                new FractionTicFilterFunction(0.5f, 2).apply(packed));
+        assertSamePeaks(new HighestIntensityNPeaksFunction(3).apply(binarySpectrum),
+                new HighestIntensityNPeaksFunction(3).apply(packed));
+
+        IBinarySpectrum filtered = new HighestIntensityNPeaksFunction(3).apply(packed);
+        Assert.assertTrue(filtered instanceof PackedBinarySpectrum);
+        Assert.assertEquals(3, filtered.getNumberOfPeaks());
+        Assert.assertEquals(2, filtered.getPeakMz(0));
+        Assert.assertEquals(6, filtered.getPeakMz(2));
+    }
+
+    @Test
+    public void testHighestPeakPerBin() {
+        int[] duplicatedMz = {1, 1, 2, 3, 3, 3};
+        int[] duplicatedIntensity = {4, 6, 1, 2, 9, 9};
+        PackedBinarySpectrum packed = new PackedBinarySpectrum(1, 2, duplicatedMz, duplicatedIntensity, GreedyClusteringEngine.COMPARISON_FILTER);
+
+        IBinarySpectrum filtered = new HighestPeakPerBinFunction().apply(packed);
+
+        Assert.assertArrayEquals(new int[]{1, 2, 3}, filtered.getCopyMzVector());
+        Assert.assertArrayEquals(new int[]{6, 1, 9}, filtered.getCopyIntensityVector());
+        Assert.assertEquals(2, filtered.getPeakRank(0));
+        Assert.assertEquals(1, filtered.getPeakRank(2));
+    }
+
+    @Test
+    public void testReaderCreatesPackedSpectra() throws Exception {
+        URI uri = Objects.requireNonNull(PackedBinarySpectrumTest.class.getClassLoader().getResource("single-spectra.mgf")).toURI();
+        MzSpectraReader reader = new MzSpectraReader(new ClusteringParameters(), new File(uri));
+
+        Iterator<IBinarySpectrum> spectrumIterator = reader.readBinarySpectraIterator();
+        IBinarySpectrum spectrum = spectrumIterator.next();
+
+        Assert.assertTrue(spectrum instanceof PackedBinarySpectrum);
+
+        for (int i = 0; i < spectrum.getNumberOfPeaks() - 1; i++) {
+            Assert.assertTrue(spectrum.getPeakMz(i) < spectrum.getPeakMz(i + 1));
+        }
+
+        Assert.assertFalse(spectrum.getComparisonFilteredPeaks().isEmpty());
+        Assert.assertTrue(spectrum.getMinComparisonMz() <= spectrum.getMaxComparisonMz());
+    }
+
+    private BinaryPeak[] createPeaks() {
+        BinaryPeak[] peaks = new BinaryPeak[mz.length];
+
+        for (int i = 0; i < mz.length; i++) {
+            peaks[i] = new BinaryPeak(mz[i], intensity[i]);
+        }
+
+        return peaks;
+    }
+
+    private void assertSamePeaks(IBinarySpectrum expected, IBinarySpectrum actual) {
+        Assert.assertEquals(expected.getNumberOfPeaks(), actual.getNumberOfPeaks());
+
+        for (int i = 0; i < expected.getNumberOfPeaks(); i++) {
+            Assert.assertEquals(expected.getPeakMz(i), actual.getPeakMz(i));
+            Assert.assertEquals(expected.getPeakIntensity(i), actual.getPeakIntensity(i));
+            Assert.assertEquals(expected.getPeakRank(i), actual.getPeakRank(i));
+        }
+    }
+}
@@ -129,6 +129,28 @@ public class CombinedFisherIntensityTestTest {
         System.out.println(String.valueOf(score));
     }
 
+    @Test
+    public void testCorrelationAtLeast() {
+        IBinarySpectrumSimilarity similarity = new CombinedFisherIntensityTest();
+        double[] minScores = {Double.NEGATIVE_INFINITY, 0, 10, 30, 60, 100, 150};
+
+        for (IBinarySpectrum spectrum1 : impSpectra) {
+            for (IBinarySpectrum spectrum2 : impSpectra) {
+                double score = similarity.correlation(spectrum1, spectrum2);
+
+                for (double minScore : minScores) {
+                    double boundedScore = similarity.correlationAtLeast(spectrum1, spectrum2, minScore);
+
+                    // either the exact score or an upper bound below the minimum score
+                    if (boundedScore != score) {
+                        Assert.assertTrue(boundedScore < minScore);
+                        Assert.assertTrue(score <= boundedScore);
+                    }
+                }
+            }
+        }
+    }
+
 //    @Test
 //    public void testImpCluster() throws Exception {
 //
@@ -0,0 +1,126 @@
+package org.spectra.cluster.similarity;
+
+import cern.jet.random.HyperGeometric;
+import cern.jet.random.Normal;
+import cern.jet.random.engine.RandomEngine;
+import org.apache.commons.math3.distribution.ChiSquaredDistribution;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.MathContext;
+import java.util.Random;
+
+/**
+ * Compares the precomputed statistics kernel against the colt and
+ * commons-math implementations used originally.
+ */
+public class CombinedFisherStatisticsTest {
+    private final CombinedFisherStatistics statistics = CombinedFisherStatistics.INSTANCE;
+    private final RandomEngine randomEngine = RandomEngine.makeDefault();
+
+    /**
+     * Calculates the hypergeometric pdf using exact binomial coefficients.
+     */
+    private static double exactHypergeometricPdf(int N, int s, int n, int k) {
+        BigDecimal numerator = new BigDecimal(binomial(s, k).multiply(binomial(N - s, n - k)));
+
+        return numerator.divide(new BigDecimal(binomial(N, n)), MathContext.DECIMAL64).doubleValue();
+    }
+
+    private static BigInteger binomial(int n, int k) {
+        BigInteger binomial = BigInteger.ONE;
+
+        for (int i = 0; i < k; i++) {
+            binomial = binomial.multiply(BigInteger.valueOf(n - i)).divide(BigInteger.valueOf(i + 1));
+        }
+
+        return binomial;
+    }
+
+    @Test
+    public void testHypergeometricPdf() {
+        Random random = new Random(1);
+        int nOverflowingCases = 0;
+
+        for (int run = 0; run < 100_000; run++) {
+            int N = 1 + random.nextInt(5000);
+            int s = random.nextInt(Math.min(N, 400) + 1);
+            int n = random.nextInt(Math.min(N, 400) + 1);
+            int k = random.nextInt(Math.min(n, s) + 1);
+
+            double expected = new HyperGeometric(N, s, n, randomEngine).pdf(k);
+            double actual = statistics.hypergeometricPdf(N, s, n, k);
+
+            // the original implementation overflows for large values - compare against the exact value instead
+            if (Double.isNaN(expected) || Double.isInfinite(expected) || expected < 1e-300) {
+                expected = exactHypergeometricPdf(N, s, n, k);
+                nOverflowingCases++;
+
+                Assert.assertEquals(String.format("exact HGT(%d, %d, %d).pdf(%d)", N, s, n, k), expected, actual, expected * 1e-8 + 1e-320);
+                continue;
+            }
+
+            Assert.assertEquals(String.format("HGT(%d, %d, %d).pdf(%d)", N, s, n, k), expected, actual, expected * 1e-8);
+        }
+
+        Assert.assertTrue(nOverflowingCases > 0);
+
+        // the case from CombinedFisherIntensityTestTest
+        double expected = new HyperGeometric(1655, 383, 87, randomEngine).pdf(62);
+        Assert.assertEquals(expected, statistics.hypergeometricPdf(1655, 383, 87, 62), expected * 1e-8);
+    }
+
+    @Test
+    public void testOverflowingHypergeometricPdf() {
+        // colt's binomial coefficients overflow and the original score was NaN
+        Assert.assertTrue(Double.isNaN(new HyperGeometric(5000, 400, 400, randomEngine).pdf(40)));
+
+        Assert.assertEquals(0.023061802567094537, statistics.hypergeometricPdf(5000, 400, 400, 40), 0.023061802567094537 * 1e-8);
+        Assert.assertEquals(1.2672398756552561e-129, statistics.hypergeometricPdf(5000, 400, 400, 200), 1.2672398756552561e-129 * 1e-8);
+    }
+
+    @Test
+    public void testDegeneratedHypergeometricPdf() {
+        // values outside of the support must behave like the original
+        Assert.assertEquals(new HyperGeometric(10, 3, 5, randomEngine).pdf(4), statistics.hypergeometricPdf(10, 3, 5, 4), 0);
+        Assert.assertEquals(0, statistics.hypergeometricPdf(10, 3, 5, 4), 0);
+    }
+
+    @Test
+    public void testNormalUpperTail() {
+        for (double z = -12; z <= 12; z += 0.0013) {
+            double expected = 1 - new Normal(0, 1, randomEngine).cdf(z);
+            double actual = statistics.normalUpperTail(z);
+
+            // the original 1 - cdf loses precision in the upper tail
+            Assert.assertEquals(String.format("z = %.4f", z), expected, actual, expected * 1e-8 + 2e-15);
+        }
+
+        Assert.assertEquals(0, statistics.normalUpperTail(9), 0);
+        Assert.assertEquals(1, statistics.normalUpperTail(-9), 0);
+        Assert.assertEquals(0.5, statistics.normalUpperTail(0), 1e-12);
+    }
+
+    @Test
+    public void testChiSquare4Density() {
+        ChiSquaredDistribution chiSquaredDistribution = new ChiSquaredDistribution(4);
+
+        for (double x = 0.001; x < 1400; x *= 1.01) {
+            double expected = chiSquaredDistribution.density(x);
+            Assert.assertEquals(String.format("x = %.4f", x), expected, statistics.chiSquare4Density(x), expected * 1e-10);
+        }
+    }
+
+    @Test
+    public void testLogFactorial() {
+        CombinedFisherStatistics smallTable = new CombinedFisherStatistics(100);
+
+        for (int n = 0; n < 1000; n++) {
+            Assert.assertEquals(statistics.logFactorial(n), smallTable.logFactorial(n), 1e-9);
+        }
+
+        Assert.assertEquals(Math.log(120), statistics.logFactorial(5), 1e-12);
+    }
+}
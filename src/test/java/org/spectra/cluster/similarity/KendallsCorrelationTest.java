@@ -14,8 +14,10 @@ import java.io.File;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Objects;
+import java.util.Random;
 
 public class KendallsCorrelationTest {
 
@@ -70,4 +72,35 @@ public class KendallsCorrelationTest {
 
         }
     }
+
+    @Test
+    public void testPrimitiveCorrelation() {
+        KendallsCorrelation kendall = new KendallsCorrelation();
+        Random random = new Random(42);
+
+        for (int run = 0; run < 1000; run++) {
+            int n = 1 + random.nextInt(300);
+            // small value ranges create a lot of ties
+            int maxValue = (run % 2 == 0) ? 10 : 100_000;
+
+            int[] x = new int[n];
+            int[] y = new int[n];
+            IntPair[] pairs = new IntPair[n];
+
+            for (int i = 0; i < n; i++) {
+                x[i] = random.nextInt(maxValue);
+                y[i] = random.nextInt(maxValue);
+                pairs[i] = new IntPair(x[i], y[i]);
+            }
+
+            int[] orgX = Arrays.copyOf(x, n);
+            double tauPairs = kendall.correlation(pairs);
+            double tauPrimitive = kendall.correlation(x, y, n);
+
+            // the values must be bit identical
+            Assert.assertEquals(Double.doubleToLongBits(tauPairs), Double.doubleToLongBits(tauPrimitive));
+            // the input must not be changed
+            Assert.assertArrayEquals(orgX, x);
+        }
+    }
 }
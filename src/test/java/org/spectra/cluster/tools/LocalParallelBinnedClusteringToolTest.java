@@ -7,6 +7,7 @@ import io.github.bigbio.pgatk.io.properties.InMemoryPropertyStorage;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
+import org.spectra.cluster.binning.GapPartitionBinner;
 import org.spectra.cluster.binning.SimilarSizedClusterBinner;
 import org.spectra.cluster.cdf.MinNumberComparisonsAssessor;
 import org.spectra.cluster.engine.GreedyClusteringEngine;
@@ -130,6 +131,9 @@ public class LocalParallelBinnedClusteringToolTest {
 
             totalClusters++;
 
+            // the final clusters no longer contain the merge state
+            Assert.assertTrue(cluster.isFrozen());
+
             // count the number of spectra
             totalSpectra += cluster.getClusteredSpectraCount();
         }
@@ -137,4 +141,96 @@ public class LocalParallelBinnedClusteringToolTest {
         Assert.assertEquals(95, totalClusters);
         Assert.assertEquals(testClusters.length, totalSpectra);
     }
+
+    @Test
+    public void testInMemoryClustering() throws Exception {
+        IMapStorage<ICluster> clusterStorage = ClusterStorageFactory.buildInMemoryStorage();
+
+        // load the clusters
+        IClusterProperties[] testClusters = loadTestCluster(clusterStorage);
+
+        // create the clusterer
+        LocalParallelBinnedClusteringTool clusterer = new LocalParallelBinnedClusteringTool(
+                2, testDir.toFile(),
+                new SimilarSizedClusterBinner(BasicIntegerNormalizer.MZ_CONSTANT * 2, 10, false),
+                GreedySpectralCluster.class);
+        clusterer.setInMemory(true);
+
+        File finalResultFile = new File(testDir.toFile(), "result.bcs");
+
+        ClusteringParameters clusteringParameters = new ClusteringParameters();
+        clusteringParameters.setThresholdStart(1f);
+        clusteringParameters.setThresholdEnd(0.99f);
+        clusteringParameters.setClusterRounds(5);
+        clusteringParameters.setFragmentIonPrecision("high");
+        clusteringParameters.setPrecursorIonTolerance((double) 1);
+        clusteringParameters.setIgnoreCharge(false);
+        clusteringParameters.setNInitiallySharedPeaks(5);
+        clusteringParameters.setNThreads(1);
+        clusteringParameters.setOutputFile(finalResultFile);
+
+        clusterer.runClustering(testClusters, clusterStorage, clusteringParameters);
+
+        // the input storage is released after the first round
+        Assert.assertEquals(0, clusterStorage.storageSize());
+
+        // the result must be the same as when using temporary files
+        ObjectDBGreedyClusterStorage resultReader = new ObjectDBGreedyClusterStorage(new ObjectsDB(finalResultFile.getAbsolutePath(), false));
+        int totalClusters = 0;
+        int totalSpectra = 0;
+
+        while (resultReader.hasNext()) {
+            GreedySpectralCluster cluster = (GreedySpectralCluster) resultReader.next();
+
+            totalClusters++;
+            Assert.assertTrue(cluster.isFrozen());
+            totalSpectra += cluster.getClusteredSpectraCount();
+        }
+
+        Assert.assertEquals(95, totalClusters);
+        Assert.assertEquals(testClusters.length, totalSpectra);
+    }
+
+    @Test
+    public void testGapPartitionClustering() throws Exception {
+        IMapStorage<ICluster> clusterStorage = ClusterStorageFactory.buildInMemoryStorage();
+
+        // load the clusters
+        IClusterProperties[] testClusters = loadTestCluster(clusterStorage);
+
+        // create the clusterer - the small maximum bin size forces cuts within dense regions
+        LocalParallelBinnedClusteringTool clusterer = new LocalParallelBinnedClusteringTool(
+                2, testDir.toFile(),
+                new GapPartitionBinner(BasicIntegerNormalizer.MZ_CONSTANT, 10, 50, false),
+                GreedySpectralCluster.class);
+        clusterer.setInMemory(true);
+
+        File finalResultFile = new File(testDir.toFile(), "result.bcs");
+
+        ClusteringParameters clusteringParameters = new ClusteringParameters();
+        clusteringParameters.setThresholdStart(1f);
+        clusteringParameters.setThresholdEnd(0.99f);
+        clusteringParameters.setClusterRounds(5);
+        clusteringParameters.setFragmentIonPrecision("high");
+        clusteringParameters.setPrecursorIonTolerance((double) 1);
+        clusteringParameters.setIgnoreCharge(false);
+        clusteringParameters.setNInitiallySharedPeaks(5);
+        clusteringParameters.setNThreads(1);
+        clusteringParameters.setOutputFile(finalResultFile);
+
+        clusterer.runClustering(testClusters, clusterStorage, clusteringParameters);
+
+        // clusters that were not re-clustered must be written as well
+        ObjectDBGreedyClusterStorage resultReader = new ObjectDBGreedyClusterStorage(new ObjectsDB(finalResultFile.getAbsolutePath(), false));
+        int totalSpectra = 0;
+
+        while (resultReader.hasNext()) {
+            GreedySpectralCluster cluster = (GreedySpectralCluster) resultReader.next();
+
+            Assert.assertTrue(cluster.isFrozen());
+            totalSpectra += cluster.getClusteredSpectraCount();
+        }
+
+        Assert.assertEquals(testClusters.length, totalSpectra);
+    }
 }
@@ -2,6 +2,9 @@ package org.spectra.cluster.util;
 
 import org.junit.Assert;
 import org.junit.Test;
+import org.spectra.cluster.engine.ComparisonPeakIndex;
+import org.spectra.cluster.engine.GreedyClusteringEngine;
+import org.spectra.cluster.engine.MinHashCandidateIndex;
 
 public class ClusteringParametersTest {
     @Test
@@ -13,4 +16,30 @@ public class ClusteringParametersTest {
         Assert.assertEquals(2, params.getNThreads());
         Assert.assertTrue(params.isFilterReportPeaks());
     }
+
+    @Test
+    public void testCandidateIndex() throws Exception {
+        ClusteringParameters params = new ClusteringParameters();
+
+        Assert.assertEquals(0, params.getLshSignatureSize());
+        Assert.assertEquals(MinHashCandidateIndex.DEFAULT_BANDS, params.getLshBands());
+
+        GreedyClusteringEngine engine = params.createGreedyClusteringEngine();
+        Assert.assertTrue(engine.getFirstRoundCandidateIndexSupplier().get() instanceof ComparisonPeakIndex);
+
+        params.setLshSignatureSize(MinHashCandidateIndex.DEFAULT_SIGNATURE_SIZE);
+        engine = params.createGreedyClusteringEngine();
+        Assert.assertTrue(engine.getFirstRoundCandidateIndexSupplier().get() instanceof MinHashCandidateIndex);
+    }
+
+    @Test
+    public void testMaxConsensusPeaksPerWindow() throws Exception {
+        ClusteringParameters params = new ClusteringParameters();
+
+        Assert.assertEquals(0, params.getMaxConsensusPeaksPerWindow());
+        Assert.assertEquals(0, params.createGreedyClusteringEngine().getMaxConsensusPeaksPerWindow());
+
+        params.setMaxConsensusPeaksPerWindow(50);
+        Assert.assertEquals(50, params.createGreedyClusteringEngine().getMaxConsensusPeaksPerWindow());
+    }
 }
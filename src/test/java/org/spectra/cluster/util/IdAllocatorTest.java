@@ -0,0 +1,71 @@
+package org.spectra.cluster.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.spectra.cluster.model.spectra.BinaryPeak;
+import org.spectra.cluster.model.spectra.BinarySpectrum;
+
+import java.util.HashSet;
+import java.util.Set;
+
+public class IdAllocatorTest {
+    @Test
+    public void testUniqueIds() {
+        Set<String> ids = new HashSet<>();
+
+        for (int i = 0; i < 10_000; i++) {
+            Assert.assertTrue(ids.add(IdAllocator.nextId()));
+        }
+    }
+
+    @Test
+    public void testNumericIds() {
+        long[] testIds = {0, 1, 35, 36, 1_000_000, 123_456_789_012L};
+
+        for (long testId : testIds) {
+            String id = IdAllocator.toId(testId);
+            Assert.assertTrue(IdAllocator.isNumericId(id));
+            Assert.assertEquals(testId, IdAllocator.toNumericId(id));
+        }
+
+        String id = IdAllocator.nextId();
+        Assert.assertEquals(id, IdAllocator.toId(IdAllocator.toNumericId(id)));
+
+        // ids that are not in the canonical form
+        Assert.assertFalse(IdAllocator.isNumericId(""));
+        Assert.assertFalse(IdAllocator.isNumericId("01"));
+        Assert.assertFalse(IdAllocator.isNumericId("-1"));
+        Assert.assertFalse(IdAllocator.isNumericId("A"));
+        Assert.assertFalse(IdAllocator.isNumericId("4f9c6d4e-3f7a-4c1b-9d2e-8a6b5c4d3e2f"));
+        Assert.assertFalse(IdAllocator.isNumericId(IdAllocator.getRunPrefix()));
+        Assert.assertFalse(IdAllocator.isNumericId(IdAllocator.getRunPrefix() + "01"));
+    }
+
+    @Test
+    public void testExternalIds() {
+        // short external ids are never mistaken for numeric ids
+        Assert.assertFalse(IdAllocator.isNumericId("10"));
+        Assert.assertFalse(IdAllocator.isNumericId("abc"));
+
+        // ids allocated by a different run
+        String otherRunId = IdAllocator.toId("~other", 10);
+        Assert.assertEquals("~othera", otherRunId);
+        Assert.assertFalse(IdAllocator.isNumericId(otherRunId));
+    }
+
+    @Test
+    public void testRunPrefix() {
+        String id = IdAllocator.nextId();
+
+        Assert.assertEquals(IdAllocator.ID_PREFIX, id.charAt(0));
+        Assert.assertTrue(id.startsWith(IdAllocator.getRunPrefix()));
+        Assert.assertEquals(11, IdAllocator.getRunPrefix().length());
+    }
+
+    @Test
+    public void testSpectrumIds() {
+        BinarySpectrum spectrum = new BinarySpectrum(1, 2, new BinaryPeak[0], null);
+
+        Assert.assertTrue(IdAllocator.isNumericId(spectrum.getUUI()));
+    }
+}